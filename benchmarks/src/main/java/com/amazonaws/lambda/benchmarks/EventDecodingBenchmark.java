@@ -0,0 +1,64 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.gbif.GbifQuery;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Cost of turning the API Gateway event into query parameters.
+ * legacyGsonRoundTrip is what GbifLambdaHandler used to do (Map -> JSON text -> JsonObject tree);
+ * run with -prof gc and compare gc.alloc.rate.norm (bytes allocated per invocation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDecodingBenchmark {
+
+	private Map<String, Object> event;
+	private byte[] eventJson;
+
+	@Setup
+	public void setup() {
+		event = SampleEvents.passthroughEvent("kingdom", "animalia", "country", "belgium", "sex", "male");
+		eventJson = new Gson().toJson(event).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public JsonElement legacyGsonRoundTrip() {
+		JsonParser parser = new JsonParser();
+		String jsonString = new Gson().toJson(event, Map.class);
+		return parser.parse(jsonString).getAsJsonObject().get("params").getAsJsonObject().get("querystring");
+	}
+
+	@Benchmark
+	public GbifQuery decodeFromMap() {
+		return GbifQuery.from(ApiGatewayEvent.fromObject(event));
+	}
+
+	@Benchmark
+	public GbifQuery decodeFromStream() throws IOException {
+		return GbifQuery.from(ApiGatewayEvent.fromStream(new ByteArrayInputStream(eventJson)));
+	}
+}
@@ -0,0 +1,90 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.es.Metrics;
+import com.amazonaws.lambda.gbif.GbifLambdaHandler;
+import com.amazonaws.lambda.gbif.GbifLambdaStreamHandler;
+import com.google.gson.Gson;
+
+/**
+ * Whole invocations of the gbif handlers against {@link StubEs} serving recorded responses of
+ * 1, 10 and 100 hits over loopback HTTP: decoding, payload, signing, the pooled ES call and
+ * reading/writing the response. The response cache is disabled (GBIF_CACHE_MAX_BYTES=0),
+ * so every invocation makes the call. Metrics lines are off (METRICS_ENABLED=false); the phase
+ * histograms (METRICS_HISTOGRAMS=true) are still kept, and printed after the trial (warmup included).
+ * Also covers GbifLambdaHandler.convertStreamToString on the same bodies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-DGBIF_CACHE_MAX_BYTES=0", "-DMETRICS_ENABLED=false", "-DMETRICS_HISTOGRAMS=true" })
+public class HandlerBenchmark {
+
+	@Param({ "1", "10", "100" })
+	public int hits;
+
+	private StubEs es;
+	private byte[] body;
+	private Map<String, Object> event;
+	private byte[] eventJson;
+	private GbifLambdaHandler handler;
+	private GbifLambdaStreamHandler streamHandler;
+	private ByteArrayOutputStream output;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		body = RecordedResponses.searchResponse(hits);
+		es = new StubEs(body);
+		es.install();
+		event = SampleEvents.passthroughEvent("kingdom", "animalia", "country", "belgium", "sex", "male");
+		eventJson = new Gson().toJson(event).getBytes(StandardCharsets.UTF_8);
+		handler = new GbifLambdaHandler();
+		streamHandler = new GbifLambdaStreamHandler();
+		output = new ByteArrayOutputStream(body.length + 1024);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		es.close();
+		System.out.print(Metrics.report());
+	}
+
+	@Benchmark
+	public String convertStreamToString() {
+		return GbifLambdaHandler.convertStreamToString(new ByteArrayInputStream(body));
+	}
+
+	@Benchmark
+	public String handleRequest() {
+		return handler.handleRequest(event, null);
+	}
+
+	@Benchmark
+	public int handleRequestStream() throws IOException {
+		output.reset();
+		streamHandler.handleRequest(new ByteArrayInputStream(eventJson), output, null);
+		return output.size();
+	}
+}
@@ -0,0 +1,84 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.lambda.gbif.GbifLambdaHandler;
+
+/**
+ * Cold start of GbifLambdaHandler, one fresh JVM per sample: how long loading and initializing the
+ * handler class takes (the Lambda init phase), and how long the first invocation then takes
+ * against {@link StubEs}. prime=false is the behaviour before GbifPrimer, where the first
+ * invocation loads and initializes everything it touches; prime=true primes during init,
+ * connection included (GBIF_PRIME_CONNECT), so the cost moves out of the first request.
+ * The response cache is disabled and metrics lines are off, as in HandlerBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 20, jvmArgsAppend = { "-DGBIF_CACHE_MAX_BYTES=0", "-DMETRICS_ENABLED=false" })
+public class InitBenchmark {
+
+	private static final String HANDLER = "com.amazonaws.lambda.gbif.GbifLambdaHandler";
+
+	@Param({ "false", "true" })
+	public boolean prime;
+
+	private StubEs es;
+	private Map<String, Object> event;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		es = new StubEs(RecordedResponses.searchResponse(10));
+		es.install();
+		System.setProperty("GBIF_PRIME", String.valueOf(prime));
+		System.setProperty("GBIF_PRIME_CONNECT", String.valueOf(prime));
+		event = SampleEvents.passthroughEvent("kingdom", "animalia", "country", "belgium", "sex", "male");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		es.close();
+	}
+
+	/**
+	 * The handler, initialized during the trial's setup: only the first request is measured.
+	 */
+	@State(Scope.Benchmark)
+	public static class Initialized {
+
+		GbifLambdaHandler handler;
+
+		@Setup(Level.Trial)
+		public void setup(InitBenchmark benchmark) throws ReflectiveOperationException {
+			handler = (GbifLambdaHandler) Class.forName(HANDLER).newInstance();
+		}
+	}
+
+	@Benchmark
+	public Object init() throws ReflectiveOperationException {
+		return Class.forName(HANDLER).newInstance();
+	}
+
+	@Benchmark
+	public String firstRequest(Initialized initialized) {
+		return initialized.handler.handleRequest(event, null);
+	}
+}
@@ -0,0 +1,53 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * ES search responses of a given number of hits, built from the hit recorded in gbif_hit.json
+ * (the first hit of the README example), each copy with its own _id and key.
+ */
+final class RecordedResponses {
+
+	private RecordedResponses() {
+	}
+
+	/**
+	 * @param hits = number of hits in the response
+	 * @return compact ES response JSON, UTF-8
+	 */
+	static byte[] searchResponse(int hits) throws IOException {
+		JsonObject hit;
+		try (InputStream in = RecordedResponses.class.getResourceAsStream("/gbif_hit.json")) {
+			hit = new JsonParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8)).getAsJsonObject();
+		}
+		JsonArray array = new JsonArray();
+		for (int i = 0; i < hits; i++) {
+			JsonObject copy = hit.deepCopy();
+			copy.addProperty("_id", String.valueOf(21 + i));
+			copy.getAsJsonObject("_source").addProperty("key", 925334504L + i);
+			array.add(copy);
+		}
+		JsonObject shards = new JsonObject();
+		shards.addProperty("total", 5);
+		shards.addProperty("successful", 5);
+		shards.addProperty("skipped", 0);
+		shards.addProperty("failed", 0);
+		JsonObject total = new JsonObject();
+		total.addProperty("total", hits);
+		total.addProperty("max_score", 5.0037503);
+		total.add("hits", array);
+		JsonObject response = new JsonObject();
+		response.addProperty("took", 6);
+		response.addProperty("timed_out", false);
+		response.add("_shards", shards);
+		response.add("hits", total);
+		return response.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
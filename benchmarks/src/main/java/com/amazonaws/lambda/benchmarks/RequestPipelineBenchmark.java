@@ -0,0 +1,72 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.EsSigner;
+import com.amazonaws.lambda.es.HashedPayload;
+import com.amazonaws.lambda.gbif.GbifQuery;
+import com.amazonaws.lambda.gbif.GbifQueryCompiler;
+
+/**
+ * Cost of the steps between decoding the event and sending the request:
+ * generating the search body (GbifLambdaHandler.generatePayload) and AWS4 signing
+ * (GbifLambdaHandler.performSigningSteps), with dummy credentials.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPipelineBenchmark {
+
+	private GbifQuery query;
+	private HashedPayload payload;
+	private EsSigner signer;
+
+	@Setup
+	public void setup() {
+		StubEs.useDummyCredentials();
+		query = GbifQuery.from(ApiGatewayEvent.fromObject(
+				SampleEvents.passthroughEvent("kingdom", "animalia", "country", "belgium", "sex", "male", "year", "2010-2014")));
+		payload = HashedPayload.of(GbifQueryCompiler.compile(query));
+		signer = EsSigner.getInstance("es", "us-east-2");
+	}
+
+	@Benchmark
+	public String generatePayload() {
+		return GbifQueryCompiler.compile(query);
+	}
+
+	@Benchmark
+	public HashedPayload generateAndHashPayload() {
+		return HashedPayload.of(GbifQueryCompiler.compile(query));
+	}
+
+	@Benchmark
+	public Request<?> performSigningSteps() {
+		Request<?> request = new DefaultRequest<Void>("es");
+		request.setContent(payload.newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(URI.create("https://search-challenge-k4o63ifclu555nen5d463di2xu.us-east-2.es.amazonaws.com/"));
+		request.setResourcePath("/gbif/_search");
+		request.setHttpMethod(HttpMethodName.GET);
+		return signer.sign(request);
+	}
+}
@@ -0,0 +1,54 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Builds events shaped like the API Gateway "Method Request passthrough" template output.
+ */
+final class SampleEvents {
+
+	private SampleEvents() {
+	}
+
+	static Map<String, Object> passthroughEvent(String... querystring) {
+		Map<String, Object> query = new LinkedHashMap<String, Object>();
+		for (int i = 0; i + 1 < querystring.length; i += 2) {
+			query.put(querystring[i], querystring[i + 1]);
+		}
+		Map<String, Object> header = new LinkedHashMap<String, Object>();
+		header.put("Accept", "application/json");
+		header.put("Accept-Encoding", "gzip, deflate, br");
+		header.put("Accept-Language", "en-US,en;q=0.9");
+		header.put("CloudFront-Forwarded-Proto", "https");
+		header.put("CloudFront-Is-Desktop-Viewer", "true");
+		header.put("CloudFront-Viewer-Country", "BE");
+		header.put("Host", "82794poka2.execute-api.us-east-2.amazonaws.com");
+		header.put("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)");
+		header.put("Via", "2.0 0f5a4b2c7d3e.cloudfront.net (CloudFront)");
+		header.put("X-Amz-Cf-Id", "Yp0Tx0kKc1s6mH4b0fQk6m9r3Gf6y3Zr0lE2b7gJ5oQpJ6m1tH2bVw==");
+		header.put("X-Amzn-Trace-Id", "Root=1-5ad0c1f2-8a4b0c6d2e1f3a5b7c9d0e1f");
+		header.put("X-Forwarded-For", "203.0.113.7, 198.51.100.23");
+		header.put("X-Forwarded-Port", "443");
+		header.put("X-Forwarded-Proto", "https");
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("path", new LinkedHashMap<String, Object>());
+		params.put("querystring", query);
+		params.put("header", header);
+		Map<String, Object> context = new LinkedHashMap<String, Object>();
+		context.put("account-id", "");
+		context.put("api-id", "82794poka2");
+		context.put("http-method", "GET");
+		context.put("request-id", "8c6e5f4a-3d2b-11e8-9d5b-7f1c2a3b4d5e");
+		context.put("resource-path", "/gbif");
+		context.put("source-ip", "203.0.113.7");
+		context.put("stage", "prod");
+		context.put("user-agent", header.get("User-Agent"));
+		Map<String, Object> event = new LinkedHashMap<String, Object>();
+		event.put("body-json", new LinkedHashMap<String, Object>());
+		event.put("params", params);
+		event.put("stage-variables", new LinkedHashMap<String, Object>());
+		event.put("context", context);
+		return event;
+	}
+}
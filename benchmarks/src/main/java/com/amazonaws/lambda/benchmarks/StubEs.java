@@ -0,0 +1,109 @@
+package com.amazonaws.lambda.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the ES domain on a loopback port: answers every request with a fixed recorded body,
+ * gzip-compressed when the client accepts it (as ES does with http.compression enabled).
+ * Point the handlers at it with ES_ENDPOINT before they are loaded, see {@link #endpoint()}.
+ */
+final class StubEs implements Closeable {
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+	private final byte[] body;
+	private final byte[] gzippedBody;
+
+	/**
+	 * @param body = response body for every request
+	 */
+	StubEs(byte[] body) throws IOException {
+		this.body = body;
+		this.gzippedBody = gzip(body);
+		//headers and body go out in separate writes: without TCP_NODELAY, delayed ACKs add ~40 ms per call
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange);
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @return base URL, e.g. http://127.0.0.1:40123/
+	 */
+	String endpoint() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * Points the handlers at the stub (ES_ENDPOINT) and gives the signer dummy credentials
+	 * (aws.accessKeyId / aws.secretKey) unless real ones are configured.
+	 * Must run before the handler classes are initialized.
+	 */
+	void install() {
+		System.setProperty("ES_ENDPOINT", endpoint());
+		useDummyCredentials();
+	}
+
+	/**
+	 * Lets requests be signed without an AWS account: the stub does not check signatures.
+	 */
+	static void useDummyCredentials() {
+		if (System.getenv("AWS_ACCESS_KEY_ID") == null && System.getProperty("aws.accessKeyId") == null) {
+			System.setProperty("aws.accessKeyId", "AKIDEXAMPLE");
+			System.setProperty("aws.secretKey", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+		}
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		//the request has to be read before answering, or the connection cannot be reused
+		InputStream in = exchange.getRequestBody();
+		byte[] buffer = new byte[8192];
+		while (in.read(buffer) != -1) {
+			//discard
+		}
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+		byte[] out = gzip ? gzippedBody : body;
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		if (gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(200, out.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(out);
+		}
+	}
+
+	private static byte[] gzip(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+		try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+			gz.write(bytes);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,326 @@
+package com.amazonaws.lambda.es;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The parts of an API Gateway event the search handlers use, decoded without an intermediate
+ * JSON text or tree. Understands both the passthrough mapping template
+ * ({"params": {"querystring": {...}, "header": {...}}}) and the Lambda proxy shape
+ * ({"queryStringParameters": {...}, "headers": {...}}). Everything else in the event is skipped.
+ * Header names are lower-cased, since HTTP header names are case-insensitive.
+ * Path parameters (e.g. {index} of a /{index} resource) come from "pathParameters" or "params"."path".
+ *
+ * A batch of queries is a JSON array of query string maps, sent as the request body
+ * ("body-json" in the passthrough template, "body" for proxy events), either bare or as
+ * {"queries": [...]}; a direct invocation may also pass the array itself as the event.
+ */
+public final class ApiGatewayEvent {
+
+	private static final ApiGatewayEvent EMPTY = new ApiGatewayEvent(Collections.<String, String>emptyMap(),
+			Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(), false, null);
+
+	private final Map<String, String> querystring;
+	private final Map<String, String> headers;
+	private final Map<String, String> pathParameters;
+	private final boolean proxy;
+	private final List<Map<String, String>> batch;
+
+	private ApiGatewayEvent(Map<String, String> querystring, Map<String, String> headers,
+			Map<String, String> pathParameters, boolean proxy, List<Map<String, String>> batch) {
+		this.querystring = querystring;
+		this.headers = headers;
+		this.pathParameters = pathParameters;
+		this.proxy = proxy;
+		this.batch = batch;
+	}
+
+	private static ApiGatewayEvent of(Map<String, String> querystring, Map<String, String> headers,
+			Map<String, String> pathParameters, boolean proxy, List<Map<String, String>> batch) {
+		if ((querystring == null || querystring.isEmpty()) && (headers == null || headers.isEmpty())
+				&& (pathParameters == null || pathParameters.isEmpty()) && !proxy && batch == null) {
+			return EMPTY;
+		}
+		Map<String, String> lowerCased = new LinkedHashMap<String, String>();
+		if (headers != null) {
+			for (Map.Entry<String, String> entry : headers.entrySet()) {
+				lowerCased.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue());
+			}
+		}
+		return new ApiGatewayEvent(
+				querystring == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(querystring),
+				Collections.unmodifiableMap(lowerCased),
+				pathParameters == null ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(pathParameters), proxy,
+				batch == null ? null : Collections.unmodifiableList(batch));
+	}
+
+	/**
+	 * @return query string parameters, in request order; never null
+	 */
+	public Map<String, String> getQuerystring() {
+		return querystring;
+	}
+
+	/**
+	 * @param name = name of the path parameter, e.g. "index"
+	 * @return its value, or null
+	 */
+	public String getPathParameter(String name) {
+		return pathParameters.get(name);
+	}
+
+	/**
+	 * @return true if the event carries a batch of queries (see {@link #getBatch()})
+	 */
+	public boolean isBatch() {
+		return batch != null;
+	}
+
+	/**
+	 * @return query string maps of a batch request, in request order; null if not a batch
+	 */
+	public List<Map<String, String>> getBatch() {
+		return batch;
+	}
+
+	/**
+	 * @param name = header name, any case
+	 * @return header value, or null
+	 */
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return true for a Lambda proxy integration event, which expects a proxy response
+	 * ({"statusCode": ..., "headers": ..., "body": ...}) rather than the raw document
+	 */
+	public boolean isProxy() {
+		return proxy;
+	}
+
+	/**
+	 * @return true if the client's Accept-Encoding allows a gzip body
+	 */
+	public boolean acceptsGzip() {
+		String accept = getHeader("Accept-Encoding");
+		if (accept == null) {
+			return false;
+		}
+		for (String coding : accept.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim();
+			if ("gzip".equalsIgnoreCase(name) || "*".equals(name)) {
+				//gzip;q=0 means "anything but gzip"
+				return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes the event object the Lambda runtime hands to a RequestHandler (nested java.util.Maps).
+	 * @param input = API Request event input {LinkedHashMap}; null is treated as an empty event
+	 */
+	public static ApiGatewayEvent fromObject(Object input) {
+		if (input instanceof List) {
+			return of(null, null, null, false, toBatch(input));
+		}
+		if (!(input instanceof Map)) {
+			return EMPTY;
+		}
+		Map<?, ?> event = (Map<?, ?>) input;
+		boolean proxy = event.containsKey("queryStringParameters") || event.containsKey("requestContext")
+				|| event.containsKey("httpMethod");
+		Object querystring = event.get("queryStringParameters");
+		Object headers = event.get("headers");
+		Object pathParameters = event.get("pathParameters");
+		Object params = event.get("params");
+		if (!proxy && params instanceof Map) {
+			querystring = ((Map<?, ?>) params).get("querystring");
+			headers = ((Map<?, ?>) params).get("header");
+			pathParameters = ((Map<?, ?>) params).get("path");
+		}
+		Object body = proxy ? event.get("body") : event.get("body-json");
+		List<Map<String, String>> batch = body instanceof String ? readBatch((String) body) : toBatch(body);
+		return of(toStringMap(querystring), toStringMap(headers), toStringMap(pathParameters), proxy, batch);
+	}
+
+	/*
+	 * [{...}, ...] or {"queries": [{...}, ...]}; anything else is not a batch
+	 */
+	private static List<Map<String, String>> toBatch(Object body) {
+		if (body instanceof Map) {
+			body = ((Map<?, ?>) body).get("queries");
+		}
+		if (!(body instanceof List)) {
+			return null;
+		}
+		List<Map<String, String>> batch = new ArrayList<Map<String, String>>();
+		for (Object querystring : (List<?>) body) {
+			Map<String, String> values = toStringMap(querystring);
+			batch.add(values == null ? Collections.<String, String>emptyMap() : values);
+		}
+		return batch;
+	}
+
+	private static Map<String, String> toStringMap(Object map) {
+		if (!(map instanceof Map)) {
+			return null;
+		}
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) map).entrySet()) {
+			if (entry.getValue() != null) {
+				values.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Decodes the raw event JSON given to a RequestStreamHandler in a single forward pass.
+	 * @param input = API Request event as JSON; the stream is not closed
+	 */
+	public static ApiGatewayEvent fromStream(InputStream input) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+		if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+			return of(null, null, null, false, readBatch(reader));
+		}
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			return EMPTY;
+		}
+		Map<String, String> querystring = null;
+		Map<String, String> headers = null;
+		Map<String, String> pathParameters = null;
+		Map<String, String> passthroughQuerystring = null;
+		Map<String, String> passthroughHeaders = null;
+		Map<String, String> passthroughPath = null;
+		List<Map<String, String>> batch = null;
+		String body = null;
+		boolean proxy = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("queryStringParameters".equals(name)) {
+				querystring = readStringMap(reader);
+				proxy = true;
+			} else if ("headers".equals(name)) {
+				headers = readStringMap(reader);
+			} else if ("pathParameters".equals(name)) {
+				pathParameters = readStringMap(reader);
+			} else if ("body-json".equals(name)) {
+				batch = readBatch(reader);
+			} else if ("body".equals(name)) {
+				if (reader.peek() == JsonToken.STRING) {
+					body = reader.nextString();
+				} else {
+					reader.skipValue();
+				}
+			} else if ("requestContext".equals(name) || "httpMethod".equals(name)) {
+				reader.skipValue();
+				proxy = true;
+			} else if ("params".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String param = reader.nextName();
+					if ("querystring".equals(param)) {
+						passthroughQuerystring = readStringMap(reader);
+					} else if ("header".equals(param)) {
+						passthroughHeaders = readStringMap(reader);
+					} else if ("path".equals(param)) {
+						passthroughPath = readStringMap(reader);
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (proxy) {
+			return of(querystring, headers, pathParameters, true, readBatch(body));
+		}
+		return of(passthroughQuerystring, passthroughHeaders, passthroughPath, false, batch);
+	}
+
+	/*
+	 * Batch from a JSON text body (proxy events); null or blank bodies are not a batch
+	 */
+	private static List<Map<String, String>> readBatch(String body) {
+		if (body == null || body.trim().isEmpty()) {
+			return null;
+		}
+		try {
+			return readBatch(new JsonReader(new StringReader(body)));
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid batch body");
+		}
+	}
+
+	/*
+	 * Reads [{...}, ...] or {"queries": [{...}, ...]}; returns null (value skipped) for anything else
+	 */
+	private static List<Map<String, String>> readBatch(JsonReader reader) throws IOException {
+		List<Map<String, String>> batch = null;
+		if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("queries".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+					batch = readBatch(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return batch;
+		}
+		if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+			reader.skipValue();
+			return null;
+		}
+		batch = new ArrayList<Map<String, String>>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			batch.add(readStringMap(reader));
+		}
+		reader.endArray();
+		return batch;
+	}
+
+	/*
+	 * Reads a flat {"name": "value"} object; null or non-object values read as an empty map
+	 */
+	private static Map<String, String> readStringMap(JsonReader reader) throws IOException {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			reader.skipValue();
+			return values;
+		}
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+			if (token == JsonToken.STRING || token == JsonToken.NUMBER || token == JsonToken.BOOLEAN) {
+				values.put(name, token == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean()) : reader.nextString());
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return values;
+	}
+}
@@ -0,0 +1,35 @@
+package com.amazonaws.lambda.es;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * "Decorrelated jitter" backoff: each delay is drawn between the base delay and three times the
+ * previous one, capped. Spreads out the retries of concurrent invocations better than plain
+ * exponential backoff, so a throttled domain is not hit by synchronized waves.
+ * ES_BACKOFF_BASE_MS (50) and ES_BACKOFF_CAP_MS (2000).
+ */
+public final class Backoff {
+
+	private final long baseMillis;
+	private final long capMillis;
+	private long previousMillis;
+
+	public Backoff(long baseMillis, long capMillis) {
+		this.baseMillis = baseMillis;
+		this.capMillis = capMillis;
+		this.previousMillis = baseMillis;
+	}
+
+	public static Backoff fromSettings() {
+		return new Backoff(Settings.getLong("ES_BACKOFF_BASE_MS", 50), Settings.getLong("ES_BACKOFF_CAP_MS", 2000));
+	}
+
+	/**
+	 * @return milliseconds to wait before the next attempt
+	 */
+	public long nextDelayMillis() {
+		long upper = Math.max(baseMillis + 1, previousMillis * 3);
+		previousMillis = Math.min(capMillis, ThreadLocalRandom.current().nextLong(baseMillis, upper));
+		return previousMillis;
+	}
+}
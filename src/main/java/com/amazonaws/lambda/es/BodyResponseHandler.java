@@ -0,0 +1,45 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.AmazonWebServiceResponse;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+
+/**
+ * Reads the ES response body into a String, returned as the result of the call
+ * ({@code client.execute(...).getAwsResponse()}): nothing is shared between calls,
+ * so concurrent requests cannot see each other's responses.
+ */
+public class BodyResponseHandler implements HttpResponseHandler<AmazonWebServiceResponse<String>> {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	@Override
+	public AmazonWebServiceResponse<String> handle(HttpResponse response) throws Exception {
+		AmazonWebServiceResponse<String> awsResponse = new AmazonWebServiceResponse<String>();
+		awsResponse.setResult(read(response.getContent()));
+		return awsResponse;
+	}
+
+	private static String read(InputStream content) throws IOException {
+		if (content == null) {
+			return "";
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream(BUFFER_SIZE);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = content.read(buffer)) != -1) {
+			body.write(buffer, 0, n);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public boolean needsConnectionLeftOpen() {
+		return false;
+	}
+}
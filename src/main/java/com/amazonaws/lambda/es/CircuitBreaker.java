@@ -0,0 +1,130 @@
+package com.amazonaws.lambda.es;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for the ES domain, shared by all calls of a container.
+ * CLOSED: calls go through; ES_BREAKER_FAILURES consecutive unhealthy failures (see {@link ErrorClass})
+ * open it. OPEN: calls fail fast with {@link OpenException} for ES_BREAKER_OPEN_MS.
+ * HALF_OPEN: a single probe call is let through; its outcome closes or re-opens the breaker.
+ */
+public final class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openNanos;
+
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAtNanos;
+	private boolean probing;
+
+	private long successes;
+	private long failures;
+	private long rejections;
+	private long trips;
+
+	/**
+	 * @param failureThreshold = consecutive failures that open the breaker
+	 * @param openMillis = how long it stays open before a probe is allowed
+	 */
+	public CircuitBreaker(int failureThreshold, long openMillis) {
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	public static CircuitBreaker fromSettings() {
+		return new CircuitBreaker(Settings.getInt("ES_BREAKER_FAILURES", 5), Settings.getLong("ES_BREAKER_OPEN_MS", 30000));
+	}
+
+	/**
+	 * @throws OpenException if the call must not be made now
+	 */
+	public synchronized void acquire() {
+		if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+			state = State.HALF_OPEN;
+		}
+		if (state == State.OPEN || (state == State.HALF_OPEN && probing)) {
+			rejections++;
+			throw new OpenException();
+		}
+		if (state == State.HALF_OPEN) {
+			probing = true;
+		}
+	}
+
+	public synchronized void onSuccess() {
+		successes++;
+		consecutiveFailures = 0;
+		probing = false;
+		state = State.CLOSED;
+	}
+
+	/**
+	 * @param error = class of the failure; only unhealthy classes count
+	 */
+	public synchronized void onFailure(ErrorClass error) {
+		probing = false;
+		if (error == ErrorClass.TIMEOUT) {
+			//the caller ran out of time: says nothing either way about the domain
+			return;
+		}
+		if (!error.isUnhealthy()) {
+			//the domain answered, so it is up
+			consecutiveFailures = 0;
+			if (state == State.HALF_OPEN) {
+				state = State.CLOSED;
+			}
+			return;
+		}
+		failures++;
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+			if (state != State.OPEN) {
+				trips++;
+			}
+			state = State.OPEN;
+			openedAtNanos = System.nanoTime();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized long getSuccesses() {
+		return successes;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	public synchronized long getRejections() {
+		return rejections;
+	}
+
+	public synchronized long getTrips() {
+		return trips;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "CircuitBreaker{state=" + state + ", successes=" + successes + ", failures=" + failures
+				+ ", rejections=" + rejections + ", trips=" + trips + "}";
+	}
+
+	/**
+	 * Thrown instead of calling ES while the breaker is open.
+	 */
+	public static final class OpenException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException() {
+			super("ES circuit breaker is open");
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.amazonaws.lambda.es;
+
+import java.net.SocketTimeoutException;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * Time budget of one invocation: what the Lambda runtime has left (Context.getRemainingTimeInMillis)
+ * minus a safety margin, so the handler can still answer before it is killed.
+ * ES calls made under a deadline are aborted when it runs out (see {@link EsClient}),
+ * and searches ask ES to stop early and return partial hits (see {@link #esTimeout()}).
+ *
+ * ES_DEADLINE_MARGIN_MS (500) is kept back for writing the response;
+ * ES_TIMEOUT_HEADROOM_MS (200) more is left between ES's own search timeout and the HTTP abort.
+ */
+public final class Deadline {
+
+	public static final String MARGIN_MS = "ES_DEADLINE_MARGIN_MS";
+	public static final String TIMEOUT_HEADROOM_MS = "ES_TIMEOUT_HEADROOM_MS";
+
+	/** body returned instead of hits when the deadline passed before ES answered */
+	public static final String TIMED_OUT_BODY = "{\"timed_out\":true,\"hits\":{\"total\":0,\"hits\":[]},"
+			+ "\"error\":{\"type\":\"deadline_exceeded\",\"reason\":\"The search did not complete in time\"}}";
+
+	private static final long margin = Settings.getLong(MARGIN_MS, 500);
+	private static final long headroom = Settings.getLong(TIMEOUT_HEADROOM_MS, 200);
+	//without a Context (tests, local runs) the socket timeout of the shared client applies
+	private static final long unbounded = Settings.getLong(EsClient.SOCKET_TIMEOUT_MS, 10000);
+
+	private final long expiresAtNanos;
+
+	private Deadline(long budgetMillis) {
+		this.expiresAtNanos = System.nanoTime() + budgetMillis * 1000000L;
+	}
+
+	/**
+	 * @param context = Lambda context; null gives the default ES socket timeout as budget
+	 */
+	public static Deadline fromContext(Context context) {
+		if (context == null) {
+			return new Deadline(unbounded);
+		}
+		return new Deadline(Math.max(0, context.getRemainingTimeInMillis() - margin));
+	}
+
+	/**
+	 * @param budgetMillis = time from now
+	 */
+	public static Deadline in(long budgetMillis) {
+		return new Deadline(budgetMillis);
+	}
+
+	/**
+	 * @return milliseconds left, 0 once expired
+	 */
+	public long remainingMillis() {
+		return Math.max(0, (expiresAtNanos - System.nanoTime()) / 1000000L);
+	}
+
+	public boolean isExpired() {
+		return expiresAtNanos - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @return value for the "timeout" of an ES search body, e.g. "1300ms": ES returns the hits
+	 * collected so far ("timed_out": true) instead of running past the deadline
+	 */
+	public String esTimeout() {
+		return Math.max(1, remainingMillis() - headroom) + "ms";
+	}
+
+	/**
+	 * @return true if t (or one of its causes) is the deadline or socket giving up on time
+	 */
+	public static boolean isTimeout(Throwable t) {
+		if (isExpired(t)) {
+			return true;
+		}
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SocketTimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if t (or one of its causes) is a call's deadline running out, rather than a socket
+	 * timeout (the domain silent for ES_SOCKET_TIMEOUT_MS)
+	 */
+	public static boolean isExpired(Throwable t) {
+		for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+			if (cause instanceof DeadlineExceededException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Thrown when a call is about to start with no time left, or was aborted when it ran out.
+	 */
+	public static final class DeadlineExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		DeadlineExceededException() {
+			super("Deadline exceeded");
+		}
+
+		/**
+		 * @param cause = failure of the aborted call
+		 */
+		DeadlineExceededException(Throwable cause) {
+			super("Deadline exceeded", cause);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.amazonaws.lambda.es;
+
+import java.io.IOException;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Kinds of failure of an ES call, each with its own retry budget (ES_RETRY_{NAME}, e.g. ES_RETRY_THROTTLED).
+ * Only failures that say something about the health of the domain count against the circuit breaker:
+ * a deadline running out is one caller's slow query or short budget, not a sick domain.
+ */
+public enum ErrorClass {
+	/** 429: the domain sheds load; worth a few spaced-out retries */
+	THROTTLED(3, true),
+	/** 502/503/504: node restarting or overloaded */
+	UNAVAILABLE(2, true),
+	/** other 5xx */
+	SERVER(1, true),
+	/** connection refused/reset before a response, or no data within the socket timeout */
+	CONNECTION(2, true),
+	/** the invocation deadline passed; retrying cannot help */
+	TIMEOUT(0, false),
+	/** 4xx other than 429: the request itself is wrong */
+	CLIENT(0, false),
+	/** anything else (e.g. a failure while reading the response) */
+	OTHER(0, false);
+
+	private final int retries;
+	private final boolean unhealthy;
+
+	private ErrorClass(int defaultRetries, boolean unhealthy) {
+		this.retries = Settings.getInt("ES_RETRY_" + name(), defaultRetries);
+		this.unhealthy = unhealthy;
+	}
+
+	/**
+	 * @return how many times a call failing this way may be retried
+	 */
+	public int retries() {
+		return retries;
+	}
+
+	/**
+	 * @return true if this failure points at an unhealthy domain (counts against the breaker)
+	 */
+	public boolean isUnhealthy() {
+		return unhealthy;
+	}
+
+	/**
+	 * @return true if a stale cached (or local) answer may stand in for the failed call: the domain
+	 * is unhealthy, or the caller ran out of time
+	 */
+	public boolean allowsFallback() {
+		return unhealthy || this == TIMEOUT;
+	}
+
+	/**
+	 * @param t = exception thrown by the ES call
+	 */
+	public static ErrorClass of(Throwable t) {
+		if (Deadline.isExpired(t)) {
+			return TIMEOUT;
+		}
+		if (t instanceof CircuitBreaker.OpenException) {
+			return UNAVAILABLE;
+		}
+		if (t instanceof AmazonServiceException) {
+			int status = ((AmazonServiceException) t).getStatusCode();
+			if (status == 429) {
+				return THROTTLED;
+			}
+			if (status == 502 || status == 503 || status == 504) {
+				return UNAVAILABLE;
+			}
+			if (status >= 500) {
+				return SERVER;
+			}
+			return status >= 400 ? CLIENT : OTHER;
+		}
+		//socket timeouts included
+		for (Throwable cause = t.getCause(); cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return CONNECTION;
+			}
+		}
+		return OTHER;
+	}
+}
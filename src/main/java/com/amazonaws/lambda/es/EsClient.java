@@ -0,0 +1,564 @@
+package com.amazonaws.lambda.es;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceResponse;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.http.AmazonHttpClient;
+import com.amazonaws.http.ExecutionContext;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+import com.amazonaws.http.apache.client.impl.ApacheHttpClientFactory;
+import com.amazonaws.http.apache.client.impl.ConnectionManagerAwareHttpClient;
+import com.amazonaws.http.apache.client.impl.SdkHttpClient;
+import com.amazonaws.http.settings.HttpClientSettings;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.util.IOUtils;
+import com.amazonaws.util.SdkHttpUtils;
+
+/**
+ * Pooled, keep-alive HTTP connection layer to the ElasticSearch domain.
+ * A single shared instance (see {@link #getInstance()}) lives for the life of the Lambda container,
+ * so warm invocations reuse open sockets and TLS sessions instead of building a new pool per request.
+ * The client is thread-safe; the pool is sized and timed out through the ES_* settings below.
+ *
+ * Retries are done here rather than by the SDK: each {@link ErrorClass} has its own retry budget,
+ * waits use decorrelated jitter ({@link Backoff}) and never run past the call's {@link Deadline},
+ * and a {@link CircuitBreaker} fails calls fast while the domain keeps failing.
+ * Calls are measured into the invocation's {@link Metrics}: connect and read time, ES "took",
+ * bytes read, retries, and the breaker state when it is not closed.
+ *
+ * Deadlines are enforced on the HTTP request itself (timeouts no longer than the time left, and an
+ * abort when it runs out) rather than through the SDK's request timers: with those on, the SDK reads
+ * every response body into memory before handing it over, which would defeat streaming.
+ */
+public final class EsClient {
+
+	public static final String MAX_CONNECTIONS = "ES_MAX_CONNECTIONS";
+	public static final String CONNECTION_TTL_MS = "ES_CONNECTION_TTL_MS";
+	public static final String CONNECTION_MAX_IDLE_MS = "ES_CONNECTION_MAX_IDLE_MS";
+	public static final String CONNECT_TIMEOUT_MS = "ES_CONNECT_TIMEOUT_MS";
+	public static final String SOCKET_TIMEOUT_MS = "ES_SOCKET_TIMEOUT_MS";
+	public static final String TCP_KEEP_ALIVE = "ES_TCP_KEEP_ALIVE";
+	public static final String USE_GZIP = "ES_USE_GZIP";
+
+	//a retry needs at least this long to be worth making
+	private static final long MIN_ATTEMPT_MILLIS = 100;
+
+	//calls running under a deadline, by thread: read by the HTTP client as it sends them
+	private static final ThreadLocal<Attempt> inFlight = new ThreadLocal<Attempt>();
+	private static final ScheduledExecutorService aborter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "es-deadline");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static volatile EsClient shared;
+	//closes the shared client at exit, unless its owner does (see keepOpenOnExit)
+	private static Thread closer;
+
+	private final AmazonHttpClient client;
+	private final ConnectionManagerAwareHttpClient httpClient;
+	private final HttpClientConnectionManager connectionManager;
+	private final int connectTimeout;
+	private final int socketTimeout;
+	private final CircuitBreaker breaker = CircuitBreaker.fromSettings();
+	private final AtomicLong retries = new AtomicLong();
+
+	/**
+	 * Builds a client with its own connection pool. Most callers want {@link #getInstance()} instead.
+	 * @param config = pool size, timeouts and keep-alive settings
+	 */
+	public EsClient(ClientConfiguration config) {
+		this.httpClient = new ApacheHttpClientFactory().create(HttpClientSettings.adapt(config));
+		this.connectionManager = httpClient.getHttpClientConnectionManager();
+		this.client = new AmazonHttpClient(config, new DeadlineHttpClient(httpClient), null);
+		this.connectTimeout = config.getConnectionTimeout();
+		this.socketTimeout = config.getSocketTimeout();
+	}
+
+	/**
+	 * @return the container-wide client, created on first use from {@link #defaultConfiguration()}
+	 */
+	public static EsClient getInstance() {
+		EsClient client = shared;
+		if (client == null) {
+			synchronized (EsClient.class) {
+				client = shared;
+				if (client == null) {
+					client = new EsClient(defaultConfiguration());
+					final EsClient toClose = client;
+					closer = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							toClose.close();
+						}
+					}, "es-client-shutdown");
+					Runtime.getRuntime().addShutdownHook(closer);
+					shared = client;
+				}
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Leaves closing the shared client to the caller: shutdown hooks run concurrently, so a server
+	 * draining its requests at exit must not have the pool closed under them.
+	 */
+	public static void keepOpenOnExit() {
+		getInstance();
+		synchronized (EsClient.class) {
+			if (closer != null) {
+				Runtime.getRuntime().removeShutdownHook(closer);
+				closer = null;
+			}
+		}
+	}
+
+	/**
+	 * Connection settings used by the shared client. Defaults suit a single-threaded Lambda
+	 * talking to one small domain: a handful of sockets, kept alive well past one invocation.
+	 * @return ClientConfiguration populated from the environment
+	 */
+	public static ClientConfiguration defaultConfiguration() {
+		ClientConfiguration config = new ClientConfiguration();
+		config.setMaxConnections(Settings.getInt(MAX_CONNECTIONS, 8));
+		config.setConnectionTTL(Settings.getLong(CONNECTION_TTL_MS, 5 * 60 * 1000L));
+		config.setConnectionMaxIdleMillis(Settings.getLong(CONNECTION_MAX_IDLE_MS, 55 * 1000L));
+		config.setConnectionTimeout(Settings.getInt(CONNECT_TIMEOUT_MS, 2000));
+		config.setSocketTimeout(Settings.getInt(SOCKET_TIMEOUT_MS, 10000));
+		config.setUseTcpKeepAlive(Settings.getBoolean(TCP_KEEP_ALIVE, true));
+		//sends Accept-Encoding: gzip and inflates responses as they are read (after signing, so not signed)
+		config.setUseGzip(Settings.getBoolean(USE_GZIP, true));
+		//retried by execute, per error class and within the deadline
+		config.setRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+		return config;
+	}
+
+	/**
+	 * Executes a (signed) request on a pooled connection.
+	 * The connection goes back to the pool once responseHandler has consumed the body.
+	 * @param request = signed AWS request
+	 * @param responseHandler = handler for 2xx responses
+	 * @param errorHandler = handler for everything else
+	 * @return SDK response wrapper
+	 */
+	public <T> Response<T> execute(Request<?> request,
+			HttpResponseHandler<AmazonWebServiceResponse<T>> responseHandler,
+			HttpResponseHandler<AmazonServiceException> errorHandler) {
+		return execute(request, responseHandler, errorHandler, null);
+	}
+
+	/**
+	 * Executes a (signed) request that must complete before deadline: the in-flight call
+	 * (connection included) is aborted once the deadline is reached, even while its body streams.
+	 * Failed attempts are retried within the budget of their error class, as long as the wait
+	 * still leaves time before the deadline and nothing has been streamed to the caller yet.
+	 * @param deadline = time budget of the invocation; null for none
+	 * @throws Deadline.DeadlineExceededException if the deadline has already passed
+	 * @throws CircuitBreaker.OpenException while the breaker is open
+	 */
+	public <T> Response<T> execute(Request<?> request,
+			HttpResponseHandler<AmazonWebServiceResponse<T>> responseHandler,
+			HttpResponseHandler<AmazonServiceException> errorHandler, Deadline deadline) {
+		return execute(request, responseHandler, errorHandler, deadline, true);
+	}
+
+	/**
+	 * Executes a (signed) request that is not idempotent, e.g. the next page of a scroll, in a single
+	 * attempt under deadline: if the attempt failed after ES acted on it, sending it again would not
+	 * get the same answer. Otherwise as {@link #execute(Request, HttpResponseHandler, HttpResponseHandler, Deadline)}.
+	 * @param deadline = time budget of the invocation; null for none
+	 * @throws Deadline.DeadlineExceededException if the deadline has already passed
+	 * @throws CircuitBreaker.OpenException while the breaker is open
+	 */
+	public <T> Response<T> executeOnce(Request<?> request,
+			HttpResponseHandler<AmazonWebServiceResponse<T>> responseHandler,
+			HttpResponseHandler<AmazonServiceException> errorHandler, Deadline deadline) {
+		return execute(request, responseHandler, errorHandler, deadline, false);
+	}
+
+	private <T> Response<T> execute(Request<?> request,
+			HttpResponseHandler<AmazonWebServiceResponse<T>> responseHandler,
+			HttpResponseHandler<AmazonServiceException> errorHandler, Deadline deadline, boolean retry) {
+		Metrics metrics = Metrics.current();
+		int[] attempts = new int[ErrorClass.values().length];
+		Backoff backoff = null;
+		while (true) {
+			if (deadline != null && deadline.isExpired()) {
+				throw new Deadline.DeadlineExceededException();
+			}
+			try {
+				breaker.acquire();
+			} catch (CircuitBreaker.OpenException e) {
+				metrics.property("breaker", breaker.getState().name());
+				throw e;
+			}
+			Attempt attempt = null;
+			ScheduledFuture<?> abort = null;
+			try {
+				if (deadline != null) {
+					attempt = new Attempt(deadline);
+					inFlight.set(attempt);
+					abort = aborter.schedule(attempt, deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+				}
+				//errorHandler sets the status code and service name itself (see EsErrorHandler)
+				Response<AmazonWebServiceResponse<T>> response = client.requestExecutionBuilder()
+						.request(request)
+						.errorResponseHandler(errorHandler)
+						.executionContext(new ExecutionContext(true))
+						.execute(new MeasuredHandler<T>(responseHandler, metrics));
+				breaker.onSuccess();
+				AmazonWebServiceResponse<T> result = response.getAwsResponse();
+				return new Response<T>(result == null ? null : result.getResult(), response.getHttpResponse());
+			} catch (RuntimeException failure) {
+				//aborted, or timed out on a socket bounded by the deadline: the deadline ran out
+				RuntimeException e = attempt != null && (attempt.isAborted() || (deadline.isExpired() && Deadline.isTimeout(failure)))
+						? new Deadline.DeadlineExceededException(failure) : failure;
+				ErrorClass error = ErrorClass.of(e);
+				breaker.onFailure(error);
+				if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+					metrics.property("breaker", breaker.getState().name());
+				}
+				if (!retry || attempts[error.ordinal()]++ >= error.retries() || !isReplayable(request, responseHandler)) {
+					throw e;
+				}
+				if (backoff == null) {
+					backoff = Backoff.fromSettings();
+				}
+				long delay = backoff.nextDelayMillis();
+				//no point waiting for an attempt that cannot finish in time
+				if (deadline != null && delay + MIN_ATTEMPT_MILLIS >= deadline.remainingMillis()) {
+					throw e;
+				}
+				retries.incrementAndGet();
+				metrics.count(Metrics.Counter.RETRIES, 1);
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			} finally {
+				if (abort != null) {
+					abort.cancel(false);
+					inFlight.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Executes a (signed) DELETE request that carries a body, e.g. closing a point in time
+	 * (DELETE /_pit {"id": ...}): the SDK sends DELETE requests without their content, so this one
+	 * goes straight to the pooled HTTP client. A single attempt, outside of the breaker: for best
+	 * effort cleanup calls, whose failure says little about the domain.
+	 * @param deadline = time budget of the call; null for the configured timeouts
+	 * @throws AmazonServiceException for a non-2xx response
+	 * @throws SdkClientException if no response came back
+	 */
+	public void deleteWithBody(Request<?> request, Deadline deadline) {
+		HttpEntityEnclosingRequestBase delete = new HttpEntityEnclosingRequestBase() {
+			@Override
+			public String getMethod() {
+				return HttpDelete.METHOD_NAME;
+			}
+		};
+		String uri = SdkHttpUtils.appendUri(request.getEndpoint().toString(), request.getResourcePath(), true);
+		String query = SdkHttpUtils.encodeParameters(request);
+		delete.setURI(URI.create(query == null ? uri : uri + "?" + query));
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			//set by the HTTP client from the entity
+			if (!"Content-Length".equalsIgnoreCase(header.getKey())) {
+				delete.addHeader(header.getKey(), header.getValue());
+			}
+		}
+		RequestConfig config = RequestConfig.custom().setConnectionRequestTimeout(connectTimeout).setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout).build();
+		if (deadline != null) {
+			if (deadline.isExpired()) {
+				throw new Deadline.DeadlineExceededException();
+			}
+			config = within(config, deadline);
+		}
+		delete.setConfig(config);
+		try {
+			InputStream content = request.getContent();
+			if (content != null) {
+				delete.setEntity(new ByteArrayEntity(content instanceof HashedPayload.Content
+						? ((HashedPayload.Content) content).getPayload().bytes() : IOUtils.toByteArray(content)));
+			}
+			org.apache.http.HttpResponse response = httpClient.execute(delete);
+			try {
+				int status = response.getStatusLine().getStatusCode();
+				if (status < 200 || status >= 300) {
+					AmazonServiceException e = new AmazonServiceException("DELETE " + request.getResourcePath() + " failed");
+					e.setStatusCode(status);
+					throw e;
+				}
+			} finally {
+				EntityUtils.consumeQuietly(response.getEntity());
+			}
+		} catch (IOException e) {
+			throw new SdkClientException("DELETE " + request.getResourcePath() + " failed", e);
+		}
+	}
+
+	/*
+	 * Caps the connect, pool lease and socket timeouts of config at the time left before deadline
+	 * (at least 1 ms: 0 means no timeout to the HTTP client)
+	 */
+	private static RequestConfig within(RequestConfig config, Deadline deadline) {
+		int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadline.remainingMillis()));
+		return RequestConfig.copy(config)
+				.setConnectionRequestTimeout(cap(config.getConnectionRequestTimeout(), remaining))
+				.setConnectTimeout(cap(config.getConnectTimeout(), remaining))
+				.setSocketTimeout(cap(config.getSocketTimeout(), remaining))
+				.build();
+	}
+
+	//timeouts <= 0 are infinite
+	private static int cap(int timeout, int max) {
+		return timeout > 0 ? Math.min(timeout, max) : max;
+	}
+
+	/*
+	 * A call running under a deadline: aborted (connection included) if it has not completed when
+	 * the deadline passes, whether it is waiting for the response or streaming the body
+	 */
+	private static final class Attempt implements Runnable {
+
+		private final Deadline deadline;
+		private HttpUriRequest request;
+		private boolean aborted;
+
+		Attempt(Deadline deadline) {
+			this.deadline = deadline;
+		}
+
+		synchronized void sending(HttpUriRequest request) {
+			this.request = request;
+			if (aborted) {
+				request.abort();
+			}
+		}
+
+		@Override
+		public synchronized void run() {
+			aborted = true;
+			if (request != null) {
+				request.abort();
+			}
+		}
+
+		synchronized boolean isAborted() {
+			return aborted;
+		}
+	}
+
+	/*
+	 * The pooled HTTP client as the SDK sees it: requests sent for a call under a deadline get
+	 * timeouts within it and can be aborted when it passes
+	 */
+	private static final class DeadlineHttpClient extends SdkHttpClient {
+
+		DeadlineHttpClient(ConnectionManagerAwareHttpClient delegate) {
+			super(delegate, delegate.getHttpClientConnectionManager());
+		}
+
+		@Override
+		public org.apache.http.HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+			Attempt attempt = inFlight.get();
+			if (attempt != null) {
+				if (request instanceof HttpRequestBase) {
+					HttpRequestBase base = (HttpRequestBase) request;
+					base.setConfig(within(base.getConfig() == null ? RequestConfig.DEFAULT : base.getConfig(), attempt.deadline));
+				}
+				attempt.sending(request);
+			}
+			return super.execute(request, context);
+		}
+	}
+
+	/*
+	 * Times a successful response (connect: until the handler gets it, read: the handler itself)
+	 * and counts the body bytes, picking ES's "took" out of the first ones as they go by
+	 */
+	private static final class MeasuredHandler<T> implements HttpResponseHandler<AmazonWebServiceResponse<T>> {
+
+		//"took" is the first field of search responses
+		private static final int HEAD_BYTES = 32;
+
+		private final HttpResponseHandler<AmazonWebServiceResponse<T>> delegate;
+		private final Metrics metrics;
+		private final long sentNanos = System.nanoTime();
+
+		MeasuredHandler(HttpResponseHandler<AmazonWebServiceResponse<T>> delegate, Metrics metrics) {
+			this.delegate = delegate;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public AmazonWebServiceResponse<T> handle(HttpResponse response) throws Exception {
+			metrics.record(Metrics.Phase.CONNECT, sentNanos);
+			long readNanos = System.nanoTime();
+			final byte[] head = new byte[HEAD_BYTES];
+			final long[] bytes = new long[1];
+			if (response.getContent() != null) {
+				response.setContent(new FilterInputStream(response.getContent()) {
+					@Override
+					public int read() throws IOException {
+						int b = super.read();
+						if (b >= 0) {
+							counted(new byte[] {(byte) b}, 0, 1);
+						}
+						return b;
+					}
+
+					@Override
+					public int read(byte[] b, int off, int len) throws IOException {
+						int n = super.read(b, off, len);
+						if (n > 0) {
+							counted(b, off, n);
+						}
+						return n;
+					}
+
+					private void counted(byte[] b, int off, int n) {
+						if (bytes[0] < HEAD_BYTES) {
+							System.arraycopy(b, off, head, (int) bytes[0], (int) Math.min(n, HEAD_BYTES - bytes[0]));
+						}
+						bytes[0] += n;
+					}
+				});
+			}
+			try {
+				return delegate.handle(response);
+			} finally {
+				metrics.record(Metrics.Phase.READ, readNanos);
+				metrics.count(Metrics.Counter.BYTES_IN, bytes[0]);
+				long took = took(head, (int) Math.min(bytes[0], HEAD_BYTES));
+				if (took >= 0) {
+					metrics.took(took);
+				}
+			}
+		}
+
+		@Override
+		public boolean needsConnectionLeftOpen() {
+			return delegate.needsConnectionLeftOpen();
+		}
+	}
+
+	/**
+	 * @return the value of a leading "took" field in head, -1 if there is none
+	 */
+	static long took(byte[] head, int length) {
+		String start = new String(head, 0, length, StandardCharsets.UTF_8);
+		int at = start.indexOf("\"took\"");
+		if (at < 0) {
+			return -1;
+		}
+		int i = start.indexOf(':', at) + 1;
+		while (i > 0 && i < start.length() && start.charAt(i) == ' ') {
+			i++;
+		}
+		int end = i;
+		while (end < start.length() && Character.isDigit(start.charAt(end))) {
+			end++;
+		}
+		//cut short by the head size: unknown
+		return i > 0 && end > i && end < start.length() ? Long.parseLong(start.substring(i, end)) : -1;
+	}
+
+	/*
+	 * A retry must resend the same body and must not follow bytes already written to the caller
+	 */
+	private static boolean isReplayable(Request<?> request, HttpResponseHandler<?> responseHandler) {
+		if (responseHandler instanceof StreamingResponseHandler
+				&& ((StreamingResponseHandler<?>) responseHandler).getBytesCopied() > 0) {
+			return false;
+		}
+		InputStream content = request.getContent();
+		if (content == null) {
+			return true;
+		}
+		if (!content.markSupported()) {
+			return false;
+		}
+		try {
+			content.reset();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return leased/available/pending/max connection counts of the pool
+	 */
+	@SuppressWarnings("unchecked")
+	public PoolStats getPoolStats() {
+		return ((ConnPoolControl<HttpRoute>) connectionManager).getTotalStats();
+	}
+
+	/**
+	 * @return the breaker guarding this client's domain
+	 */
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * @return retries made so far, all error classes together
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Closes the pooled connections not leased right now; the client stays usable and reconnects as needed.
+	 */
+	public void closeIdleConnections() {
+		connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes every pooled connection. The client cannot be used afterwards.
+	 */
+	public void close() {
+		client.shutdown();
+	}
+}
@@ -0,0 +1,37 @@
+package com.amazonaws.lambda.es;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+
+/**
+ * Turns a non-2xx ES response into an AmazonServiceException carrying its status code,
+ * which drives retries and the circuit breaker (see {@link ErrorClass}). Shared by every handler.
+ */
+public class EsErrorHandler implements HttpResponseHandler<AmazonServiceException> {
+
+	private final String serviceName;
+
+	/**
+	 * @param serviceName = signing service name ("es"), reported with the exception
+	 */
+	public EsErrorHandler(String serviceName) {
+		this.serviceName = serviceName;
+	}
+
+	@Override
+	public AmazonServiceException handle(HttpResponse response) throws Exception {
+		AmazonServiceException ase = new AmazonServiceException("!!Service Exception!!");
+		ase.setStatusCode(response.getStatusCode());
+		ase.setErrorCode(response.getStatusText());
+		ase.setServiceName(serviceName);
+		ase.setErrorType(response.getStatusCode() >= 500 ? AmazonServiceException.ErrorType.Service
+				: AmazonServiceException.ErrorType.Client);
+		return ase;
+	}
+
+	@Override
+	public boolean needsConnectionLeftOpen() {
+		return false;
+	}
+}
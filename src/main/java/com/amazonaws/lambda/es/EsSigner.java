@@ -0,0 +1,116 @@
+package com.amazonaws.lambda.es;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.Request;
+import com.amazonaws.SignableRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+
+/**
+ * AWS4 (SigV4) signing with everything reusable kept off the hot path:
+ * <ul>
+ * <li>one signer per service/region, shared by all invocations of the container;</li>
+ * <li>credentials cached and refreshed in the background ({@link RefreshingCredentialsProvider});</li>
+ * <li>the derived signing key is cached per credentials/date/region/service by AWS4Signer's own
+ * static key cache, which stays hot because the same credentials object is reused;</li>
+ * <li>bodies wrapped in a {@link HashedPayload} are not re-hashed.</li>
+ * </ul>
+ * Under steady load a signature costs the canonical request hash plus the final HMAC.
+ */
+public final class EsSigner {
+
+	public static final String CREDENTIALS_REFRESH_MS = "ES_CREDENTIALS_REFRESH_MS";
+
+	private static final ConcurrentMap<String, EsSigner> signers = new ConcurrentHashMap<String, EsSigner>();
+	private static volatile AWSCredentialsProvider sharedCredentials;
+
+	private final PayloadHashingSigner signer;
+	private final AWSCredentialsProvider credentials;
+
+	/**
+	 * @param serviceName = signing service name ("es")
+	 * @param regionName = region of the domain
+	 * @param credentials = provider to sign with; should already be cached
+	 */
+	public EsSigner(String serviceName, String regionName, AWSCredentialsProvider credentials) {
+		this.signer = new PayloadHashingSigner();
+		this.signer.setServiceName(serviceName);
+		this.signer.setRegionName(regionName);
+		this.credentials = credentials;
+	}
+
+	/**
+	 * @return the container-wide signer for service/region, using the shared credentials cache
+	 */
+	public static EsSigner getInstance(String serviceName, String regionName) {
+		String key = serviceName + "/" + regionName;
+		EsSigner signer = signers.get(key);
+		if (signer == null) {
+			EsSigner created = new EsSigner(serviceName, regionName, sharedCredentials());
+			signer = signers.putIfAbsent(key, created);
+			if (signer == null) {
+				signer = created;
+			}
+		}
+		return signer;
+	}
+
+	/**
+	 * @return credentials from the default provider chain, refreshed in the background
+	 */
+	public static AWSCredentialsProvider sharedCredentials() {
+		AWSCredentialsProvider provider = sharedCredentials;
+		if (provider == null) {
+			synchronized (EsSigner.class) {
+				provider = sharedCredentials;
+				if (provider == null) {
+					provider = new RefreshingCredentialsProvider(new DefaultAWSCredentialsProviderChain(),
+							Settings.getLong(CREDENTIALS_REFRESH_MS, 5 * 60 * 1000L));
+					sharedCredentials = provider;
+				}
+			}
+		}
+		return provider;
+	}
+
+	/**
+	 * Reloads the shared credentials now, if they were loaded at all: after a snapshot restore
+	 * the cached ones may have expired, or belong to another execution environment.
+	 */
+	public static void refreshSharedCredentials() {
+		AWSCredentialsProvider provider = sharedCredentials;
+		if (provider != null) {
+			provider.refresh();
+		}
+	}
+
+	/**
+	 * Signs the request in place.
+	 * @param requestToSign request object to be signed
+	 * @return the same, now signed, request
+	 */
+	public Request<?> sign(Request<?> requestToSign) {
+		signer.sign(requestToSign, credentials.getCredentials());
+		return requestToSign;
+	}
+
+	/**
+	 * Takes the body hash from {@link HashedPayload.Content} when present
+	 * instead of reading and digesting the stream.
+	 */
+	private static final class PayloadHashingSigner extends AWS4Signer {
+
+		@Override
+		protected String calculateContentHash(SignableRequest<?> request) {
+			InputStream content = request.getContent();
+			if (content instanceof HashedPayload.Content) {
+				return ((HashedPayload.Content) content).getPayload().sha256Hex();
+			}
+			return super.calculateContentHash(request);
+		}
+	}
+}
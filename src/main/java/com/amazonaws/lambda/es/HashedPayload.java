@@ -0,0 +1,91 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * An immutable request body together with its SHA-256, computed once.
+ * Bodies that never change (e.g. the empty body of the full-index query) are kept in static fields
+ * so every invocation signs them without re-hashing; {@link EsSigner} reads the hash straight
+ * off the {@link Content} stream instead of draining and digesting the body again.
+ */
+public final class HashedPayload {
+
+	public static final HashedPayload EMPTY = of(new byte[0]);
+
+	private final byte[] bytes;
+	private final String sha256Hex;
+
+	private HashedPayload(byte[] bytes) {
+		this.bytes = bytes;
+		this.sha256Hex = BinaryUtils.toHex(sha256(bytes));
+	}
+
+	/**
+	 * @param bytes = request body; must not be modified afterwards
+	 */
+	public static HashedPayload of(byte[] bytes) {
+		return new HashedPayload(bytes);
+	}
+
+	/**
+	 * @param json = request body, encoded as UTF-8
+	 */
+	public static HashedPayload of(String json) {
+		return new HashedPayload(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public byte[] bytes() {
+		return bytes;
+	}
+
+	public int length() {
+		return bytes.length;
+	}
+
+	public String sha256Hex() {
+		return sha256Hex;
+	}
+
+	/**
+	 * @return a fresh stream over the body, suitable for Request.setContent
+	 */
+	public InputStream newContent() {
+		return new Content(this);
+	}
+
+	@Override
+	public String toString() {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] sha256(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Request content that knows the hash of the bytes it streams.
+	 */
+	public static final class Content extends ByteArrayInputStream {
+
+		private final HashedPayload payload;
+
+		private Content(HashedPayload payload) {
+			super(payload.bytes);
+			this.payload = payload;
+		}
+
+		public HashedPayload getPayload() {
+			return payload;
+		}
+	}
+}
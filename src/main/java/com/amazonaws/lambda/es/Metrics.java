@@ -0,0 +1,308 @@
+package com.amazonaws.lambda.es;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.google.gson.stream.JsonWriter;
+import com.amazonaws.services.lambda.runtime.Context;
+
+/**
+ * Per-invocation instrumentation: how long each phase took (monotonic clock), bytes in and out,
+ * and outcomes (cache, backend, error class), written as one CloudWatch Embedded Metric Format line
+ * when the invocation ends. CloudWatch turns the line into metrics without any API call
+ * (https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html).
+ *
+ * The invocation under way is bound to the handler thread (see {@link #begin(String, Context)}), so the
+ * ES layer can record into it without it being passed around; outside an invocation recording is a no-op.
+ * METRICS_ENABLED=false turns the lines off, METRICS_NAMESPACE (gbif) is the CloudWatch namespace.
+ * METRICS_HISTOGRAMS=true also keeps in-process HDR histograms of every phase, printed at exit
+ * (local runs, load tests).
+ */
+public final class Metrics {
+
+	public static final String ENABLED = "METRICS_ENABLED";
+	public static final String NAMESPACE = "METRICS_NAMESPACE";
+	public static final String HISTOGRAMS = "METRICS_HISTOGRAMS";
+
+	/**
+	 * Timed phases of an invocation, reported in milliseconds.
+	 */
+	public enum Phase {
+		/** reading the event and the query */
+		DECODE("decode"),
+		/** building (and hashing) the ES request */
+		COMPILE("compile"),
+		/** AWS4 signing */
+		SIGN("sign"),
+		/** from sending the request to the response status (connection, ES work, network) */
+		CONNECT("connect"),
+		/** the "took" ES reports for the search itself */
+		TOOK("esTook"),
+		/** reading (or streaming through) the response body */
+		READ("read"),
+		/** turning the response into the client's answer: cursor, counts, format, proxy wrapping */
+		SERIALIZE("serialize"),
+		/** the whole invocation */
+		TOTAL("total");
+
+		private final String metricName;
+
+		private Phase(String metricName) {
+			this.metricName = metricName;
+		}
+	}
+
+	/**
+	 * Counted values of an invocation; all of them are reported, 0 included.
+	 */
+	public enum Counter {
+		/** 1 for the first invocation of the container */
+		COLD_START("coldStart", "Count"),
+		/** 1 when answered from the response cache */
+		CACHE_HIT("cacheHit", "Count"),
+		/** ES requests retried */
+		RETRIES("retries", "Count"),
+		/** 1 when the ES call was shared with an identical one in flight (see SingleFlight) */
+		COALESCED("coalesced", "Count"),
+		/** 1 when the invocation failed */
+		ERRORS("errors", "Count"),
+		/** response body bytes read from ES (after gzip) */
+		BYTES_IN("bytesIn", "Bytes"),
+		/** size of the answer (characters for handlers returning a String) */
+		BYTES_OUT("bytesOut", "Bytes");
+
+		private final String metricName;
+		private final String unit;
+
+		private Counter(String metricName, String unit) {
+			this.metricName = metricName;
+			this.unit = unit;
+		}
+	}
+
+	private static final boolean enabled = Settings.getBoolean(ENABLED, true);
+	private static final String namespace = Settings.getString(NAMESPACE, "gbif");
+	private static final AtomicBoolean coldStart = new AtomicBoolean(true);
+	private static final ThreadLocal<Metrics> current = new ThreadLocal<Metrics>();
+	private static final Metrics NONE = new Metrics(null, null);
+	private static final Map<Phase, Histogram> histograms = Settings.getBoolean(HISTOGRAMS, false) ? histograms() : null;
+
+	//where lines go: stdout is what CloudWatch Logs picks up in Lambda
+	static PrintStream out = System.out;
+
+	private final String handler;
+	private final String requestId;
+	private final long startNanos = System.nanoTime();
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private final boolean[] timed = new boolean[Phase.values().length];
+	private final long[] counts = new long[Counter.values().length];
+	private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+	private Metrics(String handler, String requestId) {
+		this.handler = handler;
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Starts recording an invocation on the calling thread.
+	 * @param handler = name of the handler, the metrics' dimension
+	 * @param context = Lambda context, for the request id; may be null
+	 * @return the invocation's metrics, to be ended with {@link #end()}
+	 */
+	public static Metrics begin(String handler, Context context) {
+		if (!enabled && histograms == null) {
+			return NONE;
+		}
+		Metrics metrics = new Metrics(handler, context == null ? null : context.getAwsRequestId());
+		metrics.counts[Counter.COLD_START.ordinal()] = coldStart.getAndSet(false) ? 1 : 0;
+		current.set(metrics);
+		return metrics;
+	}
+
+	/**
+	 * @return metrics of the invocation running on this thread; a no-op instance outside one
+	 */
+	public static Metrics current() {
+		Metrics metrics = current.get();
+		return metrics == null ? NONE : metrics;
+	}
+
+	/**
+	 * Adds the time since startNanos to phase (phases run more than once add up, e.g. retries).
+	 * @param startNanos = System.nanoTime() when the phase started
+	 */
+	public void record(Phase phase, long startNanos) {
+		addNanos(phase, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @param millis = "took" of an ES response
+	 */
+	public void took(long millis) {
+		addNanos(Phase.TOOK, TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	private void addNanos(Phase phase, long nanos) {
+		if (this != NONE) {
+			phaseNanos[phase.ordinal()] += nanos;
+			timed[phase.ordinal()] = true;
+		}
+	}
+
+	public void count(Counter counter, long n) {
+		if (this != NONE) {
+			counts[counter.ordinal()] += n;
+		}
+	}
+
+	/**
+	 * @param name = property logged with the metrics (searchable in Logs Insights, not a metric), e.g. "cache"
+	 */
+	public void property(String name, String value) {
+		if (this != NONE) {
+			properties.put(name, value);
+		}
+	}
+
+	/**
+	 * Notes a failed invocation, and why it failed: INVALID_QUERY for rejected parameters, else its ErrorClass.
+	 */
+	public void failed(Exception e) {
+		count(Counter.ERRORS, 1);
+		property("error", e instanceof IllegalArgumentException ? "INVALID_QUERY" : ErrorClass.of(e).name());
+	}
+
+	/**
+	 * @return nanoseconds recorded for phase so far
+	 */
+	public long getNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	public long getCount(Counter counter) {
+		return counts[counter.ordinal()];
+	}
+
+	public String getProperty(String name) {
+		return properties.get(name);
+	}
+
+	/**
+	 * Ends the invocation: writes its metrics line and unbinds it from the thread.
+	 */
+	public void end() {
+		if (this == NONE) {
+			return;
+		}
+		current.remove();
+		record(Phase.TOTAL, startNanos);
+		if (histograms != null) {
+			for (Phase phase : Phase.values()) {
+				if (timed[phase.ordinal()]) {
+					histograms.get(phase).recordValue(TimeUnit.NANOSECONDS.toMicros(phaseNanos[phase.ordinal()]));
+				}
+			}
+		}
+		if (enabled) {
+			out.println(toEmf(System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * @param timestamp = epoch milliseconds of the line
+	 * @return the invocation as an Embedded Metric Format JSON line
+	 */
+	String toEmf(long timestamp) {
+		StringWriter line = new StringWriter(512);
+		try {
+			JsonWriter json = new JsonWriter(line);
+			json.beginObject();
+			json.name("_aws").beginObject();
+			json.name("Timestamp").value(timestamp);
+			json.name("CloudWatchMetrics").beginArray().beginObject();
+			json.name("Namespace").value(namespace);
+			json.name("Dimensions").beginArray().beginArray().value("handler").endArray().endArray();
+			json.name("Metrics").beginArray();
+			for (Phase phase : Phase.values()) {
+				if (timed[phase.ordinal()]) {
+					json.beginObject().name("Name").value(phase.metricName).name("Unit").value("Milliseconds").endObject();
+				}
+			}
+			for (Counter counter : Counter.values()) {
+				json.beginObject().name("Name").value(counter.metricName).name("Unit").value(counter.unit).endObject();
+			}
+			json.endArray();
+			json.endObject().endArray();
+			json.endObject();
+			json.name("handler").value(handler);
+			if (requestId != null) {
+				json.name("requestId").value(requestId);
+			}
+			for (Phase phase : Phase.values()) {
+				if (timed[phase.ordinal()]) {
+					//microsecond resolution is plenty
+					json.name(phase.metricName).value(phaseNanos[phase.ordinal()] / 1000 / 1000.0);
+				}
+			}
+			for (Counter counter : Counter.values()) {
+				json.name(counter.metricName).value(counts[counter.ordinal()]);
+			}
+			for (Map.Entry<String, String> property : properties.entrySet()) {
+				json.name(property.getKey()).value(property.getValue());
+			}
+			json.endObject();
+			json.flush();
+		} catch (IOException e) {
+			//StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return line.toString();
+	}
+
+	private static Map<Phase, Histogram> histograms() {
+		final Map<Phase, Histogram> byPhase = new EnumMap<Phase, Histogram>(Phase.class);
+		for (Phase phase : Phase.values()) {
+			//microseconds, 3 significant digits, resized as needed
+			byPhase.put(phase, new ConcurrentHistogram(3));
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				System.out.print(report(byPhase));
+			}
+		}, "metrics-report"));
+		return byPhase;
+	}
+
+	/**
+	 * @return percentiles of every phase recorded so far (METRICS_HISTOGRAMS=true), empty otherwise
+	 */
+	public static String report() {
+		return histograms == null ? "" : report(histograms);
+	}
+
+	private static String report(Map<Phase, Histogram> byPhase) {
+		StringBuilder sb = new StringBuilder(String.format("%-10s %8s %9s %9s %9s %9s %9s%n",
+				"phase (ms)", "count", "p50", "p90", "p99", "p99.9", "max"));
+		for (Map.Entry<Phase, Histogram> entry : byPhase.entrySet()) {
+			Histogram histogram = entry.getValue();
+			if (histogram.getTotalCount() == 0) {
+				continue;
+			}
+			sb.append(String.format("%-10s %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n", entry.getKey().metricName,
+					histogram.getTotalCount(), histogram.getValueAtPercentile(50) / 1000.0,
+					histogram.getValueAtPercentile(90) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+					histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,75 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes a Lambda proxy integration response around a JSON (or NDJSON) body:
+ * {"statusCode": 200, "headers": {...}, "isBase64Encoded": ..., "body": "..."}.
+ * Bodies of at least GZIP_MIN_BYTES are gzip-compressed (and base64 encoded, as API Gateway
+ * requires for binary bodies) when the client accepts gzip; smaller ones are not worth the CPU.
+ * The API needs a binary media type matching the client Accept header for API Gateway to pass gzip through.
+ */
+public final class ProxyResponse {
+
+	public static final String GZIP_MIN_BYTES = "API_GZIP_MIN_BYTES";
+
+	private static final int minBytes = Settings.getInt(GZIP_MIN_BYTES, 1024);
+
+	private ProxyResponse() {
+	}
+
+	/**
+	 * @param event = the request, for its Accept-Encoding
+	 * @param length = size of the uncompressed body
+	 * @return true if the body should be sent gzip-encoded
+	 */
+	public static boolean shouldGzip(ApiGatewayEvent event, int length) {
+		return length >= minBytes && event.acceptsGzip();
+	}
+
+	/**
+	 * @param out = Lambda output stream
+	 * @param statusCode = HTTP status for the client
+	 * @param body = UTF-8 JSON document
+	 * @param gzip = compress the body (see {@link #shouldGzip(ApiGatewayEvent, int)})
+	 */
+	public static void write(OutputStream out, int statusCode, byte[] body, boolean gzip) throws IOException {
+		write(out, statusCode, body, gzip, "application/json");
+	}
+
+	/**
+	 * @param contentType = Content-Type of body, e.g. application/x-ndjson
+	 */
+	public static void write(OutputStream out, int statusCode, byte[] body, boolean gzip, String contentType) throws IOException {
+		JsonWriter json = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		json.beginObject();
+		json.name("statusCode").value(statusCode);
+		json.name("headers").beginObject();
+		json.name("Content-Type").value(contentType);
+		if (gzip) {
+			json.name("Content-Encoding").value("gzip");
+		}
+		json.endObject();
+		json.name("isBase64Encoded").value(gzip);
+		json.name("body").value(gzip ? Base64.getEncoder().encodeToString(gzip(body))
+				: new String(body, StandardCharsets.UTF_8));
+		json.endObject();
+		json.flush();
+	}
+
+	static byte[] gzip(byte[] body) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+		GZIPOutputStream zip = new GZIPOutputStream(compressed, 8192);
+		zip.write(body);
+		zip.close();
+		return compressed.toByteArray();
+	}
+}
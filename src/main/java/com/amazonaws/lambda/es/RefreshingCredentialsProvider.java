@@ -0,0 +1,107 @@
+package com.amazonaws.lambda.es;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+
+/**
+ * Caches credentials from a (slow) provider chain and refreshes them on a background daemon thread,
+ * so signing never walks the chain on the request path once the first credentials are loaded.
+ * If the background refresh falls behind (e.g. the container was frozen) the next caller
+ * reloads synchronously once the cached value is older than twice the refresh interval.
+ */
+public final class RefreshingCredentialsProvider implements AWSCredentialsProvider {
+
+	private final AWSCredentialsProvider delegate;
+	private final long refreshIntervalMillis;
+	private final Object lock = new Object();
+
+	private volatile AWSCredentials credentials;
+	private volatile long loadedAtNanos;
+	private ScheduledExecutorService refresher;
+
+	/**
+	 * @param delegate = provider to load credentials from (e.g. DefaultAWSCredentialsProviderChain)
+	 * @param refreshIntervalMillis = how often to reload in the background
+	 */
+	public RefreshingCredentialsProvider(AWSCredentialsProvider delegate, long refreshIntervalMillis) {
+		if (refreshIntervalMillis <= 0) {
+			throw new IllegalArgumentException("refreshIntervalMillis must be positive");
+		}
+		this.delegate = delegate;
+		this.refreshIntervalMillis = refreshIntervalMillis;
+	}
+
+	@Override
+	public AWSCredentials getCredentials() {
+		AWSCredentials current = credentials;
+		if (current == null || isStale()) {
+			synchronized (lock) {
+				current = credentials;
+				if (current == null || isStale()) {
+					current = load();
+					startRefresher();
+				}
+			}
+		}
+		return current;
+	}
+
+	@Override
+	public void refresh() {
+		delegate.refresh();
+		load();
+	}
+
+	/**
+	 * Stops the background refresh thread.
+	 */
+	public void shutdown() {
+		synchronized (lock) {
+			if (refresher != null) {
+				refresher.shutdownNow();
+				refresher = null;
+			}
+		}
+	}
+
+	private boolean isStale() {
+		return System.nanoTime() - loadedAtNanos > TimeUnit.MILLISECONDS.toNanos(2 * refreshIntervalMillis);
+	}
+
+	private AWSCredentials load() {
+		AWSCredentials loaded = delegate.getCredentials();
+		loadedAtNanos = System.nanoTime();
+		credentials = loaded;
+		return loaded;
+	}
+
+	private void startRefresher() {
+		if (refresher != null) {
+			return;
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "es-credentials-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refresh();
+				} catch (RuntimeException e) {
+					//keep serving the cached credentials; the next caller reloads once they go stale
+					System.out.println("credentials refresh failed: " + e.getMessage());
+				}
+			}
+		}, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,314 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-container LRU cache of ES response bodies, bounded by total bytes, with a TTL per query shape.
+ * Keys are expected to be normalized by the caller so that equivalent queries share one entry;
+ * the shape (e.g. "sex+kingdom+country") only selects the TTL.
+ * A warm container answers repeated queries from here without a network round trip.
+ *
+ * TTL overrides are read from a setting such as "key:86400000,sex+kingdom+country:1800000".
+ * Expired entries are kept for a further stale period (until evicted), for {@link #getStale(String)}
+ * to fall back on while ES is unavailable.
+ */
+public final class ResponseCache {
+
+	//where ES responses have their timed_out and terminated_early flags
+	private static final int HEAD_CHARS = 256;
+
+	private final long maxBytes;
+	private final long defaultTtlMillis;
+	private long staleNanos;
+	private final Map<String, Long> shapeTtlMillis = new HashMap<String, Long>();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long staleHits;
+
+	/**
+	 * @param maxBytes = budget for all cached bodies together
+	 * @param defaultTtlMillis = time to live for shapes without an override
+	 */
+	public ResponseCache(long maxBytes, long defaultTtlMillis) {
+		this.maxBytes = maxBytes;
+		this.defaultTtlMillis = defaultTtlMillis;
+	}
+
+	/**
+	 * Builds a cache from settings: {prefix}_MAX_BYTES, {prefix}_TTL_MS, {prefix}_SHAPE_TTLS and {prefix}_STALE_MS.
+	 * @param prefix = setting name prefix, e.g. "GBIF_CACHE"
+	 */
+	public static ResponseCache fromSettings(String prefix) {
+		ResponseCache cache = new ResponseCache(Settings.getLong(prefix + "_MAX_BYTES", 16L * 1024 * 1024),
+				Settings.getLong(prefix + "_TTL_MS", TimeUnit.MINUTES.toMillis(10)));
+		cache.setStaleMillis(Settings.getLong(prefix + "_STALE_MS", TimeUnit.HOURS.toMillis(1)));
+		String overrides = Settings.getString(prefix + "_SHAPE_TTLS", "");
+		for (String override : overrides.split(",")) {
+			int colon = override.lastIndexOf(':');
+			if (colon > 0) {
+				cache.setTtl(override.substring(0, colon).trim(), Long.parseLong(override.substring(colon + 1).trim()));
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * @param shape = query shape, as passed to put
+	 * @param ttlMillis = time to live for responses of that shape; 0 disables caching them
+	 */
+	public synchronized void setTtl(String shape, long ttlMillis) {
+		shapeTtlMillis.put(shape, ttlMillis);
+	}
+
+	/**
+	 * @param staleMillis = how long past expiry an entry may still be served by getStale; 0 for not at all
+	 */
+	public synchronized void setStaleMillis(long staleMillis) {
+		this.staleNanos = TimeUnit.MILLISECONDS.toNanos(staleMillis);
+	}
+
+	/**
+	 * @return cached body, or null on a miss (absent or expired)
+	 */
+	public synchronized byte[] get(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		long age = System.nanoTime() - entry.expiresAtNanos;
+		if (age > 0) {
+			if (age > staleNanos) {
+				remove(key, entry);
+			}
+			expirations++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.body;
+	}
+
+	/**
+	 * Last resort while ES is failing: the entry for key even if expired, within the stale period.
+	 * @return cached body, or null
+	 */
+	public synchronized byte[] getStale(String key) {
+		Entry entry = entries.get(key);
+		if (entry == null || System.nanoTime() - entry.expiresAtNanos > staleNanos) {
+			return null;
+		}
+		staleHits++;
+		return entry.body;
+	}
+
+	/**
+	 * Stores a response body; bodies larger than a quarter of the budget are not cached,
+	 * and neither are partial results (ES search timeout or terminate_after hit).
+	 * @param key = normalized query key
+	 * @param shape = query shape, selects the TTL
+	 * @param body = response body; must not be modified afterwards
+	 * @param partial = true if body is a partial result, as its producer saw it (see {@link #isPartial(byte[])})
+	 */
+	public synchronized void put(String key, String shape, byte[] body, boolean partial) {
+		long ttl = ttlFor(shape);
+		if (partial || ttl <= 0 || body.length > maxBytes / 4) {
+			return;
+		}
+		Entry previous = entries.remove(key);
+		if (previous != null) {
+			bytes -= previous.body.length;
+		}
+		entries.put(key, new Entry(body, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl)));
+		bytes += body.length;
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > maxBytes && eldest.hasNext()) {
+			Entry evicted = eldest.next().getValue();
+			eldest.remove();
+			bytes -= evicted.body.length;
+			evictions++;
+		}
+	}
+
+	/**
+	 * @return true if responses of this shape are cached at all
+	 */
+	public synchronized boolean isCacheable(String shape) {
+		return ttlFor(shape) > 0;
+	}
+
+	/**
+	 * Wraps an output stream so everything written to it is also recorded (up to the size limit
+	 * for a single entry) and can be stored once the response is complete.
+	 */
+	public Recorder record(OutputStream target) {
+		return new Recorder(target, maxBytes / 4);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized long getExpirations() {
+		return expirations;
+	}
+
+	public synchronized long getStaleHits() {
+		return staleHits;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ResponseCache{entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses
+				+ ", evictions=" + evictions + ", expirations=" + expirations + ", staleHits=" + staleHits + "}";
+	}
+
+	/**
+	 * Only for a response as ES wrote it, where these flags come right after "took": rewritten
+	 * bodies (transcoded hits, count maps) carry them elsewhere, and their producer has to tell.
+	 * @return true if body is a partial ES result (search timeout or terminate_after hit)
+	 */
+	public static boolean isPartial(byte[] body) {
+		return isPartial(new String(body, 0, Math.min(body.length, HEAD_CHARS), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @see #isPartial(byte[])
+	 */
+	public static boolean isPartial(String response) {
+		String head = response.length() > HEAD_CHARS ? response.substring(0, HEAD_CHARS) : response;
+		return head.contains("\"timed_out\":true") || head.contains("\"terminated_early\":true");
+	}
+
+	private long ttlFor(String shape) {
+		Long ttl = shapeTtlMillis.get(shape);
+		return ttl == null ? defaultTtlMillis : ttl;
+	}
+
+	private void remove(String key, Entry entry) {
+		entries.remove(key);
+		bytes -= entry.body.length;
+	}
+
+	private static final class Entry {
+		final byte[] body;
+		final long expiresAtNanos;
+
+		Entry(byte[] body, long expiresAtNanos) {
+			this.body = body;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+	/**
+	 * Tee that copies what passes through into a bounded buffer; gives up recording
+	 * (but keeps writing through) once the response outgrows a single cache entry.
+	 */
+	public final class Recorder extends OutputStream {
+
+		private final OutputStream target;
+		private final long limit;
+		private Copy copy = new Copy();
+
+		private Recorder(OutputStream target, long limit) {
+			this.target = target;
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target.write(b);
+			if (copy != null) {
+				copy.write(b);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target.write(b, off, len);
+			if (copy != null) {
+				copy.write(b, off, len);
+				checkLimit();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target.flush();
+		}
+
+		/**
+		 * @return true if the body recorded is a partial result as ES wrote it (see {@link ResponseCache#isPartial(byte[])}),
+		 * false if it was not kept
+		 */
+		public boolean isPartial() {
+			return copy != null && ResponseCache.isPartial(copy.head());
+		}
+
+		/**
+		 * Caches the recorded body, if it stayed within the size limit and is complete.
+		 * @param partial = true if the body is a partial result, e.g. a transcoded page ES timed out on
+		 */
+		public void commit(String key, String shape, boolean partial) {
+			if (copy != null) {
+				put(key, shape, copy.toByteArray(), partial);
+				copy = null;
+			}
+		}
+
+		private void checkLimit() {
+			if (copy.size() > limit) {
+				copy = null;
+			}
+		}
+	}
+
+	/*
+	 * Recorded body, whose head can be looked at without copying it all
+	 */
+	private static final class Copy extends ByteArrayOutputStream {
+
+		Copy() {
+			super(4096);
+		}
+
+		synchronized String head() {
+			return new String(buf, 0, Math.min(count, HEAD_CHARS), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.amazonaws.lambda.es;
+
+import java.util.Locale;
+
+/**
+ * Reads tuning knobs for the search Lambdas.
+ * Every setting is looked up as an environment variable (how Lambda passes configuration)
+ * and then as a JVM system property of the same name (handy for local runs and tests).
+ */
+public final class Settings {
+
+	private Settings() {
+	}
+
+	/**
+	 * @param name = environment variable / system property name
+	 * @param defaultValue = value used when the setting is absent or blank
+	 * @return configured value, or defaultValue
+	 */
+	public static String getString(String name, String defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.trim().isEmpty()) {
+			value = System.getProperty(name);
+		}
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	public static int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setting " + name + " is not an integer: " + value, e);
+		}
+	}
+
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setting " + name + " is not a number: " + value, e);
+		}
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * @param type = enum of the allowed values, matched by name, ignoring case
+	 * @throws IllegalArgumentException naming the setting and its allowed values
+	 */
+	public static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+		String value = getString(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		StringBuilder allowed = new StringBuilder();
+		for (E constant : type.getEnumConstants()) {
+			if (constant.name().equalsIgnoreCase(value)) {
+				return constant;
+			}
+			allowed.append(allowed.length() > 0 ? ", " : "").append(constant.name().toLowerCase(Locale.ROOT));
+		}
+		throw new IllegalArgumentException("Setting " + name + " must be one of " + allowed + ": " + value);
+	}
+}
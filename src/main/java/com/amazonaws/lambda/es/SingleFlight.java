@@ -0,0 +1,107 @@
+package com.amazonaws.lambda.es;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces identical concurrent ES calls: the first caller for a key (the leader) makes the call,
+ * callers arriving while it is in flight wait for its result instead of sending the same request
+ * (bursts of one popular query, once requests are handled concurrently, see SearchServer).
+ * Keys are expected to be normalized by the caller, as for {@link ResponseCache}; they must not
+ * depend on the caller's deadline.
+ *
+ * A follower waits at most the max wait (and never past its own deadline), then makes the call
+ * itself, so a slow leader holds nobody up for long. A leader's failure is rethrown to its followers,
+ * except a timeout: the leader's deadline is not theirs, so they try on their own.
+ * Only calls in flight are shared; results are not kept (that is the ResponseCache's job).
+ */
+public final class SingleFlight {
+
+	/**
+	 * A coalesced call.
+	 */
+	public interface Call<T> {
+		T run();
+	}
+
+	private final ConcurrentMap<String, CompletableFuture<Object>> flights = new ConcurrentHashMap<String, CompletableFuture<Object>>();
+	private final long maxWaitMillis;
+
+	/**
+	 * @param maxWaitMillis = longest a follower waits for its leader; 0 turns coalescing off
+	 */
+	public SingleFlight(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Builds a SingleFlight from settings: {prefix}_MAX_WAIT_MS (1000; 0 to turn coalescing off).
+	 * @param prefix = setting name prefix, e.g. "GBIF_COALESCE"
+	 */
+	public static SingleFlight fromSettings(String prefix) {
+		return new SingleFlight(Settings.getLong(prefix + "_MAX_WAIT_MS", 1000L));
+	}
+
+	/**
+	 * Runs call, or waits for the identical one in flight.
+	 * @param key = normalized query the call answers
+	 * @param deadline = time budget of the caller, or null
+	 * @param call = the ES call
+	 * @return its result, shared with concurrent callers of the same key
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T execute(String key, Deadline deadline, Call<T> call) {
+		if (maxWaitMillis <= 0) {
+			return call.run();
+		}
+		CompletableFuture<Object> flight = new CompletableFuture<Object>();
+		CompletableFuture<Object> leader = flights.putIfAbsent(key, flight);
+		if (leader == null) {
+			try {
+				T result = call.run();
+				flight.complete(result);
+				return result;
+			} catch (RuntimeException | Error e) {
+				flight.completeExceptionally(e);
+				throw e;
+			} finally {
+				flights.remove(key, flight);
+			}
+		}
+		Metrics.current().count(Metrics.Counter.COALESCED, 1);
+		long wait = deadline == null ? maxWaitMillis : Math.min(maxWaitMillis, deadline.remainingMillis());
+		try {
+			return (T) leader.get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			//a slow leader: go on alone
+			Metrics.current().property("coalesced", "waitedOut");
+			return call.run();
+		} catch (ExecutionException e) {
+			Throwable failure = e.getCause();
+			if (Deadline.isTimeout(failure)) {
+				return call.run();
+			}
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new IllegalStateException(failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for an identical request", e);
+		}
+	}
+
+	/**
+	 * @return number of keys with a call in flight
+	 */
+	public int inFlight() {
+		return flights.size();
+	}
+}
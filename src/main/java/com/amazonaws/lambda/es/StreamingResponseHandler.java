@@ -0,0 +1,114 @@
+package com.amazonaws.lambda.es;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.amazonaws.AmazonWebServiceResponse;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+
+/**
+ * Pipes the ES response body straight into an output stream (e.g. the Lambda output stream)
+ * through a fixed, per-thread byte buffer. Nothing is decoded or held on the heap,
+ * so memory use does not depend on how many hits the query returns.
+ * With a {@link Transcoder} the body is rewritten on the way instead of copied as is.
+ */
+public class StreamingResponseHandler<T> implements HttpResponseHandler<AmazonWebServiceResponse<T>> {
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Rewrites a response body incrementally, e.g. into a slimmer format; must not read it whole.
+	 */
+	public interface Transcoder {
+		/**
+		 * @param in = response body
+		 * @param out = receives the rewritten body; flushed, not closed
+		 */
+		void transcode(InputStream in, OutputStream out) throws IOException;
+	}
+
+	private final OutputStream target;
+	private final Transcoder transcoder;
+	private long bytesCopied;
+
+	/**
+	 * @param target = stream the response body is written to; not closed by this handler
+	 */
+	public StreamingResponseHandler(OutputStream target) {
+		this(target, null);
+	}
+
+	/**
+	 * @param target = stream the rewritten response body is written to; not closed by this handler
+	 * @param transcoder = rewrites the body, or null to copy it as is
+	 */
+	public StreamingResponseHandler(OutputStream target, Transcoder transcoder) {
+		this.target = target;
+		this.transcoder = transcoder;
+	}
+
+	@Override
+	public AmazonWebServiceResponse<T> handle(HttpResponse response) throws Exception {
+		InputStream content = response.getContent();
+		if (content != null && transcoder != null) {
+			transcoder.transcode(content, new FilterOutputStream(target) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytesCopied += len;
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					bytesCopied++;
+				}
+			});
+		} else if (content != null) {
+			//counted as it goes, so callers can tell whether an aborted response was partly written
+			byte[] buffer = buffers.get();
+			int n;
+			while ((n = content.read(buffer)) != -1) {
+				target.write(buffer, 0, n);
+				bytesCopied += n;
+			}
+		}
+		return new AmazonWebServiceResponse<T>();
+	}
+
+	@Override
+	public boolean needsConnectionLeftOpen() {
+		return false;
+	}
+
+	/**
+	 * @return number of body bytes written to the target so far
+	 */
+	public long getBytesCopied() {
+		return bytesCopied;
+	}
+
+	/**
+	 * Copies in to out using the calling thread's reusable buffer.
+	 * @return number of bytes copied
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = buffers.get();
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+			total += n;
+		}
+		return total;
+	}
+}
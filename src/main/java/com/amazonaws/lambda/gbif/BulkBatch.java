@@ -0,0 +1,97 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Body of one _bulk request being built: NDJSON action and source lines, with the offset of each
+ * item kept so the items ES rejects can be sent again on their own.
+ */
+final class BulkBatch {
+
+	private final ByteArrayOutputStream body;
+	private int[] starts = new int[64];
+	private int size;
+
+	BulkBatch(int expectedBytes) {
+		body = new ByteArrayOutputStream(expectedBytes);
+	}
+
+	/**
+	 * @param action = action line, e.g. {"index":{"_index":"gbif","_id":"21"}}
+	 * @param source = compact document JSON
+	 */
+	void add(String action, String source) {
+		byte[] actionBytes = action.getBytes(StandardCharsets.UTF_8);
+		byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+		add(actionBytes, 0, actionBytes.length);
+		body.write('\n');
+		body.write(sourceBytes, 0, sourceBytes.length);
+		body.write('\n');
+	}
+
+	private void add(byte[] bytes, int offset, int length) {
+		if (size == starts.length) {
+			starts = Arrays.copyOf(starts, size * 2);
+		}
+		starts[size++] = body.size();
+		body.write(bytes, offset, length);
+	}
+
+	/**
+	 * @param index = target index
+	 * @param type = mapping type (ES 6), or null
+	 * @param id = document id, or null to let ES assign one
+	 * @return the action line
+	 */
+	static String indexAction(String index, String type, String id) {
+		StringBuilder sb = new StringBuilder(64);
+		sb.append("{\"index\":{\"_index\":").append(new JsonPrimitive(index));
+		if (type != null) {
+			sb.append(",\"_type\":").append(new JsonPrimitive(type));
+		}
+		if (id != null) {
+			sb.append(",\"_id\":").append(new JsonPrimitive(id));
+		}
+		return sb.append("}}").toString();
+	}
+
+	/**
+	 * @return number of documents
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return NDJSON size in bytes
+	 */
+	int bytes() {
+		return body.size();
+	}
+
+	/**
+	 * @return the request body, newline terminated as ES requires
+	 */
+	byte[] toByteArray() {
+		return body.toByteArray();
+	}
+
+	/**
+	 * @param items = positions of the documents to keep, ascending
+	 * @return a new batch with just those documents
+	 */
+	BulkBatch subset(List<Integer> items) {
+		byte[] all = body.toByteArray();
+		BulkBatch batch = new BulkBatch(all.length / Math.max(1, size) * items.size() + 16);
+		for (int item : items) {
+			int end = item + 1 < size ? starts[item + 1] : all.length;
+			batch.add(all, starts[item], end - starts[item]);
+		}
+		return batch;
+	}
+}
@@ -0,0 +1,102 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amazonaws.lambda.es.ErrorClass;
+import com.amazonaws.lambda.es.Metrics;
+import com.amazonaws.lambda.es.Settings;
+import com.amazonaws.lambda.gbif.local.GbifLocalIndex;
+
+/**
+ * Which backend answers a gbif query: the ES domain, or the in-memory GbifLocalIndex.
+ * GBIF_BACKEND selects the mode:
+ * es (default) - ES only;
+ * local - the local index only, no ES calls (local runs, tests, benchmarks);
+ * failover - ES, and the local index whenever ES is unhealthy and there is no stale cached answer.
+ * GBIF_LOCAL_SHAPES (comma separated query shapes, see GbifQuery.shape()) are always answered
+ * locally, keeping the hottest query shapes off the domain.
+ */
+public final class GbifBackend {
+
+	public enum Mode {
+		ES, LOCAL, FAILOVER
+	}
+
+	private final Mode mode;
+	private final Set<String> localShapes;
+	private final GbifLocalIndex index;
+
+	/**
+	 * @param mode = how ES and the local index are used
+	 * @param localShapes = query shapes answered locally in any mode
+	 * @param index = local data; null disables local answers (except in LOCAL mode, where it is required)
+	 */
+	GbifBackend(Mode mode, Set<String> localShapes, GbifLocalIndex index) {
+		if (mode == Mode.LOCAL && index == null) {
+			throw new IllegalStateException("GBIF_BACKEND=local needs data (" + GbifLocalIndex.DATA + " or gbif_data.json on the classpath)");
+		}
+		this.mode = mode;
+		this.localShapes = Collections.unmodifiableSet(localShapes);
+		this.index = index;
+	}
+
+	/**
+	 * Reads GBIF_BACKEND and GBIF_LOCAL_SHAPES; the local data is only loaded if it is going to be used.
+	 * @throws IllegalArgumentException naming GBIF_BACKEND if it is not es, local or failover
+	 */
+	public static GbifBackend fromSettings() {
+		Mode mode = Settings.getEnum("GBIF_BACKEND", Mode.class, Mode.ES);
+		Set<String> shapes = new HashSet<String>();
+		for (String shape : Settings.getString("GBIF_LOCAL_SHAPES", "").split(",")) {
+			if (!shape.trim().isEmpty()) {
+				shapes.add(shape.trim());
+			}
+		}
+		GbifLocalIndex index = null;
+		if (mode != Mode.ES || !shapes.isEmpty()) {
+			try {
+				index = GbifLocalIndex.fromSettings();
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not load the local gbif data", e);
+			}
+			if (index == null) {
+				System.out.println("no local gbif data, local answers are disabled");
+			}
+		}
+		return new GbifBackend(index == null && mode != Mode.LOCAL ? Mode.ES : mode, shapes, index);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return true if query is answered by the local index instead of ES
+	 */
+	public boolean isLocal(GbifQuery query) {
+		return index != null && (mode == Mode.LOCAL || localShapes.contains(query.shape()));
+	}
+
+	/**
+	 * @return ES-shaped search response from the local index
+	 */
+	public String searchLocal(GbifQuery query) {
+		return index.search(query);
+	}
+
+	/**
+	 * @param query = query ES failed on
+	 * @param failure = what the ES call threw
+	 * @return the local answer in failover mode when failure means ES is unhealthy (or out of time), otherwise null
+	 */
+	public String failover(GbifQuery query, RuntimeException failure) {
+		if (mode != Mode.FAILOVER || !ErrorClass.of(failure).allowsFallback()) {
+			return null;
+		}
+		Metrics.current().property("backend", "failover");
+		return index.search(query);
+	}
+}
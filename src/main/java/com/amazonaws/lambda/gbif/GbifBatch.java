@@ -0,0 +1,75 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * Batch mode of the gbif API: many queries answered by one signed _msearch round trip.
+ * The request body is NDJSON, one header line and one search body line per query
+ * (https://www.elastic.co/guide/en/elasticsearch/reference/current/search-multi-search.html);
+ * the reply lists one response per query, in order, each with its own status or error.
+ */
+public final class GbifBatch {
+
+	public static final int MAX_QUERIES = Settings.getInt("GBIF_MAX_BATCH", 50);
+
+	private static final String INDEX_HEADER = "{\"index\":\"gbif\"}";
+
+	private GbifBatch() {
+	}
+
+	/**
+	 * @param queries = compiled in order
+	 * @param deadline = time budget for every search, or null
+	 * @return _msearch NDJSON body (newline terminated, as ES requires)
+	 */
+	public static String toNdjson(List<GbifQuery> queries, Deadline deadline) {
+		StringBuilder sb = new StringBuilder(queries.size() * 128);
+		for (GbifQuery query : queries) {
+			//searches of a point in time must not name an index
+			boolean pit = query.getCursor() != null && query.getCursor().getPitId() != null;
+			sb.append(pit ? "{}" : INDEX_HEADER).append('\n');
+			String pitId = pit ? query.getCursor().getPitId() : null;
+			sb.append(GbifQueryCompiler.compile(query, pitId, deadline)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param status = HTTP status describing the failure
+	 * @param reason = message for the caller
+	 * @return per-query error entry, shaped like an ES error response
+	 */
+	public static JsonObject error(int status, String reason) {
+		JsonObject error = new JsonObject();
+		error.addProperty("type", status == 400 ? "illegal_argument_exception" : "search_failure");
+		error.addProperty("reason", reason);
+		JsonObject response = new JsonObject();
+		response.add("error", error);
+		response.addProperty("status", status);
+		return response;
+	}
+
+	/**
+	 * @param results = one entry per query; successful ones are given status 200
+	 * @return {"responses": [...]}
+	 */
+	public static String toResponse(JsonElement[] results) {
+		JsonArray responses = new JsonArray();
+		for (JsonElement result : results) {
+			JsonObject response = result.getAsJsonObject();
+			if (!response.has("status")) {
+				response.addProperty("status", 200);
+			}
+			responses.add(response);
+		}
+		JsonObject json = new JsonObject();
+		json.add("responses", responses);
+		return json.toString();
+	}
+}
@@ -0,0 +1,368 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.lambda.es.Backoff;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.EsErrorHandler;
+import com.amazonaws.lambda.es.HashedPayload;
+import com.amazonaws.lambda.es.Settings;
+import com.amazonaws.lambda.es.StreamingResponseHandler;
+import com.amazonaws.lambda.gbif.load.DwcaRecordReader;
+import com.amazonaws.lambda.gbif.load.GbifRecord;
+import com.amazonaws.lambda.gbif.load.GbifRecordReader;
+import com.amazonaws.lambda.gbif.load.JsonRecordReader;
+
+/**
+ * Loads GBIF records into the gbif index with signed, concurrent _bulk requests.
+ * Records are streamed (see GbifRecordReader) into batches bounded by GBIF_BULK_MAX_BYTES (5 MB) and
+ * GBIF_BULK_MAX_DOCS (5000); GBIF_BULK_CONCURRENCY (4) batches are sent at a time and reading waits
+ * while as many more are queued, so memory stays bounded whatever the file size.
+ * Items ES rejects for load (429) are sent again, up to GBIF_BULK_ITEM_RETRIES (3) times with backoff;
+ * whole requests are retried by EsClient.
+ * Refreshes are switched off for the duration of a load and restored to GBIF_BULK_REFRESH_INTERVAL (1s).
+ *
+ * java -cp gbif.jar:gson.jar com.amazonaws.lambda.gbif.GbifBulkLoader [--create] gbif_data.json [more files...]
+ * (.zip files are read as Darwin Core Archives, .gz files are decompressed; --create creates the index,
+ * with decimalLatitude/decimalLongitude mapped as the geo_point "location")
+ */
+public final class GbifBulkLoader {
+
+	public static final String INDEX = "gbif";
+	/** mapping type of the index (ES 6); empty for typeless indices */
+	public static final String TYPE = Settings.getString("GBIF_BULK_TYPE", "record");
+
+	private static final long TIMEOUT_MS = Settings.getLong("GBIF_BULK_TIMEOUT_MS", 60000);
+	private static final long REPORT_MS = Settings.getLong("GBIF_BULK_REPORT_MS", 10000);
+	private static final String FILTER_PATH = "errors,items.*.status,items.*.error.type,items.*.error.reason";
+
+	private final URI endpoint;
+	private final int concurrency;
+	private final long maxBytes;
+	private final int maxDocs;
+	private final int itemRetries;
+
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param endpoint = ES domain root
+	 * @param concurrency = _bulk requests in flight
+	 * @param maxBytes = body size a batch is sent at
+	 * @param maxDocs = document count a batch is sent at
+	 * @param itemRetries = times a rejected item is sent again
+	 */
+	GbifBulkLoader(URI endpoint, int concurrency, long maxBytes, int maxDocs, int itemRetries) {
+		this.endpoint = endpoint;
+		this.concurrency = concurrency;
+		this.maxBytes = maxBytes;
+		this.maxDocs = maxDocs;
+		this.itemRetries = itemRetries;
+	}
+
+	public static GbifBulkLoader fromSettings() {
+		return new GbifBulkLoader(URI.create(GbifLambdaHandler.endpoint), Settings.getInt("GBIF_BULK_CONCURRENCY", 4),
+				Settings.getLong("GBIF_BULK_MAX_BYTES", 5L * 1024 * 1024), Settings.getInt("GBIF_BULK_MAX_DOCS", 5000),
+				Settings.getInt("GBIF_BULK_ITEM_RETRIES", 3));
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean create = false;
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			if ("--create".equals(arg)) {
+				create = true;
+			} else {
+				files.add(new File(arg));
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("usage: GbifBulkLoader [--create] <gbif_data.json|archive.zip>...");
+			System.exit(2);
+		}
+		GbifBulkLoader loader = fromSettings();
+		loader.beginLoad(create);
+		long start = System.nanoTime();
+		try {
+			for (File file : files) {
+				try (GbifRecordReader records = open(file)) {
+					loader.load(records);
+				}
+			}
+		} finally {
+			loader.endLoad();
+		}
+		System.out.println(loader.report(System.nanoTime() - start));
+		System.exit(loader.getFailed() > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return reader for a bulk/JSON file (optionally .gz) or a Darwin Core Archive (.zip)
+	 */
+	static GbifRecordReader open(File file) throws IOException {
+		if (file.getName().endsWith(".zip")) {
+			return new DwcaRecordReader(file);
+		}
+		InputStream in = new FileInputStream(file);
+		return new JsonRecordReader(file.getName().endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in);
+	}
+
+	/**
+	 * Creates the index (if asked to, and if it does not exist) and turns off refreshes for the load.
+	 */
+	void beginLoad(boolean create) {
+		if (create) {
+			JsonObject location = new JsonObject();
+			location.addProperty("type", "geo_point");
+			JsonObject properties = new JsonObject();
+			properties.add("location", location);
+			JsonObject mapping = new JsonObject();
+			mapping.add("properties", properties);
+			JsonObject mappings = new JsonObject();
+			if (TYPE.isEmpty()) {
+				mappings = mapping;
+			} else {
+				mappings.add(TYPE, mapping);
+			}
+			JsonObject body = new JsonObject();
+			body.add("mappings", mappings);
+			try {
+				call(HttpMethodName.PUT, "/" + INDEX, body.toString());
+			} catch (AmazonServiceException e) {
+				//400 resource_already_exists_exception: keep the existing index and mapping
+				if (e.getStatusCode() != 400) {
+					throw e;
+				}
+			}
+		}
+		call(HttpMethodName.PUT, "/" + INDEX + "/_settings", "{\"index\":{\"refresh_interval\":\"-1\"}}");
+	}
+
+	/**
+	 * Restores refreshes and makes the loaded documents searchable.
+	 */
+	void endLoad() {
+		String interval = Settings.getString("GBIF_BULK_REFRESH_INTERVAL", "1s");
+		call(HttpMethodName.PUT, "/" + INDEX + "/_settings", "{\"index\":{\"refresh_interval\":\"" + interval + "\"}}");
+		call(HttpMethodName.POST, "/" + INDEX + "/_refresh", "");
+	}
+
+	/**
+	 * Sends every record of records; returns once all of them are acknowledged (or given up on).
+	 */
+	void load(GbifRecordReader records) throws IOException, InterruptedException {
+		ExecutorService senders = Executors.newFixedThreadPool(concurrency);
+		//running plus queued batches: reading blocks when ES falls behind
+		Semaphore inFlight = new Semaphore(concurrency * 2);
+		long started = System.nanoTime();
+		long nextReport = started + TimeUnit.MILLISECONDS.toNanos(REPORT_MS);
+		try {
+			String type = TYPE.isEmpty() ? null : TYPE;
+			BulkBatch batch = new BulkBatch((int) Math.min(maxBytes + 4096, Integer.MAX_VALUE));
+			for (GbifRecord record = records.next(); record != null; record = records.next()) {
+				JsonObject source = record.getSource();
+				addLocation(source);
+				batch.add(BulkBatch.indexAction(INDEX, type, record.getId()), source.toString());
+				if (batch.bytes() >= maxBytes || batch.size() >= maxDocs) {
+					submit(batch, senders, inFlight);
+					batch = new BulkBatch((int) Math.min(maxBytes + 4096, Integer.MAX_VALUE));
+				}
+				if (System.nanoTime() - nextReport > 0) {
+					System.out.println(report(System.nanoTime() - started));
+					nextReport += TimeUnit.MILLISECONDS.toNanos(REPORT_MS);
+				}
+			}
+			if (batch.size() > 0) {
+				submit(batch, senders, inFlight);
+			}
+			//all permits back: every batch is done
+			inFlight.acquire(concurrency * 2);
+			inFlight.release(concurrency * 2);
+		} finally {
+			senders.shutdown();
+		}
+	}
+
+	private void submit(final BulkBatch batch, ExecutorService senders, final Semaphore inFlight) throws InterruptedException {
+		inFlight.acquire();
+		senders.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					send(batch);
+				} catch (RuntimeException e) {
+					failed.addAndGet(batch.size());
+					System.out.println("bulk request failed, " + batch.size() + " documents lost: " + e);
+				} catch (InterruptedException e) {
+					failed.addAndGet(batch.size());
+					Thread.currentThread().interrupt();
+				} finally {
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Sends a batch, then again the items rejected with 429 until they are in or the retries are used up
+	 */
+	void send(BulkBatch batch) throws InterruptedException {
+		Backoff backoff = Backoff.fromSettings();
+		BulkBatch pending = batch;
+		for (int attempt = 0;; attempt++) {
+			List<Integer> rejected = sendOnce(pending);
+			if (rejected.isEmpty()) {
+				return;
+			}
+			if (attempt == itemRetries) {
+				failed.addAndGet(rejected.size());
+				return;
+			}
+			retried.addAndGet(rejected.size());
+			Thread.sleep(backoff.nextDelayMillis());
+			pending = pending.subset(rejected);
+		}
+	}
+
+	/*
+	 * @return positions of the items rejected for load; other failed items are counted and logged
+	 */
+	private List<Integer> sendOnce(BulkBatch batch) {
+		byte[] body = batch.toByteArray();
+		Request<?> request = new DefaultRequest<Void>("es");
+		request.setContent(HashedPayload.of(body).newContent());
+		request.addHeader("Content-type", "application/x-ndjson");
+		request.setEndpoint(endpoint);
+		request.setResourcePath("/_bulk");
+		request.setHttpMethod(HttpMethodName.POST);
+		//only what is needed to find failed items
+		request.addParameter("filter_path", FILTER_PATH);
+		JsonObject response = new JsonParser().parse(execute(request)).getAsJsonObject();
+		batches.incrementAndGet();
+		bytes.addAndGet(body.length);
+
+		List<Integer> rejected = new ArrayList<Integer>();
+		JsonElement errors = response.get("errors");
+		if (errors == null || !errors.getAsBoolean()) {
+			loaded.addAndGet(batch.size());
+			return rejected;
+		}
+		JsonArray items = response.getAsJsonArray("items");
+		for (int i = 0; i < batch.size(); i++) {
+			JsonObject item = i < items.size() ? first(items.get(i).getAsJsonObject()) : null;
+			int status = item == null ? 500 : item.get("status").getAsInt();
+			if (status < 300) {
+				loaded.incrementAndGet();
+			} else if (status == 429) {
+				rejected.add(i);
+			} else {
+				if (failed.incrementAndGet() <= 10) {
+					System.out.println("document not loaded: " + item);
+				}
+			}
+		}
+		return rejected;
+	}
+
+	//the item result is wrapped in its action name: {"index": {...}}
+	private static JsonObject first(JsonObject item) {
+		Iterator<Map.Entry<String, JsonElement>> entries = item.entrySet().iterator();
+		return entries.hasNext() ? entries.next().getValue().getAsJsonObject() : null;
+	}
+
+	private String call(HttpMethodName method, String path, String body) {
+		Request<?> request = new DefaultRequest<Void>("es");
+		request.setContent(HashedPayload.of(body).newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(endpoint);
+		request.setResourcePath(path);
+		request.setHttpMethod(method);
+		return execute(request);
+	}
+
+	private static String execute(Request<?> request) {
+		GbifLambdaHandler.performSigningSteps(request);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EsClient.getInstance().execute(request, new StreamingResponseHandler<Void>(out),
+				new EsErrorHandler(GbifLambdaHandler.service_name), Deadline.in(TIMEOUT_MS));
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Adds the geo_point "location" ({"lat": .., "lon": ..}) from decimalLatitude/decimalLongitude,
+	 * if both are present and valid.
+	 */
+	static void addLocation(JsonObject source) {
+		JsonElement lat = source.get("decimalLatitude");
+		JsonElement lon = source.get("decimalLongitude");
+		if (source.has("location") || lat == null || lon == null || !lat.isJsonPrimitive() || !lon.isJsonPrimitive()) {
+			return;
+		}
+		try {
+			double latitude = lat.getAsDouble();
+			double longitude = lon.getAsDouble();
+			if (latitude < -90 || latitude > 90 || longitude < -180 || longitude > 180) {
+				return;
+			}
+			JsonObject location = new JsonObject();
+			location.addProperty("lat", latitude);
+			location.addProperty("lon", longitude);
+			source.add("location", location);
+		} catch (NumberFormatException e) {
+			//not a coordinate
+		}
+	}
+
+	public long getLoaded() {
+		return loaded.get();
+	}
+
+	public long getRetried() {
+		return retried.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @param elapsedNanos = time since the load started
+	 * @return throughput summary, e.g. "loaded 871 documents (1.9 MB, 1 requests) in 1.2 s: 726 docs/s, 1.6 MB/s, 0 retried, 0 failed"
+	 */
+	public String report(long elapsedNanos) {
+		double seconds = Math.max(1e-9, elapsedNanos / 1e9);
+		double megabytes = bytes.get() / (1024.0 * 1024.0);
+		return String.format(Locale.ROOT, "loaded %d documents (%.1f MB, %d requests) in %.1f s: %.0f docs/s, %.1f MB/s, %d retried, %d failed",
+				loaded.get(), megabytes, batches.get(), seconds, loaded.get() / seconds, megabytes / seconds,
+				retried.get(), failed.get());
+	}
+}
@@ -0,0 +1,109 @@
+package com.amazonaws.lambda.gbif;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Opaque page cursor for the gbif API: the search_after sort values of the last hit returned,
+ * plus the point-in-time id when the query runs against a PIT.
+ * Encoded as URL-safe base64 of a small JSON object so clients treat it as a token.
+ */
+public final class GbifCursor {
+
+	/** field every page is sorted on; unique per record so pages never overlap */
+	public static final String SORT_FIELD = "gbifID.keyword";
+
+	private final JsonArray searchAfter;
+	private final String pitId;
+
+	/**
+	 * @param searchAfter = sort values of the last hit of the previous page
+	 * @param pitId = point-in-time id, or null when not searching a PIT
+	 */
+	public GbifCursor(JsonArray searchAfter, String pitId) {
+		this.searchAfter = searchAfter;
+		this.pitId = pitId;
+	}
+
+	public JsonArray getSearchAfter() {
+		return searchAfter;
+	}
+
+	public String getPitId() {
+		return pitId;
+	}
+
+	/**
+	 * @return the cursor as an opaque, URL-safe token
+	 */
+	public String encode() {
+		JsonObject json = new JsonObject();
+		json.add("a", searchAfter);
+		if (pitId != null) {
+			json.addProperty("p", pitId);
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param token = value of the cursor query parameter
+	 * @throws IllegalArgumentException if the token was not produced by {@link #encode()}
+	 */
+	public static GbifCursor decode(String token) {
+		try {
+			byte[] decoded = Base64.getUrlDecoder().decode(token);
+			JsonObject json = new JsonParser().parse(new String(decoded, StandardCharsets.UTF_8)).getAsJsonObject();
+			JsonElement pit = json.get("p");
+			return new GbifCursor(json.getAsJsonArray("a"), pit == null ? null : pit.getAsString());
+		} catch (IllegalArgumentException | IllegalStateException | JsonParseException | ClassCastException | NullPointerException e) {
+			throw new IllegalArgumentException("Invalid cursor");
+		}
+	}
+
+	/**
+	 * Works out the cursor for the page after an ES response.
+	 * @param response = parsed ES search response
+	 * @param pageSize = number of hits requested
+	 * @return cursor for the next page, or null if this was the last page
+	 */
+	public static GbifCursor next(JsonObject response, int pageSize) {
+		JsonArray hits = response.getAsJsonObject("hits").getAsJsonArray("hits");
+		JsonElement sort = hits.size() == 0 ? null : hits.get(hits.size() - 1).getAsJsonObject().get("sort");
+		JsonElement pit = response.get("pit_id");
+		return next(hits.size(), sort, pit == null ? null : pit.getAsString(), pageSize);
+	}
+
+	/**
+	 * Same as {@link #next(JsonObject, int)}, from what a streaming reader kept of the response.
+	 * @param hits = number of hits in the response
+	 * @param lastSort = sort values of the last hit, or null
+	 * @param pitId = pit_id of the response, or null
+	 * @param pageSize = number of hits requested
+	 */
+	public static GbifCursor next(int hits, JsonElement lastSort, String pitId, int pageSize) {
+		if (hits < pageSize || hits == 0 || lastSort == null || !lastSort.isJsonArray()) {
+			return null;
+		}
+		return new GbifCursor(lastSort.getAsJsonArray(), pitId);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GbifCursor)) {
+			return false;
+		}
+		GbifCursor other = (GbifCursor) o;
+		return searchAfter.equals(other.searchAfter) && (pitId == null ? other.pitId == null : pitId.equals(other.pitId));
+	}
+
+	@Override
+	public int hashCode() {
+		return searchAfter.hashCode() * 31 + (pitId == null ? 0 : pitId.hashCode());
+	}
+}
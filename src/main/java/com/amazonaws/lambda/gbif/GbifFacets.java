@@ -0,0 +1,251 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.amazonaws.lambda.es.ResponseCache;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * Facet counts requested with facets=...: a comma separated list of parameter names to count
+ * matching occurrences by (e.g. facets=country,kingdom,year), answered with a size:0 search
+ * (terms aggregations on the keyword fields, a histogram for year) instead of hits.
+ * facetSize=N (default GBIF_FACET_SIZE, 10) is the number of values returned per facet.
+ *
+ * Response: {"total": 871, "facets": {"country": {"Belgium": 600, ...}, "year": {"2013": 410, ...}}}
+ * ("timed_out": true first, if ES ran out of time, then "terminated_early": true if it stopped counting
+ * at GBIF_TERMINATE_AFTER documents per shard: the counts are then lower bounds); with precision=N the
+ * cells of the geo grid follow as "cells" (see {@link GbifGeo}).
+ * The flags lead the count map as they lead ES responses, so {@link ResponseCache#isPartial(String)}
+ * keeps partial counts out of the cache either way.
+ */
+public final class GbifFacets {
+
+	public static final int DEFAULT_SIZE = Settings.getInt("GBIF_FACET_SIZE", 10);
+	public static final int MAX_SIZE = Settings.getInt("GBIF_MAX_FACET_SIZE", 100);
+
+	private final Set<GbifParam> params;
+	private final int size;
+
+	private GbifFacets(Set<GbifParam> params, int size) {
+		this.params = Collections.unmodifiableSet(params);
+		this.size = size;
+	}
+
+	/**
+	 * @param value = value of the facets query parameter
+	 * @param size = value of facetSize, or null for the default
+	 * @throws IllegalArgumentException for unknown parameter names or an invalid size
+	 */
+	public static GbifFacets parse(String value, String size) {
+		//declaration order, so that equivalent lists compare (and cache) the same
+		Set<GbifParam> params = EnumSet.noneOf(GbifParam.class);
+		for (String token : value.split(",")) {
+			String name = token.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			GbifParam param = GbifParam.forName(name);
+			if (param == null) {
+				throw new IllegalArgumentException("Invalid facet: " + name);
+			}
+			params.add(param);
+		}
+		if (params.isEmpty()) {
+			throw new IllegalArgumentException("facets needs at least one parameter name");
+		}
+		return new GbifFacets(params, parseSize(size));
+	}
+
+	private static int parseSize(String size) {
+		if (size == null || size.isEmpty()) {
+			return DEFAULT_SIZE;
+		}
+		int n;
+		try {
+			n = Integer.parseInt(size);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for facetSize: " + size);
+		}
+		if (n < 1 || n > MAX_SIZE) {
+			throw new IllegalArgumentException("facetSize must be between 1 and " + MAX_SIZE);
+		}
+		return n;
+	}
+
+	/**
+	 * @return parameters to count by, in declaration order of {@link GbifParam}
+	 */
+	public Set<GbifParam> getParams() {
+		return params;
+	}
+
+	/**
+	 * @return values returned per facet
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return true if param is counted per value bucket (histogram) rather than per term
+	 */
+	public static boolean isHistogram(GbifParam param) {
+		return param.clause() == GbifParam.Clause.RANGE;
+	}
+
+	/**
+	 * @return field aggregated for param: the keyword sub-field of analyzed text fields
+	 */
+	static String aggregationField(GbifParam param) {
+		return param.clause() == GbifParam.Clause.MATCH ? param.field() + ".keyword" : param.field();
+	}
+
+	/**
+	 * Turns an ES response to a facets or count query into the compact count form.
+	 * @param response = size:0 search response (with aggregations), or _count response
+	 * @param query = the query that produced it
+	 * @return {"total": N, "facets": {...}, "cells": [...]} or, for count queries, {"count": N}
+	 */
+	public static String toCounts(String response, GbifQuery query) {
+		return toCounts(new JsonParser().parse(response).getAsJsonObject(), query).toString();
+	}
+
+	public static JsonObject toCounts(JsonObject response, GbifQuery query) {
+		boolean timedOut = response.has("timed_out") && response.get("timed_out").getAsBoolean();
+		boolean terminatedEarly = response.has("terminated_early") && response.get("terminated_early").getAsBoolean();
+		long total = response.has("count") ? response.get("count").getAsLong() : total(response);
+		if (query.getFacets() == null && !query.isGrid()) {
+			return count(total, timedOut, terminatedEarly);
+		}
+		JsonObject aggregations = response.getAsJsonObject("aggregations");
+		if (query.getFacets() == null) {
+			return cells(total, GbifGeo.toCells(aggregations == null ? null : aggregations.getAsJsonObject(GbifGeo.CELLS)),
+					timedOut, terminatedEarly);
+		}
+		Map<String, Map<String, Long>> facets = new LinkedHashMap<String, Map<String, Long>>();
+		for (GbifParam param : query.getFacets().getParams()) {
+			Map<String, Long> counts = new LinkedHashMap<String, Long>();
+			JsonObject aggregation = aggregations == null ? null : aggregations.getAsJsonObject(param.paramName());
+			if (aggregation != null) {
+				for (JsonElement bucket : aggregation.getAsJsonArray("buckets")) {
+					JsonObject b = bucket.getAsJsonObject();
+					counts.put(key(b.get("key")), b.get("doc_count").getAsLong());
+				}
+			}
+			facets.put(param.paramName(), counts);
+		}
+		JsonObject json = facets(total, facets, timedOut, terminatedEarly);
+		if (query.isGrid()) {
+			json.add(GbifGeo.CELLS, GbifGeo.toCells(aggregations == null ? null : aggregations.getAsJsonObject(GbifGeo.CELLS)));
+		}
+		return json;
+	}
+
+	//hits.total is a number up to ES 6, {"value": N, "relation": ...} since ES 7
+	private static long total(JsonObject response) {
+		JsonObject hits = response.getAsJsonObject("hits");
+		if (hits == null || !hits.has("total")) {
+			return 0;
+		}
+		JsonElement total = hits.get("total");
+		return total.isJsonObject() ? total.getAsJsonObject().get("value").getAsLong() : total.getAsLong();
+	}
+
+	//bucket keys: strings for terms, numbers (2014.0 for histograms) for numeric fields
+	private static String key(JsonElement key) {
+		JsonPrimitive primitive = key.getAsJsonPrimitive();
+		if (primitive.isNumber()) {
+			double value = primitive.getAsDouble();
+			if (value == Math.rint(value) && !Double.isInfinite(value)) {
+				return String.valueOf(primitive.getAsLong());
+			}
+		}
+		return primitive.getAsString();
+	}
+
+	/**
+	 * @return {"count": total}
+	 */
+	public static JsonObject count(long total, boolean timedOut, boolean terminatedEarly) {
+		JsonObject json = flags(timedOut, terminatedEarly);
+		json.addProperty("count", total);
+		return json;
+	}
+
+	/**
+	 * @param facets = counts per value, per facet name, in output order
+	 * @return {"total": total, "facets": {...}}
+	 */
+	public static JsonObject facets(long total, Map<String, Map<String, Long>> facets, boolean timedOut, boolean terminatedEarly) {
+		JsonObject json = flags(timedOut, terminatedEarly);
+		json.addProperty("total", total);
+		JsonObject out = new JsonObject();
+		for (Map.Entry<String, Map<String, Long>> facet : facets.entrySet()) {
+			JsonObject counts = new JsonObject();
+			for (Map.Entry<String, Long> count : facet.getValue().entrySet()) {
+				counts.addProperty(count.getKey(), count.getValue());
+			}
+			out.add(facet.getKey(), counts);
+		}
+		json.add("facets", out);
+		return json;
+	}
+
+	/**
+	 * @param cells = grid cells, see {@link GbifGeo#toCells(JsonObject)}
+	 * @return {"total": total, "cells": [...]}
+	 */
+	public static JsonObject cells(long total, JsonArray cells, boolean timedOut, boolean terminatedEarly) {
+		JsonObject json = flags(timedOut, terminatedEarly);
+		json.addProperty("total", total);
+		json.add(GbifGeo.CELLS, cells);
+		return json;
+	}
+
+	//first in the count map, where they are in ES responses
+	private static JsonObject flags(boolean timedOut, boolean terminatedEarly) {
+		JsonObject json = new JsonObject();
+		if (timedOut) {
+			json.addProperty("timed_out", true);
+		}
+		if (terminatedEarly) {
+			json.addProperty("terminated_early", true);
+		}
+		return json;
+	}
+
+	/**
+	 * @return canonical form, e.g. "country,year" or "country,year;20" with a facetSize other than the default
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (GbifParam param : params) {
+			sb.append(sb.length() > 0 ? "," : "").append(param.paramName());
+		}
+		return size == DEFAULT_SIZE ? sb.toString() : sb.append(';').append(size).toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GbifFacets)) {
+			return false;
+		}
+		GbifFacets other = (GbifFacets) o;
+		return params.equals(other.params) && size == other.size;
+	}
+
+	@Override
+	public int hashCode() {
+		return params.hashCode() * 31 + size;
+	}
+}
@@ -0,0 +1,145 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Field projection requested with fields=...: a comma separated list of _source fields and/or
+ * profile names, where a leading '-' excludes a field. Compiled into the _source includes/excludes
+ * of the search body, so only the requested fields of each hit leave ES.
+ *
+ * For example fields=taxonomy,year,-taxonKey
+ */
+public final class GbifFields {
+
+	/** longest list a caller may ask for, profiles expanded */
+	static final int MAX_FIELDS = 64;
+
+	/**
+	 * Named field sets for common consumers.
+	 */
+	public enum Profile {
+		MINIMAL("key", "gbifID", "scientificName", "vernacularName", "countryCode", "year"),
+		TAXONOMY("key", "scientificName", "vernacularName", "kingdom", "phylum", "class", "order",
+				"family", "genus", "species", "taxonRank", "taxonKey"),
+		LOCATION("key", "decimalLatitude", "decimalLongitude", "elevation", "geodeticDatum",
+				"country", "countryCode", "eventDate", "year", "month", "day");
+
+		private final String[] fields;
+
+		private Profile(String... fields) {
+			this.fields = fields;
+		}
+
+		/**
+		 * @return profile called name (case-insensitive), or null
+		 */
+		public static Profile forName(String name) {
+			for (Profile profile : values()) {
+				if (profile.name().equalsIgnoreCase(name)) {
+					return profile;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Set<String> includes;
+	private final Set<String> excludes;
+
+	private GbifFields(Set<String> includes, Set<String> excludes) {
+		this.includes = Collections.unmodifiableSet(includes);
+		this.excludes = Collections.unmodifiableSet(excludes);
+	}
+
+	/**
+	 * @param value = value of the fields query parameter
+	 * @throws IllegalArgumentException for malformed field names or too many fields
+	 */
+	public static GbifFields parse(String value) {
+		//sorted sets, so that equivalent lists compare (and cache) the same
+		Set<String> includes = new TreeSet<String>();
+		Set<String> excludes = new TreeSet<String>();
+		for (String token : value.split(",")) {
+			String name = token.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			boolean exclude = name.charAt(0) == '-';
+			if (exclude) {
+				name = name.substring(1);
+			}
+			Profile profile = Profile.forName(name);
+			if (profile != null) {
+				(exclude ? excludes : includes).addAll(Arrays.asList(profile.fields));
+			} else if (isFieldName(name)) {
+				(exclude ? excludes : includes).add(name);
+			} else {
+				throw new IllegalArgumentException("Invalid field: " + token.trim());
+			}
+		}
+		if (includes.size() + excludes.size() > MAX_FIELDS) {
+			throw new IllegalArgumentException("At most " + MAX_FIELDS + " fields can be requested");
+		}
+		return new GbifFields(includes, excludes);
+	}
+
+	//plain (optionally dotted) field names and * wildcards only
+	private static boolean isFieldName(String name) {
+		if (name.isEmpty() || name.length() > 64) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '*')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return fields to return, sorted; empty means all fields not excluded
+	 */
+	public Set<String> getIncludes() {
+		return includes;
+	}
+
+	/**
+	 * @return fields to leave out, sorted
+	 */
+	public Set<String> getExcludes() {
+		return excludes;
+	}
+
+	/**
+	 * @return canonical form, e.g. "class,key,-taxonKey"
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (String field : includes) {
+			sb.append(sb.length() > 0 ? "," : "").append(field);
+		}
+		for (String field : excludes) {
+			sb.append(sb.length() > 0 ? ",-" : "-").append(field);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GbifFields)) {
+			return false;
+		}
+		GbifFields other = (GbifFields) o;
+		return includes.equals(other.includes) && excludes.equals(other.excludes);
+	}
+
+	@Override
+	public int hashCode() {
+		return includes.hashCode() * 31 + excludes.hashCode();
+	}
+}
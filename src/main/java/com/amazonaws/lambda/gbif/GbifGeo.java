@@ -0,0 +1,518 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.Locale;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * Geo parameters of a query, on the geo_point "location" the loader builds from
+ * decimalLatitude/decimalLongitude (see GbifBulkLoader.addLocation):
+ * bbox=west,south,east,north (degrees, GeoJSON order; west > east crosses the antimeridian)
+ * or tile=z/x/y (a web map tile) keeps the occurrences inside a box, a geo_bounding_box filter;
+ * near=lat,lon with radius=N, Nm or Nkm keeps those within a distance, a geo_distance filter.
+ * precision=N counts the matching occurrences per grid cell instead of returning hits: a
+ * geohash_grid (N = geohash length, 1-12) or, with GBIF_GEO_GRID=geotile (ES 7+), a geotile_grid
+ * (N = zoom, 0-29), with the centroid of each cell's points.
+ *
+ * With a grid, the box is widened to whole cells so that edge cells are counted in full and the
+ * same cell has the same count in every tile. Map clients ask per tile: each tile is cached on its
+ * own key, so a pan only sends the aggregations of the tiles that came into view.
+ *
+ * Response: {"total": 871, "cells": [{"key": "u14", "count": 600, "lat": 50.98, "lon": 2.85}, ...]}
+ * (cells by descending count, at most GBIF_GEO_MAX_CELLS)
+ */
+public final class GbifGeo {
+
+	/** geo_point field the filters and grids apply to */
+	public static final String FIELD = "location";
+
+	/** name of the grid aggregation, and of its centroid sub-aggregation */
+	public static final String CELLS = "cells";
+	public static final String CENTROID = "centroid";
+
+	public static final int MAX_CELLS = Settings.getInt("GBIF_GEO_MAX_CELLS", 10000);
+
+	/** mean earth radius in meters, as ES uses for geo_distance */
+	static final double EARTH_RADIUS = 6371008.7714;
+
+	private static final double MAX_MERCATOR_LAT = 85.0511287798066;
+	private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+	/**
+	 * Grid aggregations: the ES name, and the range of their precision.
+	 */
+	public enum Grid {
+		GEOHASH("geohash_grid", 1, 12), GEOTILE("geotile_grid", 0, 29);
+
+		private final String aggregation;
+		private final int min;
+		private final int max;
+
+		Grid(String aggregation, int min, int max) {
+			this.aggregation = aggregation;
+			this.min = min;
+			this.max = max;
+		}
+
+		public String aggregation() {
+			return aggregation;
+		}
+	}
+
+	public static final Grid GRID = gridFromSettings();
+
+	//box (NaN when none), the tile it came from (or null), circle (radius NaN when none), grid precision (-1 when none)
+	private final double west;
+	private final double south;
+	private final double east;
+	private final double north;
+	private final String tile;
+	private final double lat;
+	private final double lon;
+	private final double radius;
+	private final Grid grid;
+	private final int precision;
+
+	private GbifGeo(double[] box, String tile, double[] near, double radius, Grid grid, int precision) {
+		this.west = box == null ? Double.NaN : box[0];
+		this.south = box == null ? Double.NaN : box[1];
+		this.east = box == null ? Double.NaN : box[2];
+		this.north = box == null ? Double.NaN : box[3];
+		this.tile = tile;
+		this.lat = near == null ? Double.NaN : near[0];
+		this.lon = near == null ? Double.NaN : near[1];
+		this.radius = near == null ? Double.NaN : radius;
+		this.grid = grid;
+		this.precision = precision;
+	}
+
+	/*
+	 * An unknown GBIF_GEO_GRID fails the class at init, naming the setting, as an unknown GBIF_BACKEND
+	 * does: falling back to geohash would turn a misspelt geotile into 400s for deep precisions
+	 */
+	static Grid gridFromSettings() {
+		return Settings.getEnum("GBIF_GEO_GRID", Grid.class, Grid.GEOHASH);
+	}
+
+	/**
+	 * @param bbox = value of bbox, or null
+	 * @param tile = value of tile, or null
+	 * @param near = value of near, or null
+	 * @param radius = value of radius, or null
+	 * @param precision = value of precision, or null
+	 * @return the geo parameters, or null if none was given
+	 * @throws IllegalArgumentException for invalid values or combinations
+	 */
+	public static GbifGeo parse(String bbox, String tile, String near, String radius, String precision) {
+		return parse(bbox, tile, near, radius, precision, GRID);
+	}
+
+	static GbifGeo parse(String bbox, String tile, String near, String radius, String precision, Grid grid) {
+		if (isEmpty(bbox) && isEmpty(tile) && isEmpty(near) && isEmpty(radius) && isEmpty(precision)) {
+			return null;
+		}
+		if (!isEmpty(bbox) && !isEmpty(tile)) {
+			throw new IllegalArgumentException("bbox and tile both give the box: use one");
+		}
+		if (isEmpty(near) != isEmpty(radius)) {
+			throw new IllegalArgumentException("near and radius go together");
+		}
+		double[] box = isEmpty(bbox) ? null : parseBox(bbox);
+		String tileKey = null;
+		if (!isEmpty(tile)) {
+			int[] zxy = parseTile(tile);
+			tileKey = zxy[0] + "/" + zxy[1] + "/" + zxy[2];
+			box = tileBox(zxy[0], zxy[1], zxy[2]);
+		}
+		int p = isEmpty(precision) ? -1 : parsePrecision(precision, grid);
+		if (box != null && p >= 0) {
+			box = snap(box, grid, p);
+		}
+		return new GbifGeo(box, tileKey, isEmpty(near) ? null : parseNear(near), isEmpty(radius) ? Double.NaN : parseRadius(radius),
+				p >= 0 ? grid : null, p);
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.isEmpty();
+	}
+
+	private static double[] parseNumbers(String name, String value, int count) {
+		String[] parts = value.split(",");
+		if (parts.length != count) {
+			throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+		}
+		double[] numbers = new double[count];
+		for (int i = 0; i < count; i++) {
+			try {
+				numbers[i] = Double.parseDouble(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+			}
+			if (Double.isNaN(numbers[i]) || Double.isInfinite(numbers[i])) {
+				throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+			}
+		}
+		return numbers;
+	}
+
+	private static double[] parseBox(String value) {
+		double[] box = parseNumbers(GbifQuery.BBOX, value, 4);
+		if (box[0] < -180 || box[0] > 180 || box[2] < -180 || box[2] > 180 || box[1] < -90 || box[3] > 90 || box[1] > box[3]) {
+			throw new IllegalArgumentException("bbox is west,south,east,north in degrees, south <= north: " + value);
+		}
+		return box;
+	}
+
+	private static int[] parseTile(String value) {
+		String[] parts = value.split("/");
+		int[] zxy = new int[3];
+		try {
+			if (parts.length != 3) {
+				throw new NumberFormatException();
+			}
+			for (int i = 0; i < 3; i++) {
+				zxy[i] = Integer.parseInt(parts[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for tile (z/x/y): " + value);
+		}
+		if (zxy[0] < 0 || zxy[0] > Grid.GEOTILE.max || zxy[1] < 0 || zxy[1] >= 1 << zxy[0] || zxy[2] < 0 || zxy[2] >= 1 << zxy[0]) {
+			throw new IllegalArgumentException("No such tile: " + value);
+		}
+		return zxy;
+	}
+
+	private static double[] parseNear(String value) {
+		double[] near = parseNumbers(GbifQuery.NEAR, value, 2);
+		if (near[0] < -90 || near[0] > 90 || near[1] < -180 || near[1] > 180) {
+			throw new IllegalArgumentException("near is lat,lon in degrees: " + value);
+		}
+		return near;
+	}
+
+	//meters; a number alone is in meters, as for ES
+	private static double parseRadius(String value) {
+		String number = value.toLowerCase(Locale.ROOT);
+		double unit = 1;
+		if (number.endsWith("km")) {
+			number = number.substring(0, number.length() - 2);
+			unit = 1000;
+		} else if (number.endsWith("m")) {
+			number = number.substring(0, number.length() - 1);
+		}
+		double meters;
+		try {
+			meters = Double.parseDouble(number.trim()) * unit;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for radius: " + value);
+		}
+		if (!(meters > 0) || Double.isInfinite(meters)) {
+			throw new IllegalArgumentException("radius must be a positive distance, e.g. 500m or 10km: " + value);
+		}
+		return meters;
+	}
+
+	private static int parsePrecision(String value, Grid grid) {
+		int p;
+		try {
+			p = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for precision: " + value);
+		}
+		if (p < grid.min || p > grid.max) {
+			throw new IllegalArgumentException("precision must be between " + grid.min + " and " + grid.max);
+		}
+		return p;
+	}
+
+	/**
+	 * @return true when the query is filtered on location (box and/or circle)
+	 */
+	public boolean isFilter() {
+		return hasBox() || hasCircle();
+	}
+
+	public boolean hasBox() {
+		return !Double.isNaN(west);
+	}
+
+	public boolean hasCircle() {
+		return !Double.isNaN(radius);
+	}
+
+	/**
+	 * @return true when counts per cell are requested (precision given)
+	 */
+	public boolean isGrid() {
+		return grid != null;
+	}
+
+	public double getWest() {
+		return west;
+	}
+
+	public double getSouth() {
+		return south;
+	}
+
+	public double getEast() {
+		return east;
+	}
+
+	public double getNorth() {
+		return north;
+	}
+
+	public double getLat() {
+		return lat;
+	}
+
+	public double getLon() {
+		return lon;
+	}
+
+	/**
+	 * @return radius of the circle in meters
+	 */
+	public double getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @return grid aggregation, or null
+	 */
+	public Grid getGrid() {
+		return grid;
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * @return true if the point at latitude, longitude passes the box and circle filters
+	 */
+	public boolean contains(double latitude, double longitude) {
+		if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+			return false;
+		}
+		if (hasBox()) {
+			if (latitude < south || latitude > north) {
+				return false;
+			}
+			if (west <= east ? longitude < west || longitude > east : longitude < west && longitude > east) {
+				return false;
+			}
+		}
+		return !hasCircle() || distance(lat, lon, latitude, longitude) <= radius;
+	}
+
+	/**
+	 * @return key of the grid cell of a point, as ES names it
+	 */
+	public String cell(double latitude, double longitude) {
+		return grid == Grid.GEOTILE ? geotile(latitude, longitude, precision) : geohash(latitude, longitude, precision);
+	}
+
+	/**
+	 * @return great-circle distance in meters (haversine)
+	 */
+	static double distance(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/**
+	 * @return geohash of a point, length characters
+	 */
+	static String geohash(double latitude, double longitude, int length) {
+		double[] lats = { -90, 90 };
+		double[] lons = { -180, 180 };
+		StringBuilder sb = new StringBuilder(length);
+		boolean even = true;
+		int bits = 0;
+		int ch = 0;
+		while (sb.length() < length) {
+			double[] range = even ? lons : lats;
+			double value = even ? longitude : latitude;
+			double mid = (range[0] + range[1]) / 2;
+			ch <<= 1;
+			if (value >= mid) {
+				ch |= 1;
+				range[0] = mid;
+			} else {
+				range[1] = mid;
+			}
+			even = !even;
+			if (++bits == 5) {
+				sb.append(BASE32.charAt(ch));
+				bits = 0;
+				ch = 0;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return "zoom/x/y" of the web map tile holding a point
+	 */
+	static String geotile(double latitude, double longitude, int zoom) {
+		int tiles = 1 << zoom;
+		int x = (int) Math.floor((longitude + 180) / 360 * tiles);
+		int y = (int) Math.floor(tileY(latitude) * tiles);
+		return zoom + "/" + Math.max(0, Math.min(tiles - 1, x)) + "/" + Math.max(0, Math.min(tiles - 1, y));
+	}
+
+	//0 at the top (north) edge of the map, 1 at the bottom
+	private static double tileY(double latitude) {
+		double radians = Math.toRadians(Math.max(-MAX_MERCATOR_LAT, Math.min(MAX_MERCATOR_LAT, latitude)));
+		return (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+	}
+
+	private static double tileLat(double y) {
+		return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+	}
+
+	//west,south,east,north of a tile
+	static double[] tileBox(int zoom, int x, int y) {
+		double tiles = 1 << zoom;
+		return new double[] { x / tiles * 360 - 180, tileLat((y + 1) / tiles), (x + 1) / tiles * 360 - 180, tileLat(y / tiles) };
+	}
+
+	//the box widened to the edges of the cells it touches
+	static double[] snap(double[] box, Grid grid, int precision) {
+		double[] snapped = new double[4];
+		if (grid == Grid.GEOTILE) {
+			double tiles = 1 << precision;
+			snapped[0] = floor((box[0] + 180) / 360 * tiles) / tiles * 360 - 180;
+			snapped[2] = Math.min(tiles, ceil((box[2] + 180) / 360 * tiles)) / tiles * 360 - 180;
+			snapped[1] = box[1] <= -MAX_MERCATOR_LAT ? -90 : tileLat(ceil(tileY(box[1]) * tiles) / tiles);
+			snapped[3] = box[3] >= MAX_MERCATOR_LAT ? 90 : tileLat(floor(tileY(box[3]) * tiles) / tiles);
+			return snapped;
+		}
+		//a geohash of n characters halves longitude ceil(5n/2) times, latitude floor(5n/2) times
+		double width = 360 / Math.pow(2, (5 * precision + 1) / 2);
+		double height = 180 / Math.pow(2, 5 * precision / 2);
+		snapped[0] = floor((box[0] + 180) / width) * width - 180;
+		snapped[1] = floor((box[1] + 90) / height) * height - 90;
+		snapped[2] = Math.min(180, ceil((box[2] + 180) / width) * width - 180);
+		snapped[3] = Math.min(90, ceil((box[3] + 90) / height) * height - 90);
+		return snapped;
+	}
+
+	//edges already on the grid stay put despite rounding (a tile's edges, or a box snapped before)
+	private static double floor(double cells) {
+		return Math.abs(cells - Math.rint(cells)) < 1e-9 ? Math.rint(cells) : Math.floor(cells);
+	}
+
+	private static double ceil(double cells) {
+		return Math.abs(cells - Math.rint(cells)) < 1e-9 ? Math.rint(cells) : Math.ceil(cells);
+	}
+
+	/**
+	 * Turns the grid aggregation of an ES response into the compact cell list.
+	 * @param aggregation = the "cells" aggregation, or null
+	 * @return [{"key": .., "count": .., "lat": .., "lon": ..}, ...] in ES's order (descending count)
+	 */
+	public static JsonArray toCells(JsonObject aggregation) {
+		JsonArray cells = new JsonArray();
+		if (aggregation == null) {
+			return cells;
+		}
+		for (JsonElement bucket : aggregation.getAsJsonArray("buckets")) {
+			JsonObject b = bucket.getAsJsonObject();
+			JsonObject centroid = b.has(CENTROID) ? b.getAsJsonObject(CENTROID).getAsJsonObject("location") : null;
+			cells.add(cell(b.get("key").getAsString(), b.get("doc_count").getAsLong(),
+					centroid == null ? Double.NaN : centroid.get("lat").getAsDouble(),
+					centroid == null ? Double.NaN : centroid.get("lon").getAsDouble()));
+		}
+		return cells;
+	}
+
+	/**
+	 * @return {"key": key, "count": count, "lat": lat, "lon": lon} (no centroid when NaN)
+	 */
+	public static JsonObject cell(String key, long count, double lat, double lon) {
+		JsonObject cell = new JsonObject();
+		cell.addProperty("key", key);
+		cell.addProperty("count", count);
+		if (!Double.isNaN(lat)) {
+			cell.addProperty("lat", lat);
+			cell.addProperty("lon", lon);
+		}
+		return cell;
+	}
+
+	/**
+	 * @return names of the given parameters, e.g. "bbox+precision"
+	 */
+	public String shape() {
+		StringBuilder sb = new StringBuilder();
+		if (tile != null) {
+			sb.append(GbifQuery.TILE);
+		} else if (hasBox()) {
+			sb.append(GbifQuery.BBOX);
+		}
+		if (hasCircle()) {
+			sb.append(sb.length() > 0 ? "+" : "").append(GbifQuery.NEAR);
+		}
+		if (isGrid()) {
+			sb.append(sb.length() > 0 ? "+" : "").append(GbifQuery.PRECISION);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return canonical form, e.g. "tile=6/32/21&precision=4": a tile is its own key, a box its
+	 * snapped edges, so that boxes within the same cells share one
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		if (tile != null) {
+			sb.append(GbifQuery.TILE).append('=').append(tile);
+		} else if (hasBox()) {
+			sb.append(GbifQuery.BBOX).append('=').append(number(west)).append(',').append(number(south))
+					.append(',').append(number(east)).append(',').append(number(north));
+		}
+		if (hasCircle()) {
+			sb.append(sb.length() > 0 ? "&" : "").append(GbifQuery.NEAR).append('=').append(number(lat)).append(',')
+					.append(number(lon)).append('&').append(GbifQuery.RADIUS).append('=').append(distance());
+		}
+		if (isGrid()) {
+			sb.append(sb.length() > 0 ? "&" : "").append(GbifQuery.PRECISION).append('=').append(precision);
+			if (grid != Grid.GEOHASH) {
+				sb.append(';').append(grid.name().toLowerCase(Locale.ROOT));
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the radius as an ES distance, e.g. "2500m"
+	 */
+	public String distance() {
+		return number(radius) + "m";
+	}
+
+	//5.0 as 5
+	private static String number(double value) {
+		return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof GbifGeo && toString().equals(o.toString());
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+}
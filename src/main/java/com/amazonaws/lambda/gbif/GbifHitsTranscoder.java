@@ -0,0 +1,303 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.amazonaws.lambda.es.StreamingResponseHandler;
+
+/**
+ * Rewrites an ES search response into the slim output requested with format=...: only the _source
+ * of each hit, without the envelope (took, _shards, _index, _type, _score, ...).
+ * The response is pulled token by token and each _source is written out as soon as it is read,
+ * so memory use stays bounded whatever the number of hits. What is only known at the end
+ * (total, the next cursor of a page, timed_out) goes into a trailer after the hits, so whether the
+ * page is partial is told by {@link #isPartial()} rather than by the head of the output.
+ *
+ * format=json: {"hits": [{...}, ...], "total": 871, "cursor": "..."}
+ * format=ndjson: one _source per line, then {"trailer": {"total": 871, "cursor": "..."}}
+ * ("cursor" for paged queries only, null on the last page; "timed_out": true first, if ES ran out of time,
+ * then "terminated_early": true if it stopped at GBIF_TERMINATE_AFTER hits per shard)
+ */
+public final class GbifHitsTranscoder implements StreamingResponseHandler.Transcoder {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Output formats of the gbif API.
+	 */
+	public enum Format {
+		/** the ES search response as is */
+		ES("application/json"),
+		/** one JSON document: hits array, then the trailer fields */
+		JSON("application/json"),
+		/** newline delimited JSON: a line per hit, then a trailer line */
+		NDJSON("application/x-ndjson");
+
+		private final String contentType;
+
+		private Format(String contentType) {
+			this.contentType = contentType;
+		}
+
+		/**
+		 * @return Content-Type of responses in this format
+		 */
+		public String contentType() {
+			return contentType;
+		}
+
+		/**
+		 * @param value = value of the format query parameter (case-insensitive)
+		 * @throws IllegalArgumentException for unknown formats
+		 */
+		public static Format parse(String value) {
+			for (Format format : values()) {
+				if (format.name().equalsIgnoreCase(value)) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Invalid value for format: " + value
+					+ " (one of " + ES.name().toLowerCase(Locale.ROOT) + ", " + JSON.name().toLowerCase(Locale.ROOT)
+					+ ", " + NDJSON.name().toLowerCase(Locale.ROOT) + ")");
+		}
+	}
+
+	/*
+	 * What is kept of the response while the hits go by
+	 */
+	private static final class Page {
+		long total;
+		boolean timedOut;
+		boolean terminatedEarly;
+		String pitId;
+		int hits;
+		JsonElement lastSort;
+	}
+
+	private final Format format;
+	private final int pageSize;
+	//pit_id of a page without a next cursor: its point in time is done with
+	private String finishedPitId;
+	private boolean partial;
+
+	/**
+	 * @param format = JSON or NDJSON
+	 * @param pageSize = hits per page for paged queries (a cursor is added), 0 otherwise
+	 */
+	public GbifHitsTranscoder(Format format, int pageSize) {
+		if (format == Format.ES) {
+			throw new IllegalArgumentException("ES responses are not transcoded");
+		}
+		this.format = format;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @return transcoder for the format query asks for, or null if it wants the ES response as is
+	 */
+	public static GbifHitsTranscoder forQuery(GbifQuery query) {
+		return query.getFormat() == Format.ES ? null : new GbifHitsTranscoder(query.getFormat(), query.getPageSize());
+	}
+
+	/**
+	 * @return pit_id of the page transcoded, if it was the last page of a point-in-time walk; null otherwise
+	 */
+	public String getFinishedPitId() {
+		return finishedPitId;
+	}
+
+	/**
+	 * @return true if the page transcoded is a partial result (ES timed out or terminated early): not to be cached
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * @param response = ES search response (or an ES-shaped one, e.g. from the local index)
+	 * @return the response in this transcoder's format
+	 */
+	public String transcode(String response) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, response.length() / 2));
+		try {
+			transcode(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)), out);
+		} catch (IOException e) {
+			//in-memory streams do not throw; malformed JSON does
+			throw new IllegalStateException("Could not transcode the search response", e);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void transcode(InputStream in, OutputStream out) throws IOException {
+		JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+		JsonWriter json = new JsonWriter(writer);
+		//NDJSON is a sequence of top-level values
+		json.setLenient(true);
+		if (format == Format.JSON) {
+			json.beginObject();
+			json.name("hits").beginArray();
+		}
+		Page page = new Page();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("hits".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+				readHits(reader, json, writer, page);
+			} else if ("timed_out".equals(name) && reader.peek() == JsonToken.BOOLEAN) {
+				page.timedOut = reader.nextBoolean();
+			} else if ("terminated_early".equals(name) && reader.peek() == JsonToken.BOOLEAN) {
+				page.terminatedEarly = reader.nextBoolean();
+			} else if ("pit_id".equals(name) && reader.peek() == JsonToken.STRING) {
+				page.pitId = reader.nextString();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (format == Format.JSON) {
+			json.endArray();
+			writeTrailer(json, page);
+			json.endObject();
+		} else {
+			json.beginObject();
+			json.name("trailer").beginObject();
+			writeTrailer(json, page);
+			json.endObject();
+			json.endObject();
+			writer.write('\n');
+		}
+		json.flush();
+	}
+
+	private void readHits(JsonReader reader, JsonWriter json, Writer writer, Page page) throws IOException {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("total".equals(name)) {
+				page.total = readTotal(reader);
+			} else if ("hits".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					readHit(reader, json, writer, page);
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	//a number up to ES 6, {"value": N, "relation": ...} since ES 7
+	private static long readTotal(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+			return reader.nextLong();
+		}
+		long total = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			if ("value".equals(reader.nextName())) {
+				total = reader.nextLong();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return total;
+	}
+
+	private void readHit(JsonReader reader, JsonWriter json, Writer writer, Page page) throws IOException {
+		page.hits++;
+		page.lastSort = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("_source".equals(name)) {
+				copy(reader, json);
+				if (format == Format.NDJSON) {
+					writer.write('\n');
+				}
+			} else if ("sort".equals(name)) {
+				//a few sort values, kept for the cursor
+				page.lastSort = new JsonParser().parse(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	//copies one value token by token; numbers are kept exactly as ES wrote them
+	private static void copy(JsonReader reader, JsonWriter json) throws IOException {
+		switch (reader.peek()) {
+		case BEGIN_OBJECT:
+			reader.beginObject();
+			json.beginObject();
+			while (reader.hasNext()) {
+				json.name(reader.nextName());
+				copy(reader, json);
+			}
+			reader.endObject();
+			json.endObject();
+			break;
+		case BEGIN_ARRAY:
+			reader.beginArray();
+			json.beginArray();
+			while (reader.hasNext()) {
+				copy(reader, json);
+			}
+			reader.endArray();
+			json.endArray();
+			break;
+		case STRING:
+			json.value(reader.nextString());
+			break;
+		case NUMBER:
+			json.jsonValue(reader.nextString());
+			break;
+		case BOOLEAN:
+			json.value(reader.nextBoolean());
+			break;
+		case NULL:
+			reader.nextNull();
+			json.nullValue();
+			break;
+		default:
+			throw new IOException("Unexpected " + reader.peek() + " in _source");
+		}
+	}
+
+	private void writeTrailer(JsonWriter json, Page page) throws IOException {
+		if (page.timedOut) {
+			json.name("timed_out").value(true);
+		}
+		if (page.terminatedEarly) {
+			json.name("terminated_early").value(true);
+		}
+		partial = page.timedOut || page.terminatedEarly;
+		json.name("total").value(page.total);
+		if (pageSize > 0) {
+			GbifCursor next = GbifCursor.next(page.hits, page.lastSort, page.pitId, pageSize);
+			json.name("cursor").value(next == null ? null : next.encode());
+			if (next == null) {
+				finishedPitId = page.pitId;
+			}
+		}
+	}
+}
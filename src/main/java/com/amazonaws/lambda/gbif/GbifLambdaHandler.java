@@ -1,44 +1,53 @@
 package com.amazonaws.lambda.gbif;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.amazonaws.AmazonServiceException;
-import com.amazonaws.AmazonWebServiceResponse;
-import com.amazonaws.ClientConfiguration;
 import com.amazonaws.DefaultRequest;
 import com.amazonaws.Request;
-import com.amazonaws.Response;
-import com.amazonaws.auth.AWS4Signer;
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
-import com.amazonaws.http.AmazonHttpClient;
-import com.amazonaws.http.ExecutionContext;
 import com.amazonaws.http.HttpMethodName;
-import com.amazonaws.http.HttpResponseHandler;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.BodyResponseHandler;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.ErrorClass;
+import com.amazonaws.lambda.es.EsErrorHandler;
+import com.amazonaws.lambda.es.EsSigner;
+import com.amazonaws.lambda.es.HashedPayload;
+import com.amazonaws.lambda.es.Metrics;
+import com.amazonaws.lambda.es.ResponseCache;
+import com.amazonaws.lambda.es.Settings;
+import com.amazonaws.lambda.es.SingleFlight;
+import com.amazonaws.lambda.search.SearchConfig;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 
 public class GbifLambdaHandler implements RequestHandler<Object, String> {
 
-	private static final String service_name = "es";
-	private static final String regionName = "us-east-2";
-	private static final String host = "search-challenge-k4o63ifclu555nen5d463di2xu.us-east-2.es.amazonaws.com";
-	private static final String endpoint_root = "https://" + host;
-	private static final String path = "/";
-	private static final String endpoint = endpoint_root + path;
-	private static final String pretty = "true";
-	private static String responseValue; //contains string value of AmazonHttpResponse (contains results of query)
+	static final String service_name = SearchConfig.getDefault().getServiceName();
+	static final String regionName = SearchConfig.getDefault().getRegionName();
+	static final String endpoint = SearchConfig.getDefault().getEndpoint(); //ES_ENDPOINT overrides it, for local stand-ins
+	private static final boolean pretty = Settings.getBoolean("ES_PRETTY", false); //indented ES output, for debugging only
+	static final ResponseCache cache = ResponseCache.fromSettings("GBIF_CACHE"); //query results, shared by warm invocations
+	private static final boolean usePit = Settings.getBoolean("GBIF_USE_PIT", false); //point in time support needs ES 7.10+
+	static GbifBackend backend = GbifBackend.fromSettings(); //ES and/or the in-memory index, see GbifBackend
+	static final SingleFlight flights = SingleFlight.fromSettings("GBIF_COALESCE"); //concurrent identical queries, keyed like the cache
+	private static final long CLEAR_SCROLL_MS = 1000; //a scroll left behind expires with its keep alive
+	
+	static {
+		//class loading and first-use work happen in init, not in the first request (see GbifPrimer)
+		GbifPrimer.init();
+	}
 	
 	/**
 	 * handleRequest is the AWS Lambda Handler for any API Requests coming in to .../gbif
@@ -48,139 +57,609 @@ public class GbifLambdaHandler implements RequestHandler<Object, String> {
 	 * @param context = context of the environment and execution
 	 * Query String parameters possible:
 	 * key sex sciName kingdom phylum class order family 
-	 * genus species country vernacularName year rightsHolder
+	 * genus species country countryCode vernacularName year rightsHolder
+	 * Paging: size (max GBIF_MAX_PAGE_SIZE) and cursor (returned with every page)
+	 * Counts: facets=country,kingdom,year (counts per value, see GbifFacets) or count=true (total only, via _count)
+	 * Geo: bbox=w,s,e,n, tile=z/x/y, near=lat,lon&radius=5km filters; precision=N counts per grid cell (see GbifGeo)
+	 * Track: individualID=...&track=true returns the simplified path of one animal, walked with a scroll (see GbifTrack)
+	 * Output: format=json or format=ndjson returns only the hits' _source, with total and cursor in a trailer (see GbifHitsTranscoder)
+	 * Batch: a body of query string maps is answered with one _msearch (see GbifBatch)
+	 * Answers (partial hits, or Deadline.TIMED_OUT_BODY) before the Lambda times out, see Deadline
+	 * Hot query shapes, or every query with GBIF_BACKEND=local, are answered in memory (see GbifBackend)
+	 * Identical queries arriving while one is in flight wait for its ES response (see SingleFlight)
+	 * Every invocation writes one metrics line (phase timings, bytes, outcomes), see Metrics
 	 */
     public String handleRequest(Object input, Context context) {
-    	//converts the incoming input to a Json using Google's GSON library
-    	JsonParser parser = new JsonParser();
-    	String jsonString = new Gson().toJson(input, Map.class);
-    	JsonObject obj = parser.parse(jsonString).getAsJsonObject();
+    	Metrics metrics = Metrics.begin("GbifLambdaHandler", context);
+    	try {
+    		String response = handle(input, context, metrics);
+    		metrics.count(Metrics.Counter.BYTES_OUT, response.length());
+    		return response;
+    	} catch(RuntimeException e) {
+    		metrics.failed(e);
+    		throw e;
+    	} finally {
+    		metrics.end();
+    	}
+    }
+    
+    private String handle(Object input, Context context, Metrics metrics) {
+    	long start = System.nanoTime();
+    	final Deadline deadline = Deadline.fromContext(context);
+    	//reads the query string straight out of the incoming event map
+    	ApiGatewayEvent event = ApiGatewayEvent.fromObject(input);
+    	if(event.isBatch()) {
+    		metrics.record(Metrics.Phase.DECODE, start);
+    		return handleBatch(event.getBatch(), deadline);
+    	}
+    	final GbifQuery query = GbifQuery.from(event);
+    	metrics.record(Metrics.Phase.DECODE, start);
+    	metrics.property("shape", query.shape());
     	
-    	//test if map is empty, then return full database if so
-    	if(obj.get("params").getAsJsonObject().get("querystring").getAsJsonObject().size()==0) {
-    		System.out.println("in map-empty");
-    		Request<?> request = fullRequest();
-    		performSigningSteps(request);
-    		sendRequest(request);
-    		return responseValue.toString();
+    	//repeated (equivalent) queries are answered from the in-container cache
+    	String cacheKey = query.cacheKey();
+    	byte[] cached = cache.get(cacheKey);
+    	if(cached != null) {
+    		metrics.count(Metrics.Counter.CACHE_HIT, 1);
+    		return new String(cached, StandardCharsets.UTF_8);
+    	}
+    	if(backend.isLocal(query)) {
+    		return searchLocal(query);
+    	}
+    	if(query.isTrack()) {
+    		return track(query, cacheKey, deadline);
     	}
     	
-    	//creates a request from the queries provided (ex: matching Kingdoms and Sex)
-		Request<?> request = generateRequest(obj.get("params").getAsJsonObject().get("querystring"));
-		System.out.println("made request");
+    	String response;
+    	try {
+    		if(isPitWalk(query)) {
+    			//not shared: each walk has its own point in time, closed by its last page
+    			response = search(query, deadline);
+    		} else {
+    			//identical queries in flight share one ES call
+    			response = flights.execute(cacheKey, deadline, new SingleFlight.Call<String>() {
+    				@Override
+    				public String run() {
+    					return search(query, deadline);
+    				}
+    			});
+    		}
+    	} catch(RuntimeException e) {
+    		//while ES is unhealthy (breaker open, retries used up), a stale answer beats none
+    		byte[] stale = staleFallback(cacheKey, e);
+    		if(stale != null) {
+    			return new String(stale, StandardCharsets.UTF_8);
+    		}
+    		String local = backend.failover(query, e);
+    		if(local != null) {
+    			return toClient(local, query);
+    		}
+    		if(!Deadline.isTimeout(e)) {
+    			throw e;
+    		}
+    		return toClient(Deadline.TIMED_OUT_BODY, query);
+    	}
+    	start = System.nanoTime();
+		//judged on the response as ES wrote it: transcoded pages have their flags in a trailer
+		boolean partial = ResponseCache.isPartial(response);
+		if(query.isAggregate()) {
+			//counts only: the aggregations are boiled down to a compact count map
+			response = GbifFacets.toCounts(response, query);
+		} else {
+			response = toClient(response, query);
+		}
+		if(!isPitWalk(query)) {
+			cache.put(cacheKey, query.shape(), response.getBytes(StandardCharsets.UTF_8), partial);
+		}
+		metrics.record(Metrics.Phase.SERIALIZE, start);
+		return response;
+    }
+    
+    /*
+     * Builds, signs and sends the ES request of a query: the raw ES response
+     */
+    private static String search(GbifQuery query, Deadline deadline) {
+    	Request<?> request;
+    	String pitId = null;
+    	//test if map is empty, then return full database if so
+    	if(query.isEmpty()) {
+    		request = fullRequest(deadline);
+    	} else {
+    		//creates a request from the queries provided (ex: matching Kingdoms and Sex)
+    		pitId = pointInTime(query, deadline);
+    		request = generateRequest(query, pitId, deadline);
+    	}
 		
 		//signs the request using AWS4
 		performSigningSteps(request);
-		System.out.println("signed request");
 		
 		//make the request
-		sendRequest(request);
-		return responseValue.toString();
+		try {
+			return sendRequest(request, deadline);
+		} catch(RuntimeException e) {
+			closeUnusedPointInTime(query, pitId);
+			throw e;
+		}
+    }
+    
+    /**
+     * Answers a batch of queries with a single signed _msearch request.
+     * Invalid queries and queries ES fails on get their own error entry; cached ones are not sent.
+     * @param batch query string maps, at most GbifBatch.MAX_QUERIES
+     * @param deadline time budget for the whole batch
+     * @return {"responses": [...]} in the order of batch
+     */
+    static String handleBatch(List<Map<String, String>> batch, Deadline deadline) {
+    	if(batch.size() > GbifBatch.MAX_QUERIES) {
+    		throw new IllegalArgumentException("At most " + GbifBatch.MAX_QUERIES + " queries per batch");
+    	}
+    	Metrics metrics = Metrics.current();
+    	metrics.property("batch", String.valueOf(batch.size()));
+    	JsonParser parser = new JsonParser();
+    	JsonElement[] results = new JsonElement[batch.size()];
+    	List<GbifQuery> pending = new ArrayList<GbifQuery>();
+    	List<Integer> slots = new ArrayList<Integer>();
+    	for(int i = 0; i < batch.size(); i++) {
+    		GbifQuery query;
+    		try {
+    			query = GbifQuery.of(batch.get(i));
+    		} catch(IllegalArgumentException e) {
+    			results[i] = GbifBatch.error(400, e.getMessage());
+    			continue;
+    		}
+    		if(query.getFormat() != GbifHitsTranscoder.Format.ES) {
+    			//entries are JSON values of the batch response
+    			results[i] = GbifBatch.error(400, "format is not supported in batches");
+    			continue;
+    		}
+    		if(query.isTrack()) {
+    			//a scroll of its own, not one search of the _msearch
+    			results[i] = GbifBatch.error(400, "track is not supported in batches");
+    			continue;
+    		}
+    		byte[] cached = cache.get(query.cacheKey());
+    		if(cached != null) {
+    			metrics.count(Metrics.Counter.CACHE_HIT, 1);
+    			results[i] = parser.parse(new String(cached, StandardCharsets.UTF_8));
+    		} else if(backend.isLocal(query)) {
+    			results[i] = parser.parse(searchLocal(query));
+    		} else {
+    			pending.add(query);
+    			slots.add(i);
+    		}
+    	}
+    	
+    	if(!pending.isEmpty()) {
+    		Request<?> request = generateBatchRequest(pending, deadline);
+    		performSigningSteps(request);
+    		String body;
+    		try {
+    			body = sendRequest(request, deadline);
+    		} catch(RuntimeException e) {
+    			if(!ErrorClass.of(e).allowsFallback()) {
+    				throw e;
+    			}
+    			for(int j = 0; j < pending.size(); j++) {
+    				GbifQuery query = pending.get(j);
+    				byte[] stale = staleFallback(query.cacheKey(), e);
+    				String local = stale == null ? backend.failover(query, e) : null;
+    				results[slots.get(j)] = stale != null ? parser.parse(new String(stale, StandardCharsets.UTF_8))
+    						: local != null && query.isPaged() ? withNextCursor(parser.parse(local).getAsJsonObject(), query)
+    						: local != null ? parser.parse(local)
+    						: Deadline.isTimeout(e) ? GbifBatch.error(504, "The search did not complete in time")
+    						: GbifBatch.error(503, "Search is temporarily unavailable");
+    			}
+    			return GbifBatch.toResponse(results);
+    		}
+    		JsonArray responses = parser.parse(body).getAsJsonObject().getAsJsonArray("responses");
+    		for(int j = 0; j < pending.size(); j++) {
+    			GbifQuery query = pending.get(j);
+    			JsonObject response = j < responses.size() ? responses.get(j).getAsJsonObject() : null;
+    			if(response == null) {
+    				results[slots.get(j)] = GbifBatch.error(502, "No response for query");
+    			} else if(response.has("error")) {
+    				results[slots.get(j)] = response;
+    			} else {
+    				//cached in the same form as single queries (but for pages of a point in time, see isPitWalk)
+    				response.remove("status");
+    				boolean pit = response.has("pit_id");
+    				boolean partial = isPartial(response);
+    				if(query.isPaged()) {
+    					withNextCursor(response, query);
+    				} else if(query.isAggregate()) {
+    					response = GbifFacets.toCounts(response, query);
+    				}
+    				if(!pit) {
+    					cache.put(query.cacheKey(), query.shape(), response.toString().getBytes(StandardCharsets.UTF_8), partial);
+    				}
+    				results[slots.get(j)] = response;
+    			}
+    		}
+    	}
+    	return GbifBatch.toResponse(results);
     }
 	
     /**
      * Sets the headers and parameters for the AWS Request
      * content must contain the ElasticSearch query body (generated using generatePayload())
      * Sets the endpoint, headers, and parameters for query (if any)
-     * @param map Json mapping of query
+     * PIT searches (see pointInTime) go to /_search without an index.
+     * count=true queries go to /gbif/_count.
+     * @param query decoded query parameters
+     * @param pitId point in time to search in cursor mode, or null
+     * @param deadline time budget, passed on to ES as the search timeout; null for none
      * @return AWS Request object
      */
-	private static Request<?> generateRequest(JsonElement map) {
+	static Request<?> generateRequest(GbifQuery query, String pitId, Deadline deadline) {
+		long start = System.nanoTime();
 		Request<?> request = new DefaultRequest<Void>(service_name);
-		request.setContent(new ByteArrayInputStream(generatePayload(map).getBytes()));
+		//pure totals: _count skips the fetch phase and scoring altogether
+		String payload = query.isCount() ? GbifQueryCompiler.compileCount(query) : generatePayload(query, pitId, deadline);
+		request.setContent(HashedPayload.of(payload).newContent());
 		request.addHeader("Content-type", "application/json");
 		request.setEndpoint(URI.create(endpoint));
-		request.setResourcePath("/gbif/_search");
+		request.setResourcePath(query.isCount() ? "/gbif/_count" : pitId != null ? "/_search" : "/gbif/_search");
 		request.setHttpMethod(HttpMethodName.GET);
-		request.addParameter("pretty",pretty);
-		System.out.println(request.getResourcePath());
+		if(pretty) {
+			request.addParameter("pretty", "true");
+		}
+		Metrics.current().record(Metrics.Phase.COMPILE, start);
+		return request;
+	}
+	
+	/*
+	 * _msearch request for a batch: NDJSON body, one header and one search line per query
+	 */
+	static Request<?> generateBatchRequest(List<GbifQuery> queries, Deadline deadline) {
+		long start = System.nanoTime();
+		Request<?> request = new DefaultRequest<Void>(service_name);
+		request.setContent(HashedPayload.of(GbifBatch.toNdjson(queries, deadline)).newContent());
+		request.addHeader("Content-type", "application/x-ndjson");
+		request.setEndpoint(URI.create(endpoint));
+		request.setResourcePath("/_msearch");
+		request.setHttpMethod(HttpMethodName.POST);
+		Metrics.current().record(Metrics.Phase.COMPILE, start);
 		return request;
 	}
 	
 	/*
 	 * Similar to generateRequest, but makes a full request to the DB
 	 */
-	private static Request<?> fullRequest() {
+	static Request<?> fullRequest(Deadline deadline) {
 		Request<?> request = new DefaultRequest<Void>(service_name);
-		request.setContent(new ByteArrayInputStream("".getBytes()));
+		request.setContent(HashedPayload.EMPTY.newContent());
 		request.addHeader("Content-type", "application/json");
 		request.setEndpoint(URI.create(endpoint));
 		request.setResourcePath("/gbif/_search");
 		request.setHttpMethod(HttpMethodName.GET);
-		request.addParameter("pretty",pretty);
+		if(pretty) {
+			request.addParameter("pretty", "true");
+		}
 		request.addParameter("q", "*");
+		if(deadline != null) {
+			request.addParameter("timeout", deadline.esTimeout());
+		}
+		return request;
+	}
+	
+	/**
+	 * Answers a track query: the walk is shared by identical queries in flight and cached like
+	 * any response; while ES is unhealthy a stale or (failover) local track is returned instead.
+	 * @param query track query (see GbifTrack)
+	 * @param cacheKey its cache key
+	 * @param deadline time budget for the whole walk
+	 * @return the simplified track
+	 */
+	static String track(final GbifQuery query, String cacheKey, final Deadline deadline) {
+		String response;
+		try {
+			response = flights.execute(cacheKey, deadline, new SingleFlight.Call<String>() {
+				@Override
+				public String run() {
+					return walkTrack(query, deadline);
+				}
+			});
+		} catch(RuntimeException e) {
+			byte[] stale = staleFallback(cacheKey, e);
+			if(stale != null) {
+				return new String(stale, StandardCharsets.UTF_8);
+			}
+			String local = backend.failover(query, e);
+			if(local != null) {
+				return local;
+			}
+			if(!Deadline.isTimeout(e)) {
+				throw e;
+			}
+			//not even a first page in time
+			GbifTrack.Points none = new GbifTrack.Points();
+			none.setTimedOut();
+			return query.getTrack().toJson(query.get(GbifParam.INDIVIDUAL_ID), none);
+		}
+		//"timed_out" comes first in a track, as in ES responses
+		cache.put(cacheKey, query.shape(), response.getBytes(StandardCharsets.UTF_8), ResponseCache.isPartial(response));
+		return response;
+	}
+	
+	/*
+	 * Scrolls through the fixes of a track page by page (each page is read as it streams in, see
+	 * GbifTrack.ScrollPage), then simplifies it. Pages after the first are sent without retries: ES may
+	 * have moved the scroll on for a failed one. Running out of time after the first page returns
+	 * the part walked so far, flagged timed_out; other failures fail the walk. The scroll is cleared when done.
+	 */
+	static String walkTrack(GbifQuery query, Deadline deadline) {
+		long start = System.nanoTime();
+		GbifTrack.Points points = new GbifTrack.Points();
+		Request<?> request = new DefaultRequest<Void>(service_name);
+		request.setContent(HashedPayload.of(GbifQueryCompiler.compileTrack(query, deadline)).newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(URI.create(endpoint));
+		request.setResourcePath("/gbif/_search");
+		request.setHttpMethod(HttpMethodName.POST);
+		request.addParameter("scroll", GbifTrack.SCROLL_KEEP_ALIVE);
+		Metrics.current().record(Metrics.Phase.COMPILE, start);
+		String scrollId = null;
+		int pages = 0;
+		try {
+			while(true) {
+				performSigningSteps(request);
+				GbifTrack.ScrollPage page = new GbifTrack.ScrollPage(points);
+				try {
+					//a scroll moves on with each call: a continuation is sent once, as a retry could skip a page
+					EsClient client = EsClient.getInstance();
+					String next = (pages == 0 ? client.execute(request, page, new EsErrorHandler(service_name), deadline)
+							: client.executeOnce(request, page, new EsErrorHandler(service_name), deadline)).getAwsResponse();
+					scrollId = next != null ? next : scrollId;
+				} catch(RuntimeException e) {
+					if(pages == 0 || !Deadline.isTimeout(e)) {
+						throw e;
+					}
+					points.setTimedOut();
+					break;
+				}
+				pages++;
+				if(page.getHits() == 0 || points.isTimedOut() || points.isTruncated() || scrollId == null) {
+					break;
+				}
+				request = scrollRequest(scrollId);
+			}
+		} finally {
+			if(scrollId != null) {
+				clearScroll(scrollId);
+			}
+		}
+		Metrics.current().property("pages", String.valueOf(pages));
+		start = System.nanoTime();
+		String track = query.getTrack().toJson(query.get(GbifParam.INDIVIDUAL_ID), points);
+		Metrics.current().record(Metrics.Phase.SERIALIZE, start);
+		return track;
+	}
+	
+	/*
+	 * Next page of a scroll
+	 */
+	static Request<?> scrollRequest(String scrollId) {
+		JsonObject body = new JsonObject();
+		body.addProperty("scroll", GbifTrack.SCROLL_KEEP_ALIVE);
+		body.addProperty("scroll_id", scrollId);
+		Request<?> request = new DefaultRequest<Void>(service_name);
+		request.setContent(HashedPayload.of(body.toString()).newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(URI.create(endpoint));
+		request.setResourcePath("/_search/scroll");
+		request.setHttpMethod(HttpMethodName.POST);
 		return request;
 	}
 	
+	/*
+	 * Frees the scroll's resources on the cluster now rather than when it expires; best effort
+	 * (DELETE with the id in the path, as DELETE requests carry no body here)
+	 */
+	private static void clearScroll(String scrollId) {
+		Request<?> request = new DefaultRequest<Void>(service_name);
+		request.setContent(HashedPayload.EMPTY.newContent());
+		request.setEndpoint(URI.create(endpoint));
+		request.setResourcePath("/_search/scroll/" + scrollId);
+		request.setHttpMethod(HttpMethodName.DELETE);
+		try {
+			performSigningSteps(request);
+			sendRequest(request, Deadline.in(CLEAR_SCROLL_MS));
+		} catch(RuntimeException e) {
+			//expires with its keep alive anyway
+			Metrics.current().property("clearScroll", ErrorClass.of(e).name());
+		}
+	}
+	
+	/**
+	 * In cursor mode the first page opens a point in time (if GBIF_USE_PIT is set), so that all pages
+	 * of the walk see the same data; later pages reuse the one carried by their cursor.
+	 * @return the point in time query searches, or null
+	 */
+	static String pointInTime(GbifQuery query, Deadline deadline) {
+		if(!query.isPaged()) {
+			return null;
+		}
+		return query.getCursor() != null ? query.getCursor().getPitId() : (usePit ? openPointInTime(deadline) : null);
+	}
+	
+	/**
+	 * Pages of a point-in-time walk are neither cached nor shared with identical queries in flight:
+	 * their cursor is only good while the PIT is kept alive (GBIF_PIT_KEEP_ALIVE), and the last page
+	 * of a walk closes it.
+	 * @return true if query searches (or opens) a point in time
+	 */
+	static boolean isPitWalk(GbifQuery query) {
+		if(!query.isPaged()) {
+			return false;
+		}
+		return query.getCursor() != null ? query.getCursor().getPitId() != null : usePit;
+	}
+	
+	/*
+	 * Opens a point in time on the gbif index so that all pages of a cursor walk see the same data
+	 */
+	static String openPointInTime(Deadline deadline) {
+		Request<?> request = new DefaultRequest<Void>(service_name);
+		request.setContent(HashedPayload.EMPTY.newContent());
+		request.setEndpoint(URI.create(endpoint));
+		request.setResourcePath("/gbif/_pit");
+		request.setHttpMethod(HttpMethodName.POST);
+		request.addParameter("keep_alive", GbifQueryCompiler.PIT_KEEP_ALIVE);
+		performSigningSteps(request);
+		return new JsonParser().parse(sendRequest(request, deadline)).getAsJsonObject().get("id").getAsString();
+	}
+	
+	/**
+	 * Closes a point in time whose walk has ended (its last page is out) rather than leaving it to
+	 * expire; best effort, like clearScroll (DELETE /_pit carries the id in its body).
+	 * @param pitId point in time to close; nothing is done for null
+	 */
+	static void closePointInTime(String pitId) {
+		if(pitId == null) {
+			return;
+		}
+		JsonObject body = new JsonObject();
+		body.addProperty("id", pitId);
+		Request<?> request = new DefaultRequest<Void>(service_name);
+		request.setContent(HashedPayload.of(body.toString()).newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(URI.create(endpoint));
+		request.setResourcePath("/_pit");
+		request.setHttpMethod(HttpMethodName.DELETE);
+		try {
+			performSigningSteps(request);
+			EsClient.getInstance().deleteWithBody(request, Deadline.in(CLEAR_SCROLL_MS));
+		} catch(RuntimeException e) {
+			//expires with its keep alive anyway
+			Metrics.current().property("closePit", ErrorClass.of(e).name());
+		}
+	}
+	
+	/**
+	 * Closes the point in time opened for the first page of a walk when that page failed:
+	 * no client holds a cursor for it. A PIT from a cursor is left to its keep alive, so the
+	 * client can retry the page.
+	 * @param query the query that failed
+	 * @param pitId the point in time it searched, or null
+	 */
+	static void closeUnusedPointInTime(GbifQuery query, String pitId) {
+		if(query.getCursor() == null) {
+			closePointInTime(pitId);
+		}
+	}
+	
 	/**
 	 * Generates the ElasticSearch Query correlating to the HTTP Get query parameters
-	 * @param map query string mapping as key, value pairs
+	 * (see GbifQueryCompiler: exact-match parameters are filters, names are scored matches)
+	 * @param query query string parameters as key, value pairs
+	 * @param pitId point in time to search in cursor mode, or null
+	 * @param deadline time budget of the search, or null
 	 * @return JSON formatted string in format of an ES query -> to be used as request content
 	 */
-	private static String generatePayload(JsonElement map) {
-		StringBuilder sb = new StringBuilder();
-		
-		for(Map.Entry<String, JsonElement> entry: map.getAsJsonObject().entrySet()) {
-			/*
-			 * If a query includes a "sex" query, make sure to explicitly look for male vs female
-			 * because "male" can match with both "female" and "male" in ES.
-			 */
-			if(entry.getKey() == "sex") {		
-				String temp = "{\"term\" : { \"" + entry.getKey() + "\":\"" + entry.getValue() + "\"},";
-				sb.append(temp);
-				continue;
-			}
-			String temp = "{\"match\": {";
-			sb.append(temp);
-			temp = "\"" + entry.getKey() + "\":";
-			sb.append(temp);
-			temp =  entry.getValue() + "}},";
-			sb.append(temp);
+	static String generatePayload(GbifQuery query, String pitId, Deadline deadline) {
+		return GbifQueryCompiler.compile(query, pitId, deadline);
+	}
+	
+	/**
+	 * @param cacheKey key of the query that failed
+	 * @param failure what the ES call threw
+	 * @return an expired cached response if failure means ES is unhealthy (or out of time), otherwise null
+	 */
+	static byte[] staleFallback(String cacheKey, RuntimeException failure) {
+		if(!ErrorClass.of(failure).allowsFallback()) {
+			return null;
 		}
-		
-		sb.deleteCharAt(sb.toString().lastIndexOf(','));
-		String json = "{\"query\": {"+
-								"\"bool\": {"+ 
-									"\"should\": [" +
-										sb.toString() +
-							"]}"+
-						"}}";
-		System.out.println(json);
-		return json;
+		byte[] stale = cache.getStale(cacheKey);
+		if(stale != null) {
+			Metrics.current().property("cache", "stale");
+		}
+		return stale;
+	}
+	
+	/*
+	 * Answers a query from the in-memory index; not cached, it is as fast as the cache
+	 */
+	static String searchLocal(GbifQuery query) {
+		Metrics.current().property("backend", "local");
+		String response = backend.searchLocal(query);
+		return query.isAggregate() || query.isTrack() ? response : toClient(response, query);
+	}
+	
+	/**
+	 * Puts a search response in the form the client asked for: transcoded for format=json/ndjson
+	 * (the trailer holds the cursor), or as is with the next cursor added to a page.
+	 * @param response ES search response, or an ES-shaped one (local index, Deadline.TIMED_OUT_BODY)
+	 * @param query the query (not a facets or count query) that produced it
+	 * @return the response body for the client
+	 */
+	static String toClient(String response, GbifQuery query) {
+		GbifHitsTranscoder transcoder = GbifHitsTranscoder.forQuery(query);
+		if(transcoder != null) {
+			String transcoded = transcoder.transcode(response);
+			closePointInTime(transcoder.getFinishedPitId());
+			return transcoded;
+		}
+		return query.isPaged() ? withNextCursor(response, query) : response;
+	}
+	
+	/**
+	 * Adds the opaque cursor of the next page ("cursor", null on the last page) to a page of hits.
+	 * Pages are bounded by the maximum page size, so parsing one is cheap.
+	 * The last page of a point-in-time walk closes its PIT.
+	 * @param response ES search response
+	 * @param query the paged query that produced it
+	 * @return the response with the cursor added
+	 */
+	static String withNextCursor(String response, GbifQuery query) {
+		JsonObject json = new JsonParser().parse(response).getAsJsonObject();
+		return withNextCursor(json, query).toString();
+	}
+	
+	static JsonObject withNextCursor(JsonObject response, GbifQuery query) {
+		GbifCursor next = GbifCursor.next(response, query.getPageSize());
+		response.addProperty("cursor", next == null ? null : next.encode());
+		if(next == null && response.has("pit_id")) {
+			closePointInTime(response.get("pit_id").getAsString());
+		}
+		return response;
+	}
+
+	/*
+	 * Partial ES result (search timeout or terminate_after hit) of an _msearch, not to be cached
+	 */
+	static boolean isPartial(JsonObject response) {
+		return isTrue(response, "timed_out") || isTrue(response, "terminated_early");
+	}
+	
+	private static boolean isTrue(JsonObject response, String flag) {
+		JsonElement value = response.get(flag);
+		return value != null && value.isJsonPrimitive() && value.getAsBoolean();
 	}
 	
 	/**
 	 * Performs AWS4 Signing steps according to AWS ElasticSearch/API Gateway Best Practices
-	 * Uses credentials stored in Environment Variables to authenticate as an authorized IAM user 
+	 * Uses credentials stored in Environment Variables to authenticate as an authorized IAM user
+	 * (cached by the shared EsSigner, so the provider chain is not walked per request)
 	 * @param requestToSign request object to be signed
 	 * @return signed request (AWS Request Object)
 	 */
-	private static Request<?> performSigningSteps(Request<?> requestToSign) {
-		AWS4Signer signer = new AWS4Signer();
-		signer.setServiceName(service_name);
-		signer.setRegionName(regionName);
-		
-		//get credentials from environment
-		AWSCredentialsProvider credsProvider = new DefaultAWSCredentialsProviderChain();
-		AWSCredentials creds = credsProvider.getCredentials();
-		
-		signer.sign(requestToSign, creds);
-		return requestToSign;
+	static Request<?> performSigningSteps(Request<?> requestToSign) {
+		long start = System.nanoTime();
+		Request<?> signed = EsSigner.getInstance(service_name, regionName).sign(requestToSign);
+		Metrics.current().record(Metrics.Phase.SIGN, start);
+		return signed;
 	}
 	
 	/**
-	 * Uses an AmazonHttpClient to execute a request (query) on the host (ES Cluster)
+	 * Executes a request (query) on the host (ES Cluster) over the shared, pooled EsClient
 	 * @param request
+	 * @param deadline the call is aborted once it passes
+	 * @return the response body, for this call only (concurrent requests each get their own)
 	 */
-	private static void sendRequest(Request<?> request) {
-		ExecutionContext context = new ExecutionContext(true);
-		
-		ClientConfiguration clientConfiguration = new ClientConfiguration();
-		AmazonHttpClient client = new AmazonHttpClient(clientConfiguration);
-		
-		MyHttpResponseHandler<Void> responseHandler = new MyHttpResponseHandler<Void>();
-		MyErrorHandler errorHandler = new MyErrorHandler();
-		Response<Void> response = client.execute(request, responseHandler, errorHandler, context);
+	private static String sendRequest(Request<?> request, Deadline deadline) {
+		BodyResponseHandler responseHandler = new BodyResponseHandler();
+		EsErrorHandler errorHandler = new EsErrorHandler(service_name);
+		return EsClient.getInstance().execute(request, responseHandler, errorHandler, deadline).getAwsResponse();
 	}
 	
 	/*
@@ -212,40 +691,5 @@ public class GbifLambdaHandler implements RequestHandler<Object, String> {
 		String x = sb.toString();
 		return x;
 	}
-	
-	public static class MyHttpResponseHandler<T> implements HttpResponseHandler<AmazonWebServiceResponse<T>> {
-		
-		@Override
-		public AmazonWebServiceResponse<T> handle(com.amazonaws.http.HttpResponse response)	throws Exception {
-			InputStream responseStream = response.getContent();
-			String responseString = convertStreamToString(responseStream);
-			responseValue = responseString;
-			
-			
-			AmazonWebServiceResponse<T> awsResponse = new AmazonWebServiceResponse<T>();
-			return awsResponse;
-		}
-		
-		@Override
-		public boolean needsConnectionLeftOpen() {
-			return false;
-		}
-		
-	}
-	
-	public static class MyErrorHandler implements HttpResponseHandler<AmazonServiceException> {
-		@Override
-		public AmazonServiceException handle(com.amazonaws.http.HttpResponse response) throws Exception {
-			System.out.println("In error handler!");
-			AmazonServiceException ase = new AmazonServiceException("!!Service Exception!!");
-			ase.setStatusCode(response.getStatusCode());
-			ase.setErrorCode(response.getStatusText());
-			return ase;
-		}
-		
-		public boolean needsConnectionLeftOpen() {
-			return false;
-		}
-	}
 
 }
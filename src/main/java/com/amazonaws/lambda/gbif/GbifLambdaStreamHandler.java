@@ -0,0 +1,202 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.Request;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.EsErrorHandler;
+import com.amazonaws.lambda.es.Metrics;
+import com.amazonaws.lambda.es.ProxyResponse;
+import com.amazonaws.lambda.es.ResponseCache;
+import com.amazonaws.lambda.es.StreamingResponseHandler;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+
+/**
+ * Streaming variant of {@link GbifLambdaHandler}: same query semantics, but the ES response body
+ * is copied directly into the Lambda output stream instead of being read into a String,
+ * stored and serialized again. Heap use stays flat whatever the number of hits.
+ * The output is the raw ES JSON document (not a JSON-encoded string), or with format=json/ndjson
+ * the hits' _source only, transcoded as the response streams through (see {@link GbifHitsTranscoder}).
+ *
+ * Lambda proxy events get a proxy response instead, gzip-encoded when the client accepts it
+ * (see {@link ProxyResponse}); the body has to be complete before it can be wrapped.
+ * Calls run under the invocation's {@link Deadline}: if ES has not answered in time,
+ * {@link Deadline#TIMED_OUT_BODY} is written instead (unless part of the body is already out);
+ * while ES is unhealthy an expired cached response is preferred to either, then (GBIF_BACKEND=failover)
+ * the in-memory index. Queries GbifBackend answers locally never reach ES.
+ * Every invocation writes one metrics line, as GbifLambdaHandler's do (see {@link Metrics}).
+ */
+public class GbifLambdaStreamHandler implements RequestStreamHandler {
+
+	static {
+		GbifPrimer.init();
+	}
+
+	/**
+	 * @param input = API Request event (same shape as GbifLambdaHandler's input)
+	 * @param output = receives the ES response body
+	 * @param context = context of the environment and execution
+	 */
+	@Override
+	public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+		final Metrics metrics = Metrics.begin("GbifLambdaStreamHandler", context);
+		try {
+			handle(input, new FilterOutputStream(output) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					metrics.count(Metrics.Counter.BYTES_OUT, len);
+				}
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					metrics.count(Metrics.Counter.BYTES_OUT, 1);
+				}
+			}, context, metrics);
+		} catch (RuntimeException | IOException e) {
+			metrics.failed(e);
+			throw e;
+		} finally {
+			metrics.end();
+		}
+	}
+
+	private void handle(InputStream input, OutputStream output, Context context, Metrics metrics) throws IOException {
+		long start = System.nanoTime();
+		Deadline deadline = Deadline.fromContext(context);
+		ApiGatewayEvent event = ApiGatewayEvent.fromStream(input);
+		if (event.isBatch()) {
+			metrics.record(Metrics.Phase.DECODE, start);
+			write(event, GbifHitsTranscoder.Format.ES, GbifLambdaHandler.handleBatch(event.getBatch(), deadline).getBytes(StandardCharsets.UTF_8), output);
+			return;
+		}
+		GbifQuery query = GbifQuery.from(event);
+		metrics.record(Metrics.Phase.DECODE, start);
+		metrics.property("shape", query.shape());
+
+		//shares GbifLambdaHandler's cache: hits are written out without touching ES
+		String cacheKey = query.cacheKey();
+		byte[] cached = GbifLambdaHandler.cache.get(cacheKey);
+		if (cached != null) {
+			metrics.count(Metrics.Counter.CACHE_HIT, 1);
+			write(event, query.getFormat(), cached, output);
+			return;
+		}
+		if (GbifLambdaHandler.backend.isLocal(query)) {
+			write(event, query.getFormat(), GbifLambdaHandler.searchLocal(query).getBytes(StandardCharsets.UTF_8), output);
+			return;
+		}
+		if (query.isTrack()) {
+			//walked page by page and simplified: small by the time it is written
+			write(event, query.getFormat(), GbifLambdaHandler.track(query, cacheKey, deadline).getBytes(StandardCharsets.UTF_8), output);
+			return;
+		}
+
+		StreamingResponseHandler<Void> responseHandler = null;
+		String pitId = null;
+		try {
+			//an empty querystring returns the full database, as in GbifLambdaHandler
+			Request<?> request;
+			if (query.isEmpty()) {
+				request = GbifLambdaHandler.fullRequest(deadline);
+			} else {
+				pitId = GbifLambdaHandler.pointInTime(query, deadline);
+				request = GbifLambdaHandler.generateRequest(query, pitId, deadline);
+			}
+			GbifLambdaHandler.performSigningSteps(request);
+
+			//a page is bounded by GBIF_MAX_PAGE_SIZE: buffer it to add the next cursor, then write it out
+			//(transcoded pages carry their cursor in the trailer and stream); counts are small and turned
+			//into the count map; proxy responses are buffered as well, to be wrapped (and maybe compressed)
+			GbifHitsTranscoder transcoder = GbifHitsTranscoder.forQuery(query);
+			if ((query.isPaged() && transcoder == null) || query.isAggregate() || event.isProxy()) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				EsClient.getInstance().execute(request, new StreamingResponseHandler<Void>(buffer, transcoder),
+						new EsErrorHandler(GbifLambdaHandler.service_name), deadline);
+				respond(event, query, cacheKey, buffer.toByteArray(), transcoder, output);
+				finish(transcoder);
+				return;
+			}
+
+			//the response is recorded while it streams out, unless it is too big to cache
+			//(or is a page of a point-in-time walk, see GbifLambdaHandler.isPitWalk)
+			ResponseCache.Recorder recorder = GbifLambdaHandler.cache.record(output);
+			responseHandler = new StreamingResponseHandler<Void>(recorder, transcoder);
+			EsClient.getInstance().execute(request, responseHandler, new EsErrorHandler(GbifLambdaHandler.service_name), deadline);
+			if (!GbifLambdaHandler.isPitWalk(query)) {
+				//a transcoded page has its timed_out flag in the trailer: only the transcoder knows
+				recorder.commit(cacheKey, query.shape(), transcoder != null ? transcoder.isPartial() : recorder.isPartial());
+			}
+			output.flush();
+			finish(transcoder);
+		} catch (RuntimeException e) {
+			GbifLambdaHandler.closeUnusedPointInTime(query, pitId);
+			if (responseHandler != null && responseHandler.getBytesCopied() > 0) {
+				throw e;
+			}
+			byte[] stale = GbifLambdaHandler.staleFallback(cacheKey, e);
+			if (stale != null) {
+				write(event, query.getFormat(), stale, output);
+				return;
+			}
+			String local = GbifLambdaHandler.backend.failover(query, e);
+			if (local != null) {
+				write(event, query.getFormat(), GbifLambdaHandler.toClient(local, query).getBytes(StandardCharsets.UTF_8), output);
+				return;
+			}
+			if (!Deadline.isTimeout(e)) {
+				throw e;
+			}
+			write(event, query.getFormat(), GbifLambdaHandler.toClient(Deadline.TIMED_OUT_BODY, query).getBytes(StandardCharsets.UTF_8), output);
+		}
+	}
+
+	/*
+	 * Writes a buffered response (an ES page gets its next cursor first, counts become the count map)
+	 * and caches it, unless it is partial (transcoder: the one the body went through, if any)
+	 */
+	private static void respond(ApiGatewayEvent event, GbifQuery query, String cacheKey, byte[] body,
+			GbifHitsTranscoder transcoder, OutputStream output) throws IOException {
+		long start = System.nanoTime();
+		boolean partial = transcoder != null ? transcoder.isPartial() : ResponseCache.isPartial(body);
+		if (query.isPaged() && query.getFormat() == GbifHitsTranscoder.Format.ES) {
+			body = GbifLambdaHandler.withNextCursor(new String(body, StandardCharsets.UTF_8), query).getBytes(StandardCharsets.UTF_8);
+		} else if (query.isAggregate()) {
+			body = GbifFacets.toCounts(new String(body, StandardCharsets.UTF_8), query).getBytes(StandardCharsets.UTF_8);
+		}
+		Metrics.current().record(Metrics.Phase.SERIALIZE, start);
+		write(event, query.getFormat(), body, output);
+		if (!GbifLambdaHandler.isPitWalk(query)) {
+			GbifLambdaHandler.cache.put(cacheKey, query.shape(), body, partial);
+		}
+	}
+
+	/*
+	 * A transcoded last page closes its point in time (ES pages do so as their cursor is added)
+	 */
+	private static void finish(GbifHitsTranscoder transcoder) {
+		if (transcoder != null) {
+			GbifLambdaHandler.closePointInTime(transcoder.getFinishedPitId());
+		}
+	}
+
+	private static void write(ApiGatewayEvent event, GbifHitsTranscoder.Format format, byte[] body, OutputStream output) throws IOException {
+		long start = System.nanoTime();
+		if (event.isProxy()) {
+			ProxyResponse.write(output, 200, body, ProxyResponse.shouldGzip(event, body.length), format.contentType());
+		} else {
+			output.write(body);
+		}
+		output.flush();
+		Metrics.current().record(Metrics.Phase.SERIALIZE, start);
+	}
+}
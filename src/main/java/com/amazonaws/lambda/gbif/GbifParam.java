@@ -0,0 +1,149 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Query string parameters accepted by the gbif API, with the ES field each one targets and
+ * how it is matched. Parameter names are matched case-insensitively; some have aliases (e.g. sciName).
+ * Exact-match parameters go into the bool filter context (cached by ES, not scored);
+ * only the free-text names are scored with match.
+ */
+public enum GbifParam {
+	KEY(Clause.TERM, Normalization.NUMBER, "key", "key"),
+	SEX(Clause.TERM, Normalization.UPPER, "sex.keyword", "sex"),
+	SCIENTIFIC_NAME(Clause.MATCH, Normalization.NONE, "scientificName", "scientificName", "sciName"),
+	KINGDOM(Clause.MATCH, Normalization.NONE, "kingdom", "kingdom"),
+	PHYLUM(Clause.MATCH, Normalization.NONE, "phylum", "phylum"),
+	CLASS(Clause.MATCH, Normalization.NONE, "class", "class"),
+	ORDER(Clause.MATCH, Normalization.NONE, "order", "order"),
+	FAMILY(Clause.MATCH, Normalization.NONE, "family", "family"),
+	GENUS(Clause.MATCH, Normalization.NONE, "genus", "genus"),
+	SPECIES(Clause.MATCH, Normalization.NONE, "species", "species"),
+	COUNTRY(Clause.MATCH, Normalization.NONE, "country", "country"),
+	COUNTRY_CODE(Clause.TERM, Normalization.UPPER, "countryCode.keyword", "countryCode"),
+	VERNACULAR_NAME(Clause.MATCH, Normalization.NONE, "vernacularName", "vernacularName"),
+	YEAR(Clause.RANGE, Normalization.NUMBER_RANGE, "year", "year"),
+	RIGHTS_HOLDER(Clause.MATCH, Normalization.NONE, "rightsHolder", "rightsHolder"),
+	INDIVIDUAL_ID(Clause.TERM, Normalization.NONE, "individualID.keyword", "individualID");
+
+	/**
+	 * How a parameter is compiled into the ES bool query.
+	 */
+	public enum Clause {
+		/** exact value, filter context */
+		TERM,
+		/** single value as term, span (from-to) as range; filter context */
+		RANGE,
+		/** analyzed free text, scored */
+		MATCH
+	}
+
+	/**
+	 * How raw values are canonicalized before use (and before comparing queries).
+	 */
+	enum Normalization {
+		NONE,
+		UPPER,
+		NUMBER,
+		NUMBER_RANGE
+	}
+
+	private static final Map<String, GbifParam> byName = new HashMap<String, GbifParam>();
+	static {
+		for (GbifParam param : values()) {
+			for (String name : param.names) {
+				byName.put(name.toLowerCase(Locale.ROOT), param);
+			}
+		}
+	}
+
+	private final Clause clause;
+	private final Normalization normalization;
+	private final String field;
+	private final String[] names;
+
+	private GbifParam(Clause clause, Normalization normalization, String field, String... names) {
+		this.clause = clause;
+		this.normalization = normalization;
+		this.field = field;
+		this.names = names;
+	}
+
+	/**
+	 * @return canonical query string name of the parameter
+	 */
+	public String paramName() {
+		return names[0];
+	}
+
+	/**
+	 * @return ES field the parameter is matched against
+	 */
+	public String field() {
+		return field;
+	}
+
+	public Clause clause() {
+		return clause;
+	}
+
+	/**
+	 * @return true if the parameter is an exact match (filter context)
+	 */
+	public boolean isFilter() {
+		return clause != Clause.MATCH;
+	}
+
+	/**
+	 * @return true if values are (validated) whole numbers
+	 */
+	public boolean isNumeric() {
+		return normalization == Normalization.NUMBER || normalization == Normalization.NUMBER_RANGE;
+	}
+
+	/**
+	 * Canonicalizes a raw query string value: keyword codes are upper-cased, numbers validated.
+	 * @param value = trimmed, non-empty value
+	 * @throws IllegalArgumentException if the value is not valid for this parameter
+	 */
+	String normalize(String value) {
+		switch (normalization) {
+		case UPPER:
+			return value.toUpperCase(Locale.ROOT);
+		case NUMBER:
+			return String.valueOf(parseNumber(value));
+		case NUMBER_RANGE:
+			int dash = value.indexOf('-');
+			if (dash < 0) {
+				return String.valueOf(parseNumber(value));
+			}
+			String from = value.substring(0, dash).trim();
+			String to = value.substring(dash + 1).trim();
+			if (from.isEmpty() && to.isEmpty()) {
+				throw new IllegalArgumentException("Invalid range for " + paramName() + ": " + value);
+			}
+			return (from.isEmpty() ? "" : String.valueOf(parseNumber(from))) + "-"
+					+ (to.isEmpty() ? "" : String.valueOf(parseNumber(to)));
+		default:
+			return value;
+		}
+	}
+
+	private long parseNumber(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + paramName() + ": " + value);
+		}
+	}
+
+	/**
+	 * @param name = query string parameter name
+	 * @return matching parameter, or null if the API does not support it
+	 */
+	public static GbifParam forName(String name) {
+		return byName.get(name.toLowerCase(Locale.ROOT));
+	}
+}
@@ -0,0 +1,174 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.crac.Core;
+import org.crac.Resource;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.EsErrorHandler;
+import com.amazonaws.lambda.es.EsSigner;
+import com.amazonaws.lambda.es.HashedPayload;
+import com.amazonaws.lambda.es.ProxyResponse;
+import com.amazonaws.lambda.es.Settings;
+import com.amazonaws.lambda.es.StreamingResponseHandler;
+
+/**
+ * Moves first-request work into the container's init phase: runs a representative query through
+ * event decoding, the query compiler, AWS4 signing, response rewriting (cursor, counts, format)
+ * and proxy wrapping, so that their classes are loaded and initialized before the first invocation.
+ * Init is not billed up to its limit, and with SnapStart it happens once, before the snapshot.
+ *
+ * With GBIF_PRIME_CONNECT (default: only when running in Lambda) it also fetches the signer's
+ * credentials and sends one signed GET / to the domain, leaving a warm pooled connection.
+ * Failures of that call are ignored; the first invocation simply connects itself.
+ *
+ * As a CRaC resource (SnapStart) it primes without connecting before the checkpoint and drops the
+ * pooled connections, which would not survive the restore; after the restore it reloads the
+ * credentials, if any were loaded, and connects. GBIF_PRIME=false turns priming off.
+ */
+final class GbifPrimer implements Resource {
+
+	public static final String PRIME = "GBIF_PRIME";
+	public static final String PRIME_CONNECT = "GBIF_PRIME_CONNECT";
+	public static final String PRIME_TIMEOUT_MS = "GBIF_PRIME_TIMEOUT_MS";
+
+	private static final boolean enabled = Settings.getBoolean(PRIME, true);
+	private static final boolean connect = Settings.getBoolean(PRIME_CONNECT, System.getenv("AWS_LAMBDA_FUNCTION_NAME") != null);
+	//a SnapStart init ends in a snapshot: connections and credentials are for after the restore
+	private static final boolean snapStart = "snap-start".equals(System.getenv("AWS_LAMBDA_INITIALIZATION_TYPE"));
+	private static final long timeoutMillis = Settings.getLong(PRIME_TIMEOUT_MS, 1000L);
+	private static final AtomicBoolean primed = new AtomicBoolean();
+	//the CRaC context only keeps weak references to its resources
+	private static GbifPrimer resource;
+
+	//a page of one hit, as ES returns it
+	private static final String SAMPLE_RESPONSE = "{\"took\":3,\"timed_out\":false,"
+			+ "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+			+ "\"hits\":{\"total\":1,\"max_score\":null,\"hits\":[{\"_index\":\"gbif\",\"_type\":\"_doc\",\"_id\":\"1\","
+			+ "\"_score\":null,\"_source\":{\"gbifID\":\"1\",\"kingdom\":\"Animalia\",\"country\":\"Belgium\",\"year\":2013},"
+			+ "\"sort\":[\"1\"]}]},"
+			+ "\"aggregations\":{\"country\":{\"buckets\":[{\"key\":\"Belgium\",\"doc_count\":1}]}}}";
+	private static final String SAMPLE_EVENT = "{\"queryStringParameters\":{\"kingdom\":\"Animalia\",\"country\":\"Belgium\"},"
+			+ "\"headers\":{\"Accept-Encoding\":\"gzip\"},\"httpMethod\":\"GET\"}";
+	//signs the sample request: the provider chain is only walked when connecting
+	private static final AWSStaticCredentialsProvider SAMPLE_CREDENTIALS = new AWSStaticCredentialsProvider(
+			new BasicAWSCredentials("AKIDEXAMPLE", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY"));
+
+	private GbifPrimer() {
+	}
+
+	/**
+	 * Primes once per container (GBIF_PRIME), and registers for checkpoint/restore notifications.
+	 * Called from the handlers' static initializers.
+	 */
+	static void init() {
+		if (!enabled || !primed.compareAndSet(false, true)) {
+			return;
+		}
+		resource = new GbifPrimer();
+		Core.getGlobalContext().register(resource);
+		prime(connect && !snapStart);
+	}
+
+	/**
+	 * Runs the sample query through the request and response path; nothing is cached or counted
+	 * (no invocation is under way, so Metrics records nothing).
+	 * @param connect = also send one signed request to the domain, warming the pool and the credentials
+	 */
+	static void prime(boolean connect) {
+		try {
+			ApiGatewayEvent.fromStream(new ByteArrayInputStream(SAMPLE_EVENT.getBytes(StandardCharsets.UTF_8)));
+			ApiGatewayEvent event = ApiGatewayEvent.fromObject(sampleEvent());
+			GbifQuery query = GbifQuery.from(event);
+			query.cacheKey();
+			query.shape();
+			Map<String, String> paged = new LinkedHashMap<String, String>(event.getQuerystring());
+			paged.put(GbifQuery.SIZE, "1");
+			paged.put(GbifQuery.FORMAT, "ndjson");
+			GbifQuery page = GbifQuery.of(paged);
+			Map<String, String> facets = new LinkedHashMap<String, String>(event.getQuerystring());
+			facets.put(GbifQuery.FACETS, "country");
+			GbifQuery counts = GbifQuery.of(facets);
+
+			new EsSigner(GbifLambdaHandler.service_name, GbifLambdaHandler.regionName, SAMPLE_CREDENTIALS)
+					.sign(GbifLambdaHandler.generateRequest(query, null, Deadline.in(timeoutMillis)));
+			GbifLambdaHandler.generatePayload(page, null, null);
+			GbifQueryCompiler.compileCount(GbifQuery.of(event.getQuerystring()));
+
+			GbifLambdaHandler.toClient(SAMPLE_RESPONSE, query);
+			GbifLambdaHandler.toClient(SAMPLE_RESPONSE, page);
+			GbifLambdaHandler.withNextCursor(SAMPLE_RESPONSE, GbifQuery.of(Collections.singletonMap(GbifQuery.SIZE, "1")));
+			GbifFacets.toCounts(SAMPLE_RESPONSE, counts);
+			ProxyResponse.write(new ByteArrayOutputStream(), 200, SAMPLE_RESPONSE.getBytes(StandardCharsets.UTF_8), true,
+					page.getFormat().contentType());
+
+			EsClient.getInstance();
+		} catch (IOException | RuntimeException e) {
+			//priming is an optimization: whatever fails here fails again, and is reported, on first use
+			return;
+		}
+		if (connect && GbifLambdaHandler.backend.getMode() != GbifBackend.Mode.LOCAL) {
+			connect();
+		}
+	}
+
+	/*
+	 * One signed GET / (cluster info, no index touched), answered into a sink
+	 */
+	private static void connect() {
+		try {
+			Request<?> request = new DefaultRequest<Void>(GbifLambdaHandler.service_name);
+			request.setContent(HashedPayload.EMPTY.newContent());
+			request.setEndpoint(URI.create(GbifLambdaHandler.endpoint));
+			request.setResourcePath("/");
+			request.setHttpMethod(HttpMethodName.GET);
+			GbifLambdaHandler.performSigningSteps(request);
+			EsClient.getInstance().execute(request, new StreamingResponseHandler<Void>(new ByteArrayOutputStream()),
+					new EsErrorHandler(GbifLambdaHandler.service_name), Deadline.in(timeoutMillis));
+		} catch (RuntimeException e) {
+			//no credentials, no access to /, domain down: the first invocation will tell
+		}
+	}
+
+	//an API Gateway proxy event, as the runtime hands it to a RequestHandler
+	private static Map<String, Object> sampleEvent() {
+		Map<String, Object> querystring = new LinkedHashMap<String, Object>();
+		querystring.put("kingdom", "Animalia");
+		querystring.put("country", "Belgium");
+		Map<String, Object> event = new LinkedHashMap<String, Object>();
+		event.put("queryStringParameters", querystring);
+		event.put("httpMethod", "GET");
+		return event;
+	}
+
+	@Override
+	public void beforeCheckpoint(org.crac.Context<? extends Resource> context) throws Exception {
+		prime(false);
+		//sockets do not survive a restore
+		EsClient.getInstance().closeIdleConnections();
+	}
+
+	@Override
+	public void afterRestore(org.crac.Context<? extends Resource> context) throws Exception {
+		EsSigner.refreshSharedCredentials();
+		if (connect) {
+			connect();
+		}
+	}
+}
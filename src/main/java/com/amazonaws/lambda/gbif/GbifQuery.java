@@ -0,0 +1,458 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * Immutable, typed view of one gbif API query: supported parameters mapped to their trimmed,
+ * normalized values (see {@link GbifParam}), plus the paging options. Built straight from the
+ * decoded query string, without going through JSON.
+ *
+ * Paging: size=N (at most GBIF_MAX_PAGE_SIZE) and/or cursor=... switch the query to cursor mode,
+ * where hits are sorted on {@link GbifCursor#SORT_FIELD} and each page returns the next cursor.
+ * Projection: fields=... limits the _source fields returned per hit (see {@link GbifFields}).
+ * Counts: facets=... (and facetSize=N) returns counts per value instead of hits (see {@link GbifFacets});
+ * count=true returns the number of matching occurrences only.
+ * Geo: bbox=..., tile=..., near=...&radius=... filter on location; precision=N returns counts per
+ * grid cell instead of hits (see {@link GbifGeo}).
+ * Track: individualID=...&track=true returns the simplified path of one animal (tolerance=N, points=N;
+ * see {@link GbifTrack}).
+ * Output: format=json or format=ndjson returns the hits' _source only (see {@link GbifHitsTranscoder}).
+ */
+public final class GbifQuery {
+
+	public static final String SIZE = "size";
+	public static final String CURSOR = "cursor";
+	public static final String FIELDS = "fields";
+	public static final String FACETS = "facets";
+	public static final String FACET_SIZE = "facetSize";
+	public static final String COUNT = "count";
+	public static final String FORMAT = "format";
+	public static final String BBOX = "bbox";
+	public static final String TILE = "tile";
+	public static final String NEAR = "near";
+	public static final String RADIUS = "radius";
+	public static final String PRECISION = "precision";
+	public static final String TRACK = "track";
+	public static final String TOLERANCE = "tolerance";
+	public static final String POINTS = "points";
+	public static final int DEFAULT_PAGE_SIZE = 10;
+	public static final int MAX_PAGE_SIZE = Settings.getInt("GBIF_MAX_PAGE_SIZE", 100);
+
+	private static final GbifQuery EMPTY = new GbifQuery(new EnumMap<GbifParam, String>(GbifParam.class));
+
+	private final Map<GbifParam, String> params;
+	private int pageSize;
+	private String cursorToken;
+	private GbifCursor cursor;
+	private GbifFields fields;
+	private GbifFacets facets;
+	private boolean count;
+	private GbifGeo geo;
+	private GbifTrack track;
+	private GbifHitsTranscoder.Format format = GbifHitsTranscoder.Format.ES;
+
+	private GbifQuery(EnumMap<GbifParam, String> params) {
+		this.params = Collections.unmodifiableMap(params);
+	}
+
+	/**
+	 * @param event = decoded API Gateway event
+	 */
+	public static GbifQuery from(ApiGatewayEvent event) {
+		return of(event.getQuerystring());
+	}
+
+	/**
+	 * @param querystring = query string parameters as name, value pairs
+	 * @throws IllegalArgumentException for parameters the API does not support, or invalid values
+	 */
+	public static GbifQuery of(Map<String, String> querystring) {
+		if (querystring.isEmpty()) {
+			return EMPTY;
+		}
+		EnumMap<GbifParam, String> params = new EnumMap<GbifParam, String>(GbifParam.class);
+		String size = null;
+		String cursor = null;
+		String fields = null;
+		String facets = null;
+		String facetSize = null;
+		String count = null;
+		String format = null;
+		String bbox = null;
+		String tile = null;
+		String near = null;
+		String radius = null;
+		String precision = null;
+		String track = null;
+		String tolerance = null;
+		String points = null;
+		for (Map.Entry<String, String> entry : querystring.entrySet()) {
+			String name = entry.getKey();
+			String value = entry.getValue() == null ? "" : entry.getValue().trim();
+			if (SIZE.equalsIgnoreCase(name)) {
+				size = value;
+				continue;
+			}
+			if (CURSOR.equalsIgnoreCase(name)) {
+				cursor = value;
+				continue;
+			}
+			if (FIELDS.equalsIgnoreCase(name)) {
+				fields = value;
+				continue;
+			}
+			if (FACETS.equalsIgnoreCase(name)) {
+				facets = value;
+				continue;
+			}
+			if (FACET_SIZE.equalsIgnoreCase(name)) {
+				facetSize = value;
+				continue;
+			}
+			if (COUNT.equalsIgnoreCase(name)) {
+				count = value;
+				continue;
+			}
+			if (FORMAT.equalsIgnoreCase(name)) {
+				format = value;
+				continue;
+			}
+			if (BBOX.equalsIgnoreCase(name)) {
+				bbox = value;
+				continue;
+			}
+			if (TILE.equalsIgnoreCase(name)) {
+				tile = value;
+				continue;
+			}
+			if (NEAR.equalsIgnoreCase(name)) {
+				near = value;
+				continue;
+			}
+			if (RADIUS.equalsIgnoreCase(name)) {
+				radius = value;
+				continue;
+			}
+			if (PRECISION.equalsIgnoreCase(name)) {
+				precision = value;
+				continue;
+			}
+			if (TRACK.equalsIgnoreCase(name)) {
+				track = value;
+				continue;
+			}
+			if (TOLERANCE.equalsIgnoreCase(name)) {
+				tolerance = value;
+				continue;
+			}
+			if (POINTS.equalsIgnoreCase(name)) {
+				points = value;
+				continue;
+			}
+			GbifParam param = GbifParam.forName(name);
+			if (param == null) {
+				throw new IllegalArgumentException("Unsupported query parameter: " + name);
+			}
+			if (!value.isEmpty()) {
+				params.put(param, param.normalize(value));
+			}
+		}
+		GbifQuery query = new GbifQuery(params);
+		if (size != null && !size.isEmpty()) {
+			query.pageSize = parsePageSize(size);
+		}
+		if (cursor != null && !cursor.isEmpty()) {
+			query.cursor = GbifCursor.decode(cursor);
+			query.cursorToken = cursor;
+			if (query.pageSize == 0) {
+				query.pageSize = DEFAULT_PAGE_SIZE;
+			}
+		}
+		if (fields != null && !fields.isEmpty()) {
+			query.fields = GbifFields.parse(fields);
+		}
+		if (facets != null && !facets.isEmpty()) {
+			query.facets = GbifFacets.parse(facets, facetSize);
+		}
+		if (count != null && !count.isEmpty()) {
+			query.count = parseBoolean(COUNT, count);
+		}
+		query.geo = GbifGeo.parse(bbox, tile, near, radius, precision);
+		if (query.isAggregate() && (query.isPaged() || query.fields != null)) {
+			throw new IllegalArgumentException("facets, count and precision return no hits: size, cursor and fields do not apply");
+		}
+		if (format != null && !format.isEmpty()) {
+			query.format = GbifHitsTranscoder.Format.parse(format);
+			if (query.isAggregate() && query.format != GbifHitsTranscoder.Format.ES) {
+				throw new IllegalArgumentException("facets, count and precision return no hits: format does not apply");
+			}
+		}
+		query.track = GbifTrack.parse(track, tolerance, points);
+		if (query.track != null) {
+			if (query.get(GbifParam.INDIVIDUAL_ID) == null) {
+				throw new IllegalArgumentException("track needs an individualID");
+			}
+			if (query.isPaged() || query.fields != null || query.isAggregate() || query.format != GbifHitsTranscoder.Format.ES) {
+				throw new IllegalArgumentException("track returns a path: size, cursor, fields, facets, count, precision and format do not apply");
+			}
+		}
+		return query.isEmpty() && query.format == GbifHitsTranscoder.Format.ES ? EMPTY : query;
+	}
+
+	private static boolean parseBoolean(String name, String value) {
+		if ("true".equalsIgnoreCase(value)) {
+			return true;
+		}
+		if ("false".equalsIgnoreCase(value)) {
+			return false;
+		}
+		throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+	}
+
+	private static int parsePageSize(String size) {
+		int pageSize;
+		try {
+			pageSize = Integer.parseInt(size);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for size: " + size);
+		}
+		if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("size must be between 1 and " + MAX_PAGE_SIZE);
+		}
+		return pageSize;
+	}
+
+	/**
+	 * @return true when no parameter was given (the full database is requested)
+	 */
+	public boolean isEmpty() {
+		return params.isEmpty() && pageSize == 0 && fields == null && geo == null && track == null && !isAggregate();
+	}
+
+	/**
+	 * @return true when counts are requested instead of hits (facets, count and/or a geo grid)
+	 */
+	public boolean isAggregate() {
+		return facets != null || count || isGrid();
+	}
+
+	/**
+	 * @return true for count=true without facets or grid: only the total is needed (served by _count)
+	 */
+	public boolean isCount() {
+		return count && facets == null && !isGrid();
+	}
+
+	/**
+	 * @return true when counts per geo grid cell are requested
+	 */
+	public boolean isGrid() {
+		return geo != null && geo.isGrid();
+	}
+
+	/**
+	 * @return true when the simplified path of an individual is requested instead of hits
+	 */
+	public boolean isTrack() {
+		return track != null;
+	}
+
+	/**
+	 * @return track options, or null
+	 */
+	public GbifTrack getTrack() {
+		return track;
+	}
+
+	/**
+	 * @return geo filters and/or grid, or null
+	 */
+	public GbifGeo getGeo() {
+		return geo;
+	}
+
+	/**
+	 * @return requested facets, or null
+	 */
+	public GbifFacets getFacets() {
+		return facets;
+	}
+
+	/**
+	 * @return true when the caller asked for cursor paging (size and/or cursor given)
+	 */
+	public boolean isPaged() {
+		return pageSize > 0;
+	}
+
+	/**
+	 * @return hits per page in cursor mode, 0 otherwise
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return decoded cursor of the requested page, or null for the first page
+	 */
+	public GbifCursor getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return requested projection, or null for the full _source
+	 */
+	public GbifFields getFields() {
+		return fields;
+	}
+
+	/**
+	 * @return requested output format, ES (the search response as is) by default
+	 */
+	public GbifHitsTranscoder.Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return value of param, or null if it was not given
+	 */
+	public String get(GbifParam param) {
+		return params.get(param);
+	}
+
+	/**
+	 * @return given parameters in declaration order of {@link GbifParam}
+	 */
+	public Map<GbifParam, String> getParams() {
+		return params;
+	}
+
+	/**
+	 * Normalized form of the query used as a cache key: parameters in canonical order, keyword codes
+	 * upper-cased and analyzed names lower-cased, so equivalent queries get the same key.
+	 * The empty query (full database) is "*". Values (and the cursor) are URL-encoded, so a value
+	 * holding '&' or '=' cannot pass for another parameter: the key also identifies in-flight queries.
+	 */
+	public String cacheKey() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<GbifParam, String> entry : params.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append('&');
+			}
+			sb.append(entry.getKey().paramName()).append('=');
+			sb.append(encode(entry.getKey().isFilter() ? entry.getValue() : entry.getValue().toLowerCase(Locale.ROOT)));
+		}
+		if (geo != null) {
+			sb.append(sb.length() > 0 ? "&" : "").append(geo);
+		}
+		if (sb.length() == 0) {
+			sb.append('*');
+		}
+		if (isPaged()) {
+			sb.append("&size=").append(pageSize);
+			if (cursorToken != null) {
+				sb.append("&cursor=").append(encode(cursorToken));
+			}
+		}
+		if (fields != null) {
+			sb.append("&fields=").append(fields);
+		}
+		if (facets != null) {
+			sb.append("&facets=").append(facets);
+		} else if (isCount()) {
+			sb.append("&count");
+		}
+		if (track != null) {
+			sb.append("&track=").append(track);
+		}
+		if (format != GbifHitsTranscoder.Format.ES) {
+			sb.append("&format=").append(format.name().toLowerCase(Locale.ROOT));
+		}
+		return sb.toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+	}
+
+	/**
+	 * @return names of the given parameters, e.g. "sex+kingdom+country"; "*" for the empty query
+	 */
+	public String shape() {
+		StringBuilder sb = new StringBuilder();
+		for (GbifParam param : params.keySet()) {
+			if (sb.length() > 0) {
+				sb.append('+');
+			}
+			sb.append(param.paramName());
+		}
+		if (geo != null) {
+			sb.append(sb.length() > 0 ? "+" : "").append(geo.shape());
+		}
+		if (sb.length() == 0) {
+			sb.append('*');
+		}
+		if (isPaged()) {
+			sb.append('+').append(SIZE);
+		}
+		if (fields != null) {
+			sb.append('+').append(FIELDS);
+		}
+		if (facets != null) {
+			sb.append('+').append(FACETS);
+		} else if (isCount()) {
+			sb.append('+').append(COUNT);
+		}
+		if (track != null) {
+			sb.append('+').append(TRACK);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GbifQuery)) {
+			return false;
+		}
+		GbifQuery other = (GbifQuery) o;
+		return params.equals(other.params) && pageSize == other.pageSize
+				&& (cursor == null ? other.cursor == null : cursor.equals(other.cursor))
+				&& (fields == null ? other.fields == null : fields.equals(other.fields))
+				&& (facets == null ? other.facets == null : facets.equals(other.facets)) && isCount() == other.isCount()
+				&& (geo == null ? other.geo == null : geo.equals(other.geo))
+				&& (track == null ? other.track == null : track.equals(other.track)) && format == other.format;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = (params.hashCode() * 31 + pageSize) * 31 + (cursor == null ? 0 : cursor.hashCode());
+		hash = hash * 31 + (fields == null ? 0 : fields.hashCode());
+		hash = (hash * 31 + (facets == null ? 0 : facets.hashCode())) * 31 + (isCount() ? 1 : 0);
+		hash = hash * 31 + (geo == null ? 0 : geo.hashCode());
+		hash = hash * 31 + (track == null ? 0 : track.hashCode());
+		return hash * 31 + format.ordinal();
+	}
+
+	@Override
+	public String toString() {
+		return "GbifQuery" + params + (isPaged() ? "[size=" + pageSize + "]" : "")
+				+ (fields != null ? "[fields=" + fields + "]" : "")
+				+ (facets != null ? "[facets=" + facets + "]" : isCount() ? "[count]" : "")
+				+ (geo != null ? "[" + geo + "]" : "")
+				+ (track != null ? "[track=" + track + "]" : "")
+				+ (format != GbifHitsTranscoder.Format.ES ? "[format=" + format + "]" : "");
+	}
+}
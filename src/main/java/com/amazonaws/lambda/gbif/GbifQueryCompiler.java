@@ -0,0 +1,305 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * Compiles a {@link GbifQuery} into an ES search body, written with a streaming JsonWriter.
+ * Every parameter must match (bool AND): exact-match parameters (term/range) go into bool.filter,
+ * where ES caches them and skips scoring; only the free-text names are scored, in bool.must.
+ *
+ * For example kingdom=animalia&country=belgium&sex=male compiles to
+ * {"query":{"bool":{"filter":[{"term":{"sex.keyword":"MALE"}}],
+ *   "must":[{"match":{"kingdom":"animalia"}},{"match":{"country":"belgium"}}]}}}
+ * In cursor mode (size/cursor given) the body also carries size, sort, search_after and pit,
+ * and a fields projection adds "_source":{"includes":[...],"excludes":[...]}.
+ * Facets and count queries compile to "size":0 with an aggregation per facet, e.g.
+ * "aggs":{"country":{"terms":{"field":"country.keyword","size":10}},"year":{"histogram":{"field":"year","interval":1,"min_doc_count":1}}};
+ * a plain count is better sent to _count, with the body of {@link #compileCount(GbifQuery)}.
+ * Geo parameters add geo_bounding_box/geo_distance filters on location, and precision=N a grid
+ * aggregation with the centroid of every cell, e.g.
+ * "aggs":{"cells":{"geohash_grid":{"field":"location","precision":4,"size":10000},"aggs":{"centroid":{"geo_centroid":{"field":"location"}}}}}
+ * Tracks are walked with a scroll over the body of {@link #compileTrack(GbifQuery, Deadline)}.
+ * Under a deadline the body carries ES's own "timeout" (and terminate_after, if GBIF_TERMINATE_AFTER is set)
+ * so that a slow search returns partial hits in time rather than nothing.
+ */
+public final class GbifQueryCompiler {
+
+	/** how long ES keeps a point in time open between two pages */
+	public static final String PIT_KEEP_ALIVE = Settings.getString("GBIF_PIT_KEEP_ALIVE", "1m");
+
+	/** documents to collect per shard before ES stops early; 0 (default) for no limit */
+	public static final int TERMINATE_AFTER = Settings.getInt("GBIF_TERMINATE_AFTER", 0);
+
+	private static final Gson gson = new Gson();
+
+	private GbifQueryCompiler() {
+	}
+
+	/**
+	 * @param query = decoded query
+	 * @return JSON formatted string in format of an ES search request
+	 */
+	public static String compile(GbifQuery query) {
+		return compile(query, query.getCursor() == null ? null : query.getCursor().getPitId());
+	}
+
+	/**
+	 * @param query = decoded query
+	 * @param pitId = point in time to search (cursor mode only), or null to search the index
+	 * @return JSON formatted string in format of an ES search request
+	 */
+	public static String compile(GbifQuery query, String pitId) {
+		return compile(query, pitId, null);
+	}
+
+	/**
+	 * @param query = decoded query
+	 * @param pitId = point in time to search (cursor mode only), or null to search the index
+	 * @param deadline = time budget for the search, or null
+	 * @return JSON formatted string in format of an ES search request
+	 */
+	public static String compile(GbifQuery query, String pitId, Deadline deadline) {
+		StringWriter out = new StringWriter(256);
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.beginObject();
+			json.name("query");
+			writeQuery(query, json);
+			if (query.isPaged()) {
+				writePaging(query, pitId, json);
+			}
+			if (query.getFields() != null) {
+				writeSource(query.getFields(), json);
+			}
+			if (query.isAggregate()) {
+				json.name("size").value(0);
+				if (query.getFacets() != null || query.isGrid()) {
+					json.name("aggs").beginObject();
+					if (query.getFacets() != null) {
+						writeAggregations(query.getFacets(), json);
+					}
+					if (query.isGrid()) {
+						writeGrid(query.getGeo(), json);
+					}
+					json.endObject();
+				}
+			}
+			if (deadline != null) {
+				json.name("timeout").value(deadline.esTimeout());
+				if (TERMINATE_AFTER > 0) {
+					json.name("terminate_after").value(TERMINATE_AFTER);
+				}
+			}
+			json.endObject();
+			json.flush();
+		} catch (IOException e) {
+			//StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param query = decoded query
+	 * @return body of a _count request: the query alone
+	 */
+	public static String compileCount(GbifQuery query) {
+		StringWriter out = new StringWriter(128);
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.beginObject();
+			json.name("query");
+			writeQuery(query, json);
+			json.endObject();
+			json.flush();
+		} catch (IOException e) {
+			//StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @param query = decoded track query
+	 * @param deadline = time budget for the first page, or null
+	 * @return body of the search opening the scroll over a track: the fixes in eventDate order,
+	 * with only the fields a track needs
+	 */
+	public static String compileTrack(GbifQuery query, Deadline deadline) {
+		StringWriter out = new StringWriter(256);
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.beginObject();
+			json.name("query");
+			writeQuery(query, json);
+			json.name("size").value(GbifTrack.PAGE_SIZE);
+			json.name("sort").beginArray().beginObject().name(GbifTrack.SORT_FIELD).value("asc").endObject()
+					.beginObject().name(GbifCursor.SORT_FIELD).value("asc").endObject().endArray();
+			json.name("_source").beginObject().name("includes").beginArray()
+					.value(GbifTrack.LATITUDE).value(GbifTrack.LONGITUDE).value(GbifTrack.SORT_FIELD).endArray().endObject();
+			if (deadline != null) {
+				json.name("timeout").value(deadline.esTimeout());
+			}
+			json.endObject();
+			json.flush();
+		} catch (IOException e) {
+			//StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes the query clause only (the value of "query"), for callers that build the rest of the body.
+	 */
+	static void writeQuery(GbifQuery query, JsonWriter json) throws IOException {
+		GbifGeo geo = query.getGeo() != null && query.getGeo().isFilter() ? query.getGeo() : null;
+		if (query.getParams().isEmpty() && geo == null) {
+			json.beginObject().name("match_all").beginObject().endObject().endObject();
+			return;
+		}
+		json.beginObject().name("bool").beginObject();
+
+		boolean open = false;
+		for (Map.Entry<GbifParam, String> entry : query.getParams().entrySet()) {
+			if (entry.getKey().isFilter()) {
+				if (!open) {
+					json.name("filter").beginArray();
+					open = true;
+				}
+				writeFilter(entry.getKey(), entry.getValue(), json);
+			}
+		}
+		if (geo != null) {
+			if (!open) {
+				json.name("filter").beginArray();
+				open = true;
+			}
+			writeGeoFilters(geo, json);
+		}
+		if (open) {
+			json.endArray();
+			open = false;
+		}
+		for (Map.Entry<GbifParam, String> entry : query.getParams().entrySet()) {
+			if (!entry.getKey().isFilter()) {
+				if (!open) {
+					json.name("must").beginArray();
+					open = true;
+				}
+				json.beginObject().name("match").beginObject()
+						.name(entry.getKey().field()).value(entry.getValue())
+						.endObject().endObject();
+			}
+		}
+		if (open) {
+			json.endArray();
+		}
+
+		json.endObject().endObject();
+	}
+
+	/*
+	 * Cursor mode: a stable sort on a unique field, search_after the previous page's last hit
+	 * (cost does not grow with depth the way from/size does) and, if available, a point in time
+	 */
+	private static void writePaging(GbifQuery query, String pitId, JsonWriter json) throws IOException {
+		json.name("size").value(query.getPageSize());
+		json.name("sort").beginArray().beginObject().name(GbifCursor.SORT_FIELD).value("asc").endObject().endArray();
+		if (query.getCursor() != null) {
+			json.name("search_after");
+			gson.toJson(query.getCursor().getSearchAfter(), json);
+		}
+		if (pitId != null) {
+			json.name("pit").beginObject().name("id").value(pitId).name("keep_alive").value(PIT_KEEP_ALIVE).endObject();
+		}
+	}
+
+	private static void writeAggregations(GbifFacets facets, JsonWriter json) throws IOException {
+		for (GbifParam param : facets.getParams()) {
+			json.name(param.paramName()).beginObject();
+			if (GbifFacets.isHistogram(param)) {
+				json.name("histogram").beginObject().name("field").value(GbifFacets.aggregationField(param))
+						.name("interval").value(1).name("min_doc_count").value(1).endObject();
+			} else {
+				json.name("terms").beginObject().name("field").value(GbifFacets.aggregationField(param))
+						.name("size").value(facets.getSize()).endObject();
+			}
+			json.endObject();
+		}
+	}
+
+	//counts per cell, and where in the cell the points are
+	private static void writeGrid(GbifGeo geo, JsonWriter json) throws IOException {
+		json.name(GbifGeo.CELLS).beginObject();
+		json.name(geo.getGrid().aggregation()).beginObject().name("field").value(GbifGeo.FIELD)
+				.name("precision").value(geo.getPrecision()).name("size").value(GbifGeo.MAX_CELLS).endObject();
+		json.name("aggs").beginObject().name(GbifGeo.CENTROID).beginObject()
+				.name("geo_centroid").beginObject().name("field").value(GbifGeo.FIELD).endObject()
+				.endObject().endObject();
+		json.endObject();
+	}
+
+	private static void writeGeoFilters(GbifGeo geo, JsonWriter json) throws IOException {
+		if (geo.hasBox()) {
+			json.beginObject().name("geo_bounding_box").beginObject().name(GbifGeo.FIELD).beginObject()
+					.name("top_left").beginObject().name("lat").value(geo.getNorth()).name("lon").value(geo.getWest()).endObject()
+					.name("bottom_right").beginObject().name("lat").value(geo.getSouth()).name("lon").value(geo.getEast()).endObject()
+					.endObject().endObject().endObject();
+		}
+		if (geo.hasCircle()) {
+			json.beginObject().name("geo_distance").beginObject().name("distance").value(geo.distance())
+					.name(GbifGeo.FIELD).beginObject().name("lat").value(geo.getLat()).name("lon").value(geo.getLon()).endObject()
+					.endObject().endObject();
+		}
+	}
+
+	private static void writeSource(GbifFields fields, JsonWriter json) throws IOException {
+		json.name("_source").beginObject();
+		if (!fields.getIncludes().isEmpty()) {
+			json.name("includes").beginArray();
+			for (String field : fields.getIncludes()) {
+				json.value(field);
+			}
+			json.endArray();
+		}
+		if (!fields.getExcludes().isEmpty()) {
+			json.name("excludes").beginArray();
+			for (String field : fields.getExcludes()) {
+				json.value(field);
+			}
+			json.endArray();
+		}
+		json.endObject();
+	}
+
+	private static void writeFilter(GbifParam param, String value, JsonWriter json) throws IOException {
+		int dash = param.clause() == GbifParam.Clause.RANGE ? value.indexOf('-') : -1;
+		if (dash < 0) {
+			json.beginObject().name("term").beginObject().name(param.field());
+			if (param.isNumeric()) {
+				json.value(Long.parseLong(value));
+			} else {
+				json.value(value);
+			}
+			json.endObject().endObject();
+			return;
+		}
+		//span from-to (either end may be open), values already validated by GbifParam
+		json.beginObject().name("range").beginObject().name(param.field()).beginObject();
+		if (dash > 0) {
+			json.name("gte").value(Long.parseLong(value.substring(0, dash)));
+		}
+		if (dash < value.length() - 1) {
+			json.name("lte").value(Long.parseLong(value.substring(dash + 1)));
+		}
+		json.endObject().endObject().endObject();
+	}
+}
@@ -0,0 +1,509 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.amazonaws.AmazonWebServiceResponse;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * The path of one tracked animal, requested with individualID=...&track=true: every matching
+ * record is walked in eventDate order (a scroll, read page by page as it streams in, keeping
+ * only the coordinates and date of each hit), then the polyline is simplified server-side with
+ * Ramer-Douglas-Peucker, splitting the segment that deviates most from the path first, until
+ * no point is more than tolerance=N meters off (default GBIF_TRACK_TOLERANCE_M, 10) or the
+ * path has points=N points (default GBIF_TRACK_POINTS, 1000; at most GBIF_TRACK_MAX_POINTS).
+ * Other parameters (year, bbox, ...) narrow the records walked.
+ *
+ * Response: {"individualID": "H903", "total": 52310, "fixes": 52288, "points": 812,
+ *   "coordinates": [[2.8549, 50.9899], ...], "eventDates": ["2014-01-25T10:00:00Z", ...]}
+ * ("total" is the ES hit total, as in other gbif responses; "fixes" the records walked with valid
+ * coordinates; GeoJSON [lon, lat] order; "timed_out": true first if ES ran out of time,
+ * "truncated": true if the walk stopped at GBIF_TRACK_MAX_FIXES records)
+ */
+public final class GbifTrack {
+
+	public static final String SORT_FIELD = "eventDate";
+	public static final String LATITUDE = "decimalLatitude";
+	public static final String LONGITUDE = "decimalLongitude";
+
+	public static final int DEFAULT_TOLERANCE = Settings.getInt("GBIF_TRACK_TOLERANCE_M", 10);
+	public static final int DEFAULT_POINTS = Settings.getInt("GBIF_TRACK_POINTS", 1000);
+	public static final int MAX_POINTS = Settings.getInt("GBIF_TRACK_MAX_POINTS", 10000);
+
+	/** records read per scroll page */
+	public static final int PAGE_SIZE = Settings.getInt("GBIF_TRACK_PAGE_SIZE", 5000);
+
+	/** records walked at most per track, bounding the heap a track takes */
+	public static final int MAX_FIXES = Settings.getInt("GBIF_TRACK_MAX_FIXES", 1000000);
+
+	/** how long ES keeps the scroll open between two pages */
+	public static final String SCROLL_KEEP_ALIVE = Settings.getString("GBIF_SCROLL_KEEP_ALIVE", "1m");
+
+	private static final double METERS_PER_DEGREE = GbifGeo.EARTH_RADIUS * Math.PI / 180;
+
+	private final double tolerance;
+	private final int points;
+
+	private GbifTrack(double tolerance, int points) {
+		this.tolerance = tolerance;
+		this.points = points;
+	}
+
+	/**
+	 * @param track = value of track, or null
+	 * @param tolerance = value of tolerance, or null for the default
+	 * @param points = value of points, or null for the default
+	 * @return the track options, or null if no track is requested
+	 * @throws IllegalArgumentException for invalid values, or options without track=true
+	 */
+	public static GbifTrack parse(String track, String tolerance, String points) {
+		boolean requested = track != null && !track.isEmpty() && parseTrack(track);
+		if (!requested) {
+			if ((tolerance != null && !tolerance.isEmpty()) || (points != null && !points.isEmpty())) {
+				throw new IllegalArgumentException("tolerance and points apply to track=true only");
+			}
+			return null;
+		}
+		return new GbifTrack(parseTolerance(tolerance), parsePoints(points));
+	}
+
+	private static boolean parseTrack(String value) {
+		if ("true".equalsIgnoreCase(value)) {
+			return true;
+		}
+		if ("false".equalsIgnoreCase(value)) {
+			return false;
+		}
+		throw new IllegalArgumentException("Invalid value for track: " + value);
+	}
+
+	private static double parseTolerance(String value) {
+		if (value == null || value.isEmpty()) {
+			return DEFAULT_TOLERANCE;
+		}
+		String number = value.toLowerCase(Locale.ROOT).endsWith("m") ? value.substring(0, value.length() - 1) : value;
+		double meters;
+		try {
+			meters = Double.parseDouble(number.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for tolerance: " + value);
+		}
+		if (!(meters >= 0) || Double.isInfinite(meters)) {
+			throw new IllegalArgumentException("tolerance must be a distance in meters, 0 or more: " + value);
+		}
+		return meters;
+	}
+
+	private static int parsePoints(String value) {
+		if (value == null || value.isEmpty()) {
+			return Math.min(DEFAULT_POINTS, MAX_POINTS);
+		}
+		int n;
+		try {
+			n = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for points: " + value);
+		}
+		if (n < 2 || n > MAX_POINTS) {
+			throw new IllegalArgumentException("points must be between 2 and " + MAX_POINTS);
+		}
+		return n;
+	}
+
+	/**
+	 * @return largest distance in meters a dropped point may be off the simplified path
+	 */
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	/**
+	 * @return most points the simplified path may have
+	 */
+	public int getPoints() {
+		return points;
+	}
+
+	/**
+	 * The fixes of a track in walk order (eventDate): coordinates in parallel primitive arrays,
+	 * grown as pages come in.
+	 */
+	public static final class Points {
+		private double[] lats = new double[1024];
+		private double[] lons = new double[1024];
+		private String[] dates = new String[1024];
+		private int size;
+		private long total;
+		private boolean timedOut;
+		private boolean truncated;
+
+		public void add(double lat, double lon, String date) {
+			if (size == lats.length) {
+				lats = Arrays.copyOf(lats, size * 2);
+				lons = Arrays.copyOf(lons, size * 2);
+				dates = Arrays.copyOf(dates, size * 2);
+			}
+			lats[size] = lat;
+			lons[size] = lon;
+			dates[size] = date;
+			size++;
+		}
+
+		//drops what a failed (and retried) page had added
+		void truncate(int size) {
+			Arrays.fill(dates, size, this.size, null);
+			this.size = size;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * @return matching records, as ES counts them (hits.total), whether walked or not
+		 */
+		public long getTotal() {
+			return total;
+		}
+
+		public void setTotal(long total) {
+			this.total = total;
+		}
+
+		public boolean isTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * Marks the track as partial: ES (or the deadline) stopped the walk early.
+		 */
+		public void setTimedOut() {
+			timedOut = true;
+		}
+
+		public boolean isTruncated() {
+			return truncated;
+		}
+
+		void setTruncated() {
+			truncated = true;
+		}
+	}
+
+	/**
+	 * Reads one page of a scroll into the track's points as the response streams in: only the
+	 * coordinates and eventDate of each hit are kept; hits without valid coordinates are skipped.
+	 * The result of the call is the scroll id of the next page.
+	 */
+	public static final class ScrollPage implements HttpResponseHandler<AmazonWebServiceResponse<String>> {
+
+		private final Points points;
+		private final int from;
+		private int hits;
+
+		/**
+		 * @param points = receives the fixes of the page
+		 */
+		public ScrollPage(Points points) {
+			this.points = points;
+			this.from = points.size();
+		}
+
+		/**
+		 * @return hits in the page (0 once the scroll is exhausted)
+		 */
+		public int getHits() {
+			return hits;
+		}
+
+		@Override
+		public AmazonWebServiceResponse<String> handle(HttpResponse response) throws Exception {
+			//a retried page starts over
+			points.truncate(from);
+			hits = 0;
+			AmazonWebServiceResponse<String> awsResponse = new AmazonWebServiceResponse<String>();
+			if (response.getContent() == null) {
+				return awsResponse;
+			}
+			JsonReader reader = new JsonReader(new InputStreamReader(response.getContent(), StandardCharsets.UTF_8));
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("_scroll_id".equals(name) && reader.peek() == JsonToken.STRING) {
+					awsResponse.setResult(reader.nextString());
+				} else if ("timed_out".equals(name) && reader.peek() == JsonToken.BOOLEAN) {
+					if (reader.nextBoolean()) {
+						points.setTimedOut();
+					}
+				} else if ("hits".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+					readHits(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			return awsResponse;
+		}
+
+		private void readHits(JsonReader reader) throws IOException {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("hits".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+					reader.beginArray();
+					while (reader.hasNext()) {
+						hits++;
+						readHit(reader);
+					}
+					reader.endArray();
+				} else if ("total".equals(name)) {
+					readTotal(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+
+		//a number, or {"value": N, "relation": ...} from ES 7 on
+		private void readTotal(JsonReader reader) throws IOException {
+			if (reader.peek() == JsonToken.NUMBER) {
+				points.setTotal(reader.nextLong());
+				return;
+			}
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				reader.skipValue();
+				return;
+			}
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if ("value".equals(reader.nextName()) && reader.peek() == JsonToken.NUMBER) {
+					points.setTotal(reader.nextLong());
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+		}
+
+		private void readHit(JsonReader reader) throws IOException {
+			double lat = Double.NaN;
+			double lon = Double.NaN;
+			String date = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!"_source".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_OBJECT) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName();
+					if (LATITUDE.equals(name)) {
+						lat = coordinate(reader, 90);
+					} else if (LONGITUDE.equals(name)) {
+						lon = coordinate(reader, 180);
+					} else if (SORT_FIELD.equals(name) && reader.peek() == JsonToken.STRING) {
+						date = reader.nextString();
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+			}
+			reader.endObject();
+			if (Double.isNaN(lat) || Double.isNaN(lon)) {
+				return;
+			}
+			if (points.size() >= MAX_FIXES) {
+				points.setTruncated();
+				return;
+			}
+			points.add(lat, lon, date);
+		}
+
+		//numbers, or numeric strings (as Darwin Core Archives give them); NaN if not a valid coordinate
+		private static double coordinate(JsonReader reader, double max) throws IOException {
+			if (reader.peek() != JsonToken.NUMBER && reader.peek() != JsonToken.STRING) {
+				reader.skipValue();
+				return Double.NaN;
+			}
+			try {
+				double degrees = Double.parseDouble(reader.nextString().trim());
+				return degrees >= -max && degrees <= max ? degrees : Double.NaN;
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+
+		@Override
+		public boolean needsConnectionLeftOpen() {
+			return false;
+		}
+	}
+
+	/*
+	 * A run of the path between two kept points, and the point in it farthest from the line joining them
+	 */
+	private static final class Segment implements Comparable<Segment> {
+		final int from;
+		final int to;
+		int farthest = -1;
+		double deviation;
+
+		Segment(Points points, int from, int to) {
+			this.from = from;
+			this.to = to;
+			for (int i = from + 1; i < to; i++) {
+				double d = offset(points, i, from, to);
+				if (d > deviation || farthest < 0) {
+					deviation = d;
+					farthest = i;
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return Double.compare(other.deviation, deviation);
+		}
+	}
+
+	/**
+	 * Simplifies the path: the end points are kept, then the farthest point of the most deviating
+	 * segment, again and again, until every dropped point is within tolerance or the budget is spent.
+	 * @return indexes of the points kept, ascending
+	 */
+	public int[] simplify(Points path) {
+		int n = path.size();
+		if (n <= 2) {
+			int[] all = new int[n];
+			for (int i = 0; i < n; i++) {
+				all[i] = i;
+			}
+			return all;
+		}
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n - 1] = true;
+		int kept = 2;
+		PriorityQueue<Segment> segments = new PriorityQueue<Segment>();
+		segments.add(new Segment(path, 0, n - 1));
+		while (kept < points && !segments.isEmpty()) {
+			Segment segment = segments.poll();
+			if (segment.deviation <= tolerance) {
+				break;
+			}
+			keep[segment.farthest] = true;
+			kept++;
+			if (segment.farthest - segment.from > 1) {
+				segments.add(new Segment(path, segment.from, segment.farthest));
+			}
+			if (segment.to - segment.farthest > 1) {
+				segments.add(new Segment(path, segment.farthest, segment.to));
+			}
+		}
+		int[] indexes = new int[kept];
+		for (int i = 0, j = 0; i < n; i++) {
+			if (keep[i]) {
+				indexes[j++] = i;
+			}
+		}
+		return indexes;
+	}
+
+	/*
+	 * Meters from point i to the segment from-to, on a plane tangent at from
+	 * (plenty accurate over the length of a segment of a track)
+	 */
+	static double offset(Points points, int i, int from, int to) {
+		double scale = Math.cos(Math.toRadians(points.lats[from])) * METERS_PER_DEGREE;
+		double x = longitudeDelta(points.lons[i] - points.lons[from]) * scale;
+		double y = (points.lats[i] - points.lats[from]) * METERS_PER_DEGREE;
+		double dx = longitudeDelta(points.lons[to] - points.lons[from]) * scale;
+		double dy = (points.lats[to] - points.lats[from]) * METERS_PER_DEGREE;
+		double length = dx * dx + dy * dy;
+		double t = length == 0 ? 0 : Math.max(0, Math.min(1, (x * dx + y * dy) / length));
+		return Math.hypot(x - t * dx, y - t * dy);
+	}
+
+	//across the antimeridian the short way
+	private static double longitudeDelta(double delta) {
+		return delta > 180 ? delta - 360 : delta < -180 ? delta + 360 : delta;
+	}
+
+	/**
+	 * Simplifies the path and renders the compact response.
+	 * @param individualID = the animal tracked
+	 * @param path = its fixes in eventDate order
+	 * @return {"individualID": .., "total": .., "fixes": .., "points": .., "coordinates": [...], "eventDates": [...]}
+	 */
+	public String toJson(String individualID, Points path) {
+		int[] kept = simplify(path);
+		StringWriter out = new StringWriter(64 + kept.length * 48);
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.beginObject();
+			if (path.isTimedOut()) {
+				json.name("timed_out").value(true);
+			}
+			json.name("individualID").value(individualID);
+			json.name("total").value(path.getTotal());
+			json.name("fixes").value(path.size());
+			if (path.isTruncated()) {
+				json.name("truncated").value(true);
+			}
+			json.name("points").value(kept.length);
+			json.name("coordinates").beginArray();
+			for (int i : kept) {
+				json.beginArray().value(path.lons[i]).value(path.lats[i]).endArray();
+			}
+			json.endArray();
+			json.name("eventDates").beginArray();
+			for (int i : kept) {
+				json.value(path.dates[i]);
+			}
+			json.endArray();
+			json.endObject();
+			json.flush();
+		} catch (IOException e) {
+			//StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return canonical form, e.g. "10m;1000"
+	 */
+	@Override
+	public String toString() {
+		String meters = tolerance == Math.rint(tolerance) ? String.valueOf((long) tolerance) : String.valueOf(tolerance);
+		return meters + "m;" + points;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof GbifTrack)) {
+			return false;
+		}
+		GbifTrack other = (GbifTrack) o;
+		return Double.compare(tolerance, other.tolerance) == 0 && points == other.points;
+	}
+
+	@Override
+	public int hashCode() {
+		return Double.valueOf(tolerance).hashCode() * 31 + points;
+	}
+}
@@ -0,0 +1,224 @@
+package com.amazonaws.lambda.gbif.load;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Reads the core (occurrence) file of a Darwin Core Archive, as produced by GBIF downloads
+ * (https://dwc.tdwg.org/text/): a zip with meta.xml describing a delimited text file.
+ * Terms become _source fields under their short name (http://rs.tdwg.org/dwc/terms/year -> year),
+ * numeric terms become numbers, gbifID doubles as _id and key, as in the gbif index.
+ * Without meta.xml, occurrence.txt is read as tab separated with a header line.
+ * Enclosed fields may not contain the delimiter or line breaks (GBIF downloads do not quote).
+ */
+public final class DwcaRecordReader implements GbifRecordReader {
+
+	private static final Set<String> NUMERIC = new HashSet<String>(Arrays.asList("key", "year", "month", "day",
+			"decimalLatitude", "decimalLongitude", "elevation", "depth", "coordinateUncertaintyInMeters",
+			"individualCount", "taxonKey", "kingdomKey", "phylumKey", "classKey", "orderKey", "familyKey",
+			"genusKey", "speciesKey"));
+
+	private final ZipFile zip;
+	private final BufferedReader lines;
+	private final String[] terms;
+	private final String delimiter;
+	private final String enclosure;
+	private final int idColumn;
+
+	public DwcaRecordReader(File archive) throws IOException {
+		zip = new ZipFile(archive);
+		try {
+			ZipEntry meta = zip.getEntry("meta.xml");
+			String location = "occurrence.txt";
+			String separator = "\t";
+			String quote = "";
+			Charset charset = StandardCharsets.UTF_8;
+			int headerLines = 1;
+			String[] columns = null;
+			int id = -1;
+			if (meta != null) {
+				Element core = core(zip.getInputStream(meta));
+				location = ((Element) core.getElementsByTagName("location").item(0)).getTextContent().trim();
+				separator = unescape(attribute(core, "fieldsTerminatedBy", "\\t"));
+				quote = attribute(core, "fieldsEnclosedBy", "");
+				charset = Charset.forName(attribute(core, "encoding", "UTF-8"));
+				headerLines = Integer.parseInt(attribute(core, "ignoreHeaderLines", "0"));
+				columns = columns(core);
+				NodeList ids = core.getElementsByTagName("id");
+				if (ids.getLength() > 0) {
+					id = Integer.parseInt(((Element) ids.item(0)).getAttribute("index"));
+				}
+			}
+			ZipEntry data = zip.getEntry(location);
+			if (data == null) {
+				throw new IOException("No " + location + " in " + archive);
+			}
+			lines = new BufferedReader(new InputStreamReader(zip.getInputStream(data), charset), 1 << 16);
+			this.delimiter = separator;
+			this.enclosure = quote;
+			for (int i = 0; i < headerLines; i++) {
+				String header = lines.readLine();
+				if (columns == null && header != null) {
+					columns = split(header);
+				}
+			}
+			if (columns == null) {
+				throw new IOException("No field definitions in " + archive);
+			}
+			for (int i = 0; i < columns.length; i++) {
+				columns[i] = shortName(columns[i]);
+				if (id < 0 && "gbifID".equals(columns[i])) {
+					id = i;
+				}
+			}
+			this.terms = columns;
+			this.idColumn = id;
+		} catch (IOException | RuntimeException e) {
+			zip.close();
+			throw e;
+		}
+	}
+
+	private static Element core(InputStream meta) throws IOException {
+		try (InputStream in = meta) {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+			Document document = factory.newDocumentBuilder().parse(in);
+			NodeList core = document.getElementsByTagName("core");
+			if (core.getLength() == 0) {
+				throw new IOException("meta.xml has no core");
+			}
+			return (Element) core.item(0);
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Invalid meta.xml", e);
+		}
+	}
+
+	private static String attribute(Element element, String name, String missing) {
+		return element.hasAttribute(name) ? element.getAttribute(name) : missing;
+	}
+
+	//terms by column index; columns without a term are skipped (null)
+	private static String[] columns(Element core) {
+		List<String> columns = new ArrayList<String>();
+		NodeList fields = core.getElementsByTagName("field");
+		for (int i = 0; i < fields.getLength(); i++) {
+			Element field = (Element) fields.item(i);
+			if (!field.hasAttribute("index")) {
+				//constant (default) values are not in the file
+				continue;
+			}
+			int index = Integer.parseInt(field.getAttribute("index"));
+			while (columns.size() <= index) {
+				columns.add(null);
+			}
+			columns.set(index, field.getAttribute("term"));
+		}
+		return columns.toArray(new String[columns.size()]);
+	}
+
+	private static String unescape(String value) {
+		return value.replace("\\t", "\t").replace("\\n", "\n").replace("\\r", "\r");
+	}
+
+	private static String shortName(String term) {
+		if (term == null) {
+			return null;
+		}
+		int cut = Math.max(term.lastIndexOf('/'), term.lastIndexOf('#'));
+		return term.substring(cut + 1);
+	}
+
+	private String[] split(String line) {
+		List<String> values = new ArrayList<String>();
+		int start = 0;
+		for (int end = line.indexOf(delimiter); end >= 0; end = line.indexOf(delimiter, start)) {
+			values.add(unquote(line.substring(start, end)));
+			start = end + delimiter.length();
+		}
+		values.add(unquote(line.substring(start)));
+		return values.toArray(new String[values.size()]);
+	}
+
+	private String unquote(String value) {
+		if (!enclosure.isEmpty() && value.length() >= 2 * enclosure.length()
+				&& value.startsWith(enclosure) && value.endsWith(enclosure)) {
+			return value.substring(enclosure.length(), value.length() - enclosure.length());
+		}
+		return value;
+	}
+
+	@Override
+	public GbifRecord next() throws IOException {
+		String line;
+		do {
+			line = lines.readLine();
+			if (line == null) {
+				return null;
+			}
+		} while (line.isEmpty());
+		String[] values = split(line);
+		JsonObject source = new JsonObject();
+		for (int i = 0; i < values.length && i < terms.length; i++) {
+			if (terms[i] != null && !values[i].isEmpty()) {
+				addValue(source, terms[i], values[i]);
+			}
+		}
+		String id = idColumn >= 0 && idColumn < values.length && !values[idColumn].isEmpty() ? values[idColumn] : null;
+		if (!source.has("key") && id != null) {
+			addValue(source, "key", id);
+		}
+		return new GbifRecord(id, source);
+	}
+
+	private static void addValue(JsonObject source, String name, String value) {
+		if (NUMERIC.contains(name)) {
+			try {
+				source.addProperty(name, Long.valueOf(value));
+				return;
+			} catch (NumberFormatException e) {
+				//not a whole number, try decimal
+			}
+			try {
+				source.addProperty(name, Double.valueOf(value));
+				return;
+			} catch (NumberFormatException e) {
+				//kept as text
+			}
+		}
+		source.addProperty(name, value);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			lines.close();
+		} finally {
+			zip.close();
+		}
+	}
+}
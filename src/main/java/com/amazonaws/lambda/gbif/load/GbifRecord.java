@@ -0,0 +1,28 @@
+package com.amazonaws.lambda.gbif.load;
+
+import com.google.gson.JsonObject;
+
+/**
+ * One occurrence record: its document id (null if the source has none) and its _source.
+ */
+public final class GbifRecord {
+
+	private final String id;
+	private final JsonObject source;
+
+	public GbifRecord(String id, JsonObject source) {
+		this.id = id;
+		this.source = source;
+	}
+
+	/**
+	 * @return document id, or null to let ES (or the reader's caller) assign one
+	 */
+	public String getId() {
+		return id;
+	}
+
+	public JsonObject getSource() {
+		return source;
+	}
+}
@@ -0,0 +1,16 @@
+package com.amazonaws.lambda.gbif.load;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams occurrence records out of a data file, one at a time, so files far bigger than the heap
+ * can be loaded.
+ */
+public interface GbifRecordReader extends Closeable {
+
+	/**
+	 * @return the next record, or null after the last one
+	 */
+	GbifRecord next() throws IOException;
+}
@@ -0,0 +1,73 @@
+package com.amazonaws.lambda.gbif.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads records from an ES bulk file (alternating action and source lines, as gbif_data.json;
+ * the _id of the action is kept) or from a JSON array of sources.
+ */
+public final class JsonRecordReader implements GbifRecordReader {
+
+	private final JsonReader reader;
+	private final JsonParser parser = new JsonParser();
+	private Boolean array;
+
+	public JsonRecordReader(InputStream in) {
+		this(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	public JsonRecordReader(Reader in) {
+		reader = new JsonReader(in);
+		//bulk files are a sequence of top-level objects
+		reader.setLenient(true);
+	}
+
+	@Override
+	public GbifRecord next() throws IOException {
+		if (array == null) {
+			array = reader.peek() == JsonToken.BEGIN_ARRAY;
+			if (array) {
+				reader.beginArray();
+			}
+		}
+		String id = null;
+		while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+			JsonElement element = parser.parse(reader);
+			if (!element.isJsonObject()) {
+				throw new IOException("Expected a JSON object per record, got " + element);
+			}
+			JsonObject object = element.getAsJsonObject();
+			JsonObject action = bulkAction(object);
+			if (action == null) {
+				return new GbifRecord(id, object);
+			}
+			JsonElement actionId = action.get("_id");
+			id = actionId == null || actionId.isJsonNull() ? null : actionId.getAsString();
+		}
+		return null;
+	}
+
+	//{"index": {...}} or {"create": {...}}: the metadata line before a source line
+	private static JsonObject bulkAction(JsonObject object) {
+		if (object.size() != 1) {
+			return null;
+		}
+		JsonElement action = object.has("index") ? object.get("index") : object.get("create");
+		return action != null && action.isJsonObject() ? action.getAsJsonObject() : null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,45 @@
+package com.amazonaws.lambda.gbif.local;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary encoding of a column: each distinct value is stored once and referred to by
+ * a dense int ordinal (in order of first appearance).
+ */
+final class Dictionary {
+
+	private final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+	private final List<String> values = new ArrayList<String>();
+
+	/**
+	 * @return ordinal of value, added if new
+	 */
+	int add(String value) {
+		Integer ordinal = ordinals.get(value);
+		if (ordinal == null) {
+			ordinal = values.size();
+			ordinals.put(value, ordinal);
+			values.add(value);
+		}
+		return ordinal;
+	}
+
+	/**
+	 * @return ordinal of value, or -1 if it never occurs
+	 */
+	int lookup(String value) {
+		Integer ordinal = ordinals.get(value);
+		return ordinal == null ? -1 : ordinal;
+	}
+
+	String get(int ordinal) {
+		return values.get(ordinal);
+	}
+
+	int size() {
+		return values.size();
+	}
+}
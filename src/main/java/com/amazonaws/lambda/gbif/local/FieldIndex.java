@@ -0,0 +1,207 @@
+package com.amazonaws.lambda.gbif.local;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.amazonaws.lambda.gbif.GbifParam;
+
+/**
+ * Column of one queryable field: the dictionary-encoded value of every document, a posting
+ * list per distinct value (exact matches and ranges) and, for free-text fields, a posting list
+ * per analyzed token (lower-cased words, like the ES standard analyzer).
+ */
+final class FieldIndex {
+
+	static final int MISSING = -1;
+
+	private final GbifParam param;
+	private final Dictionary values = new Dictionary();
+	private final Dictionary tokens = new Dictionary();
+	private int[] column = new int[16];
+	private List<Postings> valueBuilders = new ArrayList<Postings>();
+	private List<Postings> tokenBuilders = new ArrayList<Postings>();
+	private int[][] valuePostings;
+	private int[][] tokenPostings;
+
+	FieldIndex(GbifParam param) {
+		this.param = param;
+	}
+
+	/**
+	 * @return name of the _source field the param is matched against (sex.keyword -> sex)
+	 */
+	static String sourceField(GbifParam param) {
+		String field = param.field();
+		return field.endsWith(".keyword") ? field.substring(0, field.length() - ".keyword".length()) : field;
+	}
+
+	/**
+	 * @param doc = documents are added in id order
+	 * @param value = raw source value, or null if the document has none
+	 */
+	void add(int doc, String value) {
+		if (doc == column.length) {
+			column = Arrays.copyOf(column, doc * 2);
+		}
+		if (value == null) {
+			column[doc] = MISSING;
+			return;
+		}
+		int ordinal = values.add(value);
+		if (ordinal == valueBuilders.size()) {
+			valueBuilders.add(new Postings());
+		}
+		valueBuilders.get(ordinal).add(doc);
+		column[doc] = ordinal;
+		if (param.clause() == GbifParam.Clause.MATCH) {
+			for (String token : tokenize(value)) {
+				int t = tokens.add(token);
+				if (t == tokenBuilders.size()) {
+					tokenBuilders.add(new Postings());
+				}
+				tokenBuilders.get(t).add(doc);
+			}
+		}
+	}
+
+	/**
+	 * Trims the builders into immutable arrays once every document is added.
+	 */
+	void freeze(int docCount) {
+		column = Arrays.copyOf(column, docCount);
+		valuePostings = toArrays(valueBuilders);
+		tokenPostings = toArrays(tokenBuilders);
+		valueBuilders = null;
+		tokenBuilders = null;
+	}
+
+	private static int[][] toArrays(List<Postings> builders) {
+		int[][] arrays = new int[builders.size()][];
+		for (int i = 0; i < arrays.length; i++) {
+			arrays[i] = builders.get(i).toArray();
+		}
+		return arrays;
+	}
+
+	/**
+	 * @return ordinal of the document's value, or MISSING
+	 */
+	int ordinal(int doc) {
+		return column[doc];
+	}
+
+	Dictionary getValues() {
+		return values;
+	}
+
+	/**
+	 * @return documents whose value is exactly value
+	 */
+	int[] term(String value) {
+		int ordinal = values.lookup(value);
+		return ordinal < 0 ? Postings.EMPTY : valuePostings[ordinal];
+	}
+
+	/**
+	 * @param from = inclusive lower bound, or null
+	 * @param to = inclusive upper bound, or null
+	 * @return documents whose (numeric) value is within the bounds
+	 */
+	int[] range(Long from, Long to) {
+		int[] docs = Postings.EMPTY;
+		for (int ordinal = 0; ordinal < values.size(); ordinal++) {
+			long value;
+			try {
+				value = Long.parseLong(values.get(ordinal));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if ((from == null || value >= from) && (to == null || value <= to)) {
+				docs = Postings.union(docs, valuePostings[ordinal]);
+			}
+		}
+		return docs;
+	}
+
+	/**
+	 * @return documents containing the analyzed token, empty if unknown
+	 */
+	int[] token(String token) {
+		int t = tokens.lookup(token);
+		return t < 0 ? Postings.EMPTY : tokenPostings[t];
+	}
+
+	/**
+	 * Facet counts straight off the column: occurrences of each value among docs.
+	 * @param docs = matching documents
+	 * @param size = most frequent values to return (ties by value), ignored with byValue
+	 * @param byValue = every numeric value, in ascending order (like a histogram with interval 1)
+	 * @return count per value, in output order
+	 */
+	Map<String, Long> counts(int[] docs, int size, final boolean byValue) {
+		final int[] counts = new int[values.size()];
+		for (int doc : docs) {
+			int ordinal = column[doc];
+			if (ordinal != MISSING) {
+				counts[ordinal]++;
+			}
+		}
+		List<Integer> ordinals = new ArrayList<Integer>();
+		for (int ordinal = 0; ordinal < counts.length; ordinal++) {
+			if (counts[ordinal] > 0 && (!byValue || isNumber(values.get(ordinal)))) {
+				ordinals.add(ordinal);
+			}
+		}
+		Collections.sort(ordinals, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (byValue) {
+					return Long.compare(Long.parseLong(values.get(a)), Long.parseLong(values.get(b)));
+				}
+				int byCount = Integer.compare(counts[b], counts[a]);
+				return byCount != 0 ? byCount : values.get(a).compareTo(values.get(b));
+			}
+		});
+		Map<String, Long> out = new LinkedHashMap<String, Long>();
+		for (int ordinal : ordinals) {
+			if (!byValue && out.size() == size) {
+				break;
+			}
+			out.put(values.get(ordinal), (long) counts[ordinal]);
+		}
+		return out;
+	}
+
+	private static boolean isNumber(String value) {
+		try {
+			Long.parseLong(value);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return lower-cased words of text, split on anything that is not a letter or digit
+	 */
+	static List<String> tokenize(String text) {
+		List<String> out = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+		return out;
+	}
+}
@@ -0,0 +1,549 @@
+package com.amazonaws.lambda.gbif.local;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import com.amazonaws.lambda.es.Settings;
+import com.amazonaws.lambda.gbif.GbifCursor;
+import com.amazonaws.lambda.gbif.GbifFacets;
+import com.amazonaws.lambda.gbif.GbifFields;
+import com.amazonaws.lambda.gbif.GbifGeo;
+import com.amazonaws.lambda.gbif.GbifParam;
+import com.amazonaws.lambda.gbif.GbifQuery;
+import com.amazonaws.lambda.gbif.GbifTrack;
+import com.amazonaws.lambda.gbif.load.DwcaRecordReader;
+import com.amazonaws.lambda.gbif.load.GbifRecord;
+import com.amazonaws.lambda.gbif.load.GbifRecordReader;
+import com.amazonaws.lambda.gbif.load.JsonRecordReader;
+
+/**
+ * In-memory stand-in for the gbif index: answers GbifQuery with the same semantics as the ES
+ * query GbifQueryCompiler builds, and with a response of the same shape, without a network call.
+ * Used when ES is down (failover), for hot query shapes, and as a network-free test target.
+ *
+ * Storage is columnar: the compact _source of every record, plus a FieldIndex per query parameter
+ * (dictionary-encoded values with int posting lists). Filters intersect posting lists;
+ * free-text parameters are OR-ed words scored by summed idf, like a match query.
+ * Coordinates (decimalLatitude/decimalLongitude) are kept in two columns for the geo filters and grids.
+ *
+ * Loaded from the ES bulk file the index was built from (action and source lines, as gbif_data.json),
+ * a JSON array of records or a Darwin Core Archive (.zip): GBIF_LOCAL_DATA (file path), else gbif_data.json
+ * on the classpath.
+ */
+public final class GbifLocalIndex {
+
+	public static final String DATA = "GBIF_LOCAL_DATA";
+
+	private static final String INDEX = "gbif";
+	private static final String TYPE = "record";
+	private static final String SORT_SOURCE_FIELD = "gbifID";
+	private static final String LATITUDE = "decimalLatitude";
+	private static final String LONGITUDE = "decimalLongitude";
+
+	private final int size;
+	private final String[] ids;
+	private final String[] sources;
+	private final Map<GbifParam, FieldIndex> fields;
+	//document ids ordered by gbifID (the cursor sort), and each document's sort key
+	private final int[] bySortKey;
+	private final String[] sortKeys;
+	//NaN where a record has no valid coordinates
+	private final double[] lats;
+	private final double[] lons;
+
+	private GbifLocalIndex(List<String> ids, List<String> sources, List<String> sortKeys, Map<GbifParam, FieldIndex> fields,
+			double[] lats, double[] lons) {
+		this.size = ids.size();
+		this.lats = lats;
+		this.lons = lons;
+		this.ids = ids.toArray(new String[size]);
+		this.sources = sources.toArray(new String[size]);
+		this.sortKeys = sortKeys.toArray(new String[size]);
+		this.fields = fields;
+		Integer[] order = new Integer[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		final String[] keys = this.sortKeys;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return keys[a].compareTo(keys[b]);
+			}
+		});
+		this.bySortKey = new int[size];
+		for (int i = 0; i < size; i++) {
+			bySortKey[i] = order[i];
+		}
+	}
+
+	/**
+	 * @param in = bulk NDJSON or JSON array of records, UTF-8; closed by the caller
+	 */
+	public static GbifLocalIndex load(InputStream in) throws IOException {
+		return load(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	public static GbifLocalIndex load(Reader in) throws IOException {
+		return load(new JsonRecordReader(in));
+	}
+
+	/**
+	 * @param records = read to the end; records without an id are numbered from 0
+	 */
+	public static GbifLocalIndex load(GbifRecordReader records) throws IOException {
+		List<String> ids = new ArrayList<String>();
+		List<String> sources = new ArrayList<String>();
+		List<String> sortKeys = new ArrayList<String>();
+		Map<GbifParam, FieldIndex> fields = new EnumMap<GbifParam, FieldIndex>(GbifParam.class);
+		for (GbifParam param : GbifParam.values()) {
+			fields.put(param, new FieldIndex(param));
+		}
+		double[] lats = new double[1024];
+		double[] lons = new double[1024];
+
+		for (GbifRecord record = records.next(); record != null; record = records.next()) {
+			JsonObject object = record.getSource();
+			int doc = ids.size();
+			ids.add(record.getId() != null ? record.getId() : String.valueOf(doc));
+			sources.add(object.toString());
+			sortKeys.add(stringValue(object, SORT_SOURCE_FIELD, ""));
+			if (doc == lats.length) {
+				lats = Arrays.copyOf(lats, doc * 2);
+				lons = Arrays.copyOf(lons, doc * 2);
+			}
+			lats[doc] = coordinate(object, LATITUDE, 90);
+			lons[doc] = Double.isNaN(lats[doc]) ? Double.NaN : coordinate(object, LONGITUDE, 180);
+			if (Double.isNaN(lons[doc])) {
+				lats[doc] = Double.NaN;
+			}
+			for (Map.Entry<GbifParam, FieldIndex> entry : fields.entrySet()) {
+				entry.getValue().add(doc, stringValue(object, FieldIndex.sourceField(entry.getKey()), null));
+			}
+		}
+		for (FieldIndex field : fields.values()) {
+			field.freeze(ids.size());
+		}
+		return new GbifLocalIndex(ids, sources, sortKeys, fields, Arrays.copyOf(lats, ids.size()), Arrays.copyOf(lons, ids.size()));
+	}
+
+	//the coordinate, if valid (the loader only maps those to location), else NaN
+	private static double coordinate(JsonObject object, String field, double max) {
+		JsonElement value = object.get(field);
+		if (value == null || !value.isJsonPrimitive()) {
+			return Double.NaN;
+		}
+		try {
+			double degrees = value.getAsDouble();
+			return degrees >= -max && degrees <= max ? degrees : Double.NaN;
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Loads the data named by GBIF_LOCAL_DATA, or gbif_data.json from the classpath.
+	 * @return the index, or null if there is no data to load
+	 */
+	public static GbifLocalIndex fromSettings() throws IOException {
+		String path = Settings.getString(DATA, null);
+		if (path != null && path.endsWith(".zip")) {
+			try (GbifRecordReader records = new DwcaRecordReader(new File(path))) {
+				return load(records);
+			}
+		}
+		if (path != null) {
+			try (InputStream in = new FileInputStream(path)) {
+				return load(in);
+			}
+		}
+		try (InputStream in = GbifLocalIndex.class.getResourceAsStream("/gbif_data.json")) {
+			return in == null ? null : load(in);
+		}
+	}
+
+	private static String stringValue(JsonObject object, String field, String missing) {
+		JsonElement value = object.get(field);
+		return value == null || !value.isJsonPrimitive() ? missing : value.getAsString();
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	FieldIndex field(GbifParam param) {
+		return fields.get(param);
+	}
+
+	/**
+	 * @return ids of the documents matching every parameter of query, ascending
+	 */
+	int[] match(GbifQuery query) {
+		int[] docs = null;
+		for (Map.Entry<GbifParam, String> entry : query.getParams().entrySet()) {
+			int[] clause = clause(entry.getKey(), entry.getValue());
+			docs = docs == null ? clause : Postings.intersect(docs, clause);
+			if (docs.length == 0) {
+				break;
+			}
+		}
+		if (docs == null) {
+			docs = Postings.all(size);
+		}
+		GbifGeo geo = query.getGeo();
+		return geo != null && geo.isFilter() ? within(geo, docs) : docs;
+	}
+
+	//docs whose coordinates pass the geo filters
+	private int[] within(GbifGeo geo, int[] docs) {
+		int[] within = new int[docs.length];
+		int n = 0;
+		for (int doc : docs) {
+			if (geo.contains(lats[doc], lons[doc])) {
+				within[n++] = doc;
+			}
+		}
+		return n == within.length ? within : Arrays.copyOf(within, n);
+	}
+
+	private int[] clause(GbifParam param, String value) {
+		FieldIndex field = fields.get(param);
+		switch (param.clause()) {
+		case MATCH:
+			//any of the words, as a match query does by default
+			int[] docs = Postings.EMPTY;
+			for (String token : FieldIndex.tokenize(value)) {
+				docs = Postings.union(docs, field.token(token));
+			}
+			return docs;
+		case RANGE:
+			int dash = value.indexOf('-');
+			if (dash >= 0) {
+				String from = value.substring(0, dash);
+				String to = value.substring(dash + 1);
+				return field.range(from.isEmpty() ? null : Long.valueOf(from), to.isEmpty() ? null : Long.valueOf(to));
+			}
+			return field.term(value);
+		default:
+			return field.term(value);
+		}
+	}
+
+	/**
+	 * Relevance of a matching document: filters do not score, each matched word of a free-text
+	 * parameter adds its idf (rarer words weigh more); match_all scores 1.
+	 */
+	float score(GbifQuery query, int doc) {
+		if (query.getParams().isEmpty()) {
+			return 1f;
+		}
+		float score = 0f;
+		for (Map.Entry<GbifParam, String> entry : query.getParams().entrySet()) {
+			if (entry.getKey().isFilter()) {
+				continue;
+			}
+			FieldIndex field = fields.get(entry.getKey());
+			for (String token : FieldIndex.tokenize(entry.getValue())) {
+				int[] postings = field.token(token);
+				if (Arrays.binarySearch(postings, doc) >= 0) {
+					score += (float) Math.log(1 + (size - postings.length + 0.5) / (postings.length + 0.5));
+				}
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Runs query and renders the response the way ES would for the compiled query: the top 10
+	 * by score, or in cursor mode a page sorted by gbifID after the cursor position.
+	 * Facets, count and grid queries get the count map GbifFacets.toCounts makes of ES's answer,
+	 * track queries the simplified path.
+	 * @return ES search response JSON
+	 */
+	public String search(GbifQuery query) {
+		long start = System.nanoTime();
+		int[] docs = match(query);
+		if (query.isAggregate()) {
+			return counts(query, docs);
+		}
+		if (query.isTrack()) {
+			return track(query, docs);
+		}
+		int[] hits;
+		float[] scores = null;
+		String after = null;
+		if (query.isPaged()) {
+			GbifCursor cursor = query.getCursor();
+			if (cursor != null && cursor.getSearchAfter().size() > 0) {
+				after = cursor.getSearchAfter().get(0).getAsString();
+			}
+			hits = page(docs, after, query.getPageSize());
+		} else {
+			scores = new float[docs.length];
+			for (int i = 0; i < docs.length; i++) {
+				scores[i] = score(query, docs[i]);
+			}
+			hits = top(docs, scores, GbifQuery.DEFAULT_PAGE_SIZE);
+		}
+
+		StringWriter out = new StringWriter(256 + hits.length * 1024);
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.beginObject();
+			json.name("took").value((System.nanoTime() - start) / 1000000L);
+			json.name("timed_out").value(false);
+			json.name("_shards").beginObject().name("total").value(1).name("successful").value(1)
+					.name("skipped").value(0).name("failed").value(0).endObject();
+			json.name("hits").beginObject();
+			json.name("total").value(docs.length);
+			json.name("max_score");
+			if (scores == null || docs.length == 0) {
+				json.nullValue();
+			} else {
+				json.value(maxScore(scores));
+			}
+			json.name("hits").beginArray();
+			for (int doc : hits) {
+				json.beginObject();
+				json.name("_index").value(INDEX);
+				json.name("_type").value(TYPE);
+				json.name("_id").value(ids[doc]);
+				json.name("_score");
+				if (scores == null) {
+					json.nullValue();
+				} else {
+					json.value(score(query, doc));
+				}
+				json.name("_source");
+				writeSource(doc, query.getFields(), json);
+				if (scores == null) {
+					json.name("sort").beginArray().value(sortKeys[doc]).endArray();
+				}
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+			json.endObject();
+			json.flush();
+		} catch (IOException e) {
+			//StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	//facets are counted on the dictionary-encoded columns, without touching the documents
+	private String counts(GbifQuery query, int[] docs) {
+		if (query.getFacets() == null && !query.isGrid()) {
+			return GbifFacets.count(docs.length, false, false).toString();
+		}
+		if (query.getFacets() == null) {
+			return GbifFacets.cells(docs.length, cells(query.getGeo(), docs), false, false).toString();
+		}
+		Map<String, Map<String, Long>> facets = new LinkedHashMap<String, Map<String, Long>>();
+		for (GbifParam param : query.getFacets().getParams()) {
+			facets.put(param.paramName(), fields.get(param).counts(docs, query.getFacets().getSize(), GbifFacets.isHistogram(param)));
+		}
+		JsonObject json = GbifFacets.facets(docs.length, facets, false, false);
+		if (query.isGrid()) {
+			json.add(GbifGeo.CELLS, cells(query.getGeo(), docs));
+		}
+		return json.toString();
+	}
+
+	//counts and mean position per grid cell, in the order of ES's grid buckets (count descending, then key)
+	private JsonArray cells(GbifGeo geo, int[] docs) {
+		final Map<String, double[]> cells = new HashMap<String, double[]>();
+		for (int doc : docs) {
+			if (Double.isNaN(lats[doc])) {
+				continue;
+			}
+			String key = geo.cell(lats[doc], lons[doc]);
+			double[] cell = cells.get(key);
+			if (cell == null) {
+				cell = new double[3];
+				cells.put(key, cell);
+			}
+			cell[0]++;
+			cell[1] += lats[doc];
+			cell[2] += lons[doc];
+		}
+		List<String> keys = new ArrayList<String>(cells.keySet());
+		Collections.sort(keys, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int byCount = Double.compare(cells.get(b)[0], cells.get(a)[0]);
+				return byCount != 0 ? byCount : a.compareTo(b);
+			}
+		});
+		JsonArray json = new JsonArray();
+		for (String key : keys.subList(0, Math.min(keys.size(), GbifGeo.MAX_CELLS))) {
+			double[] cell = cells.get(key);
+			json.add(GbifGeo.cell(key, (long) cell[0], cell[1] / cell[0], cell[2] / cell[0]));
+		}
+		return json;
+	}
+
+	//the matching fixes in eventDate (then gbifID) order, as the scroll walks them
+	private String track(GbifQuery query, int[] docs) {
+		final List<Integer> fixes = new ArrayList<Integer>();
+		final Map<Integer, String> dates = new HashMap<Integer, String>();
+		for (int doc : docs) {
+			if (!Double.isNaN(lats[doc])) {
+				fixes.add(doc);
+				dates.put(doc, stringValue(new JsonParser().parse(sources[doc]).getAsJsonObject(), GbifTrack.SORT_FIELD, null));
+			}
+		}
+		Collections.sort(fixes, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				String dateA = dates.get(a);
+				String dateB = dates.get(b);
+				//missing dates sort last, as in ES
+				int byDate = dateA == null ? (dateB == null ? 0 : 1) : dateB == null ? -1 : dateA.compareTo(dateB);
+				return byDate != 0 ? byDate : sortKeys[a].compareTo(sortKeys[b]);
+			}
+		});
+		GbifTrack.Points points = new GbifTrack.Points();
+		points.setTotal(docs.length);
+		for (int doc : fixes) {
+			points.add(lats[doc], lons[doc], dates.get(doc));
+		}
+		return query.getTrack().toJson(query.get(GbifParam.INDIVIDUAL_ID), points);
+	}
+
+	//up to pageSize matching documents in gbifID order, strictly after the cursor position
+	private int[] page(int[] docs, String after, int pageSize) {
+		BitSet matching = new BitSet(size);
+		for (int doc : docs) {
+			matching.set(doc);
+		}
+		int[] page = new int[Math.min(pageSize, docs.length)];
+		int n = 0;
+		for (int i = firstAfter(after); i < size && n < page.length; i++) {
+			if (matching.get(bySortKey[i])) {
+				page[n++] = bySortKey[i];
+			}
+		}
+		return n == page.length ? page : Arrays.copyOf(page, n);
+	}
+
+	//position in bySortKey of the first key greater than after
+	private int firstAfter(String after) {
+		if (after == null) {
+			return 0;
+		}
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sortKeys[bySortKey[mid]].compareTo(after) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	//the k best-scoring documents, ties in document order
+	private static int[] top(int[] docs, float[] scores, int k) {
+		int[] top = new int[Math.min(k, docs.length)];
+		float[] topScores = new float[top.length];
+		int n = 0;
+		for (int i = 0; i < docs.length; i++) {
+			if (n == top.length && scores[i] <= topScores[n - 1]) {
+				continue;
+			}
+			int j = n < top.length ? n++ : n - 1;
+			while (j > 0 && topScores[j - 1] < scores[i]) {
+				top[j] = top[j - 1];
+				topScores[j] = topScores[j - 1];
+				j--;
+			}
+			top[j] = docs[i];
+			topScores[j] = scores[i];
+		}
+		return top;
+	}
+
+	private static float maxScore(float[] scores) {
+		float max = 0f;
+		for (float score : scores) {
+			max = Math.max(max, score);
+		}
+		return max;
+	}
+
+	//the stored _source, or the fields of it a projection asks for (ES _source filtering semantics)
+	private void writeSource(int doc, GbifFields projection, JsonWriter json) throws IOException {
+		if (projection == null) {
+			json.jsonValue(sources[doc]);
+			return;
+		}
+		JsonObject source = new JsonParser().parse(sources[doc]).getAsJsonObject();
+		json.beginObject();
+		for (Map.Entry<String, JsonElement> entry : source.entrySet()) {
+			String name = entry.getKey();
+			if ((projection.getIncludes().isEmpty() || matchesAny(projection.getIncludes(), name))
+					&& !matchesAny(projection.getExcludes(), name)) {
+				json.name(name).jsonValue(entry.getValue().toString());
+			}
+		}
+		json.endObject();
+	}
+
+	private static boolean matchesAny(Iterable<String> patterns, String name) {
+		for (String pattern : patterns) {
+			if (glob(pattern, 0, name, 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//'*' matches any run of characters
+	private static boolean glob(String pattern, int p, String name, int n) {
+		while (p < pattern.length()) {
+			char c = pattern.charAt(p);
+			if (c == '*') {
+				for (int i = n; i <= name.length(); i++) {
+					if (glob(pattern, p + 1, name, i)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (n == name.length() || name.charAt(n) != c) {
+				return false;
+			}
+			p++;
+			n++;
+		}
+		return n == name.length();
+	}
+}
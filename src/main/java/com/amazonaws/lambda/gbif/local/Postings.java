@@ -0,0 +1,91 @@
+package com.amazonaws.lambda.gbif.local;
+
+import java.util.Arrays;
+
+/**
+ * Posting lists: ascending, duplicate-free int arrays of document ids, and the set operations
+ * queries are evaluated with. A growable list is used while the index is built.
+ */
+final class Postings {
+
+	static final int[] EMPTY = new int[0];
+
+	private int[] docs = new int[4];
+	private int size;
+
+	void add(int doc) {
+		//documents are added in id order, once per term
+		if (size > 0 && docs[size - 1] == doc) {
+			return;
+		}
+		if (size == docs.length) {
+			docs = Arrays.copyOf(docs, size * 2);
+		}
+		docs[size++] = doc;
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(docs, size);
+	}
+
+	/**
+	 * @return documents in both a and b
+	 */
+	static int[] intersect(int[] a, int[] b) {
+		int[] out = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * @return documents in a or b
+	 */
+	static int[] union(int[] a, int[] b) {
+		if (a.length == 0) {
+			return b;
+		}
+		if (b.length == 0) {
+			return a;
+		}
+		int[] out = new int[a.length + b.length];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length || j < b.length) {
+			if (j == b.length || (i < a.length && a[i] < b[j])) {
+				out[n++] = a[i++];
+			} else if (i == a.length || b[j] < a[i]) {
+				out[n++] = b[j++];
+			} else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return n == out.length ? out : Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * @return 0, 1, ..., count - 1
+	 */
+	static int[] all(int count) {
+		int[] out = new int[count];
+		for (int i = 0; i < count; i++) {
+			out[i] = i;
+		}
+		return out;
+	}
+}
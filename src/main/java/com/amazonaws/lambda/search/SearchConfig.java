@@ -0,0 +1,177 @@
+package com.amazonaws.lambda.search;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.amazonaws.lambda.es.Settings;
+
+/**
+ * The search domain and the indexes served from it, declared in JSON: SEARCH_CONFIG names a file,
+ * otherwise search_indexes.json is read from the classpath. The configuration is checked when loaded
+ * (at class initialization, i.e. during the Lambda init phase), so a bad entry fails the deployment
+ * rather than the first request that uses it.
+ *
+ * {"endpoint": "https://...", "service": "es", "region": "us-east-2", "defaultIndex": "gbif",
+ *  "templates": {"id": {...}, ...}, "indexes": {"name": {...}, ...}}
+ * Index entries are described in {@link SearchIndex}, templates in {@link SearchTemplates}. ES_ENDPOINT overrides "endpoint" (local stand-ins).
+ */
+public final class SearchConfig {
+
+	public static final String CONFIG = "SEARCH_CONFIG";
+	public static final String RESOURCE = "/search_indexes.json";
+
+	private final String endpoint;
+	private final String serviceName;
+	private final String regionName;
+	private final String defaultIndex;
+	private final SearchTemplates templates;
+	private final Map<String, SearchIndex> indexes;
+
+	private SearchConfig(String endpoint, String serviceName, String regionName, String defaultIndex,
+			SearchTemplates templates, Map<String, SearchIndex> indexes) {
+		this.endpoint = endpoint;
+		this.serviceName = serviceName;
+		this.regionName = regionName;
+		this.defaultIndex = defaultIndex;
+		this.templates = templates;
+		this.indexes = Collections.unmodifiableMap(indexes);
+	}
+
+	//loaded on first use, once per container
+	private static final class Holder {
+		static final SearchConfig DEFAULT = fromSettings();
+	}
+
+	/**
+	 * @return the container-wide configuration (SEARCH_CONFIG or search_indexes.json)
+	 */
+	public static SearchConfig getDefault() {
+		return Holder.DEFAULT;
+	}
+
+	private static SearchConfig fromSettings() {
+		String file = Settings.getString(CONFIG, null);
+		try (InputStream in = file != null ? new FileInputStream(file) : SearchConfig.class.getResourceAsStream(RESOURCE)) {
+			if (in == null) {
+				throw new IllegalStateException(RESOURCE + " is not on the classpath");
+			}
+			return parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not read the search configuration " + (file != null ? file : RESOURCE), e);
+		}
+	}
+
+	/**
+	 * @param json = configuration document
+	 * @throws IllegalArgumentException if it is not valid JSON, or declares an invalid index or template
+	 */
+	public static SearchConfig parse(String json) {
+		return parse(new StringReader(json));
+	}
+
+	private static SearchConfig parse(Reader json) {
+		JsonObject config;
+		try {
+			JsonElement root = new JsonParser().parse(json);
+			if (!root.isJsonObject()) {
+				throw new IllegalArgumentException("The search configuration must be a JSON object");
+			}
+			config = root.getAsJsonObject();
+		} catch (JsonParseException e) {
+			throw new IllegalArgumentException("Invalid search configuration: " + e.getMessage());
+		}
+		JsonObject declared = config.getAsJsonObject("indexes");
+		if (declared == null || declared.entrySet().isEmpty()) {
+			throw new IllegalArgumentException("The search configuration declares no indexes");
+		}
+		JsonElement declaredTemplates = config.get("templates");
+		if (declaredTemplates != null && !declaredTemplates.isJsonObject()) {
+			throw new IllegalArgumentException("templates must be a JSON object");
+		}
+		SearchTemplates templates = SearchTemplates.fromJson(declaredTemplates == null ? null : declaredTemplates.getAsJsonObject());
+		Map<String, SearchIndex> indexes = new LinkedHashMap<String, SearchIndex>();
+		for (Map.Entry<String, JsonElement> entry : declared.entrySet()) {
+			if (!entry.getValue().isJsonObject()) {
+				throw new IllegalArgumentException("Index " + entry.getKey() + " must be a JSON object");
+			}
+			indexes.put(entry.getKey(), SearchIndex.fromJson(entry.getKey(), entry.getValue().getAsJsonObject(), templates));
+		}
+		String defaultIndex = string(config, "defaultIndex", indexes.keySet().iterator().next());
+		if (!indexes.containsKey(defaultIndex)) {
+			throw new IllegalArgumentException("defaultIndex " + defaultIndex + " is not declared");
+		}
+		String endpoint = Settings.getString("ES_ENDPOINT", string(config, "endpoint", null));
+		if (endpoint == null) {
+			throw new IllegalArgumentException("The search configuration has no endpoint");
+		}
+		return new SearchConfig(endpoint, string(config, "service", "es"), string(config, "region", "us-east-2"),
+				defaultIndex, templates, indexes);
+	}
+
+	static String string(JsonObject json, String name, String defaultValue) {
+		JsonElement value = json.get(name);
+		return value == null || value.isJsonNull() ? defaultValue : value.getAsString();
+	}
+
+	/**
+	 * @return base URL of the domain, e.g. https://search-....es.amazonaws.com/
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * @return signing service name ("es")
+	 */
+	public String getServiceName() {
+		return serviceName;
+	}
+
+	/**
+	 * @return region of the domain, for signing
+	 */
+	public String getRegionName() {
+		return regionName;
+	}
+
+	/**
+	 * @return index answering requests that do not name one
+	 */
+	public String getDefaultIndex() {
+		return defaultIndex;
+	}
+
+	/**
+	 * @return the declared search templates
+	 */
+	public SearchTemplates getTemplates() {
+		return templates;
+	}
+
+	/**
+	 * @param name = index name, as declared
+	 * @return the index, or null if none is declared under name
+	 */
+	public SearchIndex getIndex(String name) {
+		return indexes.get(name);
+	}
+
+	/**
+	 * @return every declared index, in declaration order
+	 */
+	public Map<String, SearchIndex> getIndexes() {
+		return indexes;
+	}
+}
@@ -0,0 +1,348 @@
+package com.amazonaws.lambda.search;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.amazonaws.lambda.es.Deadline;
+
+/**
+ * One index of the search configuration (see {@link SearchConfig}): which query parameters it accepts,
+ * the fields they map to, and how its search body is built. Either
+ * <ul>
+ * <li>"handler": name of a RequestHandler class that answers for the index on its own
+ * (e.g. GbifLambdaHandler, with cursors, facets and its cache), or</li>
+ * <li>"params": {"name": {"field": "...", "type": "term|match|range", "default": "..."}, ...}, combined into
+ * a bool query (term and range as filters, match as scored clauses; range values are "from,to",
+ * either end optional), or substituted into "template", a search body in which strings
+ * "{{name}}" (values or keys) stand for parameters; templates only need the parameter names (and defaults).
+ * "template" may also be the id of a stored template ({@link SearchTemplates}): the body is then
+ * that id and the parameter values, sent to _search/template.</li>
+ * </ul>
+ * "index" is the ES index (default: the entry's name), "size" and "maxSize" bound the hits
+ * returned (10 and 100), "size" may be passed as a query parameter.
+ */
+public final class SearchIndex {
+
+	public static final String SIZE = "size";
+
+	/**
+	 * How a parameter is matched against its field.
+	 */
+	public enum Clause {
+		/** exact value, as a filter */
+		TERM,
+		/** analyzed text, scored */
+		MATCH,
+		/** "from,to", either end optional, as a filter */
+		RANGE
+	}
+
+	/**
+	 * A declared query parameter.
+	 */
+	public static final class Param {
+
+		private final String field;
+		private final Clause clause;
+		private final String defaultValue;
+
+		Param(String field, Clause clause, String defaultValue) {
+			this.field = field;
+			this.clause = clause;
+			this.defaultValue = defaultValue;
+		}
+
+		/**
+		 * @return field searched, null for template parameters
+		 */
+		public String getField() {
+			return field;
+		}
+
+		public Clause getClause() {
+			return clause;
+		}
+
+		/**
+		 * @return value used when the parameter is not given, or null
+		 */
+		public String getDefault() {
+			return defaultValue;
+		}
+	}
+
+	private final String name;
+	private final String index;
+	private final String handler;
+	private final Map<String, Param> params;
+	private final JsonObject template;
+	private final String storedTemplate;
+	private final int defaultSize;
+	private final int maxSize;
+
+	private SearchIndex(String name, String index, String handler, Map<String, Param> params, JsonObject template,
+			String storedTemplate, int defaultSize, int maxSize) {
+		this.name = name;
+		this.index = index;
+		this.handler = handler;
+		this.params = Collections.unmodifiableMap(params);
+		this.template = template;
+		this.storedTemplate = storedTemplate;
+		this.defaultSize = defaultSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @param name = name the index is declared (and requested) under
+	 * @param json = its declaration
+	 * @throws IllegalArgumentException if the declaration is invalid
+	 */
+	static SearchIndex fromJson(String name, JsonObject json) {
+		return fromJson(name, json, SearchTemplates.fromJson(null));
+	}
+
+	/**
+	 * @param name = name the index is declared (and requested) under
+	 * @param json = its declaration
+	 * @param templates = stored templates it may name
+	 * @throws IllegalArgumentException if the declaration is invalid, or names an undeclared template
+	 */
+	static SearchIndex fromJson(String name, JsonObject json, SearchTemplates templates) {
+		String handler = SearchConfig.string(json, "handler", null);
+		if (handler != null) {
+			if (json.has("params") || json.has("template")) {
+				throw new IllegalArgumentException("Index " + name + ": a handler index declares no params or template");
+			}
+			try {
+				//checked, not initialized
+				Class.forName(handler, false, SearchIndex.class.getClassLoader());
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException("Index " + name + ": no handler class " + handler);
+			}
+			return new SearchIndex(name, SearchConfig.string(json, "index", name), handler,
+					Collections.<String, Param>emptyMap(), null, null, 0, 0);
+		}
+		JsonElement templateJson = json.get("template");
+		String storedTemplate = null;
+		if (templateJson != null && templateJson.isJsonPrimitive() && templateJson.getAsJsonPrimitive().isString()) {
+			storedTemplate = templateJson.getAsString();
+			if (templates.getSource(storedTemplate) == null) {
+				throw new IllegalArgumentException("Index " + name + ": no template " + storedTemplate);
+			}
+		} else if (templateJson != null && !templateJson.isJsonObject()) {
+			throw new IllegalArgumentException("Index " + name + ": template must be a search body (a JSON object) or a template id");
+		}
+		JsonObject template = templateJson == null || storedTemplate != null ? null : templateJson.getAsJsonObject();
+		Map<String, Param> params = new LinkedHashMap<String, Param>();
+		JsonObject declared = json.has("params") ? json.getAsJsonObject("params") : new JsonObject();
+		for (Map.Entry<String, JsonElement> entry : declared.entrySet()) {
+			String param = entry.getKey();
+			if (SIZE.equals(param) || SearchTemplates.TIMEOUT.equals(param)) {
+				throw new IllegalArgumentException("Index " + name + ": " + param + " is a reserved parameter");
+			}
+			JsonObject spec = entry.getValue().getAsJsonObject();
+			String field = SearchConfig.string(spec, "field", null);
+			if (template == null && storedTemplate == null && field == null) {
+				throw new IllegalArgumentException("Index " + name + ": parameter " + param + " has no field");
+			}
+			Clause clause;
+			try {
+				clause = Clause.valueOf(SearchConfig.string(spec, "type", "term").toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Index " + name + ": invalid type for parameter " + param);
+			}
+			params.put(param, new Param(field, clause, SearchConfig.string(spec, "default", null)));
+		}
+		if (template != null || storedTemplate != null) {
+			Set<String> placeholders = new TreeSet<String>();
+			if (template != null) {
+				SearchTemplates.placeholders(template, placeholders);
+			} else {
+				placeholders.addAll(templates.getParams(storedTemplate));
+				placeholders.remove(SIZE);
+				placeholders.remove(SearchTemplates.TIMEOUT);
+			}
+			placeholders.removeAll(params.keySet());
+			if (!placeholders.isEmpty()) {
+				throw new IllegalArgumentException("Index " + name + ": template uses undeclared parameters " + placeholders);
+			}
+		}
+		int defaultSize = json.has(SIZE) ? json.get(SIZE).getAsInt() : 10;
+		int maxSize = json.has("maxSize") ? json.get("maxSize").getAsInt() : 100;
+		if (defaultSize < 0 || defaultSize > maxSize) {
+			throw new IllegalArgumentException("Index " + name + ": size must be between 0 and maxSize");
+		}
+		return new SearchIndex(name, SearchConfig.string(json, "index", name), null, params, template, storedTemplate,
+				defaultSize, maxSize);
+	}
+
+	/**
+	 * Builds the search body for a request to this index: the search itself, or for a stored template
+	 * {"id": "...", "params": {...}} (size and timeout included, timeout "-1" without a deadline).
+	 * @param querystring = query string parameters as name, value pairs
+	 * @param deadline = time budget, passed on to ES as the search timeout; null for none
+	 * @return JSON body for {@link #getResourcePath()}
+	 * @throws IllegalArgumentException for undeclared parameters, invalid values or a missing template parameter
+	 */
+	public String compile(Map<String, String> querystring, Deadline deadline) {
+		if (handler != null) {
+			throw new IllegalStateException("Index " + name + " is answered by " + handler);
+		}
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		int size = defaultSize;
+		for (Map.Entry<String, String> entry : querystring.entrySet()) {
+			String value = entry.getValue() == null ? "" : entry.getValue().trim();
+			if (SIZE.equals(entry.getKey())) {
+				size = parseSize(value);
+			} else if (!params.containsKey(entry.getKey())) {
+				throw new IllegalArgumentException("Unsupported query parameter: " + entry.getKey());
+			} else if (!value.isEmpty()) {
+				values.put(entry.getKey(), value);
+			}
+		}
+		for (Map.Entry<String, Param> param : params.entrySet()) {
+			if (!values.containsKey(param.getKey()) && param.getValue().defaultValue != null) {
+				values.put(param.getKey(), param.getValue().defaultValue);
+			}
+		}
+		if (storedTemplate != null) {
+			JsonObject templateParams = new JsonObject();
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				templateParams.addProperty(value.getKey(), value.getValue());
+			}
+			templateParams.addProperty(SIZE, size);
+			templateParams.addProperty(SearchTemplates.TIMEOUT, deadline != null ? deadline.esTimeout() : "-1");
+			JsonObject body = new JsonObject();
+			body.addProperty("id", storedTemplate);
+			body.add("params", templateParams);
+			return body.toString();
+		}
+		JsonObject body = template != null ? SearchTemplates.render(template, values).getAsJsonObject() : query(values);
+		if (!body.has(SIZE)) {
+			body.addProperty(SIZE, size);
+		}
+		if (deadline != null && !body.has("timeout")) {
+			body.addProperty("timeout", deadline.esTimeout());
+		}
+		return body.toString();
+	}
+
+	private int parseSize(String value) {
+		int size;
+		try {
+			size = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for size: " + value);
+		}
+		if (size < 0 || size > maxSize) {
+			throw new IllegalArgumentException("size must be between 0 and " + maxSize);
+		}
+		return size;
+	}
+
+	private JsonObject query(Map<String, String> values) {
+		JsonObject query = new JsonObject();
+		if (values.isEmpty()) {
+			query.add("match_all", new JsonObject());
+		} else {
+			JsonArray filter = new JsonArray();
+			JsonArray must = new JsonArray();
+			for (Map.Entry<String, String> entry : values.entrySet()) {
+				Param param = params.get(entry.getKey());
+				if (param.clause == Clause.MATCH) {
+					must.add(clause("match", param.field, new JsonPrimitive(entry.getValue())));
+				} else if (param.clause == Clause.RANGE) {
+					filter.add(clause("range", param.field, range(entry.getKey(), entry.getValue())));
+				} else {
+					filter.add(clause("term", param.field, new JsonPrimitive(entry.getValue())));
+				}
+			}
+			JsonObject bool = new JsonObject();
+			if (filter.size() > 0) {
+				bool.add("filter", filter);
+			}
+			if (must.size() > 0) {
+				bool.add("must", must);
+			}
+			query.add("bool", bool);
+		}
+		JsonObject body = new JsonObject();
+		body.add("query", query);
+		return body;
+	}
+
+	private static JsonObject clause(String type, String field, JsonElement value) {
+		JsonObject condition = new JsonObject();
+		condition.add(field, value);
+		JsonObject clause = new JsonObject();
+		clause.add(type, condition);
+		return clause;
+	}
+
+	private static JsonObject range(String name, String value) {
+		int comma = value.indexOf(',');
+		String from = (comma < 0 ? value : value.substring(0, comma)).trim();
+		String to = comma < 0 ? from : value.substring(comma + 1).trim();
+		if (from.isEmpty() && to.isEmpty()) {
+			throw new IllegalArgumentException("Invalid range for " + name + ": " + value);
+		}
+		JsonObject range = new JsonObject();
+		if (!from.isEmpty()) {
+			range.addProperty("gte", from);
+		}
+		if (!to.isEmpty()) {
+			range.addProperty("lte", to);
+		}
+		return range;
+	}
+
+	/**
+	 * @return name the index is declared under
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return ES index searched
+	 */
+	public String getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return class name of the RequestHandler answering for this index, or null if the router does
+	 */
+	public String getHandler() {
+		return handler;
+	}
+
+	/**
+	 * @return id of the stored template the index runs, or null
+	 */
+	public String getStoredTemplate() {
+		return storedTemplate;
+	}
+
+	/**
+	 * @return path the compiled body is sent to: /index/_search, or /index/_search/template
+	 */
+	public String getResourcePath() {
+		return "/" + index + (storedTemplate != null ? "/_search/template" : "/_search");
+	}
+
+	/**
+	 * @return declared query parameters, in declaration order
+	 */
+	public Map<String, Param> getParams() {
+		return params;
+	}
+}
@@ -0,0 +1,188 @@
+package com.amazonaws.lambda.search;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.BodyResponseHandler;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.EsErrorHandler;
+import com.amazonaws.lambda.es.EsSigner;
+import com.amazonaws.lambda.es.HashedPayload;
+import com.amazonaws.lambda.es.Metrics;
+import com.amazonaws.lambda.es.SingleFlight;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * One Lambda for every index of the search configuration ({@link SearchConfig}): the index is the
+ * {index} path parameter of the request (e.g. GET /shakespeare?speaker=HAMLET), or the configured default.
+ * Indexes with a handler are passed the event as is;
+ * the others are searched here, with the body their declaration compiles (see {@link SearchIndex});
+ * stored templates are put on the cluster by the first request that runs them.
+ * All indexes share the container's pooled EsClient, the cached signer and credentials (EsSigner),
+ * and write the same metrics line (see {@link Metrics}), so another index is another config entry
+ * rather than another function with its own cold starts and connection pool.
+ */
+public class SearchRouter implements RequestHandler<Object, String> {
+
+	public static final String INDEX = "index";
+
+	private static final ConcurrentMap<String, RequestHandler<Object, String>> handlers =
+			new ConcurrentHashMap<String, RequestHandler<Object, String>>();
+
+	private final SearchConfig config;
+	//concurrent searches of the same compiled query share one ES call
+	private final SingleFlight flights = SingleFlight.fromSettings("SEARCH_COALESCE");
+
+	/**
+	 * The Lambda entry point: routes to the default configuration, and creates (and so primes)
+	 * the handlers it declares during init rather than on their first request.
+	 */
+	public SearchRouter() {
+		this(SearchConfig.getDefault());
+		for (SearchIndex index : config.getIndexes().values()) {
+			if (index.getHandler() != null) {
+				handler(index);
+			}
+		}
+	}
+
+	/**
+	 * @param config = indexes to route to, and the domain they live in; handlers are created on first use
+	 */
+	public SearchRouter(SearchConfig config) {
+		this.config = config;
+	}
+
+	/**
+	 * @param input = API Request event; the index is its {index} path parameter
+	 * @param context = context of the environment and execution
+	 * @throws IllegalArgumentException for an undeclared index, or parameters the index does not accept
+	 */
+	@Override
+	public String handleRequest(Object input, Context context) {
+		ApiGatewayEvent event = ApiGatewayEvent.fromObject(input);
+		String name = event.getPathParameter(INDEX);
+		SearchIndex index = config.getIndex(name == null ? config.getDefaultIndex() : name);
+		if (index == null) {
+			throw new IllegalArgumentException("Unknown index: " + name);
+		}
+		if (index.getHandler() != null) {
+			return handler(index).handleRequest(input, context);
+		}
+		return search(index, event.getQuerystring(), context);
+	}
+
+	/**
+	 * Searches an index declared with params (or a template), as one metered invocation.
+	 * Identical searches in flight at the same time share one ES call (see {@link SingleFlight}).
+	 * @param index = index to search; must not have a handler
+	 * @param querystring = query string parameters
+	 * @return the ES search response, or Deadline.TIMED_OUT_BODY if ES did not answer in time
+	 */
+	public String search(final SearchIndex index, final Map<String, String> querystring, Context context) {
+		Metrics metrics = Metrics.begin("SearchRouter", context);
+		metrics.property(INDEX, index.getName());
+		try {
+			final Deadline deadline = Deadline.fromContext(context);
+			//the body without the deadline's timeout: the same for every caller of the same query
+			String key = index.getResourcePath() + ' ' + index.compile(querystring, null);
+			String response;
+			try {
+				response = flights.execute(key, deadline, new SingleFlight.Call<String>() {
+					@Override
+					public String run() {
+						return EsClient.getInstance().execute(request(index, querystring, deadline), new BodyResponseHandler(),
+								new EsErrorHandler(config.getServiceName()), deadline).getAwsResponse();
+					}
+				});
+			} catch (RuntimeException e) {
+				if (!Deadline.isTimeout(e)) {
+					throw e;
+				}
+				response = Deadline.TIMED_OUT_BODY;
+			}
+			metrics.count(Metrics.Counter.BYTES_OUT, response.length());
+			return response;
+		} catch (RuntimeException e) {
+			metrics.failed(e);
+			throw e;
+		} finally {
+			metrics.end();
+		}
+	}
+
+	/**
+	 * @param index = index to search; must not have a handler
+	 * @param querystring = query string parameters
+	 * @param deadline = time budget of the search, or null
+	 * @return the signed _search (or _search/template) request
+	 */
+	public Request<?> request(SearchIndex index, Map<String, String> querystring, Deadline deadline) {
+		if (index.getStoredTemplate() != null) {
+			register(index.getStoredTemplate(), deadline);
+		}
+		Metrics metrics = Metrics.current();
+		long start = System.nanoTime();
+		Request<?> request = new DefaultRequest<Void>(config.getServiceName());
+		request.setContent(HashedPayload.of(index.compile(querystring, deadline)).newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(URI.create(config.getEndpoint()));
+		request.setResourcePath(index.getResourcePath());
+		request.setHttpMethod(HttpMethodName.GET);
+		metrics.record(Metrics.Phase.COMPILE, start);
+		start = System.nanoTime();
+		EsSigner.getInstance(config.getServiceName(), config.getRegionName()).sign(request);
+		metrics.record(Metrics.Phase.SIGN, start);
+		return request;
+	}
+
+	/**
+	 * Stores template id on the cluster (PUT _scripts/id), once per container: the template then
+	 * lives with its declaration, and a redeployment that changes it replaces it.
+	 * @param id = template declared in the configuration
+	 * @param deadline = time budget of the search that needs it, or null
+	 */
+	public void register(String id, Deadline deadline) {
+		SearchTemplates templates = config.getTemplates();
+		if (templates.isRegistered(id)) {
+			return;
+		}
+		Request<?> request = new DefaultRequest<Void>(config.getServiceName());
+		request.setContent(HashedPayload.of(templates.toScript(id)).newContent());
+		request.addHeader("Content-type", "application/json");
+		request.setEndpoint(URI.create(config.getEndpoint()));
+		request.setResourcePath("/_scripts/" + id);
+		request.setHttpMethod(HttpMethodName.PUT);
+		EsSigner.getInstance(config.getServiceName(), config.getRegionName()).sign(request);
+		EsClient.getInstance().execute(request, new BodyResponseHandler(), new EsErrorHandler(config.getServiceName()), deadline);
+		templates.setRegistered(id);
+	}
+
+	/**
+	 * @return the declared handler of index, instantiated once per container
+	 */
+	@SuppressWarnings("unchecked")
+	private static RequestHandler<Object, String> handler(SearchIndex index) {
+		RequestHandler<Object, String> handler = handlers.get(index.getHandler());
+		if (handler == null) {
+			try {
+				handler = (RequestHandler<Object, String>) Class.forName(index.getHandler()).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new IllegalStateException("Index " + index.getName() + ": cannot use handler " + index.getHandler(), e);
+			}
+			RequestHandler<Object, String> existing = handlers.putIfAbsent(index.getHandler(), handler);
+			if (existing != null) {
+				handler = existing;
+			}
+		}
+		return handler;
+	}
+}
@@ -0,0 +1,316 @@
+package com.amazonaws.lambda.search;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonObject;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.ErrorClass;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.Settings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the search indexes over HTTP as a long-running process (a container behind a load balancer)
+ * instead of Lambda invocations: GET /{index}?... (or POST a batch) answers as {@link SearchRouter} does,
+ * GET / searches the default index and GET /health is the load balancer's check. Handlers, their caches,
+ * the signer and the pooled EsClient are created once and shared by every request.
+ *
+ * Each request runs on its own virtual thread (JDK 21+), or on a fixed pool of SERVER_MAX_CONCURRENCY
+ * threads on older JDKs (SERVER_VIRTUAL_THREADS=false forces the pool). At most SERVER_MAX_CONCURRENCY
+ * (64) requests are handled at once; beyond that requests are answered 503 right away rather than queued,
+ * so a loaded instance sheds load to its peers. SERVER_REQUEST_TIMEOUT_MS (10 s) is each request's
+ * budget, as the function timeout is in Lambda (see Deadline). ES_MAX_CONNECTIONS defaults to the
+ * concurrency limit, so requests do not wait on the connection pool.
+ *
+ * On SIGTERM the server drains: /health and new requests get 503, requests under way finish
+ * (for up to SERVER_SHUTDOWN_GRACE_MS, 20 s), then the listener and the ES client are closed.
+ */
+public final class SearchServer {
+
+	public static final String PORT = "SERVER_PORT";
+	public static final String MAX_CONCURRENCY = "SERVER_MAX_CONCURRENCY";
+	public static final String REQUEST_TIMEOUT_MS = "SERVER_REQUEST_TIMEOUT_MS";
+	public static final String SHUTDOWN_GRACE_MS = "SERVER_SHUTDOWN_GRACE_MS";
+	public static final String VIRTUAL_THREADS = "SERVER_VIRTUAL_THREADS";
+	public static final String HEALTH = "/health";
+
+	private final SearchConfig config;
+	private final SearchRouter router;
+	private final HttpServer server;
+	private final ExecutorService workers;
+	private final boolean virtualThreads;
+	private final Semaphore permits;
+	private final int maxConcurrency;
+	private final long requestTimeoutMillis;
+	private volatile boolean draining;
+
+	/**
+	 * @param config = indexes served
+	 * @param router = router over config
+	 * @param address = address to listen on (port 0 for any free port)
+	 * @param maxConcurrency = requests handled at once; more are answered 503
+	 * @param requestTimeoutMillis = time budget of each request
+	 * @param virtualThreads = one virtual thread per request if the JDK has them, else a fixed pool
+	 */
+	public SearchServer(SearchConfig config, SearchRouter router, InetSocketAddress address, int maxConcurrency,
+			long requestTimeoutMillis, boolean virtualThreads) throws IOException {
+		this.config = config;
+		this.router = router;
+		this.maxConcurrency = maxConcurrency;
+		this.requestTimeoutMillis = requestTimeoutMillis;
+		this.permits = new Semaphore(maxConcurrency);
+		ExecutorService pool = virtualThreads ? virtualThreadExecutor() : null;
+		this.virtualThreads = pool != null;
+		if (pool == null) {
+			//never more tasks than permits: the pool does not queue
+			pool = Executors.newFixedThreadPool(maxConcurrency, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "search-server-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		this.workers = pool;
+		this.server = HttpServer.create(address, 0);
+		//the listener thread only admits requests: they are handled on the workers
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				admit(exchange);
+			}
+		});
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() of JDK 21+, looked up at runtime as the code targets Java 8;
+	 * null where there is none (or it is a preview feature)
+	 */
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the process: SERVER_PORT (8080), the indexes of the default configuration.
+	 */
+	public static void main(String[] args) throws IOException {
+		int maxConcurrency = Settings.getInt(MAX_CONCURRENCY, 64);
+		if (Settings.getString(EsClient.MAX_CONNECTIONS, null) == null) {
+			System.setProperty(EsClient.MAX_CONNECTIONS, String.valueOf(maxConcurrency));
+		}
+		final SearchServer server = new SearchServer(SearchConfig.getDefault(), new SearchRouter(),
+				new InetSocketAddress(Settings.getInt(PORT, 8080)), maxConcurrency,
+				Settings.getLong(REQUEST_TIMEOUT_MS, 10000L), Settings.getBoolean(VIRTUAL_THREADS, true));
+		//closed once the requests under way are answered, not concurrently with them
+		EsClient.keepOpenOnExit();
+		final long graceMillis = Settings.getLong(SHUTDOWN_GRACE_MS, 20000L);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.stop(graceMillis);
+				EsClient.getInstance().close();
+			}
+		}, "search-server-shutdown"));
+		server.start();
+		System.err.println("SearchServer listening on port " + server.getPort() + ", "
+				+ (server.usesVirtualThreads() ? "virtual threads" : maxConcurrency + " threads"));
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @return port listened on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return true if requests run on virtual threads, false for the fixed pool
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Stops gracefully: new requests are refused (503), those under way get up to graceMillis to finish,
+	 * then the listener and the workers are shut down.
+	 * @param graceMillis = longest wait for requests under way
+	 */
+	public void stop(long graceMillis) {
+		draining = true;
+		try {
+			//every permit back: nothing is under way
+			if (permits.tryAcquire(maxConcurrency, graceMillis, TimeUnit.MILLISECONDS)) {
+				permits.release(maxConcurrency);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		server.stop(0);
+		workers.shutdownNow();
+	}
+
+	private void admit(final HttpExchange exchange) throws IOException {
+		if (HEALTH.equals(exchange.getRequestURI().getPath())) {
+			respond(exchange, draining ? 503 : 200, draining ? "{\"status\":\"draining\"}" : "{\"status\":\"ok\"}",
+					"application/json");
+			return;
+		}
+		if (draining) {
+			exchange.getResponseHeaders().set("Connection", "close");
+			respond(exchange, 503, message("The server is shutting down"), "application/json");
+			return;
+		}
+		if (!permits.tryAcquire()) {
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			respond(exchange, 503, message("Too many concurrent requests"), "application/json");
+			return;
+		}
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						handle(exchange);
+					} finally {
+						exchange.close();
+						permits.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			//the workers are shut down
+			permits.release();
+			respond(exchange, 503, message("The server is shutting down"), "application/json");
+		}
+	}
+
+	private void handle(HttpExchange exchange) {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String index = path.length() > 1 ? path.substring(1) : null;
+			if (index != null && (index.indexOf('/') >= 0 || config.getIndex(index) == null)) {
+				respond(exchange, 404, message("Unknown index: " + index), "application/json");
+				return;
+			}
+			Map<String, String> querystring = querystring(exchange.getRequestURI().getRawQuery());
+			String requestId = exchange.getRequestHeaders().getFirst("X-Request-Id");
+			ServerContext context = new ServerContext(requestId != null ? requestId : UUID.randomUUID().toString(),
+					requestTimeoutMillis);
+			String body;
+			int status = 200;
+			try {
+				body = router.handleRequest(event(exchange, index, querystring), context);
+			} catch (IllegalArgumentException e) {
+				status = 400;
+				body = message(e.getMessage());
+			} catch (RuntimeException e) {
+				ErrorClass error = ErrorClass.of(e);
+				status = Deadline.isTimeout(e) ? 504 : error.isUnhealthy() ? 503 : 502;
+				body = message(status == 504 ? "The search did not complete in time" : "Search failed: " + e.getMessage());
+			}
+			//format=ndjson: one hit per line (see GbifHitsTranscoder)
+			respond(exchange, status, body, "ndjson".equals(querystring.get("format")) ? "application/x-ndjson" : "application/json");
+		} catch (IOException e) {
+			//the client went away
+		}
+	}
+
+	/*
+	 * The request as a Lambda proxy event, which every handler decodes (see ApiGatewayEvent)
+	 */
+	private static Map<String, Object> event(HttpExchange exchange, String index, Map<String, String> querystring)
+			throws IOException {
+		Map<String, Object> event = new LinkedHashMap<String, Object>();
+		event.put("httpMethod", exchange.getRequestMethod());
+		event.put("path", exchange.getRequestURI().getPath());
+		event.put("queryStringParameters", querystring);
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+			if (!header.getValue().isEmpty()) {
+				headers.put(header.getKey(), header.getValue().get(0));
+			}
+		}
+		event.put("headers", headers);
+		if (index != null) {
+			Map<String, String> path = new LinkedHashMap<String, String>();
+			path.put(SearchRouter.INDEX, index);
+			event.put("pathParameters", path);
+		}
+		String body = read(exchange.getRequestBody());
+		if (!body.isEmpty()) {
+			event.put("body", body);
+		}
+		return event;
+	}
+
+	static Map<String, String> querystring(String rawQuery) throws UnsupportedEncodingException {
+		Map<String, String> querystring = new LinkedHashMap<String, String>();
+		if (rawQuery == null || rawQuery.isEmpty()) {
+			return querystring;
+		}
+		for (String pair : rawQuery.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			//repeated parameters: the last one wins, as in API Gateway's queryStringParameters
+			querystring.put(URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8"),
+					eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+		}
+		return querystring;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+			body.write(buffer, 0, n);
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String message(String message) {
+		JsonObject json = new JsonObject();
+		json.addProperty("message", message);
+		return json.toString();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body, String contentType) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.amazonaws.lambda.search;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Search templates of the configuration ("templates": {"id": {search body}, ...}), stored on the
+ * cluster as mustache scripts (PUT _scripts/id) and run with _search/template: requests then carry
+ * the template id and the parameter values only, and ES compiles each template once.
+ *
+ * Templates are search bodies in which a string "{{name}}", as a value or as a key, stands for
+ * a parameter. ES renders them with JSON escaping, so values cannot break out of their string.
+ * "size" and "timeout" are added to every stored template ("{{size}}", "{{timeout}}"; ES accepts
+ * numbers as strings there) unless it sets them itself, and are always passed.
+ */
+public final class SearchTemplates {
+
+	public static final String LANG = "mustache";
+	public static final String SIZE = "size";
+	public static final String TIMEOUT = "timeout";
+
+	private final Map<String, JsonObject> sources;
+	//ids stored on the cluster by this container
+	private final Set<String> registered = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private SearchTemplates(Map<String, JsonObject> sources) {
+		this.sources = Collections.unmodifiableMap(sources);
+	}
+
+	/**
+	 * @param templates = "templates" object of the configuration; null for none
+	 * @throws IllegalArgumentException for invalid ids or templates that are not search bodies
+	 */
+	static SearchTemplates fromJson(JsonObject templates) {
+		Map<String, JsonObject> sources = new LinkedHashMap<String, JsonObject>();
+		if (templates != null) {
+			for (Map.Entry<String, JsonElement> entry : templates.entrySet()) {
+				String id = entry.getKey();
+				if (!id.matches("[A-Za-z0-9_\\-]+")) {
+					throw new IllegalArgumentException("Invalid template id: " + id);
+				}
+				if (!entry.getValue().isJsonObject()) {
+					throw new IllegalArgumentException("Template " + id + " must be a search body (a JSON object)");
+				}
+				JsonObject source = render(entry.getValue(), null).getAsJsonObject();
+				if (!source.has(SIZE)) {
+					source.addProperty(SIZE, "{{" + SIZE + "}}");
+				}
+				if (!source.has(TIMEOUT)) {
+					source.addProperty(TIMEOUT, "{{" + TIMEOUT + "}}");
+				}
+				sources.put(id, source);
+			}
+		}
+		return new SearchTemplates(sources);
+	}
+
+	/**
+	 * @return ids of the declared templates
+	 */
+	public Set<String> getIds() {
+		return sources.keySet();
+	}
+
+	/**
+	 * @return the template source, as stored (with size and timeout), or null if id is not declared
+	 */
+	public JsonObject getSource(String id) {
+		return sources.get(id);
+	}
+
+	/**
+	 * @return parameter names template id uses, size and timeout included
+	 */
+	public Set<String> getParams(String id) {
+		Set<String> names = new TreeSet<String>();
+		placeholders(sources.get(id), names);
+		return names;
+	}
+
+	/**
+	 * @return body of the PUT _scripts/id request storing template id
+	 */
+	public String toScript(String id) {
+		JsonObject script = new JsonObject();
+		script.addProperty("lang", LANG);
+		script.add("source", sources.get(id));
+		JsonObject body = new JsonObject();
+		body.add("script", script);
+		return body.toString();
+	}
+
+	/**
+	 * @return true once template id has been stored on the cluster by this container
+	 */
+	public boolean isRegistered(String id) {
+		return registered.contains(id);
+	}
+
+	void setRegistered(String id) {
+		registered.add(id);
+	}
+
+	/*
+	 * Names of the "{{name}}" strings (keys and values) of a template
+	 */
+	static void placeholders(JsonElement json, Set<String> names) {
+		if (json.isJsonObject()) {
+			for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+				String key = placeholder(entry.getKey());
+				if (key != null) {
+					names.add(key);
+				}
+				placeholders(entry.getValue(), names);
+			}
+		} else if (json.isJsonArray()) {
+			for (JsonElement element : json.getAsJsonArray()) {
+				placeholders(element, names);
+			}
+		} else if (json.isJsonPrimitive() && json.getAsJsonPrimitive().isString()) {
+			String value = placeholder(json.getAsString());
+			if (value != null) {
+				names.add(value);
+			}
+		}
+	}
+
+	private static String placeholder(String value) {
+		return value.length() > 4 && value.startsWith("{{") && value.endsWith("}}")
+				? value.substring(2, value.length() - 2).trim() : null;
+	}
+
+	/*
+	 * Copy of a template with its placeholders (keys and values) replaced by values;
+	 * a plain copy when values is null
+	 */
+	static JsonElement render(JsonElement json, Map<String, String> values) {
+		if (json.isJsonObject()) {
+			JsonObject copy = new JsonObject();
+			for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+				copy.add(values == null ? entry.getKey() : value(entry.getKey(), values), render(entry.getValue(), values));
+			}
+			return copy;
+		}
+		if (json.isJsonArray()) {
+			JsonArray copy = new JsonArray();
+			for (JsonElement element : json.getAsJsonArray()) {
+				copy.add(render(element, values));
+			}
+			return copy;
+		}
+		if (values == null || !json.isJsonPrimitive() || !json.getAsJsonPrimitive().isString()) {
+			return json;
+		}
+		return new JsonPrimitive(value(json.getAsString(), values));
+	}
+
+	private static String value(String text, Map<String, String> values) {
+		String placeholder = placeholder(text);
+		if (placeholder == null) {
+			return text;
+		}
+		String value = values.get(placeholder);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing query parameter: " + placeholder);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,88 @@
+package com.amazonaws.lambda.search;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * The Lambda context of a request served by {@link SearchServer}: what the handlers read from
+ * it, the request id (metrics) and the time left (Deadline), with the server's request timeout
+ * in place of the function timeout. The rest has no meaning outside Lambda.
+ */
+final class ServerContext implements Context {
+
+	private static final LambdaLogger LOGGER = new LambdaLogger() {
+		@Override
+		public void log(String string) {
+			System.err.println(string);
+		}
+	};
+
+	private final String requestId;
+	private final long deadlineMillis;
+
+	/**
+	 * @param requestId = id of the request, logged with its metrics
+	 * @param timeoutMillis = time the request may take, from now
+	 */
+	ServerContext(String requestId, long timeoutMillis) {
+		this.requestId = requestId;
+		this.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+	}
+
+	@Override
+	public String getAwsRequestId() {
+		return requestId;
+	}
+
+	@Override
+	public int getRemainingTimeInMillis() {
+		return (int) Math.max(0, deadlineMillis - System.currentTimeMillis());
+	}
+
+	@Override
+	public String getLogGroupName() {
+		return null;
+	}
+
+	@Override
+	public String getLogStreamName() {
+		return null;
+	}
+
+	@Override
+	public String getFunctionName() {
+		return SearchServer.class.getSimpleName();
+	}
+
+	@Override
+	public String getFunctionVersion() {
+		return null;
+	}
+
+	@Override
+	public String getInvokedFunctionArn() {
+		return null;
+	}
+
+	@Override
+	public CognitoIdentity getIdentity() {
+		return null;
+	}
+
+	@Override
+	public ClientContext getClientContext() {
+		return null;
+	}
+
+	@Override
+	public int getMemoryLimitInMB() {
+		return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+	}
+
+	@Override
+	public LambdaLogger getLogger() {
+		return LOGGER;
+	}
+}
@@ -0,0 +1,43 @@
+package com.amazonaws.lambda.shakespeare;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.amazonaws.Request;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.es.EsClient;
+import com.amazonaws.lambda.es.EsErrorHandler;
+import com.amazonaws.lambda.es.StreamingResponseHandler;
+import com.amazonaws.lambda.search.SearchConfig;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+
+/**
+ * Streaming variant of {@link LambdaFunctionHandler}: the ES response body is copied directly
+ * into the Lambda output stream through a fixed buffer, with no intermediate String.
+ * If ES has not started answering by the invocation's deadline, {@link Deadline#TIMED_OUT_BODY} is written.
+ */
+public class LambdaFunctionStreamHandler implements RequestStreamHandler {
+
+	@Override
+	public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+		Deadline deadline = Deadline.fromContext(context);
+		Request<?> request = LambdaFunctionHandler.router.request(LambdaFunctionHandler.index,
+				ApiGatewayEvent.fromStream(input).getQuerystring(), deadline);
+
+		StreamingResponseHandler<Void> responseHandler = new StreamingResponseHandler<Void>(output);
+		try {
+			EsClient.getInstance().execute(request, responseHandler,
+					new EsErrorHandler(SearchConfig.getDefault().getServiceName()), deadline);
+		} catch (RuntimeException e) {
+			if (!Deadline.isTimeout(e) || responseHandler.getBytesCopied() > 0) {
+				throw e;
+			}
+			output.write(Deadline.TIMED_OUT_BODY.getBytes(StandardCharsets.UTF_8));
+		}
+		output.flush();
+	}
+}
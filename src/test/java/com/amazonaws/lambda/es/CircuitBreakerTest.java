@@ -0,0 +1,90 @@
+package com.amazonaws.lambda.es;
+
+import java.net.SocketTimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+
+public class CircuitBreakerTest {
+
+    private static AmazonServiceException status(int status) {
+        AmazonServiceException e = new AmazonServiceException("status " + status);
+        e.setStatusCode(status);
+        return e;
+    }
+
+    @Test
+    public void testClassifiesFailures() {
+        Assert.assertEquals(ErrorClass.THROTTLED, ErrorClass.of(status(429)));
+        Assert.assertEquals(ErrorClass.UNAVAILABLE, ErrorClass.of(status(503)));
+        Assert.assertEquals(ErrorClass.SERVER, ErrorClass.of(status(500)));
+        Assert.assertEquals(ErrorClass.CLIENT, ErrorClass.of(status(400)));
+        Assert.assertFalse(ErrorClass.CLIENT.isUnhealthy());
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailuresAndProbesOnce() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(2, 20);
+        breaker.acquire();
+        breaker.onFailure(ErrorClass.UNAVAILABLE);
+        breaker.acquire();
+        breaker.onFailure(ErrorClass.THROTTLED);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            Assert.fail("expected OpenException");
+        } catch (CircuitBreaker.OpenException e) {
+            Assert.assertEquals(1, breaker.getRejections());
+        }
+
+        Thread.sleep(30);
+        breaker.acquire();
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        try {
+            breaker.acquire();
+            Assert.fail("only one probe at a time");
+        } catch (CircuitBreaker.OpenException e) {
+            Assert.assertEquals(2, breaker.getRejections());
+        }
+        breaker.onSuccess();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertEquals(1, breaker.getTrips());
+    }
+
+    @Test
+    public void testClientErrorsDoNotOpenTheBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.acquire();
+        breaker.onFailure(ErrorClass.CLIENT);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testDeadlineExpiryDoesNotOpenTheBreaker() {
+        Assert.assertEquals(ErrorClass.TIMEOUT, ErrorClass.of(new Deadline.DeadlineExceededException()));
+        Assert.assertFalse(ErrorClass.TIMEOUT.isUnhealthy());
+        Assert.assertTrue(ErrorClass.TIMEOUT.allowsFallback());
+        //a silent socket is the domain's doing
+        Assert.assertEquals(ErrorClass.CONNECTION, ErrorClass.of(new SdkClientException(new SocketTimeoutException("Read timed out"))));
+
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.acquire();
+        breaker.onFailure(ErrorClass.TIMEOUT);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.acquire();
+        breaker.onFailure(ErrorClass.UNAVAILABLE);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testBackoffStaysWithinBaseAndCap() {
+        Backoff backoff = new Backoff(10, 100);
+        for (int i = 0; i < 50; i++) {
+            long delay = backoff.nextDelayMillis();
+            Assert.assertTrue(delay >= 10 && delay <= 100);
+        }
+    }
+}
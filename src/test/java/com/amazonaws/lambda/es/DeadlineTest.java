@@ -0,0 +1,121 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.http.HttpMethodName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class DeadlineTest {
+
+    private static Request<?> request(int port) {
+        Request<?> request = new DefaultRequest<Void>("es");
+        request.setEndpoint(URI.create("http://localhost:" + port));
+        request.setResourcePath("/gbif/_search");
+        request.setHttpMethod(HttpMethodName.GET);
+        return request;
+    }
+
+    @Test
+    public void testEsTimeoutLeavesHeadroom() {
+        Deadline deadline = Deadline.in(1000);
+        Assert.assertTrue(deadline.remainingMillis() <= 1000);
+        Assert.assertTrue(deadline.esTimeout().matches("\\d+ms"));
+        Assert.assertTrue(Long.parseLong(deadline.esTimeout().replace("ms", "")) <= 800);
+        Assert.assertEquals("1ms", Deadline.in(0).esTimeout());
+    }
+
+    @Test
+    public void testExpiredDeadlineIsNotSent() {
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        try {
+            client.execute(request(1), new StreamingResponseHandler<Void>(new ByteArrayOutputStream()), null, Deadline.in(0));
+            Assert.fail("expected DeadlineExceededException");
+        } catch (Deadline.DeadlineExceededException e) {
+            Assert.assertTrue(Deadline.isTimeout(e));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testSlowResponseIsAbortedAtTheDeadline() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        long start = System.nanoTime();
+        try {
+            client.execute(request(server.getAddress().getPort()),
+                    new StreamingResponseHandler<Void>(new ByteArrayOutputStream()), null, Deadline.in(300));
+            Assert.fail("expected a timeout");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.toString(), Deadline.isTimeout(e));
+            Assert.assertTrue((System.nanoTime() - start) / 1000000L < 3000);
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testStalledBodyIsAbortedAtTheDeadline() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{\"took\":1,\"hits\":[".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        StreamingResponseHandler<Void> handler = new StreamingResponseHandler<Void>(new ByteArrayOutputStream());
+        long start = System.nanoTime();
+        try {
+            client.execute(request(server.getAddress().getPort()), handler, null, Deadline.in(300));
+            Assert.fail("expected a timeout");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.toString(), Deadline.isExpired(e));
+            //what had arrived was passed on, not held back until the end
+            Assert.assertTrue(handler.getBytesCopied() > 0);
+            Assert.assertTrue((System.nanoTime() - start) / 1000000L < 3000);
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.pool.PoolStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+import com.amazonaws.util.IOUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class EsClientTest {
+
+    @Test
+    public void testPoolIsSizedFromConfiguration() {
+        ClientConfiguration config = EsClient.defaultConfiguration();
+        config.setMaxConnections(3);
+        EsClient client = new EsClient(config);
+        try {
+            PoolStats stats = client.getPoolStats();
+            Assert.assertEquals(3, stats.getMax());
+            Assert.assertEquals(0, stats.getLeased());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testSharedInstanceIsReused() {
+        Assert.assertSame(EsClient.getInstance(), EsClient.getInstance());
+    }
+
+    @Test
+    public void testRetriesThrottledCalls() throws IOException {
+        final AtomicInteger calls = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(calls.incrementAndGet() < 3 ? 429 : 200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        try {
+            Request<?> request = new DefaultRequest<Void>("es");
+            request.setEndpoint(URI.create("http://localhost:" + server.getAddress().getPort()));
+            request.setHttpMethod(HttpMethodName.GET);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            client.execute(request, new StreamingResponseHandler<Void>(body), new HttpResponseHandler<AmazonServiceException>() {
+                @Override
+                public AmazonServiceException handle(HttpResponse response) {
+                    AmazonServiceException e = new AmazonServiceException("throttled");
+                    e.setStatusCode(response.getStatusCode());
+                    return e;
+                }
+
+                @Override
+                public boolean needsConnectionLeftOpen() {
+                    return false;
+                }
+            }, Deadline.in(5000));
+
+            Assert.assertEquals("{}", body.toString("UTF-8"));
+            Assert.assertEquals(3, calls.get());
+            Assert.assertEquals(2, client.getRetries());
+            Assert.assertEquals(CircuitBreaker.State.CLOSED, client.getBreaker().getState());
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSingleAttemptsAreNotRetried() throws IOException {
+        final AtomicInteger calls = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                calls.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        try {
+            Request<?> request = new DefaultRequest<Void>("es");
+            request.setEndpoint(URI.create("http://localhost:" + server.getAddress().getPort()));
+            request.setResourcePath("/_search/scroll");
+            request.setHttpMethod(HttpMethodName.POST);
+            request.setContent(HashedPayload.of("{\"scroll\":\"1m\",\"scroll_id\":\"DXF1ZXJ5\"}").newContent());
+            try {
+                client.executeOnce(request, new StreamingResponseHandler<Void>(new ByteArrayOutputStream()),
+                        new EsErrorHandler("es"), Deadline.in(5000));
+                Assert.fail("Expected the 503 to be thrown");
+            } catch (AmazonServiceException e) {
+                Assert.assertEquals(503, e.getStatusCode());
+            }
+            Assert.assertEquals(1, calls.get());
+            Assert.assertEquals(0, client.getRetries());
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testStreamsBeforeTheBodyIsComplete() throws IOException {
+        //the server holds back the end of the body until the client has written out its start
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean complete = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write("{\"took\":1,".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                try {
+                    started.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                complete.set(true);
+                out.write("\"hits\":{}}".getBytes(StandardCharsets.UTF_8));
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        try {
+            Request<?> request = new DefaultRequest<Void>("es");
+            request.setEndpoint(URI.create("http://localhost:" + server.getAddress().getPort()));
+            request.setHttpMethod(HttpMethodName.GET);
+            final boolean[] writtenEarly = new boolean[1];
+            ByteArrayOutputStream body = new ByteArrayOutputStream() {
+                @Override
+                public synchronized void write(byte[] b, int off, int len) {
+                    if (size() == 0) {
+                        writtenEarly[0] = !complete.get();
+                        started.countDown();
+                    }
+                    super.write(b, off, len);
+                }
+            };
+            client.execute(request, new StreamingResponseHandler<Void>(body), null, Deadline.in(10000));
+
+            Assert.assertTrue("the body was buffered before being handed over", writtenEarly[0]);
+            Assert.assertEquals("{\"took\":1,\"hits\":{}}", body.toString("UTF-8"));
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testClosesIdleConnections() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        try {
+            Request<?> request = new DefaultRequest<Void>("es");
+            request.setEndpoint(URI.create("http://localhost:" + server.getAddress().getPort()));
+            request.setHttpMethod(HttpMethodName.GET);
+            client.execute(request, new StreamingResponseHandler<Void>(new ByteArrayOutputStream()), null);
+            Assert.assertEquals(1, client.getPoolStats().getAvailable());
+
+            client.closeIdleConnections();
+            Assert.assertEquals(0, client.getPoolStats().getAvailable());
+            Assert.assertEquals(0, client.getPoolStats().getLeased());
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDeleteKeepsItsBody() throws IOException {
+        final String[] received = new String[2];
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                received[0] = exchange.getRequestMethod() + " " + exchange.getRequestURI();
+                received[1] = new String(IOUtils.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+                byte[] body = "{\"succeeded\":true}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(received[1].isEmpty() ? 400 : 200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        try {
+            Request<?> request = new DefaultRequest<Void>("es");
+            request.setEndpoint(URI.create("http://localhost:" + server.getAddress().getPort()));
+            request.setResourcePath("/_pit");
+            request.setHttpMethod(HttpMethodName.DELETE);
+            request.setContent(HashedPayload.of("{\"id\":\"46ToAwMDaWR5\"}").newContent());
+            client.deleteWithBody(request, Deadline.in(5000));
+            Assert.assertEquals("DELETE /_pit", received[0]);
+            Assert.assertEquals("{\"id\":\"46ToAwMDaWR5\"}", received[1]);
+
+            request.setContent(HashedPayload.EMPTY.newContent());
+            try {
+                client.deleteWithBody(request, Deadline.in(5000));
+                Assert.fail("Expected the 400 to be thrown");
+            } catch (AmazonServiceException e) {
+                Assert.assertEquals(400, e.getStatusCode());
+            }
+            Assert.assertEquals(0, client.getPoolStats().getLeased());
+        } finally {
+            client.close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDefaultsKeepConnectionsAlive() {
+        ClientConfiguration config = EsClient.defaultConfiguration();
+        Assert.assertTrue(config.useTcpKeepAlive());
+        Assert.assertTrue(config.getConnectionTTL() > 0);
+        Assert.assertTrue(config.useGzip());
+        Assert.assertEquals(0, config.getRetryPolicy().getMaxErrorRetry());
+    }
+}
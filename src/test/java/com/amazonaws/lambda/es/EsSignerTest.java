@@ -0,0 +1,81 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayInputStream;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.http.HttpMethodName;
+
+public class EsSignerTest {
+
+    private static final AWSCredentials CREDENTIALS = new BasicAWSCredentials("AKIDEXAMPLE", "secret");
+    private static final String BODY = "{\"query\":{\"match_all\":{}}}";
+
+    private static Request<?> newRequest() {
+        Request<?> request = new DefaultRequest<Void>("es");
+        request.addHeader("Content-type", "application/json");
+        request.setEndpoint(URI.create("https://search-example.us-east-2.es.amazonaws.com/"));
+        request.setResourcePath("/gbif/_search");
+        request.setHttpMethod(HttpMethodName.GET);
+        return request;
+    }
+
+    @Test
+    public void testPrecomputedHashSignsLikeTheStockSigner() throws Exception {
+        EsSigner signer = new EsSigner("es", "us-east-2", new AWSStaticCredentialsProvider(CREDENTIALS));
+        Request<?> hashed = newRequest();
+        hashed.setContent(HashedPayload.of(BODY).newContent());
+        signer.sign(hashed);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date signedAt = format.parse(hashed.getHeaders().get("X-Amz-Date"));
+
+        AWS4Signer stock = new AWS4Signer();
+        stock.setServiceName("es");
+        stock.setRegionName("us-east-2");
+        stock.setOverrideDate(signedAt);
+        Request<?> plain = newRequest();
+        plain.setContent(new ByteArrayInputStream(BODY.getBytes("UTF-8")));
+        stock.sign(plain, CREDENTIALS);
+
+        Assert.assertEquals(plain.getHeaders().get("Authorization"), hashed.getHeaders().get("Authorization"));
+    }
+
+    @Test
+    public void testCredentialsAreLoadedOnce() {
+        final AtomicInteger loads = new AtomicInteger();
+        RefreshingCredentialsProvider provider = new RefreshingCredentialsProvider(new AWSCredentialsProvider() {
+            @Override
+            public AWSCredentials getCredentials() {
+                loads.incrementAndGet();
+                return CREDENTIALS;
+            }
+
+            @Override
+            public void refresh() {
+            }
+        }, 60000);
+        try {
+            for (int i = 0; i < 100; i++) {
+                Assert.assertSame(CREDENTIALS, provider.getCredentials());
+            }
+            Assert.assertEquals(1, loads.get());
+        } finally {
+            provider.shutdown();
+        }
+    }
+}
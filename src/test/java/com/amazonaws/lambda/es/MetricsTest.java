@@ -0,0 +1,136 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MetricsTest {
+
+    private final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    private PrintStream previous;
+
+    @Before
+    public void captureLines() {
+        previous = Metrics.out;
+        Metrics.out = new PrintStream(lines, true);
+    }
+
+    @After
+    public void restoreOut() {
+        Metrics.out = previous;
+    }
+
+    private JsonObject line() {
+        String[] all = new String(lines.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(1, all.length);
+        return new JsonParser().parse(all[0]).getAsJsonObject();
+    }
+
+    @Test
+    public void testOneEmbeddedMetricFormatLinePerInvocation() {
+        Metrics metrics = Metrics.begin("TestHandler", null);
+        Assert.assertSame(metrics, Metrics.current());
+        metrics.record(Metrics.Phase.DECODE, System.nanoTime());
+        metrics.count(Metrics.Counter.BYTES_OUT, 42);
+        metrics.property("cache", "stale");
+        metrics.end();
+
+        JsonObject line = line();
+        JsonObject directive = line.getAsJsonObject("_aws").getAsJsonArray("CloudWatchMetrics").get(0).getAsJsonObject();
+        Assert.assertEquals("gbif", directive.get("Namespace").getAsString());
+        Assert.assertEquals("handler", directive.getAsJsonArray("Dimensions").get(0).getAsJsonArray().get(0).getAsString());
+        List<String> names = new ArrayList<String>();
+        for (JsonElement metric : directive.getAsJsonArray("Metrics")) {
+            names.add(metric.getAsJsonObject().get("Name").getAsString());
+        }
+        Assert.assertTrue(names.contains("decode"));
+        Assert.assertFalse(names.contains("sign"));
+        Assert.assertEquals("TestHandler", line.get("handler").getAsString());
+        Assert.assertTrue(line.get("total").getAsDouble() >= line.get("decode").getAsDouble());
+        Assert.assertEquals(42, line.get("bytesOut").getAsLong());
+        Assert.assertEquals(0, line.get("retries").getAsLong());
+        Assert.assertEquals("stale", line.get("cache").getAsString());
+
+        //unbound once ended: recording is a no-op
+        Assert.assertNotSame(metrics, Metrics.current());
+        Metrics.current().count(Metrics.Counter.ERRORS, 1);
+        Assert.assertEquals(0, Metrics.current().getCount(Metrics.Counter.ERRORS));
+    }
+
+    @Test
+    public void testEsCallsAreMeasured() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{\"took\":17,\"timed_out\":false,\"hits\":{\"total\":0,\"hits\":[]}}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        EsClient client = new EsClient(EsClient.defaultConfiguration());
+        Metrics metrics = Metrics.begin("TestHandler", null);
+        try {
+            Request<?> request = new DefaultRequest<Void>("es");
+            request.setEndpoint(URI.create("http://localhost:" + server.getAddress().getPort()));
+            request.setHttpMethod(HttpMethodName.GET);
+            client.execute(request, new StreamingResponseHandler<Void>(new ByteArrayOutputStream()),
+                    new HttpResponseHandler<AmazonServiceException>() {
+                        @Override
+                        public AmazonServiceException handle(HttpResponse response) {
+                            return new AmazonServiceException("unexpected");
+                        }
+
+                        @Override
+                        public boolean needsConnectionLeftOpen() {
+                            return false;
+                        }
+                    }, Deadline.in(5000));
+        } finally {
+            metrics.end();
+            client.close();
+            server.stop(0);
+        }
+        Assert.assertEquals(17000000L, metrics.getNanos(Metrics.Phase.TOOK));
+        Assert.assertTrue(metrics.getNanos(Metrics.Phase.CONNECT) > 0);
+        Assert.assertEquals(58, metrics.getCount(Metrics.Counter.BYTES_IN));
+        Assert.assertEquals(17.0, line().get("esTook").getAsDouble(), 0.0);
+    }
+
+    @Test
+    public void testTookIsReadFromTheHead() {
+        byte[] pretty = "{\n  \"took\" : 5,\n  \"timed_out\" : false".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(5, EsClient.took(pretty, pretty.length));
+        byte[] count = "{\"count\":12,\"_shards\":{}}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(-1, EsClient.took(count, count.length));
+        //digits cut off by the head size
+        Assert.assertEquals(-1, EsClient.took(pretty, 13));
+    }
+}
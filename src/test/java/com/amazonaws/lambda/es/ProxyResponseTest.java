@@ -0,0 +1,66 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class ProxyResponseTest {
+
+    private static ApiGatewayEvent proxyEvent(String acceptEncoding) throws IOException {
+        String event = "{\"resource\":\"/gbif\",\"httpMethod\":\"GET\",\"queryStringParameters\":null,"
+                + "\"headers\":{\"accept-encoding\":\"" + acceptEncoding + "\"}}";
+        return ApiGatewayEvent.fromStream(new ByteArrayInputStream(event.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testReadsProxyHeaders() throws IOException {
+        ApiGatewayEvent event = proxyEvent("gzip, deflate, br");
+        Assert.assertTrue(event.isProxy());
+        Assert.assertEquals("gzip, deflate, br", event.getHeader("Accept-Encoding"));
+        Assert.assertTrue(event.acceptsGzip());
+        Assert.assertFalse(proxyEvent("gzip;q=0, deflate").acceptsGzip());
+        Assert.assertFalse(proxyEvent("identity").acceptsGzip());
+    }
+
+    @Test
+    public void testSmallBodiesAreNotCompressed() throws IOException {
+        Assert.assertFalse(ProxyResponse.shouldGzip(proxyEvent("gzip"), 100));
+        Assert.assertTrue(ProxyResponse.shouldGzip(proxyEvent("gzip"), 100000));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProxyResponse.write(out, 200, "{\"took\":1}".getBytes(StandardCharsets.UTF_8), false);
+        Assert.assertEquals("{\"statusCode\":200,\"headers\":{\"Content-Type\":\"application/json\"},"
+                + "\"isBase64Encoded\":false,\"body\":\"{\\\"took\\\":1}\"}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testGzipBodyRoundTrips() throws IOException {
+        StringBuilder sb = new StringBuilder("{\"hits\":[");
+        for (int i = 0; i < 500; i++) {
+            sb.append(i > 0 ? "," : "").append("{\"kingdom\":\"Animalia\",\"country\":\"Belgium\"}");
+        }
+        byte[] body = sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ProxyResponse.write(out, 200, body, true);
+        JsonObject response = new JsonParser().parse(out.toString("UTF-8")).getAsJsonObject();
+        Assert.assertTrue(response.get("isBase64Encoded").getAsBoolean());
+        Assert.assertEquals("gzip", response.getAsJsonObject("headers").get("Content-Encoding").getAsString());
+
+        byte[] compressed = Base64.getDecoder().decode(response.get("body").getAsString());
+        Assert.assertTrue(compressed.length < body.length / 10);
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        StreamingResponseHandler.copy(in, inflated);
+        Assert.assertArrayEquals(body, inflated.toByteArray());
+    }
+}
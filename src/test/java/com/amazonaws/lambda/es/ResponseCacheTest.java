@@ -0,0 +1,95 @@
+package com.amazonaws.lambda.es;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testHitsAndMisses() {
+        ResponseCache cache = new ResponseCache(1024, 60000);
+        Assert.assertNull(cache.get("kingdom=animalia"));
+        cache.put("kingdom=animalia", "kingdom", new byte[10], false);
+        Assert.assertNotNull(cache.get("kingdom=animalia"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverBudget() {
+        ResponseCache cache = new ResponseCache(400, 60000);
+        cache.put("a", "s", new byte[100], false);
+        cache.put("b", "s", new byte[100], false);
+        cache.put("c", "s", new byte[100], false);
+        cache.get("a");
+        cache.put("d", "s", new byte[100], false);
+        cache.put("e", "s", new byte[100], false);
+
+        Assert.assertNull(cache.get("b"));
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertEquals(400, cache.getBytes());
+    }
+
+    @Test
+    public void testShapeTtlOverrides() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(1024, 60000);
+        cache.setTtl("key", 0);
+        cache.setTtl("year", 1);
+        cache.put("key=1", "key", new byte[1], false);
+        cache.put("year=2014", "year", new byte[1], false);
+        Thread.sleep(5);
+
+        Assert.assertNull(cache.get("key=1"));
+        Assert.assertNull(cache.get("year=2014"));
+        Assert.assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void testExpiredEntriesServeAsStaleFallback() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(1024, 1);
+        cache.setStaleMillis(60000);
+        cache.put("sex=MALE", "sex", new byte[3], false);
+        Thread.sleep(5);
+
+        Assert.assertNull(cache.get("sex=MALE"));
+        Assert.assertNotNull(cache.getStale("sex=MALE"));
+        Assert.assertEquals(1, cache.getStaleHits());
+    }
+
+    @Test
+    public void testPartialResultsAreNotCached() {
+        ResponseCache cache = new ResponseCache(1024, 60000);
+        byte[] timedOut = "{\"took\":3001,\"timed_out\":true,\"hits\":{}}".getBytes();
+        byte[] complete = "{\"took\":3,\"timed_out\":false,\"hits\":{}}".getBytes();
+        Assert.assertTrue(ResponseCache.isPartial(timedOut));
+        Assert.assertFalse(ResponseCache.isPartial(complete));
+        Assert.assertTrue(ResponseCache.isPartial("{\"took\":12,\"terminated_early\":true,\"hits\":{}}"));
+        cache.put("year=2014", "year", timedOut, ResponseCache.isPartial(timedOut));
+        cache.put("year=2015", "year", complete, ResponseCache.isPartial(complete));
+        cache.put("year=2016", "year", new byte[10], true);
+        Assert.assertNull(cache.get("year=2014"));
+        Assert.assertNotNull(cache.get("year=2015"));
+        Assert.assertNull(cache.get("year=2016"));
+    }
+
+    @Test
+    public void testRecorderStopsRecordingOversizedBodies() throws IOException {
+        ResponseCache cache = new ResponseCache(400, 60000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ResponseCache.Recorder small = cache.record(out);
+        small.write(new byte[50]);
+        small.commit("small", "s", false);
+        ResponseCache.Recorder large = cache.record(out);
+        large.write(new byte[101]);
+        large.commit("large", "s", false);
+
+        Assert.assertEquals(151, out.size());
+        Assert.assertNotNull(cache.get("small"));
+        Assert.assertNull(cache.get("large"));
+    }
+}
@@ -0,0 +1,153 @@
+package com.amazonaws.lambda.es;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    private final List<Thread> waiting = new ArrayList<Thread>();
+
+    @After
+    public void shutdown() {
+        callers.shutdownNow();
+    }
+
+    //a call that counts its runs and blocks until released
+    private static SingleFlight.Call<String> call(final AtomicInteger runs, final CountDownLatch release, final RuntimeException failure) {
+        return new SingleFlight.Call<String>() {
+            @Override
+            public String run() {
+                int run = runs.incrementAndGet();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (failure != null && run == 1) {
+                    throw failure;
+                }
+                return "response " + run;
+            }
+        };
+    }
+
+    private Future<String> submit(final SingleFlight flights, final SingleFlight.Call<String> call) {
+        return callers.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                synchronized (waiting) {
+                    waiting.add(Thread.currentThread());
+                }
+                return flights.execute("q=*", null, call);
+            }
+        });
+    }
+
+    //until every submitted caller is blocked (the leader in its call, followers on the leader)
+    private void awaitBlocked(int callers) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (true) {
+            int blocked = 0;
+            synchronized (waiting) {
+                for (Thread thread : waiting) {
+                    if (thread.getState() == Thread.State.WAITING || thread.getState() == Thread.State.TIMED_WAITING) {
+                        blocked++;
+                    }
+                }
+            }
+            if (blocked == callers) {
+                return;
+            }
+            Assert.assertTrue("callers did not block", System.currentTimeMillis() - start < 5000);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        SingleFlight flights = new SingleFlight(5000);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 5; i++) {
+            results.add(submit(flights, call(runs, release, null)));
+        }
+        awaitBlocked(5);
+        release.countDown();
+        for (Future<String> result : results) {
+            Assert.assertEquals("response 1", result.get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(1, runs.get());
+        Assert.assertEquals(0, flights.inFlight());
+
+        //done: the next call is a new flight
+        Assert.assertEquals("response 2", flights.execute("q=*", null, call(runs, release, null)));
+    }
+
+    @Test
+    public void testFailuresReachFollowers() throws Exception {
+        SingleFlight flights = new SingleFlight(5000);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        IllegalStateException failure = new IllegalStateException("ES said no");
+        Future<String> leader = submit(flights, call(runs, release, failure));
+        awaitBlocked(1);
+        Future<String> follower = submit(flights, call(runs, release, failure));
+        awaitBlocked(2);
+        release.countDown();
+        for (Future<String> result : Arrays.asList(leader, follower)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expected the leader's failure");
+            } catch (ExecutionException e) {
+                Assert.assertSame(failure, e.getCause());
+            }
+        }
+        Assert.assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testFollowersDoNotWaitPastMaxWait() throws Exception {
+        SingleFlight flights = new SingleFlight(50);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> leader = submit(flights, call(runs, release, null));
+        awaitBlocked(1);
+        //the leader is stuck: the follower makes its own call
+        final AtomicInteger own = new AtomicInteger();
+        Assert.assertEquals("own", flights.execute("q=*", null, new SingleFlight.Call<String>() {
+            @Override
+            public String run() {
+                own.incrementAndGet();
+                return "own";
+            }
+        }));
+        Assert.assertEquals(1, own.get());
+        release.countDown();
+        Assert.assertEquals("response 1", leader.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testZeroMaxWaitDoesNotCoalesce() {
+        SingleFlight flights = new SingleFlight(0);
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch released = new CountDownLatch(0);
+        flights.execute("q=*", null, call(runs, released, null));
+        flights.execute("q=*", null, call(runs, released, null));
+        Assert.assertEquals(2, runs.get());
+    }
+}
@@ -0,0 +1,69 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+
+public class GbifBatchTest {
+
+    private static Map<String, String> querystring(String... pairs) {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            querystring.put(pairs[i], pairs[i + 1]);
+        }
+        return querystring;
+    }
+
+    @Test
+    public void testCompilesOneHeaderAndBodyLinePerQuery() {
+        List<GbifQuery> queries = Arrays.asList(GbifQuery.of(querystring("sex", "male")),
+                GbifQuery.of(querystring("year", "2014", "fields", "minimal")));
+        String[] lines = GbifBatch.toNdjson(queries, null).split("\n", -1);
+
+        Assert.assertEquals(5, lines.length);
+        Assert.assertEquals("{\"index\":\"gbif\"}", lines[0]);
+        Assert.assertEquals(GbifQueryCompiler.compile(queries.get(0)), lines[1]);
+        Assert.assertEquals("{\"index\":\"gbif\"}", lines[2]);
+        Assert.assertEquals(GbifQueryCompiler.compile(queries.get(1)), lines[3]);
+        Assert.assertEquals("", lines[4]);
+    }
+
+    @Test
+    public void testDecodesBatchBodies() throws IOException {
+        String passthrough = "{\"body-json\":{\"queries\":[{\"sex\":\"male\"},{\"year\":2014}]},\"params\":{\"querystring\":{}}}";
+        ApiGatewayEvent event = ApiGatewayEvent.fromStream(new ByteArrayInputStream(passthrough.getBytes("UTF-8")));
+        Assert.assertTrue(event.isBatch());
+        Assert.assertEquals(Arrays.asList(querystring("sex", "male"), querystring("year", "2014")), event.getBatch());
+
+        String proxy = "{\"httpMethod\":\"POST\",\"body\":\"[{\\\"kingdom\\\":\\\"animalia\\\"}]\"}";
+        event = ApiGatewayEvent.fromStream(new ByteArrayInputStream(proxy.getBytes("UTF-8")));
+        Assert.assertTrue(event.isProxy());
+        Assert.assertEquals(Arrays.asList(querystring("kingdom", "animalia")), event.getBatch());
+
+        List<Object> direct = new ArrayList<Object>();
+        direct.add(querystring("sex", "female"));
+        Assert.assertEquals(1, ApiGatewayEvent.fromObject(direct).getBatch().size());
+        Assert.assertFalse(ApiGatewayEvent.fromObject(querystring("body-json", "")).isBatch());
+    }
+
+    @Test
+    public void testReportsErrorsPerQuery() {
+        JsonElement[] results = {
+                new JsonParser().parse("{\"took\":1,\"hits\":{\"hits\":[]}}"),
+                GbifBatch.error(400, "Unsupported query parameter: script") };
+        Assert.assertEquals("{\"responses\":[{\"took\":1,\"hits\":{\"hits\":[]},\"status\":200},"
+                + "{\"error\":{\"type\":\"illegal_argument_exception\",\"reason\":\"Unsupported query parameter: script\"},\"status\":400}]}",
+                GbifBatch.toResponse(results));
+    }
+}
@@ -0,0 +1,116 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.amazonaws.lambda.gbif.load.JsonRecordReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class GbifBulkLoaderTest {
+
+    @BeforeClass
+    public static void useDummyCredentials() {
+        if (System.getProperty("aws.accessKeyId") == null) {
+            System.setProperty("aws.accessKeyId", "AKIDEXAMPLE");
+            System.setProperty("aws.secretKey", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    @Test
+    public void testBatchesAndRetriesRejectedItems() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger documents = new AtomicInteger();
+        final StringBuffer sources = new StringBuffer();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String[] lines = readBody(exchange).split("\n");
+                documents.addAndGet(lines.length / 2);
+                sources.append(lines[1]);
+                if (requests.getAndIncrement() == 0) {
+                    //the second document of the first batch is rejected for load
+                    respond(exchange, "{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},"
+                            + "{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}]}");
+                } else {
+                    respond(exchange, "{\"errors\":false}");
+                }
+            }
+        });
+        server.start();
+        try (InputStream in = getClass().getResourceAsStream("/gbif_sample.json")) {
+            GbifBulkLoader loader = new GbifBulkLoader(URI.create("http://localhost:" + server.getAddress().getPort() + "/"),
+                    1, 1 << 20, 2, 3);
+            loader.load(new JsonRecordReader(in));
+
+            Assert.assertEquals(6, loader.getLoaded());
+            Assert.assertEquals(1, loader.getRetried());
+            Assert.assertEquals(0, loader.getFailed());
+            Assert.assertEquals(4, requests.get());
+            Assert.assertEquals(7, documents.get());
+            Assert.assertTrue(sources.toString().contains("\"location\":{\"lat\":50.9899,\"lon\":2.8549}"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testBuildsActionLinesAndSubsets() {
+        BulkBatch batch = new BulkBatch(256);
+        batch.add(BulkBatch.indexAction("gbif", "record", "21"), "{\"a\":1}");
+        batch.add(BulkBatch.indexAction("gbif", null, null), "{\"a\":2}");
+        batch.add(BulkBatch.indexAction("gbif", null, "x\"y"), "{\"a\":3}");
+
+        Assert.assertEquals(3, batch.size());
+        Assert.assertEquals("{\"index\":{\"_index\":\"gbif\",\"_type\":\"record\",\"_id\":\"21\"}}\n{\"a\":1}\n",
+                new String(batch.subset(Arrays.asList(0)).toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals("{\"index\":{\"_index\":\"gbif\"}}\n{\"a\":2}\n{\"index\":{\"_index\":\"gbif\",\"_id\":\"x\\\"y\"}}\n{\"a\":3}\n",
+                new String(batch.subset(Arrays.asList(1, 2)).toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAddsLocationFromValidCoordinates() {
+        JsonObject source = new JsonObject();
+        source.addProperty("decimalLatitude", 95.0);
+        source.addProperty("decimalLongitude", 2.0);
+        GbifBulkLoader.addLocation(source);
+        Assert.assertFalse(source.has("location"));
+
+        source.addProperty("decimalLatitude", -45.5);
+        GbifBulkLoader.addLocation(source);
+        Assert.assertEquals(-45.5, source.getAsJsonObject("location").get("lat").getAsDouble(), 0.0);
+        Assert.assertEquals(2.0, source.getAsJsonObject("location").get("lon").getAsDouble(), 0.0);
+    }
+}
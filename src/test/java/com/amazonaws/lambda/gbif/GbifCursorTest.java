@@ -0,0 +1,48 @@
+package com.amazonaws.lambda.gbif;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class GbifCursorTest {
+
+    private static JsonObject page(String pitId, String... ids) {
+        StringBuilder hits = new StringBuilder();
+        for (String id : ids) {
+            if (hits.length() > 0) {
+                hits.append(',');
+            }
+            hits.append("{\"_id\":\"").append(id).append("\",\"sort\":[\"").append(id).append("\"]}");
+        }
+        String pit = pitId == null ? "" : "\"pit_id\":\"" + pitId + "\",";
+        return new JsonParser().parse("{" + pit + "\"hits\":{\"hits\":[" + hits + "]}}").getAsJsonObject();
+    }
+
+    @Test
+    public void testEncodeDecodeRoundTrip() {
+        JsonArray after = new JsonArray();
+        after.add("925334504");
+        GbifCursor cursor = new GbifCursor(after, "46ToAwMDaWR5BXV1aWQy+/==");
+
+        String token = cursor.encode();
+        Assert.assertFalse(token.contains("+") || token.contains("/") || token.contains("="));
+        Assert.assertEquals(cursor, GbifCursor.decode(token));
+    }
+
+    @Test
+    public void testNextCursorFromFullAndLastPages() {
+        GbifCursor next = GbifCursor.next(page("pit-2", "1", "2"), 2);
+        Assert.assertEquals("[\"2\"]", next.getSearchAfter().toString());
+        Assert.assertEquals("pit-2", next.getPitId());
+
+        Assert.assertNull(GbifCursor.next(page(null, "3"), 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsForgedCursor() {
+        GbifCursor.decode("not-a-cursor");
+    }
+}
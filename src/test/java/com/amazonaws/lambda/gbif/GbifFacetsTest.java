@@ -0,0 +1,51 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.lambda.es.ResponseCache;
+
+public class GbifFacetsTest {
+
+    private static final GbifQuery FACETS = GbifQuery.of(Collections.singletonMap("facets", "countryCode,year"));
+
+    @Test
+    public void testAggregationsBecomeCountMaps() {
+        String response = "{\"took\":3,\"timed_out\":false,\"hits\":{\"total\":3,\"max_score\":0.0,\"hits\":[]},"
+                + "\"aggregations\":{\"countryCode\":{\"buckets\":[{\"key\":\"BE\",\"doc_count\":2},{\"key\":\"NL\",\"doc_count\":1}]},"
+                + "\"year\":{\"buckets\":[{\"key\":2013.0,\"doc_count\":1},{\"key\":2014.0,\"doc_count\":2}]}}}";
+        Assert.assertEquals("{\"total\":3,\"facets\":{\"countryCode\":{\"BE\":2,\"NL\":1},\"year\":{\"2013\":1,\"2014\":2}}}",
+                GbifFacets.toCounts(response, FACETS));
+    }
+
+    @Test
+    public void testCountsAndTotalsAcrossVersions() {
+        GbifQuery count = GbifQuery.of(Collections.singletonMap("count", "true"));
+        Assert.assertEquals("{\"count\":871}", GbifFacets.toCounts("{\"count\":871,\"_shards\":{\"total\":5}}", count));
+        //ES 7 total object, and a timed out search
+        Assert.assertEquals("{\"timed_out\":true,\"total\":12,\"facets\":{\"countryCode\":{},\"year\":{}}}",
+                GbifFacets.toCounts("{\"timed_out\":true,\"hits\":{\"total\":{\"value\":12,\"relation\":\"eq\"}}}", FACETS));
+    }
+
+    @Test
+    public void testTerminatedEarlyCountsAreFlagged() {
+        //GBIF_TERMINATE_AFTER cut the counting short: lower bounds, not to be cached
+        String terminated = "{\"took\":3,\"timed_out\":false,\"terminated_early\":true,\"hits\":{\"total\":5}}";
+        String facets = GbifFacets.toCounts(terminated, FACETS);
+        Assert.assertEquals("{\"terminated_early\":true,\"total\":5,\"facets\":{\"countryCode\":{},\"year\":{}}}", facets);
+        Assert.assertTrue(ResponseCache.isPartial(facets));
+        String cells = GbifFacets.toCounts(terminated, GbifQuery.of(Collections.singletonMap("precision", "3")));
+        Assert.assertTrue(cells, cells.startsWith("{\"terminated_early\":true,\"total\":5,\"cells\":"));
+        Assert.assertTrue(ResponseCache.isPartial(cells));
+        //a search that did not hit the limit
+        Assert.assertFalse(ResponseCache.isPartial(GbifFacets.toCounts(
+                "{\"took\":3,\"timed_out\":false,\"terminated_early\":false,\"hits\":{\"total\":5}}", FACETS)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownFacet() {
+        GbifFacets.parse("country,colour", null);
+    }
+}
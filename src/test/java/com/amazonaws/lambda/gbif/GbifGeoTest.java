@@ -0,0 +1,90 @@
+package com.amazonaws.lambda.gbif;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonParser;
+
+public class GbifGeoTest {
+
+    @Test
+    public void testCellKeysMatchEs() {
+        Assert.assertEquals("u4pruydqqvj", GbifGeo.geohash(57.64911, 10.40744, 11));
+        Assert.assertEquals("u14", GbifGeo.geohash(50.9899, 2.8549, 3));
+        Assert.assertEquals("1/1/1", GbifGeo.geotile(0, 0, 1));
+        Assert.assertEquals("0/0/0", GbifGeo.geotile(89.9, -180, 0));
+        Assert.assertEquals("10/520/342", GbifGeo.geotile(50.9899, 2.8549, 10));
+        //Paris to London
+        Assert.assertEquals(343.5, GbifGeo.distance(48.8566, 2.3522, 51.5074, -0.1278) / 1000, 1);
+    }
+
+    @Test
+    public void testBoxesAreWidenedToWholeCells() {
+        //geohash length 2: 11.25 degrees of longitude by 5.625 of latitude
+        GbifGeo geo = GbifGeo.parse("2.5,50.5,4.5,51", null, null, null, "2", GbifGeo.Grid.GEOHASH);
+        Assert.assertEquals("bbox=0,45,11.25,56.25&precision=2", geo.toString());
+        Assert.assertEquals(geo, GbifGeo.parse("1,46,11,56", null, null, null, "2", GbifGeo.Grid.GEOHASH));
+
+        //a tile keeps its own edges on a finer tile grid, and is its own key
+        GbifGeo tile = GbifGeo.parse(null, "10/520/342", null, null, "14", GbifGeo.Grid.GEOTILE);
+        double[] box = GbifGeo.tileBox(10, 520, 342);
+        Assert.assertEquals(box[0], tile.getWest(), 1e-9);
+        Assert.assertEquals(box[1], tile.getSouth(), 1e-9);
+        Assert.assertEquals(box[3], tile.getNorth(), 1e-9);
+        Assert.assertEquals("tile=10/520/342&precision=14;geotile", tile.toString());
+        Assert.assertTrue(tile.contains(50.9899, 2.8549));
+        Assert.assertFalse(tile.contains(51.5, 2.8549));
+    }
+
+    @Test
+    public void testCirclesAndAntimeridianBoxes() {
+        GbifGeo near = GbifGeo.parse(null, null, "50.99,2.85", "5km", null);
+        Assert.assertEquals("near=50.99,2.85&radius=5000m", near.toString());
+        Assert.assertTrue(near.contains(50.9899, 2.8549));
+        Assert.assertFalse(near.contains(51.2, 2.85));
+        Assert.assertFalse(near.isGrid());
+
+        GbifGeo pacific = GbifGeo.parse("170,-20,-170,0", null, null, null, null);
+        Assert.assertTrue(pacific.contains(-10, 179));
+        Assert.assertTrue(pacific.contains(-10, -175));
+        Assert.assertFalse(pacific.contains(-10, 0));
+    }
+
+    @Test
+    public void testGridBucketsBecomeCells() {
+        Assert.assertEquals("[{\"key\":\"u14\",\"count\":6,\"lat\":50.9899,\"lon\":2.8549},{\"key\":\"u15\",\"count\":1}]",
+                GbifGeo.toCells(new JsonParser().parse("{\"buckets\":["
+                        + "{\"key\":\"u14\",\"doc_count\":6,\"centroid\":{\"location\":{\"lat\":50.9899,\"lon\":2.8549},\"count\":6}},"
+                        + "{\"key\":\"u15\",\"doc_count\":1,\"centroid\":{\"count\":0}}]}").getAsJsonObject()).toString());
+    }
+
+    @Test
+    public void testUnknownGridSettingNamesTheSetting() {
+        try {
+            System.setProperty("GBIF_GEO_GRID", "GeoTile");
+            Assert.assertEquals(GbifGeo.Grid.GEOTILE, GbifGeo.gridFromSettings());
+            System.setProperty("GBIF_GEO_GRID", "geotiles");
+            GbifGeo.gridFromSettings();
+            Assert.fail("Expected GBIF_GEO_GRID=geotiles to be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Setting GBIF_GEO_GRID must be one of geohash, geotile: geotiles", e.getMessage());
+        } finally {
+            System.clearProperty("GBIF_GEO_GRID");
+        }
+    }
+
+    @Test
+    public void testRejectsInvalidValues() {
+        String[][] invalid = { { "1,2,3", null, null, null, null }, { "0,10,1,5", null, null, null, null },
+                { "2,50,4", "3/1/1", null, null, null }, { null, "3/8/1", null, null, null },
+                { null, null, "50,2", null, null }, { null, null, "50,2", "far", null }, { null, null, null, null, "13" } };
+        for (String[] values : invalid) {
+            try {
+                GbifGeo.parse(values[0], values[1], values[2], values[3], values[4], GbifGeo.Grid.GEOHASH);
+                Assert.fail("Expected " + java.util.Arrays.toString(values) + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.lambda.es.ResponseCache;
+import com.amazonaws.lambda.es.StreamingResponseHandler;
+
+public class GbifHitsTranscoderTest {
+
+    private static final String RESPONSE = "{\"took\":4,\"timed_out\":false,\"_shards\":{\"total\":5,\"successful\":5,\"failed\":0},"
+            + "\"hits\":{\"total\":871,\"max_score\":1.5,\"hits\":["
+            + "{\"_index\":\"gbif\",\"_type\":\"record\",\"_id\":\"21\",\"_score\":1.5,"
+            + "\"_source\":{\"gbifID\":\"925334504\",\"year\":2014,\"decimalLatitude\":50.9899,\"sex\":null,\"tags\":[\"a\",{\"b\":true}]},"
+            + "\"sort\":[\"925334504\"]},"
+            + "{\"_index\":\"gbif\",\"_type\":\"record\",\"_id\":\"22\",\"_score\":1.2,\"_source\":{\"gbifID\":\"925333910\"},\"sort\":[\"925333910\"]}]}}";
+
+    @Test
+    public void testJsonKeepsOnlySourcesAndEndsWithTrailer() {
+        Assert.assertEquals("{\"hits\":[{\"gbifID\":\"925334504\",\"year\":2014,\"decimalLatitude\":50.9899,\"sex\":null,\"tags\":[\"a\",{\"b\":true}]},"
+                + "{\"gbifID\":\"925333910\"}],\"total\":871}",
+                new GbifHitsTranscoder(GbifHitsTranscoder.Format.JSON, 0).transcode(RESPONSE));
+    }
+
+    @Test
+    public void testNdjsonPageCarriesCursorInTrailer() {
+        JsonArray after = new JsonArray();
+        after.add("925333910");
+        String cursor = new GbifCursor(after, null).encode();
+        Assert.assertEquals("{\"gbifID\":\"925334504\",\"year\":2014,\"decimalLatitude\":50.9899,\"sex\":null,\"tags\":[\"a\",{\"b\":true}]}\n"
+                + "{\"gbifID\":\"925333910\"}\n"
+                + "{\"trailer\":{\"total\":871,\"cursor\":\"" + cursor + "\"}}\n",
+                new GbifHitsTranscoder(GbifHitsTranscoder.Format.NDJSON, 2).transcode(RESPONSE));
+        //a short page is the last one
+        Assert.assertTrue(new GbifHitsTranscoder(GbifHitsTranscoder.Format.NDJSON, 3).transcode(RESPONSE)
+                .endsWith("{\"trailer\":{\"total\":871,\"cursor\":null}}\n"));
+    }
+
+    @Test
+    public void testLastPageFinishesItsPointInTime() {
+        String pitPage = "{\"pit_id\":\"pit-2\"," + RESPONSE.substring(1);
+        GbifHitsTranscoder full = new GbifHitsTranscoder(GbifHitsTranscoder.Format.NDJSON, 2);
+        full.transcode(pitPage);
+        Assert.assertNull(full.getFinishedPitId());
+        GbifHitsTranscoder last = new GbifHitsTranscoder(GbifHitsTranscoder.Format.NDJSON, 3);
+        last.transcode(pitPage);
+        Assert.assertEquals("pit-2", last.getFinishedPitId());
+        GbifHitsTranscoder noPit = new GbifHitsTranscoder(GbifHitsTranscoder.Format.NDJSON, 3);
+        noPit.transcode(RESPONSE);
+        Assert.assertNull(noPit.getFinishedPitId());
+    }
+
+    @Test
+    public void testTimedOutAndEs7Totals() {
+        Assert.assertEquals("{\"hits\":[],\"timed_out\":true,\"total\":12}",
+                new GbifHitsTranscoder(GbifHitsTranscoder.Format.JSON, 0).transcode(
+                        "{\"timed_out\":true,\"hits\":{\"total\":{\"value\":12,\"relation\":\"eq\"},\"hits\":[]}}"));
+    }
+
+    @Test
+    public void testTimedOutPageIsNotCached() throws Exception {
+        //the flags only come out in the trailer, after the hits
+        String timedOut = "{\"took\":4,\"timed_out\":true," + RESPONSE.substring(RESPONSE.indexOf("\"_shards\""));
+        String terminated = "{\"took\":4,\"timed_out\":false,\"terminated_early\":true," + RESPONSE.substring(RESPONSE.indexOf("\"_shards\""));
+        ResponseCache cache = new ResponseCache(1024 * 1024, 60000);
+        for (String[] page : new String[][] { { "timedOut", timedOut }, { "terminated", terminated }, { "complete", RESPONSE } }) {
+            GbifHitsTranscoder transcoder = new GbifHitsTranscoder(GbifHitsTranscoder.Format.NDJSON, 0);
+            ResponseCache.Recorder recorder = cache.record(new ByteArrayOutputStream());
+            HttpResponse response = new HttpResponse(null, null);
+            response.setContent(new ByteArrayInputStream(page[1].getBytes(StandardCharsets.UTF_8)));
+            new StreamingResponseHandler<Void>(recorder, transcoder).handle(response);
+            recorder.commit(page[0], "s", transcoder.isPartial());
+        }
+        Assert.assertNull(cache.get("timedOut"));
+        Assert.assertNull(cache.get("terminated"));
+        Assert.assertTrue(new String(cache.get("complete"), StandardCharsets.UTF_8).endsWith("{\"trailer\":{\"total\":871}}\n"));
+
+        GbifHitsTranscoder transcoder = new GbifHitsTranscoder(GbifHitsTranscoder.Format.JSON, 0);
+        Assert.assertTrue(transcoder.transcode(terminated).endsWith("\"terminated_early\":true,\"total\":871}"));
+        Assert.assertTrue(transcoder.isPartial());
+    }
+}
@@ -1,31 +1,59 @@
 package com.amazonaws.lambda.gbif;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.amazonaws.lambda.es.Deadline;
+import com.amazonaws.lambda.gbif.local.GbifLocalIndex;
 import com.amazonaws.services.lambda.runtime.Context;
 
 /**
  * A simple test harness for locally invoking your Lambda function handler.
+ * Queries are answered by the in-memory index (GBIF_BACKEND=local), so no ES domain is needed.
  */
 public class GbifLambdaHandlerTest {
 
-    private static Object input;
+    private static GbifBackend previous;
 
     @BeforeClass
-    public static void createInput() throws IOException {
-        // TODO: set up your sample input object here.
-        input = null;
+    public static void useLocalBackend() throws IOException {
+        try (InputStream in = GbifLambdaHandlerTest.class.getResourceAsStream("/gbif_sample.json")) {
+            previous = GbifLambdaHandler.backend;
+            GbifLambdaHandler.backend = new GbifBackend(GbifBackend.Mode.LOCAL,
+                    Collections.<String>emptySet(), GbifLocalIndex.load(in));
+        }
+    }
+
+    @AfterClass
+    public static void restoreBackend() {
+        GbifLambdaHandler.backend = previous;
+    }
+
+    private static Object createInput(Map<String, String> querystring) {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("querystring", querystring);
+        Map<String, Object> input = new LinkedHashMap<String, Object>();
+        input.put("body-json", new LinkedHashMap<String, Object>());
+        input.put("params", params);
+        return input;
     }
 
     private Context createContext() {
         TestContext ctx = new TestContext();
 
-        // TODO: customize your context here if needed.
-        ctx.setFunctionName("Your Function Name");
+        ctx.setFunctionName("gbif");
+        ctx.setRemainingTimeInMillis(3000);
 
         return ctx;
     }
@@ -33,11 +61,81 @@ public class GbifLambdaHandlerTest {
     @Test
     public void testGbifLambdaHandler() {
         GbifLambdaHandler handler = new GbifLambdaHandler();
-        Context ctx = createContext();
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("family", "Laridae");
+        querystring.put("sex", "male");
+
+        String output = handler.handleRequest(createInput(querystring), createContext());
+
+        JsonObject hits = new JsonParser().parse(output).getAsJsonObject().getAsJsonObject("hits");
+        Assert.assertEquals(2, hits.get("total").getAsInt());
+        Assert.assertEquals("MALE", hits.getAsJsonArray("hits").get(0).getAsJsonObject()
+                .getAsJsonObject("_source").get("sex").getAsString());
+    }
+
+    @Test
+    public void testPagedQueryReturnsCursor() {
+        GbifLambdaHandler handler = new GbifLambdaHandler();
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("countryCode", "us");
+        querystring.put("size", "1");
+
+        JsonObject first = new JsonParser().parse(handler.handleRequest(createInput(querystring), createContext())).getAsJsonObject();
+        Assert.assertFalse(first.get("cursor").isJsonNull());
+
+        querystring.put("cursor", first.get("cursor").getAsString());
+        JsonObject second = new JsonParser().parse(handler.handleRequest(createInput(querystring), createContext())).getAsJsonObject();
+        Assert.assertEquals("25", second.getAsJsonObject("hits").getAsJsonArray("hits").get(0).getAsJsonObject().get("_id").getAsString());
+    }
 
-        String output = handler.handleRequest(input, ctx);
+    @Test
+    public void testUnknownBackendNamesTheSetting() {
+        System.setProperty("GBIF_BACKEND", "elastic");
+        try {
+            GbifBackend.fromSettings();
+            Assert.fail("Expected GBIF_BACKEND=elastic to be rejected");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals("Setting GBIF_BACKEND must be one of es, local, failover: elastic", e.getMessage());
+        } finally {
+            System.clearProperty("GBIF_BACKEND");
+        }
+    }
+
+    @Test
+    public void testPointInTimePagesAreNotShared() {
+        JsonArray after = new JsonArray();
+        after.add("925333910");
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("countryCode", "us");
+        querystring.put("cursor", new GbifCursor(after, "pit-1").encode());
+        Assert.assertTrue(GbifLambdaHandler.isPitWalk(GbifQuery.of(querystring)));
+        querystring.put("cursor", new GbifCursor(after, null).encode());
+        Assert.assertFalse(GbifLambdaHandler.isPitWalk(GbifQuery.of(querystring)));
+        querystring.remove("cursor");
+        Assert.assertFalse(GbifLambdaHandler.isPitWalk(GbifQuery.of(querystring)));
+    }
+
+    @Test
+    public void testNdjsonFormatReturnsSourcesOnly() {
+        GbifLambdaHandler handler = new GbifLambdaHandler();
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("countryCode", "us");
+        querystring.put("format", "ndjson");
+
+        String[] lines = handler.handleRequest(createInput(querystring), createContext()).split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertEquals("US", new JsonParser().parse(lines[0]).getAsJsonObject().get("countryCode").getAsString());
+        Assert.assertEquals("{\"trailer\":{\"total\":2}}", lines[2]);
+    }
+
+    @Test
+    public void testBatchIsAnsweredLocally() {
+        Map<String, String> query = Collections.singletonMap("genus", "Larus");
+        String output = GbifLambdaHandler.handleBatch(Collections.<Map<String, String>>singletonList(query),
+                Deadline.in(1000));
 
-        // TODO: validate output here if needed.
-        Assert.assertEquals("Hello from Lambda!", output);
+        JsonObject response = new JsonParser().parse(output).getAsJsonObject().getAsJsonArray("responses").get(0).getAsJsonObject();
+        Assert.assertEquals(200, response.get("status").getAsInt());
+        Assert.assertEquals(3, response.getAsJsonObject("hits").get("total").getAsInt());
     }
 }
@@ -0,0 +1,19 @@
+package com.amazonaws.lambda.gbif;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GbifPrimerTest {
+
+    @Test
+    public void testPrimingLeavesNoTrace() {
+        int cached = GbifLambdaHandler.cache.size();
+        long hits = GbifLambdaHandler.cache.getHits();
+        long misses = GbifLambdaHandler.cache.getMisses();
+        GbifPrimer.prime(false);
+        GbifPrimer.init();
+        Assert.assertEquals(cached, GbifLambdaHandler.cache.size());
+        Assert.assertEquals(hits, GbifLambdaHandler.cache.getHits());
+        Assert.assertEquals(misses, GbifLambdaHandler.cache.getMisses());
+    }
+}
@@ -0,0 +1,122 @@
+package com.amazonaws.lambda.gbif;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.amazonaws.lambda.es.Deadline;
+
+public class GbifQueryCompilerTest {
+
+    private static GbifQuery query(String... pairs) {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            querystring.put(pairs[i], pairs[i + 1]);
+        }
+        return GbifQuery.of(querystring);
+    }
+
+    @Test
+    public void testExactMatchesAreFiltersAndNamesAreScored() {
+        String json = GbifQueryCompiler.compile(query("kingdom", "animalia", "country", "belgium", "sex", "male"));
+        Assert.assertEquals("{\"query\":{\"bool\":{"
+                + "\"filter\":[{\"term\":{\"sex.keyword\":\"MALE\"}}],"
+                + "\"must\":[{\"match\":{\"kingdom\":\"animalia\"}},{\"match\":{\"country\":\"belgium\"}}]}}}", json);
+    }
+
+    @Test
+    public void testNumericTermsAndYearSpans() {
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":["
+                + "{\"term\":{\"key\":925334504}},{\"term\":{\"countryCode.keyword\":\"BE\"}},"
+                + "{\"range\":{\"year\":{\"gte\":2010,\"lte\":2014}}}]}}}",
+                GbifQueryCompiler.compile(query("year", "2010-2014", "countryCode", "be", "key", "925334504")));
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":[{\"range\":{\"year\":{\"gte\":2012}}}]}}}",
+                GbifQueryCompiler.compile(query("year", "2012-")));
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":[{\"term\":{\"year\":2014}}]}}}",
+                GbifQueryCompiler.compile(query("year", "2014")));
+    }
+
+    @Test
+    public void testValuesAreEscaped() {
+        String json = GbifQueryCompiler.compile(query("vernacularName", "Herring \"Gull\""));
+        Assert.assertEquals("{\"query\":{\"bool\":{\"must\":[{\"match\":{\"vernacularName\":\"Herring \\\"Gull\\\"\"}}]}}}", json);
+    }
+
+    @Test
+    public void testPagedQueriesSortAndSearchAfter() {
+        Assert.assertEquals("{\"query\":{\"bool\":{\"must\":[{\"match\":{\"kingdom\":\"animalia\"}}]}},"
+                + "\"size\":25,\"sort\":[{\"gbifID.keyword\":\"asc\"}]}",
+                GbifQueryCompiler.compile(query("kingdom", "animalia", "size", "25")));
+
+        JsonArray after = new JsonArray();
+        after.add("1234");
+        String cursor = new GbifCursor(after, "pit-1").encode();
+        Assert.assertEquals("{\"query\":{\"match_all\":{}},"
+                + "\"size\":10,\"sort\":[{\"gbifID.keyword\":\"asc\"}],\"search_after\":[\"1234\"],"
+                + "\"pit\":{\"id\":\"pit-1\",\"keep_alive\":\"1m\"}}",
+                GbifQueryCompiler.compile(query("cursor", cursor)));
+    }
+
+    @Test
+    public void testFieldsBecomeSourceFiltering() {
+        Assert.assertEquals("{\"query\":{\"match_all\":{}},\"_source\":{"
+                + "\"includes\":[\"countryCode\",\"gbifID\",\"key\",\"scientificName\",\"vernacularName\",\"year\"],"
+                + "\"excludes\":[\"gbifID\"]}}",
+                GbifQueryCompiler.compile(query("fields", "minimal, -gbifID")));
+        Assert.assertEquals(query("fields", "year,key").cacheKey(), query("fields", "key,year,").cacheKey());
+        Assert.assertEquals("*&fields=key,year", query("fields", "year,key").cacheKey());
+    }
+
+    @Test
+    public void testDeadlineBecomesSearchTimeout() {
+        String json = GbifQueryCompiler.compile(query("sex", "female"), null, Deadline.in(60000));
+        Assert.assertTrue(json, json.matches("\\{\"query\":.*,\"timeout\":\"\\d+ms\"\\}"));
+    }
+
+    @Test
+    public void testFacetsBecomeSizeZeroAggregations() {
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":[{\"term\":{\"countryCode.keyword\":\"BE\"}}]}},\"size\":0,\"aggs\":{"
+                + "\"kingdom\":{\"terms\":{\"field\":\"kingdom.keyword\",\"size\":5}},"
+                + "\"year\":{\"histogram\":{\"field\":\"year\",\"interval\":1,\"min_doc_count\":1}}}}",
+                GbifQueryCompiler.compile(query("countryCode", "BE", "facets", "year,kingdom", "facetSize", "5")));
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":[{\"term\":{\"sex.keyword\":\"MALE\"}}]}}}",
+                GbifQueryCompiler.compileCount(query("sex", "male", "count", "true")));
+    }
+
+    @Test
+    public void testGeoParametersBecomeFiltersAndGrid() {
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":[{\"term\":{\"sex.keyword\":\"MALE\"}},"
+                + "{\"geo_distance\":{\"distance\":\"2500m\",\"location\":{\"lat\":50.99,\"lon\":2.85}}}]}}}",
+                GbifQueryCompiler.compile(query("sex", "male", "near", "50.99,2.85", "radius", "2.5km")));
+
+        GbifQuery grid = query("bbox", "0,45,11.25,56.25", "precision", "2", "count", "true");
+        Assert.assertTrue(grid.isAggregate());
+        Assert.assertFalse(grid.isCount());
+        Assert.assertEquals("{\"query\":{\"bool\":{\"filter\":[{\"geo_bounding_box\":{\"location\":{"
+                + "\"top_left\":{\"lat\":56.25,\"lon\":0.0},\"bottom_right\":{\"lat\":45.0,\"lon\":11.25}}}}]}},"
+                + "\"size\":0,\"aggs\":{\"cells\":{\"geohash_grid\":{\"field\":\"location\",\"precision\":2,\"size\":10000},"
+                + "\"aggs\":{\"centroid\":{\"geo_centroid\":{\"field\":\"location\"}}}}}}",
+                GbifQueryCompiler.compile(grid));
+        //boxes in the same cells share a cache entry
+        Assert.assertEquals("bbox=0,45,11.25,56.25&precision=2", query("bbox", "2,50,4,51", "precision", "2").cacheKey());
+        Assert.assertEquals("bbox+precision", grid.shape());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsHitsOptionsOnGrids() {
+        query("precision", "3", "size", "10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsScriptedFieldNames() {
+        query("fields", "key,doc['x']");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonNumericYear() {
+        query("year", "last");
+    }
+}
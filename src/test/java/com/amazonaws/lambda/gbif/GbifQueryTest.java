@@ -0,0 +1,122 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.lambda.es.ApiGatewayEvent;
+
+public class GbifQueryTest {
+
+    private static final String EVENT = "{\"body-json\":{},\"params\":{\"path\":{},"
+            + "\"querystring\":{\"kingdom\":\"animalia\",\"country\":\"belgium\",\"sex\":\"male\"},"
+            + "\"header\":{\"Accept\":\"*/*\"}},\"stage-variables\":{},\"context\":{\"http-method\":\"GET\"}}";
+
+    private static Map<String, Object> passthroughEvent(Map<String, String> querystring) {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("path", new LinkedHashMap<String, Object>());
+        params.put("querystring", querystring);
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("body-json", new LinkedHashMap<String, Object>());
+        event.put("params", params);
+        return event;
+    }
+
+    private static Map<String, String> map(String... pairs) {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            querystring.put(pairs[i], pairs[i + 1]);
+        }
+        return querystring;
+    }
+
+    @Test
+    public void testDecodesPassthroughEventMap() {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("kingdom", "animalia");
+        querystring.put("sciName", " Larus argentatus ");
+
+        GbifQuery query = GbifQuery.from(ApiGatewayEvent.fromObject(passthroughEvent(querystring)));
+
+        Assert.assertEquals("animalia", query.get(GbifParam.KINGDOM));
+        Assert.assertEquals("Larus argentatus", query.get(GbifParam.SCIENTIFIC_NAME));
+        Assert.assertNull(query.get(GbifParam.SEX));
+    }
+
+    @Test
+    public void testStreamAndMapDecodingAgree() throws IOException {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("kingdom", "animalia");
+        querystring.put("country", "belgium");
+        querystring.put("sex", "male");
+
+        GbifQuery fromStream = GbifQuery.from(ApiGatewayEvent.fromStream(new ByteArrayInputStream(EVENT.getBytes("UTF-8"))));
+        GbifQuery fromMap = GbifQuery.from(ApiGatewayEvent.fromObject(passthroughEvent(querystring)));
+
+        Assert.assertEquals(fromMap, fromStream);
+    }
+
+    @Test
+    public void testProxyEventAndEmptyInput() throws IOException {
+        String proxy = "{\"resource\":\"/gbif\",\"queryStringParameters\":{\"year\":\"2014\"},\"headers\":null}";
+        GbifQuery query = GbifQuery.from(ApiGatewayEvent.fromStream(new ByteArrayInputStream(proxy.getBytes("UTF-8"))));
+        Assert.assertEquals("2014", query.get(GbifParam.YEAR));
+
+        Assert.assertTrue(GbifQuery.from(ApiGatewayEvent.fromObject(null)).isEmpty());
+    }
+
+    @Test
+    public void testEquivalentQueriesShareACacheKey() {
+        Map<String, String> readme = new LinkedHashMap<String, String>();
+        readme.put("kingdom", "animalia");
+        readme.put("country", "belgium");
+        readme.put("sex", "male");
+        Map<String, String> reordered = new LinkedHashMap<String, String>();
+        reordered.put("SEX", "Male");
+        reordered.put("country", "Belgium ");
+        reordered.put("Kingdom", "Animalia");
+
+        Assert.assertEquals(GbifQuery.of(readme).cacheKey(), GbifQuery.of(reordered).cacheKey());
+        Assert.assertEquals("sex=MALE&kingdom=animalia&country=belgium", GbifQuery.of(readme).cacheKey());
+        Assert.assertEquals("sex+kingdom+country", GbifQuery.of(readme).shape());
+    }
+
+    @Test
+    public void testValuesCannotForgeParameters() {
+        GbifQuery two = GbifQuery.of(map("country", "Belgium", "year", "2014"));
+        GbifQuery one = GbifQuery.of(map("country", "Belgium&year=2014"));
+        Assert.assertNotEquals(two.cacheKey(), one.cacheKey());
+        Assert.assertEquals("country=belgium&year=2014", two.cacheKey());
+        Assert.assertEquals("country=belgium%26year%3D2014", one.cacheKey());
+    }
+
+    @Test
+    public void testFacetsAndCountAreCanonical() {
+        GbifQuery facets = GbifQuery.of(map("facets", "year, country", "kingdom", "Animalia"));
+        Assert.assertTrue(facets.isAggregate());
+        Assert.assertFalse(facets.isCount());
+        Assert.assertEquals(facets.cacheKey(), GbifQuery.of(map("facets", "country,year", "kingdom", "Animalia")).cacheKey());
+        Assert.assertEquals("country,year", facets.getFacets().toString());
+
+        GbifQuery count = GbifQuery.of(map("count", "true"));
+        Assert.assertTrue(count.isCount());
+        Assert.assertNotEquals(count.cacheKey(), GbifQuery.of(map()).cacheKey());
+        Assert.assertNotEquals(count.shape(), facets.shape());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFacetsReturnNoHits() {
+        GbifQuery.of(map("facets", "year", "size", "20"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnsupportedParameter() {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("script", "1");
+        GbifQuery.of(querystring);
+    }
+}
@@ -0,0 +1,115 @@
+package com.amazonaws.lambda.gbif;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.http.HttpResponse;
+
+public class GbifTrackTest {
+
+    private static GbifTrack track(String tolerance, String points) {
+        return GbifTrack.parse("true", tolerance, points);
+    }
+
+    //east along a parallel for ten fixes, then north for ten (about 70 m and 110 m apart)
+    private static GbifTrack.Points corner() {
+        GbifTrack.Points points = new GbifTrack.Points();
+        for (int i = 0; i < 10; i++) {
+            points.add(51.0, 3.0 + i * 0.001, "2014-01-25T10:0" + i + ":00Z");
+        }
+        for (int i = 1; i <= 10; i++) {
+            points.add(51.0 + i * 0.001, 3.009, "2014-01-25T10:1" + (i - 1) + ":00Z");
+        }
+        return points;
+    }
+
+    private static HttpResponse response(String body) {
+        HttpResponse response = new HttpResponse(null, null);
+        response.setContent(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        return response;
+    }
+
+    @Test
+    public void testStraightRunsCollapseAndTurnsStay() {
+        Assert.assertEquals("[0, 9, 19]", Arrays.toString(track("10", null).simplify(corner())));
+        //the budget wins over the tolerance
+        Assert.assertEquals("[0, 19]", Arrays.toString(track("0", "2").simplify(corner())));
+
+        //a 50 m detour is kept at 10 m, dropped at 100 m
+        GbifTrack.Points detour = new GbifTrack.Points();
+        detour.add(51.0, 3.0, null);
+        detour.add(51.00045, 3.001, null);
+        detour.add(51.0, 3.002, null);
+        Assert.assertEquals(3, track("10m", null).simplify(detour).length);
+        Assert.assertEquals(2, track("100", null).simplify(detour).length);
+    }
+
+    @Test
+    public void testCompactResponse() {
+        GbifTrack.Points points = corner();
+        points.setTotal(25);
+        Assert.assertEquals("{\"individualID\":\"H903\",\"total\":25,\"fixes\":20,\"points\":3,"
+                + "\"coordinates\":[[3.0,51.0],[3.009,51.0],[3.009,51.01]],"
+                + "\"eventDates\":[\"2014-01-25T10:00:00Z\",\"2014-01-25T10:09:00Z\",\"2014-01-25T10:19:00Z\"]}",
+                track(null, null).toJson("H903", points));
+    }
+
+    @Test
+    public void testScrollPagesStreamIntoPoints() throws Exception {
+        String body = "{\"_scroll_id\":\"DXF1ZXJ5\",\"took\":3,\"timed_out\":false,\"hits\":{\"total\":3,\"hits\":["
+                + "{\"_id\":\"1\",\"_source\":{\"decimalLatitude\":50.9899,\"decimalLongitude\":2.8549,\"eventDate\":\"2014-01-25T10:00:00Z\"},\"sort\":[1390644000000,\"1\"]},"
+                + "{\"_id\":\"2\",\"_source\":{\"eventDate\":\"2014-01-25T10:05:00Z\"}},"
+                + "{\"_id\":\"3\",\"_source\":{\"decimalLatitude\":\"50.99\",\"decimalLongitude\":\"2.86\"}}]}}";
+        GbifTrack.Points points = new GbifTrack.Points();
+        GbifTrack.ScrollPage page = new GbifTrack.ScrollPage(points);
+        Assert.assertEquals("DXF1ZXJ5", page.handle(response(body)).getResult());
+        Assert.assertEquals(3, page.getHits());
+        Assert.assertEquals(2, points.size());
+        Assert.assertEquals(3, points.getTotal());
+        //a retried page replaces what the failed attempt had read
+        page.handle(response(body));
+        Assert.assertEquals(2, points.size());
+        Assert.assertFalse(points.isTimedOut());
+
+        page = new GbifTrack.ScrollPage(points);
+        page.handle(response("{\"_scroll_id\":\"DXF1ZXJ5\",\"timed_out\":true,\"hits\":{\"total\":{\"value\":4,\"relation\":\"eq\"},\"hits\":[]}}"));
+        Assert.assertEquals(0, page.getHits());
+        Assert.assertEquals(4, points.getTotal());
+        Assert.assertTrue(points.isTimedOut());
+    }
+
+    @Test
+    public void testTrackQueries() {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("individualID", "H903");
+        querystring.put("track", "true");
+        querystring.put("points", "500");
+        GbifQuery query = GbifQuery.of(querystring);
+        Assert.assertTrue(query.isTrack());
+        Assert.assertEquals("individualID=H903&track=10m;500", query.cacheKey());
+        Assert.assertEquals("individualID+track", query.shape());
+        Assert.assertTrue(GbifQueryCompiler.compileTrack(query, null).startsWith("{\"query\":{\"bool\":{\"filter\":["
+                + "{\"term\":{\"individualID.keyword\":\"H903\"}}]}},\"size\":5000,"
+                + "\"sort\":[{\"eventDate\":\"asc\"},{\"gbifID.keyword\":\"asc\"}],"));
+
+        for (String[] invalid : new String[][] { { "track", "true" }, { "individualID", "H903", "tolerance", "5" },
+                { "individualID", "H903", "track", "true", "size", "10" }, { "individualID", "H903", "track", "true", "points", "1" } }) {
+            querystring.clear();
+            for (int i = 0; i < invalid.length; i += 2) {
+                querystring.put(invalid[i], invalid[i + 1]);
+            }
+            try {
+                GbifQuery.of(querystring);
+                Assert.fail("Expected " + querystring + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.amazonaws.lambda.gbif.load;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DwcaRecordReaderTest {
+
+    private static final String META = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<archive xmlns=\"http://rs.tdwg.org/dwc/text/\">\n"
+            + "  <core encoding=\"UTF-8\" fieldsTerminatedBy=\"\\t\" linesTerminatedBy=\"\\n\" fieldsEnclosedBy=\"\""
+            + " ignoreHeaderLines=\"1\" rowType=\"http://rs.tdwg.org/dwc/terms/Occurrence\">\n"
+            + "    <files><location>occurrence.txt</location></files>\n"
+            + "    <id index=\"0\"/>\n"
+            + "    <field index=\"0\" term=\"http://rs.gbif.org/terms/1.0/gbifID\"/>\n"
+            + "    <field index=\"1\" term=\"http://rs.tdwg.org/dwc/terms/scientificName\"/>\n"
+            + "    <field index=\"2\" term=\"http://rs.tdwg.org/dwc/terms/year\"/>\n"
+            + "    <field index=\"3\" term=\"http://rs.tdwg.org/dwc/terms/decimalLatitude\"/>\n"
+            + "    <field term=\"http://rs.tdwg.org/dwc/terms/kingdom\" default=\"Animalia\"/>\n"
+            + "  </core>\n"
+            + "</archive>\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File archive(String... entries) throws IOException {
+        File file = folder.newFile("dwca.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                zip.putNextEntry(new ZipEntry(entries[i]));
+                zip.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testReadsCoreFileDescribedByMeta() throws IOException {
+        File file = archive("meta.xml", META, "occurrence.txt",
+                "gbifID\tscientificName\tyear\tdecimalLatitude\n"
+                + "925334504\tLarus argentatus Pontoppidan, 1763\t2014\t50.9899\n"
+                + "925333910\tLarus fuscus\t\tunknown\n");
+        try (DwcaRecordReader reader = new DwcaRecordReader(file)) {
+            GbifRecord first = reader.next();
+            Assert.assertEquals("925334504", first.getId());
+            Assert.assertEquals("925334504", first.getSource().get("gbifID").getAsString());
+            Assert.assertEquals(925334504L, first.getSource().get("key").getAsLong());
+            Assert.assertEquals(2014, first.getSource().get("year").getAsInt());
+            Assert.assertEquals(50.9899, first.getSource().get("decimalLatitude").getAsDouble(), 0.0);
+
+            GbifRecord second = reader.next();
+            Assert.assertFalse(second.getSource().has("year"));
+            Assert.assertEquals("unknown", second.getSource().get("decimalLatitude").getAsString());
+            Assert.assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void testReadsHeaderWithoutMeta() throws IOException {
+        File file = archive("occurrence.txt", "gbifID\tcountryCode\n42\tBE\n");
+        try (DwcaRecordReader reader = new DwcaRecordReader(file)) {
+            GbifRecord record = reader.next();
+            Assert.assertEquals("42", record.getId());
+            Assert.assertEquals("BE", record.getSource().get("countryCode").getAsString());
+            Assert.assertNull(reader.next());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.amazonaws.lambda.gbif.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.amazonaws.lambda.gbif.GbifCursor;
+import com.amazonaws.lambda.gbif.GbifQuery;
+
+public class GbifLocalIndexTest {
+
+    private static GbifLocalIndex index;
+
+    @BeforeClass
+    public static void loadSample() throws IOException {
+        try (InputStream in = GbifLocalIndexTest.class.getResourceAsStream("/gbif_sample.json")) {
+            index = GbifLocalIndex.load(in);
+        }
+    }
+
+    private static JsonObject search(String... pairs) {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            querystring.put(pairs[i], pairs[i + 1]);
+        }
+        return new JsonParser().parse(index.search(GbifQuery.of(querystring))).getAsJsonObject();
+    }
+
+    private static List<String> ids(JsonObject response) {
+        List<String> ids = new ArrayList<String>();
+        for (JsonElement hit : response.getAsJsonObject("hits").getAsJsonArray("hits")) {
+            ids.add(hit.getAsJsonObject().get("_id").getAsString());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testLoadsBulkAndArrayFormats() throws IOException {
+        Assert.assertEquals(6, index.size());
+        Assert.assertEquals(6, search().getAsJsonObject("hits").get("total").getAsInt());
+
+        GbifLocalIndex array = GbifLocalIndex.load(new StringReader("[{\"gbifID\":\"2\",\"sex\":\"MALE\"},{\"gbifID\":\"1\"}]"));
+        Assert.assertEquals(2, array.size());
+        Assert.assertEquals(Arrays.asList("0"), ids(new JsonParser().parse(array.search(GbifQuery.of(
+                Collections.singletonMap("sex", "male")))).getAsJsonObject()));
+    }
+
+    @Test
+    public void testFiltersIntersectAndNamesMatchAnyWord() {
+        Assert.assertEquals(Arrays.asList("21"), ids(search("sex", "male", "countryCode", "be")));
+        Assert.assertEquals(Arrays.asList("22", "23", "25"), ids(search("year", "2011-2013")));
+        Assert.assertEquals(Arrays.asList("24", "25"), ids(search("year", "2010-2011")));
+        Assert.assertEquals(Arrays.asList("24"), ids(search("key", "891021345")));
+        Assert.assertTrue(ids(search("countryCode", "FR")).isEmpty());
+
+        //"larus fuscus" scores the fuscus records above the other gull
+        JsonObject gulls = search("sciName", "Larus fuscus");
+        Assert.assertEquals(3, gulls.getAsJsonObject("hits").get("total").getAsInt());
+        Assert.assertEquals(Arrays.asList("22", "23", "21"), ids(gulls));
+        Assert.assertTrue(gulls.getAsJsonObject("hits").get("max_score").getAsFloat() > 0f);
+    }
+
+    @Test
+    public void testCountsFacetsWithoutHits() {
+        Assert.assertEquals("{\"total\":3,\"facets\":{\"sex\":{\"MALE\":2,\"FEMALE\":1},"
+                + "\"countryCode\":{\"BE\":2,\"NL\":1},\"year\":{\"2012\":1,\"2013\":1,\"2014\":1}}}",
+                search("family", "Laridae", "facets", "year,countryCode,sex").toString());
+        Assert.assertEquals("{\"total\":6,\"facets\":{\"countryCode\":{\"BE\":2}}}",
+                search("facets", "countryCode", "facetSize", "1").toString());
+        Assert.assertEquals("{\"count\":4}", search("year", "2010-2013", "count", "true").toString());
+    }
+
+    @Test
+    public void testGeoFiltersAndGridCells() throws IOException {
+        GbifLocalIndex points = GbifLocalIndex.load(new StringReader("["
+                + "{\"gbifID\":\"1\",\"decimalLatitude\":51.0,\"decimalLongitude\":3.0},"
+                + "{\"gbifID\":\"2\",\"decimalLatitude\":51.5,\"decimalLongitude\":3.5},"
+                + "{\"gbifID\":\"3\",\"decimalLatitude\":52.37,\"decimalLongitude\":4.9},"
+                + "{\"gbifID\":\"4\",\"decimalLatitude\":-33.9,\"decimalLongitude\":18.4},"
+                + "{\"gbifID\":\"5\"}]"));
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("bbox", "2,50,4,52");
+        Assert.assertEquals(2, total(points, querystring));
+        querystring.put("near", "51.02,3.02");
+        querystring.put("radius", "5km");
+        Assert.assertEquals(1, total(points, querystring));
+
+        querystring.clear();
+        querystring.put("precision", "3");
+        Assert.assertEquals("{\"total\":5,\"cells\":[{\"key\":\"u14\",\"count\":2,\"lat\":51.25,\"lon\":3.25},"
+                + "{\"key\":\"k3v\",\"count\":1,\"lat\":-33.9,\"lon\":18.4},{\"key\":\"u17\",\"count\":1,\"lat\":52.37,\"lon\":4.9}]}",
+                points.search(GbifQuery.of(querystring)));
+    }
+
+    @Test
+    public void testTracksInEventDateOrder() throws IOException {
+        GbifLocalIndex fixes = GbifLocalIndex.load(new StringReader("["
+                + "{\"gbifID\":\"1\",\"individualID\":\"H903\",\"eventDate\":\"2014-01-25T10:10:00Z\",\"decimalLatitude\":51.01,\"decimalLongitude\":3.0},"
+                + "{\"gbifID\":\"2\",\"individualID\":\"H903\",\"eventDate\":\"2014-01-25T10:00:00Z\",\"decimalLatitude\":51.0,\"decimalLongitude\":3.0},"
+                + "{\"gbifID\":\"3\",\"individualID\":\"H904\",\"eventDate\":\"2014-01-25T10:05:00Z\",\"decimalLatitude\":52.0,\"decimalLongitude\":4.0},"
+                + "{\"gbifID\":\"4\",\"individualID\":\"H903\",\"eventDate\":\"2014-01-25T10:05:00Z\",\"decimalLatitude\":51.0,\"decimalLongitude\":3.01},"
+                + "{\"gbifID\":\"5\",\"individualID\":\"H903\",\"eventDate\":\"2014-01-25T10:07:00Z\"}]"));
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("individualID", "H903");
+        querystring.put("track", "true");
+        Assert.assertEquals("{\"individualID\":\"H903\",\"total\":4,\"fixes\":3,\"points\":3,"
+                + "\"coordinates\":[[3.0,51.0],[3.01,51.0],[3.0,51.01]],"
+                + "\"eventDates\":[\"2014-01-25T10:00:00Z\",\"2014-01-25T10:05:00Z\",\"2014-01-25T10:10:00Z\"]}",
+                fixes.search(GbifQuery.of(querystring)));
+    }
+
+    private static int total(GbifLocalIndex index, Map<String, String> querystring) {
+        JsonObject response = new JsonParser().parse(index.search(GbifQuery.of(querystring))).getAsJsonObject();
+        return response.getAsJsonObject("hits").get("total").getAsInt();
+    }
+
+    @Test
+    public void testPagesInGbifIdOrder() {
+        Map<String, String> querystring = new LinkedHashMap<String, String>();
+        querystring.put("size", "4");
+        JsonObject first = new JsonParser().parse(index.search(GbifQuery.of(querystring))).getAsJsonObject();
+        Assert.assertEquals(Arrays.asList("24", "25", "26", "22"), ids(first));
+        Assert.assertTrue(first.getAsJsonObject("hits").get("max_score").isJsonNull());
+
+        GbifCursor cursor = GbifCursor.next(first, 4);
+        Assert.assertNotNull(cursor);
+        querystring.put("cursor", cursor.encode());
+        JsonObject second = new JsonParser().parse(index.search(GbifQuery.of(querystring))).getAsJsonObject();
+        Assert.assertEquals(Arrays.asList("21", "23"), ids(second));
+        Assert.assertNull(GbifCursor.next(second, 4));
+    }
+
+    @Test
+    public void testProjectsSourceFields() {
+        JsonObject response = search("key", "925334504", "fields", "minimal,-year,decimal*");
+        JsonObject source = response.getAsJsonObject("hits").getAsJsonArray("hits").get(0).getAsJsonObject().getAsJsonObject("_source");
+        Assert.assertEquals(7, source.size());
+        Assert.assertTrue(source.has("decimalLatitude"));
+        Assert.assertEquals("Herring Gull", source.get("vernacularName").getAsString());
+        Assert.assertFalse(source.has("year"));
+        Assert.assertFalse(source.has("family"));
+    }
+}
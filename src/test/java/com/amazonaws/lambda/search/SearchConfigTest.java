@@ -0,0 +1,46 @@
+package com.amazonaws.lambda.search;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SearchConfigTest {
+
+    @Test
+    public void testBundledConfigurationDeclaresIndexes() {
+        SearchConfig config = SearchConfig.getDefault();
+        Assert.assertEquals("gbif", config.getDefaultIndex());
+        Assert.assertEquals("com.amazonaws.lambda.gbif.GbifLambdaHandler", config.getIndex("gbif").getHandler());
+        Assert.assertNull(config.getIndex("shakespeare").getHandler());
+        Assert.assertEquals("nested_match", config.getIndex("shakespeare").getStoredTemplate());
+        Assert.assertTrue(config.getIndex("shakespeare").compile(Collections.<String, String>emptyMap(), null)
+                .contains("\"description\":\"Chem\""));
+        Assert.assertEquals("es", config.getServiceName());
+        Assert.assertNotNull(config.getEndpoint());
+    }
+
+    @Test
+    public void testInvalidDeclarationsFailWhenLoaded() {
+        String[] invalid = {
+            "{\"endpoint\": \"http://localhost/\", \"indexes\": {}}",
+            "{\"indexes\": {\"plays\": {\"params\": {\"play\": {\"field\": \"play_name\"}}}}}",
+            "{\"endpoint\": \"http://localhost/\", \"indexes\": {\"plays\": {\"params\": {\"play\": {}}}}}",
+            "{\"endpoint\": \"http://localhost/\", \"indexes\": {\"plays\": {\"params\": {\"play\": {\"field\": \"play_name\", \"type\": \"fuzzy\"}}}}}",
+            "{\"endpoint\": \"http://localhost/\", \"indexes\": {\"plays\": {\"template\": {\"query\": {\"match\": {\"speaker\": \"{{speaker}}\"}}}}}}",
+            "{\"endpoint\": \"http://localhost/\", \"indexes\": {\"plays\": {\"handler\": \"com.example.MissingHandler\"}}}",
+            "{\"endpoint\": \"http://localhost/\", \"indexes\": {\"plays\": {\"template\": \"missing\"}}}",
+            "{\"endpoint\": \"http://localhost/\", \"templates\": {\"lines\": {\"query\": {\"match\": {\"speaker\": \"{{speaker}}\"}}}},"
+                    + "\"indexes\": {\"plays\": {\"template\": \"lines\"}}}",
+            "{\"endpoint\": \"http://localhost/\", \"templates\": {\"lines\": \"speaker\"}, \"indexes\": {\"plays\": {\"params\": {}}}}",
+            "{\"endpoint\": \"http://localhost/\", \"defaultIndex\": \"gbif\", \"indexes\": {\"plays\": {\"params\": {}}}}",
+        };
+        for (String json : invalid) {
+            try {
+                SearchConfig.parse(json);
+                Assert.fail("Expected " + json + " to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.amazonaws.lambda.search;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.amazonaws.lambda.es.Deadline;
+
+public class SearchIndexTest {
+
+    private static SearchIndex index(String json) {
+        return SearchIndex.fromJson("plays", new JsonParser().parse(json).getAsJsonObject());
+    }
+
+    private static Map<String, String> map(String... pairs) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            map.put(pairs[i], pairs[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void testParamsCompileToBoolQuery() {
+        SearchIndex index = index("{\"index\": \"shakespeare\", \"params\": {"
+                + "\"play\": {\"field\": \"play_name\"},"
+                + "\"speaker\": {\"field\": \"speaker\", \"type\": \"match\"},"
+                + "\"line\": {\"field\": \"line_id\", \"type\": \"range\"}}}");
+        JsonObject body = new JsonParser().parse(index.compile(
+                map("play", "Hamlet", "speaker", "HAMLET", "line", "10,", "size", "5"), Deadline.in(2000))).getAsJsonObject();
+
+        JsonObject bool = body.getAsJsonObject("query").getAsJsonObject("bool");
+        Assert.assertEquals("{\"term\":{\"play_name\":\"Hamlet\"}}", bool.getAsJsonArray("filter").get(0).toString());
+        Assert.assertEquals("{\"range\":{\"line_id\":{\"gte\":\"10\"}}}", bool.getAsJsonArray("filter").get(1).toString());
+        Assert.assertEquals("{\"match\":{\"speaker\":\"HAMLET\"}}", bool.getAsJsonArray("must").get(0).toString());
+        Assert.assertEquals(5, body.get("size").getAsInt());
+        Assert.assertTrue(body.has("timeout"));
+        Assert.assertEquals("shakespeare", index.getIndex());
+
+        Assert.assertEquals("{\"query\":{\"match_all\":{}},\"size\":10}", index.compile(map(), null));
+    }
+
+    @Test
+    public void testTemplateSubstitutesParametersAndDefaults() {
+        SearchIndex index = index("{\"size\": 3, \"params\": {\"description\": {\"default\": \"Chem\"}},"
+                + "\"template\": {\"query\": {\"nested\": {\"path\": \"dataset\","
+                + "\"query\": {\"match\": {\"dataset.description\": \"{{description}}\"}}}}}}");
+
+        Assert.assertEquals("{\"query\":{\"nested\":{\"path\":\"dataset\",\"query\":{\"match\":"
+                + "{\"dataset.description\":\"Chem\"}}}},\"size\":3}", index.compile(map(), null));
+        //values are JSON strings, whatever they contain
+        Assert.assertTrue(index.compile(map("description", "\"}]}"), null).contains("\"dataset.description\":\"\\\"}]}\""));
+    }
+
+    @Test
+    public void testStoredTemplateSendsParametersOnly() {
+        SearchTemplates templates = SearchTemplates.fromJson(new JsonParser().parse("{\"nested_match\": {\"query\": {\"nested\": "
+                + "{\"path\": \"{{path}}\", \"query\": {\"match\": {\"{{field}}\": \"{{q}}\"}}}}}}").getAsJsonObject());
+        Assert.assertEquals("[field, path, q, size, timeout]", templates.getParams("nested_match").toString());
+
+        SearchIndex index = SearchIndex.fromJson("plays", new JsonParser().parse("{\"index\": \"shakespeare\", \"template\": \"nested_match\","
+                + "\"params\": {\"q\": {}, \"path\": {\"default\": \"dataset\"}, \"field\": {\"default\": \"dataset.description\"}}}")
+                .getAsJsonObject(), templates);
+        Assert.assertEquals("{\"id\":\"nested_match\",\"params\":{\"q\":\"Chem\",\"path\":\"dataset\","
+                + "\"field\":\"dataset.description\",\"size\":10,\"timeout\":\"-1\"}}", index.compile(map("q", "Chem"), null));
+        Assert.assertEquals("/shakespeare/_search/template", index.getResourcePath());
+
+        //placeholders in keys, rendered locally by inline templates
+        Assert.assertEquals("{\"query\":{\"nested\":{\"path\":\"dataset\",\"query\":{\"match\":{\"dataset.description\":\"Chem\"}}}},"
+                + "\"size\":\"10\",\"timeout\":\"-1\"}", SearchTemplates.render(templates.getSource("nested_match"),
+                map("q", "Chem", "path", "dataset", "field", "dataset.description", "size", "10", "timeout", "-1")).toString());
+    }
+
+    @Test
+    public void testRejectsInvalidParameters() {
+        SearchIndex index = index("{\"params\": {\"play\": {\"field\": \"play_name\"}}, \"maxSize\": 20}");
+        for (Map<String, String> querystring : Arrays.asList(map("speaker", "HAMLET"), map("size", "21"), map("size", "x"))) {
+            try {
+                index.compile(querystring, null);
+                Assert.fail("Expected " + querystring + " to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.amazonaws.lambda.search;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SearchRouterTest {
+
+    public static class EchoHandler implements RequestHandler<Object, String> {
+        @Override
+        public String handleRequest(Object input, Context context) {
+            return "echo";
+        }
+    }
+
+    @BeforeClass
+    public static void useDummyCredentials() {
+        if (System.getProperty("aws.accessKeyId") == null) {
+            System.setProperty("aws.accessKeyId", "AKIDEXAMPLE");
+            System.setProperty("aws.secretKey", "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY");
+        }
+    }
+
+    private static Map<String, Object> event(String index, String... querystring) {
+        Map<String, Object> query = new LinkedHashMap<String, Object>();
+        for (int i = 0; i + 1 < querystring.length; i += 2) {
+            query.put(querystring[i], querystring[i + 1]);
+        }
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("httpMethod", "GET");
+        event.put("queryStringParameters", query);
+        if (index != null) {
+            Map<String, Object> path = new LinkedHashMap<String, Object>();
+            path.put("index", index);
+            event.put("pathParameters", path);
+        }
+        return event;
+    }
+
+    private static SearchConfig config(String endpoint) {
+        return SearchConfig.parse("{\"endpoint\": \"" + endpoint + "\", \"defaultIndex\": \"echo\","
+                + "\"templates\": {\"speaker_lines\": {\"query\": {\"match\": {\"speaker\": \"{{speaker}}\"}}}},"
+                + "\"indexes\": {"
+                + "\"echo\": {\"handler\": \"" + EchoHandler.class.getName() + "\"},"
+                + "\"plays\": {\"index\": \"shakespeare\", \"params\": {\"speaker\": {\"field\": \"speaker\", \"type\": \"match\"}}},"
+                + "\"lines\": {\"index\": \"shakespeare\", \"params\": {\"speaker\": {}}, \"template\": \"speaker_lines\"}}}");
+    }
+
+    //stand-in for ES, appending "METHOD path body" lines to received
+    private static HttpServer server(final StringBuffer received) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                    body.write(buffer, 0, n);
+                }
+                received.append(exchange.getRequestMethod()).append(' ').append(exchange.getRequestURI().getPath()).append(' ')
+                        .append(new String(body.toByteArray(), StandardCharsets.UTF_8)).append('\n');
+                byte[] response = "{\"hits\":{\"total\":1,\"hits\":[]}}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    @Test
+    public void testSearchesDeclaredIndex() throws IOException {
+        StringBuffer received = new StringBuffer();
+        HttpServer server = server(received);
+        try {
+            SearchRouter router = new SearchRouter(config("http://localhost:" + server.getAddress().getPort() + "/"));
+            String response = router.handleRequest(event("plays", "speaker", "HAMLET"), null);
+
+            Assert.assertEquals("{\"hits\":{\"total\":1,\"hits\":[]}}", response);
+            Assert.assertTrue(received.toString(), received.toString().startsWith("GET /shakespeare/_search {"));
+            Assert.assertTrue(received.toString(), received.toString().contains("{\"match\":{\"speaker\":\"HAMLET\"}}"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testStoresTemplateOnceThenSendsParametersOnly() throws IOException {
+        StringBuffer received = new StringBuffer();
+        HttpServer server = server(received);
+        try {
+            SearchRouter router = new SearchRouter(config("http://localhost:" + server.getAddress().getPort() + "/"));
+            router.handleRequest(event("lines", "speaker", "HAMLET"), null);
+            router.handleRequest(event("lines", "speaker", "OPHELIA", "size", "2"), null);
+
+            String[] requests = received.toString().split("\n");
+            Assert.assertEquals(received.toString(), 3, requests.length);
+            Assert.assertEquals("PUT /_scripts/speaker_lines {\"script\":{\"lang\":\"mustache\",\"source\":"
+                    + "{\"query\":{\"match\":{\"speaker\":\"{{speaker}}\"}},\"size\":\"{{size}}\",\"timeout\":\"{{timeout}}\"}}}",
+                    requests[0]);
+            Assert.assertTrue(requests[1], requests[1].startsWith("GET /shakespeare/_search/template "
+                    + "{\"id\":\"speaker_lines\",\"params\":{\"speaker\":\"HAMLET\",\"size\":10,\"timeout\":\""));
+            Assert.assertTrue(requests[2], requests[2].startsWith("GET /shakespeare/_search/template "
+                    + "{\"id\":\"speaker_lines\",\"params\":{\"speaker\":\"OPHELIA\",\"size\":2,\"timeout\":\""));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDelegatesToDeclaredHandler() {
+        SearchRouter router = new SearchRouter(config("http://localhost:9/"));
+        Assert.assertEquals("echo", router.handleRequest(event("echo"), null));
+        //no path parameter: the default index
+        Assert.assertEquals("echo", router.handleRequest(event(null, "speaker", "HAMLET"), null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUndeclaredIndex() {
+        new SearchRouter(config("http://localhost:9/")).handleRequest(event("sonnets"), null);
+    }
+}
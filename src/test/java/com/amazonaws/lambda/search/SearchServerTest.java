@@ -0,0 +1,126 @@
+package com.amazonaws.lambda.search;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+public class SearchServerTest {
+
+    public static class EchoHandler implements RequestHandler<Object, String> {
+        @Override
+        public String handleRequest(Object input, Context context) {
+            return "{\"remaining\":" + (context.getRemainingTimeInMillis() > 0) + "}";
+        }
+    }
+
+    //answers once released, to hold requests under way
+    public static class BlockingHandler implements RequestHandler<Object, String> {
+        static volatile CountDownLatch entered = new CountDownLatch(1);
+        static volatile CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public String handleRequest(Object input, Context context) {
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "{\"released\":true}";
+        }
+    }
+
+    private static SearchServer server(int maxConcurrency) throws IOException {
+        SearchConfig config = SearchConfig.parse("{\"endpoint\": \"http://localhost:9/\", \"defaultIndex\": \"echo\", \"indexes\": {"
+                + "\"echo\": {\"handler\": \"" + EchoHandler.class.getName() + "\"},"
+                + "\"slow\": {\"handler\": \"" + BlockingHandler.class.getName() + "\"},"
+                + "\"plays\": {\"params\": {\"speaker\": {\"field\": \"speaker\"}}}}}");
+        SearchServer server = new SearchServer(config, new SearchRouter(config), new InetSocketAddress("localhost", 0),
+                maxConcurrency, 5000, true);
+        server.start();
+        return server;
+    }
+
+    //"status body"
+    private static String get(SearchServer server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            body.write(buffer, 0, n);
+        }
+        in.close();
+        return status + " " + new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRoutesRequestsToIndexes() throws IOException {
+        SearchServer server = server(4);
+        try {
+            Assert.assertEquals("200 {\"remaining\":true}", get(server, "/echo?q=x"));
+            Assert.assertEquals("200 {\"remaining\":true}", get(server, "/"));
+            Assert.assertEquals("200 {\"status\":\"ok\"}", get(server, SearchServer.HEALTH));
+            Assert.assertEquals("404 {\"message\":\"Unknown index: sonnets\"}", get(server, "/sonnets"));
+            Assert.assertEquals("400 {\"message\":\"Unsupported query parameter: play\"}", get(server, "/plays?play=Hamlet"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testShedsLoadAndDrainsOnStop() throws Exception {
+        BlockingHandler.entered = new CountDownLatch(1);
+        BlockingHandler.release = new CountDownLatch(1);
+        final SearchServer server = server(1);
+        ExecutorService clients = Executors.newCachedThreadPool();
+        try {
+            Future<String> slow = clients.submit(new Callable<String>() {
+                @Override
+                public String call() throws IOException {
+                    return get(server, "/slow");
+                }
+            });
+            Assert.assertTrue(BlockingHandler.entered.await(5, TimeUnit.SECONDS));
+            //the only permit is taken
+            Assert.assertTrue(get(server, "/echo").startsWith("503 "));
+
+            Future<?> stopped = clients.submit(new Runnable() {
+                @Override
+                public void run() {
+                    server.stop(5000);
+                }
+            });
+            long start = System.currentTimeMillis();
+            while (!get(server, SearchServer.HEALTH).startsWith("503 ")) {
+                Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+                Thread.sleep(10);
+            }
+            Assert.assertFalse(stopped.isDone());
+            //the request under way is answered before the server stops
+            BlockingHandler.release.countDown();
+            Assert.assertEquals("200 {\"released\":true}", slow.get(5, TimeUnit.SECONDS));
+            stopped.get(5, TimeUnit.SECONDS);
+        } finally {
+            BlockingHandler.release.countDown();
+            clients.shutdownNow();
+        }
+    }
+}